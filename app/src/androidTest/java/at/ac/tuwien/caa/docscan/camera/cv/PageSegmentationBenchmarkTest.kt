@@ -0,0 +1,188 @@
+package at.ac.tuwien.caa.docscan.camera.cv
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.android.OpenCVLoader
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.hypot
+import kotlin.random.Random
+
+/**
+ * Compares the coarse-to-fine page segmentation with the exhaustive search on artificial images
+ * (a perspectively distorted page with text lines on a textured background). Logs the time per
+ * image, the detection rate and the corner error of both modes and checks that the coarse-to-fine
+ * mode is (nearly) as accurate as the exhaustive search.
+ */
+@RunWith(AndroidJUnit4::class)
+class PageSegmentationBenchmarkTest {
+
+    companion object {
+        private const val TAG = "PageSegmentationBench"
+        // Size of the preview frame after NativeWrapper.resize:
+        private const val WIDTH = 600
+        private const val HEIGHT = 450
+        private const val NUM_IMAGES = 30
+        private const val NOISE_SIGMA = 6.0
+        // A page counts as detected if the mean corner error is below (in pixels):
+        private const val MAX_CORNER_ERROR = 8.0
+        private const val MAX_DETECTION_LOSS = 0.1
+        private const val SEED = 42
+    }
+
+    private class Result(val corners: List<Array<Point>?>, val time: Long)
+
+    private var oldMode = NativeWrapper.SEGMENTATION_MODE_EXHAUSTIVE
+
+    @Before
+    fun loadLibraries() {
+        if (!OpenCVLoader.initDebug())
+            System.loadLibrary("opencv_java3")
+        System.loadLibrary("docscan-native")
+        oldMode = NativeWrapper.getSegmentationMode()
+    }
+
+    @After
+    fun restoreMode() {
+        NativeWrapper.setSegmentationMode(oldMode)
+        NativeWrapper.resetPageTracking()
+    }
+
+    @Test
+    fun compareCoarseToFineWithExhaustive() {
+
+        val random = Random(SEED)
+        val pages = List(NUM_IMAGES) { createPage(random) }
+        val images = pages.map { createImage(it, random) }
+
+        val exhaustive = run(NativeWrapper.SEGMENTATION_MODE_EXHAUSTIVE, images)
+        val coarseToFine = run(NativeWrapper.SEGMENTATION_MODE_COARSE_TO_FINE, images)
+
+        val exhaustiveRate = detectionRate(exhaustive, pages)
+        val coarseToFineRate = detectionRate(coarseToFine, pages)
+
+        Log.i(TAG, "time per image: exhaustive: " + exhaustive.time / NUM_IMAGES +
+                " us, coarse-to-fine: " + coarseToFine.time / NUM_IMAGES + " us")
+        Log.i(TAG, "detection rate: exhaustive: $exhaustiveRate coarse-to-fine: $coarseToFineRate")
+        Log.i(TAG, "mean corner error: exhaustive: " + meanError(exhaustive, pages) +
+                " coarse-to-fine: " + meanError(coarseToFine, pages))
+
+        images.forEach { it.release() }
+
+        assertTrue(coarseToFineRate >= exhaustiveRate - MAX_DETECTION_LOSS)
+
+    }
+
+    private fun run(mode: Int, images: List<Mat>): Result {
+
+        NativeWrapper.setSegmentationMode(mode)
+
+        val corners = mutableListOf<Array<Point>?>()
+        var time = 0L
+
+        for (image in images) {
+//            Every image is independent, the old page must not be used as hint:
+            NativeWrapper.resetPageTracking()
+            val startTime = SystemClock.elapsedRealtimeNanos()
+            val rects = NativeWrapper.getPageSegmentation(image)
+            time += SystemClock.elapsedRealtimeNanos() - startTime
+
+            corners.add(rects.firstOrNull()?.let { rect ->
+                arrayOf(Point(rect.x1.toDouble(), rect.y1.toDouble()),
+                        Point(rect.x2.toDouble(), rect.y2.toDouble()),
+                        Point(rect.x3.toDouble(), rect.y3.toDouble()),
+                        Point(rect.x4.toDouble(), rect.y4.toDouble()))
+            })
+        }
+
+        return Result(corners, time / 1000)
+
+    }
+
+    private fun detectionRate(result: Result, pages: List<Array<Point>>): Double {
+        return pages.indices.count { idx ->
+            val corners = result.corners[idx]
+            corners != null && cornerError(corners, pages[idx]) < MAX_CORNER_ERROR
+        } / pages.size.toDouble()
+    }
+
+    private fun meanError(result: Result, pages: List<Array<Point>>): Double {
+        val errors = pages.indices.mapNotNull { idx ->
+            result.corners[idx]?.let { cornerError(it, pages[idx]) }
+        }
+        return if (errors.isEmpty()) Double.NaN else errors.average()
+    }
+
+    /**
+     * Mean distance between the true corners and the nearest found corners (the order of the
+     * corners is not defined).
+     */
+    private fun cornerError(corners: Array<Point>, page: Array<Point>): Double {
+        return page.map { p -> corners.minOf { c -> hypot(c.x - p.x, c.y - p.y) } }.average()
+    }
+
+    /**
+     * A page of about half the image size with a random perspective distortion.
+     */
+    private fun createPage(random: Random): Array<Point> {
+
+        val cx = WIDTH / 2.0 + random.nextDouble(-40.0, 40.0)
+        val cy = HEIGHT / 2.0 + random.nextDouble(-30.0, 30.0)
+        val w = random.nextDouble(140.0, 200.0)
+        val h = random.nextDouble(120.0, 170.0)
+
+        fun jitter() = random.nextDouble(-20.0, 20.0)
+
+        return arrayOf(Point(cx - w + jitter(), cy - h + jitter()),
+                Point(cx + w + jitter(), cy - h + jitter()),
+                Point(cx + w + jitter(), cy + h + jitter()),
+                Point(cx - w + jitter(), cy + h + jitter()))
+
+    }
+
+    private fun createImage(page: Array<Point>, random: Random): Mat {
+
+//        Textured background:
+        val image = Mat(HEIGHT, WIDTH, CvType.CV_8UC3)
+        Core.randu(image, 40.0, 110.0)
+        Imgproc.GaussianBlur(image, image, Size(9.0, 9.0), 0.0)
+
+        val pageColor = Scalar(random.nextDouble(200.0, 240.0), random.nextDouble(195.0, 235.0),
+                random.nextDouble(185.0, 225.0))
+        Imgproc.fillConvexPoly(image, MatOfPoint(*page), pageColor)
+
+//        Text lines between the left and the right side of the page:
+        for (line in 1 until 20) {
+            val t = line / 20.0
+            val left = interpolate(page[0], page[3], t)
+            val right = interpolate(page[1], page[2], t)
+            Imgproc.line(image, interpolate(left, right, 0.1), interpolate(left, right, 0.9),
+                    Scalar(30.0, 30.0, 30.0), 2)
+        }
+
+        val noise = Mat(HEIGHT, WIDTH, CvType.CV_8UC3)
+        Core.randn(noise, 128.0, NOISE_SIGMA)
+        Core.addWeighted(image, 1.0, noise, 1.0, -128.0, image)
+        noise.release()
+
+        return image
+
+    }
+
+    private fun interpolate(p1: Point, p2: Point, t: Double): Point {
+        return Point(p1.x + (p2.x - p1.x) * t, p1.y + (p2.y - p1.y) * t)
+    }
+
+}
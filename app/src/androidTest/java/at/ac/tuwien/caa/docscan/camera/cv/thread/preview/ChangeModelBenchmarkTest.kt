@@ -0,0 +1,153 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.android.OpenCVLoader
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Compares the DifferenceChangeModel with the Mog2ChangeModel on an artificial frame sequence
+ * (steady page, moving page, new page). Logs the time per frame and checks that both models take
+ * (nearly) the same movement and new page decisions.
+ */
+@RunWith(AndroidJUnit4::class)
+class ChangeModelBenchmarkTest {
+
+    companion object {
+        private const val TAG = "ChangeModelBenchmark"
+        // Size of the gray image in the FramePyramid for a 4:3 preview:
+        private const val WIDTH = 400
+        private const val HEIGHT = 300
+        private const val PAGE_WIDTH = 150
+        private const val PAGE_HEIGHT = 200
+        private const val NOISE_SIGMA = 4.0
+        private const val SEGMENT_LENGTH = 20
+        private const val MIN_AGREEMENT = 0.9
+    }
+
+    private class Result(val moving: BooleanArray, val newFrame: BooleanArray, val time: Long)
+
+    @Before
+    fun loadOpenCV() {
+        if (!OpenCVLoader.initDebug())
+            System.loadLibrary("opencv_java3")
+    }
+
+    @Test
+    fun compareDifferenceWithMog2() {
+
+        val frames = createSequence()
+
+        val difference = run(ChangeDetector.Model.DIFFERENCE, frames)
+        val mog2 = run(ChangeDetector.Model.MOG2, frames)
+
+        val movingAgreement = agreement(difference.moving, mog2.moving)
+        val newFrameAgreement = agreement(difference.newFrame, mog2.newFrame)
+
+        Log.i(TAG, "time per frame: difference: " + difference.time / frames.size +
+                " us, mog2: " + mog2.time / frames.size + " us")
+        Log.i(TAG, "agreement: moving: $movingAgreement new frame: $newFrameAgreement")
+
+        frames.forEach { it.release() }
+
+        assertTrue(movingAgreement >= MIN_AGREEMENT)
+        assertTrue(newFrameAgreement >= MIN_AGREEMENT)
+
+    }
+
+    private fun run(model: ChangeDetector.Model, frames: List<Mat>): Result {
+
+        val movementModel = ChangeDetector.createModel(model)
+        val newFrameModel = ChangeDetector.createModel(model)
+        val moving = BooleanArray(frames.size)
+        val newFrame = BooleanArray(frames.size)
+
+        val startTime = SystemClock.elapsedRealtimeNanos()
+
+        movementModel.init(frames[0])
+        newFrameModel.init(frames[0])
+
+        frames.forEachIndexed { idx, frame ->
+            moving[idx] = movementModel.getChangeRatio(frame,
+                    ChangeDetector.MOVEMENT_LEARN_RATE) > ChangeDetector.CHANGE_THRESH
+            newFrame[idx] = newFrameModel.getChangeRatio(frame, 0.0) >
+                    ChangeDetector.NEW_FRAME_THRESH
+        }
+
+        val time = (SystemClock.elapsedRealtimeNanos() - startTime) / 1000
+
+        movementModel.release()
+        newFrameModel.release()
+
+        return Result(moving, newFrame, time)
+
+    }
+
+    private fun agreement(a: BooleanArray, b: BooleanArray): Double {
+        return a.indices.count { a[it] == b[it] } / a.size.toDouble()
+    }
+
+    /**
+     * Steady page, moving page, steady page and a different page, each with sensor noise.
+     */
+    private fun createSequence(): List<Mat> {
+
+        val frames = mutableListOf<Mat>()
+        val noise = Mat(HEIGHT, WIDTH, CvType.CV_8UC1)
+
+        fun addFrames(scene: Mat) {
+            for (idx in 0 until SEGMENT_LENGTH) {
+                Core.randn(noise, 128.0, NOISE_SIGMA)
+                val frame = Mat()
+                Core.addWeighted(scene, 1.0, noise, 1.0, -128.0, frame)
+                frames.add(frame)
+            }
+            scene.release()
+        }
+
+        addFrames(createScene(40, 50, 200.0, 0))
+        for (idx in 0 until SEGMENT_LENGTH) {
+            val scene = createScene(40 + idx * 8, 50, 200.0, 0)
+            Core.randn(noise, 128.0, NOISE_SIGMA)
+            val frame = Mat()
+            Core.addWeighted(scene, 1.0, noise, 1.0, -128.0, frame)
+            frames.add(frame)
+            scene.release()
+        }
+        addFrames(createScene(40 + SEGMENT_LENGTH * 8, 50, 200.0, 0))
+        addFrames(createScene(40 + SEGMENT_LENGTH * 8, 50, 230.0, 7))
+
+        noise.release()
+
+        return frames
+
+    }
+
+    private fun createScene(x: Int, y: Int, pageValue: Double, lineOffset: Int): Mat {
+
+        val scene = Mat(HEIGHT, WIDTH, CvType.CV_8UC1, Scalar(60.0))
+        Imgproc.rectangle(scene, Point(x.toDouble(), y.toDouble()),
+                Point((x + PAGE_WIDTH).toDouble(), (y + PAGE_HEIGHT).toDouble()), Scalar(pageValue), -1)
+
+//        Text lines:
+        for (line in 0 until 12) {
+            val lineY = (y + 15 + lineOffset + line * 15).toDouble()
+            Imgproc.line(scene, Point((x + 10).toDouble(), lineY),
+                    Point((x + PAGE_WIDTH - 10).toDouble(), lineY), Scalar(20.0), 2)
+        }
+
+        return scene
+
+    }
+
+}
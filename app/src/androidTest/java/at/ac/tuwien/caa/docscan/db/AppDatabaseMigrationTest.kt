@@ -0,0 +1,85 @@
+package at.ac.tuwien.caa.docscan.db
+
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Runs the migrations on databases that have been created from the exported schemas, the migrated
+ * databases are validated against the exported schema of the target version.
+ */
+@RunWith(AndroidJUnit4::class)
+class AppDatabaseMigrationTest {
+
+    @get:Rule
+    val helper = MigrationTestHelper(
+        InstrumentationRegistry.getInstrumentation(),
+        AppDatabase::class.java
+    )
+
+    @Test
+    fun migrate1To2() {
+        helper.createDatabase(TEST_DB, 1).apply {
+            insertPage(this)
+            close()
+        }
+
+        helper.runMigrationsAndValidate(TEST_DB, 2, true, AppDatabase.MIGRATION_1_2).apply {
+            query("SELECT COUNT(*) FROM `pages`").use { cursor ->
+                cursor.moveToFirst()
+                assertEquals(1, cursor.getInt(0))
+            }
+            close()
+        }
+    }
+
+    @Test
+    fun migrate2To3() {
+        helper.createDatabase(TEST_DB, 2).apply {
+            insertPage(this)
+            close()
+        }
+
+        helper.runMigrationsAndValidate(TEST_DB, 3, true, AppDatabase.MIGRATION_2_3).apply {
+            // existing pages are not cropped virtually
+            query("SELECT `is_cropped_virtually` FROM `pages` WHERE `id` = '$PAGE_ID'").use { cursor ->
+                cursor.moveToFirst()
+                assertEquals(0, cursor.getInt(0))
+            }
+            close()
+        }
+    }
+
+    @Test
+    fun migrate1To3() {
+        helper.createDatabase(TEST_DB, 1).apply {
+            insertPage(this)
+            close()
+        }
+
+        helper.runMigrationsAndValidate(
+            TEST_DB,
+            3,
+            true,
+            AppDatabase.MIGRATION_1_2,
+            AppDatabase.MIGRATION_2_3
+        ).close()
+    }
+
+    private fun insertPage(database: SupportSQLiteDatabase) {
+        database.execSQL(
+            "INSERT INTO `pages` (`id`, `doc_id`, `file_hash`, `index`, `rotation`, `file_type`, `post_processing_state`, `export_state`, `uploadupload_state`) VALUES ('$PAGE_ID', '$DOC_ID', 'hash', 0, 0, 'JPEG', 'DONE', 'NONE', 'NONE')"
+        )
+    }
+
+    companion object {
+        private const val TEST_DB = "migration-test"
+        private const val PAGE_ID = "5c0f2a54-2b0e-4a8e-9d4a-1f3c2f7a6b10"
+        private const val DOC_ID = "0b8f0b7e-6a43-4c55-8f0c-2d5b7b3c9e21"
+    }
+}
@@ -26,7 +26,17 @@
  [3] http://nomacs.org/
  *******************************************************************************************************/
 
+#include <algorithm>
+#include <cfloat>
+#include <chrono>
+#include <cmath>
+#include <filesystem>
+#include <fstream>
+#include <iomanip>
 #include <iostream>
+#include <sstream>
+#include <string>
+#include <vector>
 
 #include "FocusMeasure.h"
 #include "PageSegmentation.h"
@@ -34,40 +44,266 @@
 
 #pragma comment (linker, "/SUBSYSTEM:CONSOLE")
 
+#include <opencv2/core/core.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
-#include <opencv2/highgui/highgui.hpp>
+#include <opencv2/imgcodecs/imgcodecs.hpp>
+
+// Benchmark and accuracy harness for the native module. Runs the page segmentation (and
+// optionally the focus measure) over a folder of images for a list of OpenCV thread counts and
+// segmentation modes. If a ground truth file is found for an image, the corner error and the
+// detection rate are computed. The ground truth has the format written with --write-gt:
+// cornerPoint0 ... cornerPoint3 stored with cv::FileStorage (yml, xml or json).
+
+namespace fs = std::filesystem;
+
+struct Options {
+    std::string imgDir;
+    std::string gtDir;                  // defaults to imgDir
+    std::string csvPath;
+    std::string jsonPath;
+    std::string writeGtDir;
+    std::vector<int> threads = {1};
+    std::vector<dsc::DkPageSegmentation::Mode> modes = {dsc::DkPageSegmentation::EXHAUSTIVE};
+    int repeat = 1;
+    bool focus = false;
+    double maxError = 0.02;             // max. mean corner error w.r.t. the image diagonal
+    double maxMsPerImage = -1.0;        // CI gate, ignored if < 0
+    double minDetectionRate = -1.0;     // CI gate, ignored if < 0
+};
+
+struct Sample {
+    std::string name;
+    cv::Mat img;
+    std::vector<cv::Point2f> gt;        // empty if there is no ground truth
+};
+
+struct ImageResult {
+    int threads = 0;
+    std::string mode;
+    std::string name;
+    bool found = false;
+    bool hasGt = false;
+    bool detected = false;
+    double segMs = 0.0;
+    double focusMs = 0.0;
+    double cornerError = -1.0;          // in pixels of the original image
+};
+
+struct RunSummary {
+    int threads = 0;
+    std::string mode;
+    int images = 0;
+    double msPerImage = 0.0;
+    double segMsPerImage = 0.0;
+    double focusMsPerImage = 0.0;
+    double imagesPerSec = 0.0;
+    double foundRate = 0.0;
+    int numGt = 0;
+    double detectionRate = -1.0;
+    double meanCornerError = -1.0;
+};
+
+void printUsage();
+
+bool parseArgs(int argc, char **argv, Options &opts);
+
+bool loadImage(const std::string &filePath, cv::Mat &img);
+
+std::vector<Sample> loadSamples(const Options &opts);
+
+bool loadGroundTruth(const std::string &gtDir, const std::string &stem,
+                     std::vector<cv::Point2f> &corners);
+
+bool writeGroundTruth(const std::string &filePath, const dsc::DkPolyRect &rect);
 
-bool testPageSegmentation(const std::string &filePath, const std::string &outputPath = "");
+double cornerError(const std::vector<cv::Point2f> &gt, const std::vector<cv::Point2f> &pts);
 
-bool testFocusMeasure(const std::string &filePath);
+std::vector<ImageResult> runBenchmark(const std::vector<Sample> &samples, const Options &opts,
+                                      int threads, dsc::DkPageSegmentation::Mode mode,
+                                      RunSummary &summary);
+
+bool writeCsv(const std::string &filePath, const std::vector<ImageResult> &results);
+
+bool writeJson(const std::string &filePath, const std::vector<RunSummary> &summaries);
+
+std::string modeName(dsc::DkPageSegmentation::Mode mode);
 
 int main(int argc, char **argv) {
 
-    if (argc < 2) {
-        std::cerr << "[ERROR] first argument must be the absolute path to a test image"
-                  << std::endl;
-        return 0;
+    Options opts;
+
+    if (!parseArgs(argc, argv, opts)) {
+        printUsage();
+        return 2;
     }
 
-    std::string path = argv[1];
-    //path = "C:/VSProjects/DocScan/img/tests/test.png";
+    std::vector<Sample> samples = loadSamples(opts);
+
+    if (samples.empty()) {
+        std::cerr << "[ERROR] no images found in: " << opts.imgDir << std::endl;
+        return 2;
+    }
+
+    std::vector<ImageResult> results;
+    std::vector<RunSummary> summaries;
+
+    for (auto mode : opts.modes) {
+        for (int threads : opts.threads) {
 
-    //// test the focus measure module
-    //if (!testFocusMeasure(path))
-    //	std::cerr << "[FAIL] focus measure NOT succesfull... input file: " << path << std::endl;
-    //else
-    //	std::cout << "[SUCCESS] focus measure succesfull..." << std::endl;
+            RunSummary summary;
+            std::vector<ImageResult> r = runBenchmark(samples, opts, threads, mode, summary);
+            results.insert(results.end(), r.begin(), r.end());
+            summaries.push_back(summary);
 
-    std::string oPath = argc > 2 ? argv[2] : "";
-    //oPath = "C:/VSProjects/DocScan/img/tests/test-res.png";
+            std::cout << std::fixed << std::setprecision(2)
+                      << "[" << summary.mode << ", " << summary.threads << " threads] "
+                      << summary.msPerImage << " ms/image, "
+                      << summary.imagesPerSec << " images/s, found: "
+                      << summary.foundRate * 100.0 << "%";
 
-    // test the page segmentation module
-    if (!testPageSegmentation(path, oPath))
-        std::cerr << "[FAIL] page segmentation NOT succesfull... input file: " << path << std::endl;
-    else
-        std::cout << "[SUCCESS] page segmentation succesfull..." << std::endl;
+            if (summary.numGt > 0)
+                std::cout << ", detected: " << summary.detectionRate * 100.0
+                          << "%, corner error: " << summary.meanCornerError << " px ("
+                          << summary.numGt << " ground truths)";
 
-    return 0;
+            std::cout << std::endl;
+        }
+    }
+
+    if (!opts.csvPath.empty() && !writeCsv(opts.csvPath, results))
+        std::cerr << "[ERROR] could not write: " << opts.csvPath << std::endl;
+
+    if (!opts.jsonPath.empty() && !writeJson(opts.jsonPath, summaries))
+        std::cerr << "[ERROR] could not write: " << opts.jsonPath << std::endl;
+
+    // gates for CI: the exit code is != 0 if any run is too slow or too inaccurate
+    int exitCode = 0;
+
+    for (const RunSummary &s : summaries) {
+
+        if (opts.maxMsPerImage >= 0 && s.msPerImage > opts.maxMsPerImage) {
+            std::cerr << "[FAIL] " << s.mode << ", " << s.threads << " threads: "
+                      << s.msPerImage << " ms/image > " << opts.maxMsPerImage << std::endl;
+            exitCode = 1;
+        }
+
+        if (opts.minDetectionRate >= 0 && s.numGt > 0 &&
+            s.detectionRate < opts.minDetectionRate) {
+            std::cerr << "[FAIL] " << s.mode << ", " << s.threads << " threads: detection rate "
+                      << s.detectionRate << " < " << opts.minDetectionRate << std::endl;
+            exitCode = 1;
+        }
+    }
+
+    return exitCode;
+}
+
+void printUsage() {
+
+    std::cout << "usage: docscan-bench <image-dir> [options]\n"
+              << "  --gt <dir>                   ground truth folder (default: image folder)\n"
+              << "  --threads <n,n,...>          OpenCV thread counts (default: 1)\n"
+              << "  --mode <exhaustive,coarse>   segmentation modes (default: exhaustive)\n"
+              << "  --repeat <n>                 runs per image (default: 1)\n"
+              << "  --focus                      measure the focus estimation too\n"
+              << "  --max-error <r>              max. corner error / image diagonal (default: 0.02)\n"
+              << "  --csv <file>                 per image results\n"
+              << "  --json <file>                summary per mode and thread count\n"
+              << "  --write-gt <dir>             write the detected corners as ground truth\n"
+              << "  --max-ms <ms>                fail if any run is slower (ms/image)\n"
+              << "  --min-detection-rate <r>     fail if any run detects less pages\n"
+              << std::endl;
+}
+
+bool parseList(const std::string &str, std::vector<std::string> &values) {
+
+    values.clear();
+    std::stringstream ss(str);
+    std::string v;
+
+    while (std::getline(ss, v, ','))
+        if (!v.empty())
+            values.push_back(v);
+
+    return !values.empty();
+}
+
+bool parseArgs(int argc, char **argv, Options &opts) {
+
+    if (argc < 2)
+        return false;
+
+    try {
+        for (int idx = 1; idx < argc; idx++) {
+
+            std::string arg = argv[idx];
+            bool hasValue = idx + 1 < argc;
+
+            if (arg == "--focus") {
+                opts.focus = true;
+                continue;
+            } else if (arg.rfind("--", 0) != 0) {
+                if (!opts.imgDir.empty())
+                    return false;
+                opts.imgDir = arg;
+                continue;
+            }
+
+            if (!hasValue) {
+                std::cerr << "[ERROR] missing value for: " << arg << std::endl;
+                return false;
+            }
+
+            std::string val = argv[++idx];
+            std::vector<std::string> values;
+
+            if (arg == "--gt")
+                opts.gtDir = val;
+            else if (arg == "--csv")
+                opts.csvPath = val;
+            else if (arg == "--json")
+                opts.jsonPath = val;
+            else if (arg == "--write-gt")
+                opts.writeGtDir = val;
+            else if (arg == "--repeat")
+                opts.repeat = std::max(std::stoi(val), 1);
+            else if (arg == "--max-error")
+                opts.maxError = std::stod(val);
+            else if (arg == "--max-ms")
+                opts.maxMsPerImage = std::stod(val);
+            else if (arg == "--min-detection-rate")
+                opts.minDetectionRate = std::stod(val);
+            else if (arg == "--threads" && parseList(val, values)) {
+                opts.threads.clear();
+                for (const std::string &v : values)
+                    opts.threads.push_back(std::max(std::stoi(v), 1));
+            } else if (arg == "--mode" && parseList(val, values)) {
+                opts.modes.clear();
+                for (const std::string &v : values) {
+                    if (v == "exhaustive")
+                        opts.modes.push_back(dsc::DkPageSegmentation::EXHAUSTIVE);
+                    else if (v == "coarse")
+                        opts.modes.push_back(dsc::DkPageSegmentation::COARSE_TO_FINE);
+                    else {
+                        std::cerr << "[ERROR] unknown mode: " << v << std::endl;
+                        return false;
+                    }
+                }
+            } else {
+                std::cerr << "[ERROR] unknown argument: " << arg << std::endl;
+                return false;
+            }
+        }
+    }
+    catch (const std::exception &) {
+        std::cerr << "[ERROR] invalid number in the arguments" << std::endl;
+        return false;
+    }
+
+    if (opts.gtDir.empty())
+        opts.gtDir = opts.imgDir;
+
+    return !opts.imgDir.empty();
 }
 
 bool loadImage(const std::string &filePath, cv::Mat &img) {
@@ -75,91 +311,318 @@ bool loadImage(const std::string &filePath, cv::Mat &img) {
     img = cv::imread(filePath);
 
     if (img.empty()) {
-        std::cerr << "could not load: " << img << std::endl;
+        std::cerr << "could not load: " << filePath << std::endl;
         return false;
     }
 
+    // the app works on RGB images
+    cv::cvtColor(img, img, cv::COLOR_BGR2RGB);
+
     return true;
 }
 
-bool testFocusMeasure(const std::string &filePath) {
+std::vector<Sample> loadSamples(const Options &opts) {
 
-    cv::Mat img;
+    static const std::vector<std::string> imgExtensions = {".jpg", ".jpeg", ".png", ".bmp",
+                                                           ".tif", ".tiff"};
 
-    if (!loadImage(filePath, img))
-        return false;
+    std::vector<fs::path> paths;
+    std::error_code ec;
 
-    std::vector <dsc::Patch> patches = dsc::FocusEstimation::apply(img);
+    for (const auto &entry : fs::directory_iterator(opts.imgDir, ec)) {
 
-    if (patches.empty()) {
-        std::cerr << "FocusEstimation returned no patches for image: " << img << std::endl;
-        return false;
+        if (!entry.is_regular_file())
+            continue;
+
+        std::string ext = entry.path().extension().string();
+        std::transform(ext.begin(), ext.end(), ext.begin(), ::tolower);
+
+        if (std::find(imgExtensions.begin(), imgExtensions.end(), ext) != imgExtensions.end())
+            paths.push_back(entry.path());
     }
 
-    int sumError = 0;
+    if (ec)
+        std::cerr << "[ERROR] could not read: " << opts.imgDir << " - " << ec.message()
+                  << std::endl;
+
+    // the order of directory_iterator is unspecified, but the csv should be comparable
+    std::sort(paths.begin(), paths.end());
 
-    for (auto p : patches) {
-        if (p.fm() == -1.0f)
-            sumError++;
+    // the images are decoded once, so the decoding is not part of the measured times
+    std::vector<Sample> samples;
+
+    for (const fs::path &p : paths) {
+
+        Sample s;
+        s.name = p.filename().string();
+
+        if (!loadImage(p.string(), s.img))
+            continue;
+
+        loadGroundTruth(opts.gtDir, p.stem().string(), s.gt);
+        samples.push_back(s);
     }
 
-    if (sumError > 0) {
-        std::cerr << sumError << " out of " << patches.size() << " failed..." << std::endl;
-        return false;
+    return samples;
+}
+
+bool loadGroundTruth(const std::string &gtDir, const std::string &stem,
+                     std::vector<cv::Point2f> &corners) {
+
+    static const std::vector<std::string> gtExtensions = {".yml", ".yaml", ".xml", ".json"};
+
+    corners.clear();
+
+    for (const std::string &ext : gtExtensions) {
+
+        fs::path p = fs::path(gtDir) / (stem + ext);
+
+        if (!fs::exists(p))
+            continue;
+
+        cv::FileStorage fileStorage(p.string(), cv::FileStorage::READ);
+
+        if (!fileStorage.isOpened())
+            continue;
+
+        for (int idx = 0; idx < 4; idx++) {
+
+            cv::FileNode n = fileStorage["cornerPoint" + std::to_string(idx)];
+
+            if (n.empty()) {
+                std::cerr << "[WARNING] incomplete ground truth: " << p << std::endl;
+                corners.clear();
+                return false;
+            }
+
+            cv::Point pt;
+            n >> pt;
+            corners.push_back(cv::Point2f(pt));
+        }
+
+        return true;
     }
 
-    return true;
+    return false;
 }
 
-bool testPageSegmentation(const std::string &filePath, const std::string &outputPath) {
+bool writeGroundTruth(const std::string &filePath, const dsc::DkPolyRect &rect) {
 
-    cv::Mat img;
+    cv::FileStorage fileStorage(filePath, cv::FileStorage::WRITE);
 
-    if (!loadImage(filePath, img))
+    if (!fileStorage.isOpened())
         return false;
 
+    std::vector<dsc::DkVector> corners = rect.getCorners();
+
+    for (size_t idx = 0; idx < corners.size() && idx < 4; idx++)
+        fileStorage << "cornerPoint" + std::to_string(idx) << corners[idx].getCvPoint();
+
+    fileStorage.release();
+
+    return true;
+}
+
+double cornerError(const std::vector<cv::Point2f> &gt, const std::vector<cv::Point2f> &pts) {
+
+    if (gt.size() != 4 || pts.size() != 4)
+        return -1.0;
+
+    // the start corner and the orientation of the detected rect are arbitrary
+    double minError = DBL_MAX;
+
+    for (int dir = -1; dir <= 1; dir += 2) {
+        for (int offset = 0; offset < 4; offset++) {
+
+            double error = 0.0;
+
+            for (int idx = 0; idx < 4; idx++) {
+                int pIdx = ((offset + dir * idx) % 4 + 4) % 4;
+                error += cv::norm(gt[idx] - pts[pIdx]);
+            }
+
+            minError = std::min(minError, error / 4.0);
+        }
+    }
+
+    return minError;
+}
+
+std::vector<ImageResult> runBenchmark(const std::vector<Sample> &samples, const Options &opts,
+                                      int threads, dsc::DkPageSegmentation::Mode mode,
+                                      RunSummary &summary) {
+
+    typedef std::chrono::steady_clock Clock;
+
+    cv::setNumThreads(threads);
+
+    // warm up the thread pool and the allocator
+    dsc::DkPageSegmentation::apply(samples[0].img, true, dsc::DkPolyRect(), 1.0f, mode);
+
+    std::vector<ImageResult> results;
+    double sumSegMs = 0.0, sumFocusMs = 0.0, sumError = 0.0;
+    int numFound = 0, numDetected = 0, numError = 0;
+
+    for (const Sample &s : samples) {
+
+        ImageResult r;
+        r.threads = threads;
+        r.mode = modeName(mode);
+        r.name = s.name;
+        r.hasGt = !s.gt.empty();
+
+        std::vector<dsc::DkPolyRect> rects;
+
+        for (int rIdx = 0; rIdx < opts.repeat; rIdx++) {
+
+            Clock::time_point start = Clock::now();
+            rects = dsc::DkPageSegmentation::apply(s.img, true, dsc::DkPolyRect(), 1.0f, mode);
+            r.segMs += std::chrono::duration<double, std::milli>(Clock::now() - start).count();
+
+            if (opts.focus) {
+
+                // the focus is measured within the page, as in the preview
+                cv::Rect roi = rects.empty() ? cv::Rect() : cv::boundingRect(rects[0].toCvPoints());
+
+                start = Clock::now();
+                dsc::FocusEstimation::apply(s.img, -1.0, roi);
+                r.focusMs += std::chrono::duration<double, std::milli>(Clock::now() - start).count();
+            }
+        }
+
+        r.segMs /= opts.repeat;
+        r.focusMs /= opts.repeat;
+        r.found = !rects.empty();
+
+        if (r.found && r.hasGt) {
+
+            std::vector<cv::Point2f> pts;
+            for (const cv::Point &p : rects[0].toCvPoints())
+                pts.push_back(cv::Point2f(p));
 
-    std::vector <dsc::DkPolyRect> pageRects = dsc::DkPageSegmentation::apply(img);
+            r.cornerError = cornerError(s.gt, pts);
 
-    if (pageRects.empty()) {
+            double diag = std::sqrt((double) s.img.cols * s.img.cols + (double) s.img.rows * s.img.rows);
+            r.detected = r.cornerError >= 0 && r.cornerError <= opts.maxError * diag;
+        }
 
-        //double illVal = dsc::DkIllumination::apply(img);
-        //std::cout << "illumination value: " << illVal << std::endl;
+        if (r.found && !opts.writeGtDir.empty()) {
+            fs::path gtPath = fs::path(opts.writeGtDir) / (fs::path(s.name).stem().string() + ".yml");
+            if (!writeGroundTruth(gtPath.string(), rects[0]))
+                std::cerr << "[ERROR] could not write: " << gtPath << std::endl;
+        }
 
-        std::cerr << "PageSegmentation returned no page rects for: " << filePath << std::endl;
+        sumSegMs += r.segMs;
+        sumFocusMs += r.focusMs;
+
+        if (r.found)
+            numFound++;
+        if (r.detected)
+            numDetected++;
+        if (r.cornerError >= 0) {
+            sumError += r.cornerError;
+            numError++;
+        }
+        if (r.hasGt)
+            summary.numGt++;
+
+        results.push_back(r);
+    }
+
+    int n = (int) samples.size();
+
+    summary.threads = threads;
+    summary.mode = modeName(mode);
+    summary.images = n;
+    summary.segMsPerImage = sumSegMs / n;
+    summary.focusMsPerImage = sumFocusMs / n;
+    summary.msPerImage = summary.segMsPerImage + summary.focusMsPerImage;
+    summary.imagesPerSec = summary.msPerImage > 0 ? 1000.0 / summary.msPerImage : 0.0;
+    summary.foundRate = (double) numFound / n;
+
+    if (summary.numGt > 0)
+        summary.detectionRate = (double) numDetected / summary.numGt;
+    if (numError > 0)
+        summary.meanCornerError = sumError / numError;
+
+    return results;
+}
+
+bool writeCsv(const std::string &filePath, const std::vector<ImageResult> &results) {
+
+    std::ofstream file(filePath);
+
+    if (!file.is_open())
         return false;
+
+    file << "mode,threads,image,found,has_gt,detected,seg_ms,focus_ms,corner_error_px\n";
+
+    for (const ImageResult &r : results) {
+        file << r.mode << "," << r.threads << ",\"" << r.name << "\"," << r.found << ","
+             << r.hasGt << "," << r.detected << "," << r.segMs << "," << r.focusMs << ","
+             << r.cornerError << "\n";
+    }
+
+    return file.good();
+}
+
+std::string jsonEscape(const std::string &str) {
+
+    std::string escaped;
+
+    for (char c : str) {
+        if (c == '"' || c == '\\')
+            escaped += '\\';
+        escaped += c;
     }
 
-    // save results?!
-    if (!outputPath.empty()) {
-
-        cv::FileStorage fs(outputPath, cv::FileStorage::WRITE);
-
-        //TODO write output coordinates
-        dsc::DkPolyRect rect = pageRects[0];
-        std::vector <dsc::DkVector> corners = rect.getCorners();
-        cv::Point cpt;
-        cpt = corners[0].getCvPoint();
-        fs << "cornerPoint0" << cpt;
-        cpt = corners[1].getCvPoint();
-        fs << "cornerPoint1" << cpt;
-        cpt = corners[2].getCvPoint();
-        fs << "cornerPoint2" << cpt;
-        cpt = corners[3].getCvPoint();
-        fs << "cornerPoint3" << cpt;
-        fs.release();
-
-        //cv::Mat dstImg = img.clone();
-        //for (auto rect : pageRects)
-        //	rect.draw(dstImg);
-
-        //cv::imwrite(outputPath, dstImg);
+    return escaped;
+}
+
+bool writeJson(const std::string &filePath, const std::vector<RunSummary> &summaries) {
+
+    std::ofstream file(filePath);
+
+    if (!file.is_open())
+        return false;
+
+    file << "{\n  \"opencv\": \"" << jsonEscape(CV_VERSION) << "\",\n  \"runs\": [";
+
+    for (size_t idx = 0; idx < summaries.size(); idx++) {
+
+        const RunSummary &s = summaries[idx];
+
+        file << (idx > 0 ? ",\n" : "\n")
+             << "    {\"mode\": \"" << jsonEscape(s.mode) << "\""
+             << ", \"threads\": " << s.threads
+             << ", \"images\": " << s.images
+             << ", \"ms_per_image\": " << s.msPerImage
+             << ", \"seg_ms_per_image\": " << s.segMsPerImage
+             << ", \"focus_ms_per_image\": " << s.focusMsPerImage
+             << ", \"images_per_s\": " << s.imagesPerSec
+             << ", \"found_rate\": " << s.foundRate
+             << ", \"ground_truths\": " << s.numGt;
+
+        // no ground truth: the accuracy is unknown
+        if (s.numGt > 0)
+            file << ", \"detection_rate\": " << s.detectionRate;
+        else
+            file << ", \"detection_rate\": null";
+
+        if (s.meanCornerError >= 0)
+            file << ", \"corner_error_px\": " << s.meanCornerError;
+        else
+            file << ", \"corner_error_px\": null";
+
+        file << "}";
     }
 
-    //double illVal = dsc::DkIllumination::apply(img, pageRects[0]);
-    //std::cout << "illumination value: " << illVal << std::endl;
+    file << "\n  ]\n}\n";
 
-    //std::cout << "test page segmentation not implemented..." << std::endl;
-    return true;
+    return file.good();
 }
 
+std::string modeName(dsc::DkPageSegmentation::Mode mode) {
+
+    return mode == dsc::DkPageSegmentation::COARSE_TO_FINE ? "coarse" : "exhaustive";
+}
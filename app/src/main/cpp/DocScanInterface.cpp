@@ -26,6 +26,8 @@
 #include "DocScanInterface.h"
 #include "FocusMeasure.h"
 #include "PageSegmentation.h"
+#include "PageTracking.h"
+#include "FrameAnalysis.h"
 
 #include <android/log.h>
 #include <jni.h>
@@ -37,82 +39,178 @@
 #include <string>
 #include <iostream>
 
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+
+    JNIEnv *env;
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK)
+        return JNI_ERR;
+
+    // the classes have to be found here, since FindClass uses the class loader of the app just in
+    // JNI_OnLoad (and in native methods)
+    if (!cvt::initJniCache(env))
+        return JNI_ERR;
+
+    return JNI_VERSION_1_6;
+
+}
+
+extern "C" JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+
+    JNIEnv *env;
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) == JNI_OK)
+        cvt::releaseJniCache(env);
+
+}
+
 
 extern "C" JNIEXPORT jobjectArray JNICALL
 Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetPageSegmentation(JNIEnv *env,
                                                                                 jclass cls,
                                                                                 jlong src,
                                                                                 jboolean useLab,
-                                                                                jobject jOldRect) {
+                                                                                jobject jOldRect,
+                                                                                jfloat srcScale,
+                                                                                jint mode) {
 
     dsc::DkPolyRect oldRect = cvt::jPolyRectToC(env, jOldRect);
 
     // call the main function:
     std::vector<dsc::DkPolyRect> polyRects = dsc::DkPageSegmentation::apply(*((cv::Mat *) src),
-                                                                            useLab, oldRect);
+                                                                            useLab, oldRect,
+                                                                            srcScale,
+                                                                            (dsc::DkPageSegmentation::Mode) mode);
 
-    // JNI type signatures: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
-    jclass jPolyRectClass = env->FindClass("at/ac/tuwien/caa/docscan/camera/cv/DkPolyRect");
+    return cvt::cPolyRectsToJ(env, polyRects);
 
-    // "(FFFFFFFF)V" -> (8 x float) return void
-    jmethodID cnstrctr = env->GetMethodID(
-            jPolyRectClass,
-            "<init>",
-            "(FFFFFFFFII)V");
+}
 
-    if (cnstrctr == 0)
-        __android_log_write(ANDROID_LOG_INFO, "DkPageSegmentation", "did not find constructor!");
+extern "C" JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetPageSegmentationBuffer(JNIEnv *env,
+                                                                                      jclass cls,
+                                                                                      jlong src,
+                                                                                      jboolean useLab,
+                                                                                      jobject jOldRect,
+                                                                                      jfloat srcScale,
+                                                                                      jint mode,
+                                                                                      jobject buffer) {
+
+    dsc::DkPolyRect oldRect = cvt::jPolyRectToC(env, jOldRect);
+
+    std::vector<dsc::DkPolyRect> polyRects = dsc::DkPageSegmentation::apply(*((cv::Mat *) src),
+                                                                            useLab, oldRect,
+                                                                            srcScale,
+                                                                            (dsc::DkPageSegmentation::Mode) mode);
+
+    return cvt::cPolyRectsToBuffer(env, polyRects, buffer);
+
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeTrackPageSegmentationBuffer(
+        JNIEnv *env, jclass cls, jlong src, jobject jOldRect, jobject buffer) {
+
+    dsc::DkPolyRect oldRect = cvt::jPolyRectToC(env, jOldRect);
+
+    std::vector<dsc::DkPolyRect> polyRects = dsc::DkPageTracker::apply(*((cv::Mat *) src),
+                                                                       oldRect);
 
-    // convert the polyRects vector to a Java array:
-    jobjectArray outJRects = env->NewObjectArray(polyRects.size(), jPolyRectClass, NULL);
+    return cvt::cPolyRectsToBuffer(env, polyRects, buffer);
+
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasuresBuffer(JNIEnv *env,
+                                                                                   jclass cls,
+                                                                                   jlong src,
+                                                                                   jobject jPageRect,
+                                                                                   jobject buffer) {
+
+    try {
+        std::vector<dsc::Patch> patches = dsc::FocusEstimation::apply(*((cv::Mat *) src), -1.0,
+                                                                      cvt::jPolyRectToRoi(env,
+                                                                                          jPageRect));
+
+        return cvt::cPatchesToBuffer(env, patches, buffer);
+    }
+    catch (std::exception e) {
 
-    //jobject patch1 = env->NewObject(patchClass, cnstrctr, 1, 42, 3, 4, 5.4);
-    jobject polyRect;
+        return -1;
 
+    }
 
-    for (int i = 0; i < polyRects.size(); i++) {
+}
 
-        std::vector<cv::Point> points = polyRects[i].toCvPoints();
+extern "C" JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeAnalyzeFrame(JNIEnv *env,
+                                                                         jclass cls,
+                                                                         jlong src,
+                                                                         jlong gray,
+                                                                         jint analyses,
+                                                                         jboolean useLab,
+                                                                         jobject jOldRect,
+                                                                         jboolean track,
+                                                                         jfloat srcScale,
+                                                                         jint mode,
+                                                                         jobject jFocusRect,
+                                                                         jobject rectBuffer,
+                                                                         jobject patchBuffer,
+                                                                         jobject infoBuffer) {
 
-        if (points.empty())
-            continue;
+    try {
+        cv::Mat grayImg = gray != 0 ? *((cv::Mat *) gray) : cv::Mat();
+        dsc::DkPolyRect oldRect =
+                jOldRect != NULL ? cvt::jPolyRectToC(env, jOldRect) : dsc::DkPolyRect();
+
+        // all analyses in one call, so the color conversions are shared:
+        dsc::DkFrameAnalysis analysis(*((cv::Mat *) src), grayImg);
+        analysis.setUseLab(useLab);
+        analysis.setOldRect(oldRect, track);
+        analysis.setSourceScale(srcScale);
+        analysis.setMode((dsc::DkPageSegmentation::Mode) mode);
+        analysis.setFocusRoi(cvt::jPolyRectToRoi(env, jFocusRect));
+        analysis.compute(analyses);
+
+        return cvt::cFrameAnalysisToBuffers(env, analysis, rectBuffer, patchBuffer, infoBuffer);
+    }
+    catch (std::exception e) {
 
-        polyRect = env->NewObject(
-                jPolyRectClass,
-                cnstrctr,
-                (float) points[0].x,
-                (float) points[0].y,
-                (float) points[1].x,
-                (float) points[1].y,
-                (float) points[2].x,
-                (float) points[2].y,
-                (float) points[3].x,
-                (float) points[3].y,
-                polyRects[i].channel(),
-                polyRects[i].threshold());
+        return -1;
 
-        env->SetObjectArrayElement(outJRects, i, polyRect);
     }
 
-    return outJRects;
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeTrackPageSegmentation(JNIEnv *env,
+                                                                                  jclass cls,
+                                                                                  jlong src,
+                                                                                  jobject jOldRect) {
+
+    dsc::DkPolyRect oldRect = cvt::jPolyRectToC(env, jOldRect);
+
+    // follow the page found in the last frame:
+    std::vector<dsc::DkPolyRect> polyRects = dsc::DkPageTracker::apply(*((cv::Mat *) src),
+                                                                       oldRect);
+
+    return cvt::cPolyRectsToJ(env, polyRects);
 
 }
 
 extern "C" JNIEXPORT jobjectArray JNICALL
 Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasures(JNIEnv *env,
                                                                              jclass cls,
-                                                                             jlong src) {
+                                                                             jlong src,
+                                                                             jobject jPageRect) {
 
     try {
         // call the main function:
-        std::vector<dsc::Patch> patches = dsc::FocusEstimation::apply(*((cv::Mat *) src));
-
-        // find the Java Patch class and its constructor:
-        jclass patchClass = env->FindClass("at/ac/tuwien/caa/docscan/camera/cv/Patch");
+        std::vector<dsc::Patch> patches = dsc::FocusEstimation::apply(*((cv::Mat *) src), -1.0,
+                                                                      cvt::jPolyRectToRoi(env,
+                                                                                          jPageRect));
 
-        // JNI type signatures: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
-        // "(FFIIDZZ)V" -> (float float int int double boolean boolean) return void
-        jmethodID cnstrctr = env->GetMethodID(patchClass, "<init>", "(FFIIDZZ)V");
+        // the Java Patch class and its constructor are cached in JNI_OnLoad:
+        jclass patchClass = cvt::sJniCache.patchClass;
+        jmethodID cnstrctr = cvt::sJniCache.patchConstructor;
 
 
         // convert the patches vector to a Java array:
@@ -126,6 +224,7 @@ Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasures(JNI
                                    patches[i].width(), patches[i].height(), patches[i].fm(),
                                    patches[i].isSharp(), patches[i].foreground());
             env->SetObjectArrayElement(outJNIArray, i, patch);
+            env->DeleteLocalRef(patch);
         }
 
 
@@ -157,30 +256,201 @@ Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasures(JNI
 
 namespace cvt {
 
-    dsc::DkPolyRect jPolyRectToC(JNIEnv *env, jobject jRect) {
+    JniCache sJniCache;
 
-        jclass jRectClass = env->GetObjectClass(jRect);
+    bool initJniCache(JNIEnv *env) {
 
-        std::vector<cv::Point> pts = std::vector<cv::Point>();
+        // JNI type signatures: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
+        jclass polyRectClass = env->FindClass("at/ac/tuwien/caa/docscan/camera/cv/DkPolyRect");
+        jclass patchClass = env->FindClass("at/ac/tuwien/caa/docscan/camera/cv/Patch");
+
+        if (polyRectClass == NULL || patchClass == NULL) {
+            __android_log_write(ANDROID_LOG_ERROR, "DocScanInterface", "did not find classes!");
+            return false;
+        }
+
+        // the local references are just valid during the call
+        sJniCache.polyRectClass = (jclass) env->NewGlobalRef(polyRectClass);
+        sJniCache.patchClass = (jclass) env->NewGlobalRef(patchClass);
+        env->DeleteLocalRef(polyRectClass);
+        env->DeleteLocalRef(patchClass);
+
+        // "(FFFFFFFFII)V" -> (8 x float, 2 x int) return void
+        sJniCache.polyRectConstructor = env->GetMethodID(sJniCache.polyRectClass, "<init>",
+                                                         "(FFFFFFFFII)V");
+        const char *getX[] = {"getX1", "getX2", "getX3", "getX4"};
+        const char *getY[] = {"getY1", "getY2", "getY3", "getY4"};
+        for (int idx = 0; idx < 4; idx++) {
+            sJniCache.polyRectGetX[idx] = env->GetMethodID(sJniCache.polyRectClass, getX[idx], "()F");
+            sJniCache.polyRectGetY[idx] = env->GetMethodID(sJniCache.polyRectClass, getY[idx], "()F");
+        }
+        sJniCache.polyRectChannel = env->GetMethodID(sJniCache.polyRectClass, "channel", "()I");
+        sJniCache.polyRectThreshold = env->GetMethodID(sJniCache.polyRectClass, "threshold", "()I");
+
+        // "(FFIIDZZ)V" -> (float float int int double boolean boolean) return void
+        sJniCache.patchConstructor = env->GetMethodID(sJniCache.patchClass, "<init>", "(FFIIDZZ)V");
+
+        if (sJniCache.polyRectConstructor == NULL || sJniCache.patchConstructor == NULL) {
+            __android_log_write(ANDROID_LOG_ERROR, "DocScanInterface", "did not find constructors!");
+            return false;
+        }
+
+        return true;
 
-        float x1 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getX1", "()F"));
-        float y1 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getY1", "()F"));
-        pts.push_back(cv::Point(x1, y1));
+    }
+
+    void releaseJniCache(JNIEnv *env) {
+
+        if (sJniCache.polyRectClass != NULL)
+            env->DeleteGlobalRef(sJniCache.polyRectClass);
+        if (sJniCache.patchClass != NULL)
+            env->DeleteGlobalRef(sJniCache.patchClass);
+
+        sJniCache = JniCache();
+
+    }
+
+    jobjectArray cPolyRectsToJ(JNIEnv *env, const std::vector<dsc::DkPolyRect> &polyRects) {
+
+        jclass jPolyRectClass = sJniCache.polyRectClass;
+        jmethodID cnstrctr = sJniCache.polyRectConstructor;
+
+        // convert the polyRects vector to a Java array:
+        jobjectArray outJRects = env->NewObjectArray(polyRects.size(), jPolyRectClass, NULL);
+
+        //jobject patch1 = env->NewObject(patchClass, cnstrctr, 1, 42, 3, 4, 5.4);
+        jobject polyRect;
+
+
+        for (int i = 0; i < polyRects.size(); i++) {
+
+            std::vector<cv::Point> points = polyRects[i].toCvPoints();
+
+            if (points.empty())
+                continue;
+
+            polyRect = env->NewObject(
+                    jPolyRectClass,
+                    cnstrctr,
+                    (float) points[0].x,
+                    (float) points[0].y,
+                    (float) points[1].x,
+                    (float) points[1].y,
+                    (float) points[2].x,
+                    (float) points[2].y,
+                    (float) points[3].x,
+                    (float) points[3].y,
+                    polyRects[i].channel(),
+                    polyRects[i].threshold());
+
+            env->SetObjectArrayElement(outJRects, i, polyRect);
+            env->DeleteLocalRef(polyRect);
+        }
+
+        return outJRects;
+
+    }
+
+    jint cPolyRectsToBuffer(JNIEnv *env, const std::vector<dsc::DkPolyRect> &polyRects,
+                            jobject buffer) {
+
+        float *dst = (float *) env->GetDirectBufferAddress(buffer);
+        if (dst == NULL)
+            return -1;
+
+        jlong capacity = env->GetDirectBufferCapacity(buffer) /
+                         (jlong) (POLY_RECT_RECORD_SIZE * sizeof(float));
+
+        int cnt = 0;
+
+        for (const dsc::DkPolyRect &r : polyRects) {
+
+            std::vector<cv::Point> points = r.toCvPoints();
+
+            if (points.size() != 4)
+                continue;
+
+            // the rect is counted, but not written if the buffer is too small
+            if (cnt < capacity) {
+                float *rec = dst + cnt * POLY_RECT_RECORD_SIZE;
+                for (int idx = 0; idx < 4; idx++) {
+                    rec[2 * idx] = (float) points[idx].x;
+                    rec[2 * idx + 1] = (float) points[idx].y;
+                }
+                rec[8] = (float) r.channel();
+                rec[9] = (float) r.threshold();
+            }
+
+            cnt++;
+        }
+
+        return cnt;
+
+    }
+
+    jint cPatchesToBuffer(JNIEnv *env, const std::vector<dsc::Patch> &patches, jobject buffer) {
+
+        float *dst = (float *) env->GetDirectBufferAddress(buffer);
+        if (dst == NULL)
+            return -1;
+
+        jlong capacity = env->GetDirectBufferCapacity(buffer) /
+                         (jlong) (PATCH_RECORD_SIZE * sizeof(float));
+
+        for (int i = 0; i < (int) patches.size() && i < capacity; i++) {
+
+            float *rec = dst + i * PATCH_RECORD_SIZE;
+            rec[0] = patches[i].centerX();
+            rec[1] = patches[i].centerY();
+            rec[2] = (float) patches[i].width();
+            rec[3] = (float) patches[i].height();
+            rec[4] = (float) patches[i].fm();
+            rec[5] = patches[i].isSharp() ? 1.0f : 0.0f;
+            rec[6] = patches[i].foreground() ? 1.0f : 0.0f;
+        }
+
+        return (jint) patches.size();
+
+    }
+
+    jint cFrameAnalysisToBuffers(JNIEnv *env, const dsc::DkFrameAnalysis &analysis,
+                                 jobject rectBuffer, jobject patchBuffer, jobject infoBuffer) {
+
+        float *info = (float *) env->GetDirectBufferAddress(infoBuffer);
+        if (info == NULL ||
+            env->GetDirectBufferCapacity(infoBuffer) < (jlong) (INFO_RECORD_SIZE * sizeof(float)))
+            return -1;
 
-        float x2 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getX2", "()F"));
-        float y2 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getY2", "()F"));
-        pts.push_back(cv::Point(x2, y2));
+        jint numRects = cPolyRectsToBuffer(env, analysis.getRects(), rectBuffer);
+        jint numPatches = cPatchesToBuffer(env, analysis.getPatches(), patchBuffer);
 
-        float x3 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getX3", "()F"));
-        float y3 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getY3", "()F"));
-        pts.push_back(cv::Point(x3, y3));
+        if (numRects < 0 || numPatches < 0)
+            return -1;
 
-        float x4 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getX4", "()F"));
-        float y4 = env->CallFloatMethod(jRect, env->GetMethodID(jRectClass, "getY4", "()F"));
-        pts.push_back(cv::Point(x4, y4));
+        info[0] = (float) numRects;
+        info[1] = (float) numPatches;
+        info[2] = (float) analysis.getIllumination();
+        info[3] = analysis.isTracked() ? 1.0f : 0.0f;
+        info[4] = (float) analysis.getTime(dsc::DkFrameAnalysis::ANALYSIS_PAGE);
+        info[5] = (float) analysis.getTime(dsc::DkFrameAnalysis::ANALYSIS_FOCUS);
+        info[6] = (float) analysis.getTime(dsc::DkFrameAnalysis::ANALYSIS_ILLUMINATION);
 
-        int chl = env->CallIntMethod(jRect, env->GetMethodID(jRectClass, "channel", "()I"));
-        int thr = env->CallIntMethod(jRect, env->GetMethodID(jRectClass, "threshold", "()I"));
+        return 0;
+
+    }
+
+    dsc::DkPolyRect jPolyRectToC(JNIEnv *env, jobject jRect) {
+
+        std::vector<cv::Point> pts = std::vector<cv::Point>();
+
+        for (int idx = 0; idx < 4; idx++) {
+            float x = env->CallFloatMethod(jRect, sJniCache.polyRectGetX[idx]);
+            float y = env->CallFloatMethod(jRect, sJniCache.polyRectGetY[idx]);
+            pts.push_back(cv::Point(x, y));
+        }
+
+        int chl = env->CallIntMethod(jRect, sJniCache.polyRectChannel);
+        int thr = env->CallIntMethod(jRect, sJniCache.polyRectThreshold);
 
         dsc::DkPolyRect p = dsc::DkPolyRect(pts);
         p.setChannel(chl);
@@ -190,6 +460,20 @@ namespace cvt {
 
     }
 
+    cv::Rect jPolyRectToRoi(JNIEnv *env, jobject jRect) {
+
+        // no page - the whole image is used
+        if (jRect == NULL)
+            return cv::Rect();
+
+        std::vector<cv::Point> pts = jPolyRectToC(env, jRect).toCvPoints();
+        if (pts.empty())
+            return cv::Rect();
+
+        return cv::boundingRect(pts);
+
+    }
+
 }
 
 #endif // #ifndef NO_JNI
\ No newline at end of file
@@ -26,24 +26,117 @@
 #ifndef NO_JNI
 
 #include <jni.h>
+#include <vector>
+#include <opencv2/core/core.hpp>
 
 extern "C" {
 JNIEXPORT jobjectArray JNICALL
 Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasures(JNIEnv *, jclass,
-                                                                             jlong);
+                                                                             jlong srcImg,
+                                                                             jobject pageRect);
 JNIEXPORT jobjectArray JNICALL
 Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetPageSegmentation(JNIEnv *, jclass,
                                                                                 jlong srcImg,
                                                                                 jboolean useLab,
-                                                                                jobject oldRect);
+                                                                                jobject oldRect,
+                                                                                jfloat srcScale,
+                                                                                jint mode);
+JNIEXPORT jobjectArray JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeTrackPageSegmentation(JNIEnv *, jclass,
+                                                                                  jlong srcImg,
+                                                                                  jobject oldRect);
+JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetPageSegmentationBuffer(JNIEnv *,
+                                                                                      jclass,
+                                                                                      jlong srcImg,
+                                                                                      jboolean useLab,
+                                                                                      jobject oldRect,
+                                                                                      jfloat srcScale,
+                                                                                      jint mode,
+                                                                                      jobject buffer);
+JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeTrackPageSegmentationBuffer(JNIEnv *,
+                                                                                        jclass,
+                                                                                        jlong srcImg,
+                                                                                        jobject oldRect,
+                                                                                        jobject buffer);
+JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeGetFocusMeasuresBuffer(JNIEnv *,
+                                                                                   jclass,
+                                                                                   jlong srcImg,
+                                                                                   jobject pageRect,
+                                                                                   jobject buffer);
+JNIEXPORT jint JNICALL
+Java_at_ac_tuwien_caa_docscan_camera_cv_NativeWrapper_nativeAnalyzeFrame(JNIEnv *, jclass,
+                                                                         jlong srcImg,
+                                                                         jlong grayImg,
+                                                                         jint analyses,
+                                                                         jboolean useLab,
+                                                                         jobject oldRect,
+                                                                         jboolean track,
+                                                                         jfloat srcScale,
+                                                                         jint mode,
+                                                                         jobject focusRect,
+                                                                         jobject rectBuffer,
+                                                                         jobject patchBuffer,
+                                                                         jobject infoBuffer);
 }
 
 namespace dsc {
     class DkPolyRect;
+
+    class Patch;
+
+    class DkFrameAnalysis;
 }
 
 namespace cvt {
+
+    // Number of floats per result in the direct buffers, see PolyRectBuffer and PatchBuffer:
+    // x1, y1, x2, y2, x3, y3, x4, y4, channel, threshold
+    const int POLY_RECT_RECORD_SIZE = 10;
+    // center x, center y, width, height, fm, is sharp, is foreground
+    const int PATCH_RECORD_SIZE = 7;
+    // rect count, patch count, illumination, is tracked, page ms, focus ms, illumination ms
+    const int INFO_RECORD_SIZE = 7;
+
+    // Classes and methods used in every call, they are looked up once in JNI_OnLoad
+    struct JniCache {
+        jclass polyRectClass = NULL;
+        jmethodID polyRectConstructor = NULL;
+        jmethodID polyRectGetX[4] = {NULL, NULL, NULL, NULL};
+        jmethodID polyRectGetY[4] = {NULL, NULL, NULL, NULL};
+        jmethodID polyRectChannel = NULL;
+        jmethodID polyRectThreshold = NULL;
+
+        jclass patchClass = NULL;
+        jmethodID patchConstructor = NULL;
+    };
+
+    extern JniCache sJniCache;
+
+    bool initJniCache(JNIEnv *env);
+
+    void releaseJniCache(JNIEnv *env);
+
     dsc::DkPolyRect jPolyRectToC(JNIEnv *env, jobject jRect);
+
+    // Bounding box of the rect, an empty rect if jRect is NULL
+    cv::Rect jPolyRectToRoi(JNIEnv *env, jobject jRect);
+
+    jobjectArray cPolyRectsToJ(JNIEnv *env, const std::vector<dsc::DkPolyRect> &polyRects);
+
+    // Writes the rects into a direct buffer and returns their number (-1 if the buffer is not
+    // direct). Rects that do not fit into the buffer are counted, but not written.
+    jint cPolyRectsToBuffer(JNIEnv *env, const std::vector<dsc::DkPolyRect> &polyRects,
+                            jobject buffer);
+
+    // The same as cPolyRectsToBuffer for the focus measures
+    jint cPatchesToBuffer(JNIEnv *env, const std::vector<dsc::Patch> &patches, jobject buffer);
+
+    // Writes all results of the analysis into the three buffers, returns -1 on error
+    jint cFrameAnalysisToBuffers(JNIEnv *env, const dsc::DkFrameAnalysis &analysis,
+                                 jobject rectBuffer, jobject patchBuffer, jobject infoBuffer);
 }
 
 #endif // #ifndef NO_JNI
\ No newline at end of file
@@ -389,82 +389,253 @@ namespace dsc {
         if (fmImg.channels() != 1 || fImg.depth() != CV_32F)
             return false;
 
+        if (mUseIntegral && (fm == BREN || fm == GRAS || fm == GLVA || fm == GLVN))
+            return computeIntegral(fm, fImg, binary);
+
         BasicFM fmClass;
         double f;
         mFmPatches.clear();
 
-        for (int row = 0; row < fImg.rows; row += (mWindowSize + mSplitSize)) {
-            for (int col = 0; col < fImg.cols; col += (mWindowSize + mSplitSize)) {
+        for (const cv::Rect &pr : patchRects(fImg.size())) {
+
+            int row = pr.y;
+            int col = pr.x;
+
+            cv::Mat tile = fImg(pr);
+
+            fmClass.setImg(tile);
+
+            switch (fm) {
+                case dsc::FocusEstimation::BREN:
+                    f = fmClass.computeBREN();
+                    break;
+                case dsc::FocusEstimation::GLVA:
+                    f = fmClass.computeGLVA();
+                    break;
+                case dsc::FocusEstimation::GLVN:
+                    f = fmClass.computeGLVN();
+                    break;
+                case dsc::FocusEstimation::GLLV:
+                    f = fmClass.computeGLLV();
+                    break;
+                case dsc::FocusEstimation::GRAT:
+                    f = fmClass.computeGRAT();
+                    break;
+                case dsc::FocusEstimation::GRAS:
+                    f = fmClass.computeGRAS();
+                    break;
+                case dsc::FocusEstimation::LAPE:
+                    f = fmClass.computeLAPE();
+                    break;
+                case dsc::FocusEstimation::LAPV:
+                    f = fmClass.computeLAPV();
+                    break;
+                case dsc::FocusEstimation::ROGR:
+                    f = fmClass.computeROGR();
+                    break;
+                default:
+                    f = -1;
+                    break;
+            }
+
+            Patch r(cv::Point(col, row), mWindowSize, mWindowSize, f);
+
+            if (binary) {
+                cv::Scalar relArea = cv::sum(tile);
+                r.setArea(relArea[0]);
+                relArea[0] = relArea[0] / (double) (mWindowSize * mWindowSize);
+
+                //area completely written with text ~ 0.1
+                //normalize to 1
+                relArea[0] *= 10.0;
+                r.setWeight(relArea[0]);
+
+                //weight with sigmoid function
+                //-6: shift sigmoid to the right
+                //*10: scale normalized Area
+                //double a = 10.0;
+                //double b = -6.0;
+                //double weight = 1.0 / (1 + std::exp(-(relArea[0] * a + b)));
+                //r.setWeight(weight);
+            }
+
+
+            mFmPatches.push_back(r);
+        }
+
+        return true;
+    }
+
+    /// <summary>
+    /// Returns the image patches (sliding window with a gap of split size). If a roi is set, just
+    /// the patches that intersect the roi are returned. The patches are at the same positions as
+    /// without roi, so the results of the remaining patches do not change.
+    /// </summary>
+    /// <param name="imgSize">The size of the image.</param>
+    /// <returns>The patches in image coordinates.</returns>
+    std::vector<cv::Rect> FocusEstimation::patchRects(const cv::Size &imgSize) const {
+
+        std::vector<cv::Rect> rects;
+
+        for (int row = 0; row < imgSize.height; row += (mWindowSize + mSplitSize)) {
+            for (int col = 0; col < imgSize.width; col += (mWindowSize + mSplitSize)) {
+
+                cv::Rect r(col, row, cv::min(mWindowSize, imgSize.width - col),
+                           cv::min(mWindowSize, imgSize.height - row));
+
+                if (mRoi.area() > 0 && (r & mRoi).area() == 0)
+                    continue;
+
+                rects.push_back(r);
+            }
+        }
+
+        return rects;
+    }
+
+    /// <summary>
+    /// Computes the fm values of all patches at once. A fm map (e.g. the squared Brenner gradient)
+    /// is computed for the bounding box of the patches with vectorized OpenCV functions - the rows
+    /// are spread over the cores. The fm value of a patch is the mean of the map within the patch,
+    /// which is read from the integral image of the map. The values are the same as the ones of
+    /// BasicFM (the map just uses pixels inside a patch), supported are BREN, GRAS, GLVA and GLVN.
+    /// </summary>
+    /// <param name="fm">The specified focuse measure method fm.</param>
+    /// <param name="fImg">The 32F image to calculate the focus measure on.</param>
+    /// <param name="binary">if set to <c>true</c> [binary] the input image is binary (see compute).</param>
+    /// <returns>True if the focus measure could be computed, false otherwise.</returns>
+    bool FocusEstimation::computeIntegral(FocusMeasure fm, const cv::Mat &fImg, bool binary) {
+
+        mFmPatches.clear();
+
+        std::vector<cv::Rect> rects = patchRects(fImg.size());
+        if (rects.empty())
+            return true;
+
+        // the map is just computed where patches are
+        cv::Rect bb = rects[0];
+        for (const cv::Rect &r : rects)
+            bb |= r;
+
+        cv::Mat img = fImg(bb);
+
+        // GLVA and GLVN need the sum and the squared sum of the gray values
+        cv::Mat imgSum, imgSqSum, mapSum;
+        if (fm == GLVA || fm == GLVN)
+            cv::integral(img, imgSum, imgSqSum, CV_64F, CV_64F);
+        else {
+            cv::Mat map;
+            computeMap(fm, img, map);
+            cv::integral(map, mapSum, CV_64F);
+
+            if (binary)
+                cv::integral(img, imgSum, CV_64F);
+        }
+
+        auto rectSum = [](const cv::Mat &sum, int r0, int c0, int r1, int c1) {
+            return sum.at<double>(r1, c1) - sum.at<double>(r0, c1) -
+                   sum.at<double>(r1, c0) + sum.at<double>(r0, c0);
+        };
 
-                cv::Range rR(row, cv::min(row + mWindowSize, fImg.rows));
-                cv::Range cR(col, cv::min(col + mWindowSize, fImg.cols));
+        for (const cv::Rect &pr : rects) {
 
-                cv::Mat tile = fImg(rR, cR);
+            // patch in map coordinates
+            int r0 = pr.y - bb.y;
+            int c0 = pr.x - bb.x;
+            int r1 = r0 + pr.height;
+            int c1 = c0 + pr.width;
+            double n = (double) pr.area();
 
-                fmClass.setImg(tile);
+            double f = -1;
+
+            // the same as BasicFM::checkInput
+            if (pr.width >= 4 && pr.height >= 4) {
 
                 switch (fm) {
                     case dsc::FocusEstimation::BREN:
-                        f = fmClass.computeBREN();
-                        break;
-                    case dsc::FocusEstimation::GLVA:
-                        f = fmClass.computeGLVA();
-                        break;
-                    case dsc::FocusEstimation::GLVN:
-                        f = fmClass.computeGLVN();
-                        break;
-                    case dsc::FocusEstimation::GLLV:
-                        f = fmClass.computeGLLV();
-                        break;
-                    case dsc::FocusEstimation::GRAT:
-                        f = fmClass.computeGRAT();
+                        // the gradients are computed with a distance of 2 pixels within the patch
+                        f = rectSum(mapSum, r0, c0, r1 - 2, c1 - 2) /
+                            ((pr.height - 2) * (pr.width - 2)) / ((255.0 * 255.0) / 2.0);
                         break;
                     case dsc::FocusEstimation::GRAS:
-                        f = fmClass.computeGRAS();
-                        break;
-                    case dsc::FocusEstimation::LAPE:
-                        f = fmClass.computeLAPE();
+                        f = rectSum(mapSum, r0, c0, r1, c1 - 1) /
+                            (pr.height * (pr.width - 1)) / (255.0 * 255.0);
                         break;
-                    case dsc::FocusEstimation::LAPV:
-                        f = fmClass.computeLAPV();
-                        break;
-                    case dsc::FocusEstimation::ROGR:
-                        f = fmClass.computeROGR();
+                    case dsc::FocusEstimation::GLVA:
+                    case dsc::FocusEstimation::GLVN: {
+                        double m = rectSum(imgSum, r0, c0, r1, c1) / n;
+                        double v = cv::max(rectSum(imgSqSum, r0, c0, r1, c1) / n - m * m, 0.0);
+
+                        if (fm == GLVA)
+                            f = std::sqrt(v) / 127.5;
+                        else
+                            f = v / (m * m + std::numeric_limits<double>::epsilon());
                         break;
+                    }
                     default:
-                        f = -1;
                         break;
                 }
+            }
 
-                Patch r(cv::Point(col, row), mWindowSize, mWindowSize, f);
-
-                if (binary) {
-                    cv::Scalar relArea = cv::sum(tile);
-                    r.setArea(relArea[0]);
-                    relArea[0] = relArea[0] / (double) (mWindowSize * mWindowSize);
-
-                    //area completely written with text ~ 0.1
-                    //normalize to 1
-                    relArea[0] *= 10.0;
-                    r.setWeight(relArea[0]);
-
-                    //weight with sigmoid function
-                    //-6: shift sigmoid to the right
-                    //*10: scale normalized Area
-                    //double a = 10.0;
-                    //double b = -6.0;
-                    //double weight = 1.0 / (1 + std::exp(-(relArea[0] * a + b)));
-                    //r.setWeight(weight);
-                }
+            Patch r(cv::Point(pr.x, pr.y), mWindowSize, mWindowSize, f);
 
+            if (binary) {
+                double area = rectSum(imgSum, r0, c0, r1, c1);
+                r.setArea(area);
 
-                mFmPatches.push_back(r);
+                //area completely written with text ~ 0.1
+                //normalize to 1
+                r.setWeight(area / (double) (mWindowSize * mWindowSize) * 10.0);
             }
+
+            mFmPatches.push_back(r);
         }
 
         return true;
     }
 
+    /// <summary>
+    /// Computes the map of a gradient based fm (BREN or GRAS). The map is smaller than the image,
+    /// since the gradients are not defined at the right (and bottom) border.
+    /// </summary>
+    /// <param name="fm">BREN or GRAS.</param>
+    /// <param name="img">The 32F image.</param>
+    /// <param name="map">The resulting fm map.</param>
+    void FocusEstimation::computeMap(FocusMeasure fm, const cv::Mat &img, cv::Mat &map) const {
+
+        // Brenner: max(|I(x+2,y) - I(x,y)|, |I(x,y+2) - I(x,y)|)^2
+        // squared gradient: (I(x+1,y) - I(x,y))^2
+        int dist = fm == BREN ? 2 : 1;
+        int rows = fm == BREN ? img.rows - 2 : img.rows;
+        int cols = img.cols - dist;
+
+        if (rows <= 0 || cols <= 0) {
+            map = cv::Mat::zeros(cv::max(rows, 1), cv::max(cols, 1), CV_32FC1);
+            return;
+        }
+
+        map.create(rows, cols, CV_32FC1);
+
+        cv::parallel_for_(cv::Range(0, rows), DkParallelJobs([&](const cv::Range &range) {
+
+            cv::Range rR(range.start, range.end);
+            cv::Mat src = img(rR, cv::Range(0, cols));
+            cv::Mat dst = map.rowRange(rR);
+            cv::Mat dH;
+
+            cv::absdiff(img(rR, cv::Range(dist, dist + cols)), src, dH);
+
+            if (fm == BREN) {
+                cv::Mat dV;
+                cv::absdiff(img(cv::Range(rR.start + 2, rR.end + 2), cv::Range(0, cols)), src, dV);
+                cv::max(dH, dV, dH);
+            }
+
+            cv::multiply(dH, dH, dst);
+
+        }), cv::getNumThreads());
+    }
+
 
     /// <summary>
     /// Computes the reference patches. The foreground is estimmated using Otsu.
@@ -532,6 +703,23 @@ namespace dsc {
         mSplitSize = s;
     }
 
+    /// <summary>
+    /// Limits the focus estimation to the patches that intersect the roi (e.g. the bounding box of
+    /// the page). An empty roi means the whole image.
+    /// </summary>
+    /// <param name="roi">The roi in image coordinates.</param>
+    void FocusEstimation::setRoi(const cv::Rect &roi) {
+        mRoi = roi;
+    }
+
+    /// <summary>
+    /// Enables the computation of all patches at once (see computeIntegral), true by default.
+    /// </summary>
+    /// <param name="useIntegral">if set to <c>false</c> the patches are computed one by one.</param>
+    void FocusEstimation::setUseIntegral(bool useIntegral) {
+        mUseIntegral = useIntegral;
+    }
+
     /// <summary>
     /// Returns the window size (local patch size).
     /// </summary>
@@ -563,11 +751,14 @@ namespace dsc {
     /// to normalize the fm value.
     /// </summary>
     /// <param name="src">The source image.</param>
+    /// <param name="roi">Just the patches that intersect the roi are computed (all if empty).</param>
     /// <returns>A vector with image patches containing the fm value.</returns>
     std::vector<dsc::Patch>
-    dsc::FocusEstimation::apply(const cv::Mat &src, const double globalFMThr) {
+    dsc::FocusEstimation::apply(const cv::Mat &src, const double globalFMThr, const cv::Rect &roi) {
 
-        static dsc::FocusEstimation fe;
+        // not static, since the preview and the captured images are processed concurrently
+        dsc::FocusEstimation fe;
+        fe.setRoi(roi);
         int w = src.cols < src.rows ? src.cols : src.rows;
         int ws = (int) ceil((double) w / 5.0);
         //int ws = 500;
@@ -195,6 +195,10 @@ namespace dsc {
 
         void setSplitSize(int s);
 
+        void setRoi(const cv::Rect &roi);
+
+        void setUseIntegral(bool useIntegral);
+
         int windowSize() const;
 
         void setGlobalFMThreshold(double fmt);
@@ -205,10 +209,13 @@ namespace dsc {
 
         double textThr() const;
 
-        static std::vector<dsc::Patch> apply(const cv::Mat &src, const double globalFMThr = -1.0);
+        static std::vector<dsc::Patch>
+        apply(const cv::Mat &src, const double globalFMThr = -1.0, const cv::Rect &roi = cv::Rect());
 
     protected:
         cv::Mat mSrcImg;
+        cv::Rect mRoi;          //just the patches that intersect the roi are computed (all if empty)
+        bool mUseIntegral = true;   //compute the fm of all patches at once (if the fm supports it)
 
         std::vector<Patch> mFmPatches;
 
@@ -225,6 +232,12 @@ namespace dsc {
         //a higher value means more foreground (text/edges) must be present to take the focus value into account
         //a lower value accepts less foreground
 
+        std::vector<cv::Rect> patchRects(const cv::Size &imgSize) const;
+
+        bool computeIntegral(FocusMeasure fm, const cv::Mat &fImg, bool binary);
+
+        void computeMap(FocusMeasure fm, const cv::Mat &img, cv::Mat &map) const;
+
     };
 
 
@@ -0,0 +1,202 @@
+/*********************************************************************************
+ *  DocScan is a Android app for document scanning.
+ *
+ *  Author:         Fabian Hollaus, Florian Kleber, Markus Diem
+ *  Organization:   TU Wien, Computer Vision Lab
+ *
+ *  This file is part of DocScan.
+ *
+ *  DocScan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DocScan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DocScan.  If not, see <http://www.gnu.org/licenses/>.
+ *********************************************************************************/
+
+
+#include "FrameAnalysis.h"
+#include "PageTracking.h"
+#include "Illumination.h"
+
+#pragma warning(push, 0)    // no warnings from includes - begin
+
+#include <opencv2/imgproc/imgproc.hpp>
+
+#pragma warning(pop)        // no warnings from includes - end
+
+namespace dsc {
+
+// DkFrameAnalysis --------------------------------------------------------------------
+    DkFrameAnalysis::DkFrameAnalysis(const cv::Mat &colImg, const cv::Mat &grayImg) {
+
+        mImg = colImg;
+        mGrayImg = grayImg;
+    }
+
+    void DkFrameAnalysis::compute(int analyses) {
+
+        mRects.clear();
+        mPatches.clear();
+        mIllumination = -1.0;
+        mIsTracked = false;
+        mPageTime = mFocusTime = mIlluminationTime = 0.0;
+
+        if (mImg.empty())
+            return;
+
+        // the focus and the illumination depend on the page, so it is searched first
+        if (analyses & ANALYSIS_PAGE) {
+            double start = (double) cv::getTickCount();
+            computePage();
+            mPageTime = ((double) cv::getTickCount() - start) / cv::getTickFrequency() * 1000.0;
+        }
+
+        if (analyses & ANALYSIS_FOCUS) {
+            double start = (double) cv::getTickCount();
+            computeFocus();
+            mFocusTime = ((double) cv::getTickCount() - start) / cv::getTickFrequency() * 1000.0;
+        }
+
+        if (analyses & ANALYSIS_ILLUMINATION) {
+            double start = (double) cv::getTickCount();
+            computeIllumination();
+            mIlluminationTime =
+                    ((double) cv::getTickCount() - start) / cv::getTickFrequency() * 1000.0;
+        }
+    }
+
+    void DkFrameAnalysis::computePage() {
+
+        if (mTrack && mOldRect.channel() != -1) {
+
+            // follow the page found in the last frame:
+            DkPageTracker tracker(mImg, mOldRect);
+            tracker.setLabImg(labImg());
+
+            if (tracker.compute() && tracker.getConfidence() >= mMinTrackConfidence) {
+                mRects.push_back(tracker.getRect());
+                mIsTracked = true;
+                return;
+            }
+        }
+
+        // the same as DkPageSegmentation::apply, but with the shared Lab image
+        DkPageSegmentation segM(mImg, mOldRect);
+        segM.setLabImg(labImg());
+        segM.setSourceScale(mSrcScale);
+        segM.setMode(mMode);
+        segM.compute(mUseLab);
+        segM.filterDuplicates();
+
+        DkPolyRect r = segM.getDocumentRect();
+
+        if (!r.empty())
+            mRects.push_back(r);
+    }
+
+    void DkFrameAnalysis::computeFocus() {
+
+        cv::Rect roi = mFocusRoi;
+        DkPolyRect page = grayPage();
+
+        if (!page.empty())
+            roi = cv::boundingRect(page.toCvPoints());
+
+        mPatches = FocusEstimation::apply(grayImg(), -1.0, roi);
+    }
+
+    void DkFrameAnalysis::computeIllumination() {
+
+        DkPolyRect page = grayPage();
+        const cv::Mat &img = grayImg();
+
+        // DkIllumination crops the bounding box, which must be within the image
+        cv::Rect imgRect(0, 0, img.cols, img.rows);
+        if (!page.empty() && (page.getBBox().getCvRect() & imgRect) != page.getBBox().getCvRect())
+            page = DkPolyRect();
+
+        mIllumination = DkIllumination::apply(img, page);
+    }
+
+    const cv::Mat &DkFrameAnalysis::labImg() {
+
+        if (mImgLab.empty())
+            cv::cvtColor(mImg, mImgLab, CV_RGB2Lab);
+
+        return mImgLab;
+    }
+
+    const cv::Mat &DkFrameAnalysis::grayImg() {
+
+        if (mGrayImg.empty()) {
+            if (mImg.channels() == 1)
+                mGrayImg = mImg;
+            else
+                cv::cvtColor(mImg, mGrayImg, CV_RGB2GRAY);
+        }
+
+        return mGrayImg;
+    }
+
+    DkPolyRect DkFrameAnalysis::grayPage() const {
+
+        if (mRects.empty())
+            return DkPolyRect();
+
+        DkPolyRect page = mRects[0];
+
+        if (!mGrayImg.empty() && mGrayImg.cols != mImg.cols)
+            page.scale((float) mGrayImg.cols / mImg.cols);
+
+        return page;
+    }
+
+    void DkFrameAnalysis::setUseLab(bool useLab) {
+
+        mUseLab = useLab;
+    }
+
+    void DkFrameAnalysis::setMode(DkPageSegmentation::Mode mode) {
+
+        mMode = mode;
+    }
+
+    void DkFrameAnalysis::setSourceScale(float srcScale) {
+
+        if (srcScale > 0.0f)
+            mSrcScale = srcScale;
+    }
+
+    void DkFrameAnalysis::setOldRect(const DkPolyRect &oldRect, bool track) {
+
+        mOldRect = oldRect;
+        mTrack = track;
+    }
+
+    void DkFrameAnalysis::setFocusRoi(const cv::Rect &roi) {
+
+        mFocusRoi = roi;
+    }
+
+    double DkFrameAnalysis::getTime(Analysis analysis) const {
+
+        switch (analysis) {
+            case ANALYSIS_PAGE:
+                return mPageTime;
+            case ANALYSIS_FOCUS:
+                return mFocusTime;
+            case ANALYSIS_ILLUMINATION:
+                return mIlluminationTime;
+        }
+
+        return 0.0;
+    }
+
+};
@@ -0,0 +1,129 @@
+/*********************************************************************************
+ *  DocScan is a Android app for document scanning.
+ *
+ *  Author:         Fabian Hollaus, Florian Kleber, Markus Diem
+ *  Organization:   TU Wien, Computer Vision Lab
+ *
+ *  This file is part of DocScan.
+ *
+ *  DocScan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DocScan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DocScan.  If not, see <http://www.gnu.org/licenses/>.
+ *********************************************************************************/
+
+
+#pragma once
+
+#include "PageSegmentation.h"
+#include "FocusMeasure.h"
+
+#pragma warning(push, 0)    // no warnings from includes - begin
+
+#include <opencv2/core/core.hpp>
+
+#pragma warning(pop)        // no warnings from includes - end
+
+#ifndef DllCoreExport
+#ifdef DK_DLL_EXPORT
+#define DllCoreExport __declspec(dllexport)
+#elif DK_DLL_IMPORT
+#define DllCoreExport
+#else
+#define DllCoreExport
+#endif
+#endif
+
+namespace dsc {
+
+    /**
+     * Runs the page segmentation (or tracking), the focus measure and the illumination estimation
+     * on the same frame. The color conversions are done once and shared by all analyses: the Lab
+     * image is used by the tracker and the segmentation (also if the segmentation is the fallback
+     * of a lost page), the gray image by the focus measure and the illumination. The focus is
+     * measured within the page that is found in the same frame.
+     */
+    class DllCoreExport DkFrameAnalysis {
+
+    public:
+        enum Analysis {
+            ANALYSIS_PAGE = 1,
+            ANALYSIS_FOCUS = 2,
+            ANALYSIS_ILLUMINATION = 4
+        };
+
+        // grayImg is optional, it may have a higher resolution than colImg (e.g. the luma of the
+        // camera frame), the patches are returned in its coordinates
+        DkFrameAnalysis(const cv::Mat &colImg = cv::Mat(), const cv::Mat &grayImg = cv::Mat());
+
+        virtual void compute(int analyses);
+
+        void setUseLab(bool useLab);
+
+        void setMode(DkPageSegmentation::Mode mode);
+
+        void setSourceScale(float srcScale);
+
+        // page of the last frame: a hint for the segmentation, if track is true the page is just
+        // tracked (the segmentation is done if it is lost)
+        void setOldRect(const DkPolyRect &oldRect, bool track);
+
+        // the focus is measured in this region (gray image coordinates) if no page is found
+        void setFocusRoi(const cv::Rect &roi);
+
+        std::vector<DkPolyRect> getRects() const { return mRects; };
+
+        std::vector<Patch> getPatches() const { return mPatches; };
+
+        double getIllumination() const { return mIllumination; };
+
+        bool isTracked() const { return mIsTracked; };
+
+        // execution time of an analysis in ms
+        double getTime(Analysis analysis) const;
+
+    protected:
+        cv::Mat mImg;
+        cv::Mat mGrayImg;
+        cv::Mat mImgLab;
+
+        bool mUseLab = true;
+        DkPageSegmentation::Mode mMode = DkPageSegmentation::EXHAUSTIVE;
+        float mSrcScale = 1.0f;
+        DkPolyRect mOldRect;
+        bool mTrack = false;
+        cv::Rect mFocusRoi;
+        double mMinTrackConfidence = 0.6;   // the same as in DkPageTracker::apply
+
+        // results
+        std::vector<DkPolyRect> mRects;
+        std::vector<Patch> mPatches;
+        double mIllumination = -1.0;
+        bool mIsTracked = false;
+        double mPageTime = 0.0;
+        double mFocusTime = 0.0;
+        double mIlluminationTime = 0.0;
+
+        const cv::Mat &labImg();
+
+        const cv::Mat &grayImg();
+
+        // the page in the coordinates of the gray image, empty if no page is found
+        DkPolyRect grayPage() const;
+
+        virtual void computePage();
+
+        virtual void computeFocus();
+
+        virtual void computeIllumination();
+    };
+
+};
@@ -24,6 +24,7 @@
 
 #include "PageSegmentation.h"
 #include "PageSegmentationUtils.h"
+#include "PageTracking.h"
 #include "DkMath.h"    // nomacs
 #include "Utils.h"
 
@@ -58,21 +59,28 @@ namespace dsc {
 
     DkPolyRect DkPageSegmentation::getMaxRect() const {
 
+        int idx = getMaxRectIdx();
+
+        return idx >= 0 ? mRects[idx] : DkPolyRect();
+    }
+
+    int DkPageSegmentation::getMaxRectIdx() const {
+
         // find the largest rectangle
-        DkPolyRect largeRect;
+        int maxIdx = -1;
         double maxArea = -1;
 
-        for (const DkPolyRect &p : mRects) {
+        for (size_t idx = 0; idx < mRects.size(); idx++) {
 
-            double ca = p.getAreaConst();
+            double ca = mRects[idx].getAreaConst();
 
             if (ca > maxArea) {
                 maxArea = ca;
-                largeRect = p;
+                maxIdx = (int) idx;
             }
         }
 
-        return largeRect;
+        return maxIdx;
     }
 
 //QImage DkPageSegmentation::getCropped(const QImage & mImg) const {
@@ -117,6 +125,12 @@ namespace dsc {
                           << " NOT accepted - full computation will be performed..." << std::endl;
         }
 
+        // try the cheap search first, the full search is done if the page is not clear
+        if (mMode == COARSE_TO_FINE && computeCoarseToFine()) {
+            std::cout << "[DkPageSegmentation] page found with coarse-to-fine search" << std::endl;
+            return;
+        }
+
         if (useLab)
             findRectanglesLab(mImg, mRects);
         else
@@ -129,8 +143,10 @@ namespace dsc {
     void DkPageSegmentation::findRectanglesLab(const cv::Mat &img, std::vector<DkPolyRect> &rects,
                                                int channel, int thr) const {
 
-        cv::Mat imgLab;
-        cv::cvtColor(img, imgLab, CV_RGB2Lab);    // luminance channel is better than grayscale
+        // luminance channel is better than grayscale
+        cv::Mat imgLab = mImgLab;
+        if (imgLab.empty() || imgLab.size() != img.size())
+            cv::cvtColor(img, imgLab, CV_RGB2Lab);
 
         std::vector<int> indexes;
 
@@ -142,49 +158,129 @@ namespace dsc {
         } else
             indexes.push_back(channel);
 
+        std::vector<cv::Mat> channelImgs;
+
         for (int idx : indexes) {
 
             int ch[] = {idx, 0};
             cv::Mat imgL(img.size(), CV_8UC1);
             cv::mixChannels(&imgLab, 1, &imgL, 1, ch, 1);
-            std::vector<DkPolyRect> cr;
-            findRectangles(imgL, rects, idx, thr);
-            //std::cout << rects.size() << " after channel " << idx << std::endl;
+            channelImgs.push_back(imgL);
         }
+
+        findRectangles(channelImgs, indexes, rects, thr);
     }
 
     void DkPageSegmentation::findRectangles(const cv::Mat &img, std::vector<DkPolyRect> &rects,
                                             int channel, int threshold) const {
 
-        cv::Mat imgL;
-        cv::normalize(img, imgL, 255, 0, cv::NORM_MINMAX);
+        findRectangles(std::vector<cv::Mat>(1, img), std::vector<int>(1, channel), rects,
+                       threshold);
+    }
 
-        // downscale
-        if (scale != 1.0f)
-            cv::resize(imgL, imgL, cv::Size(), scale, scale, CV_INTER_LINEAR);
+    void DkPageSegmentation::findRectangles(const std::vector<cv::Mat> &imgs,
+                                            const std::vector<int> &channels,
+                                            std::vector<DkPolyRect> &rects, int threshold) const {
 
-        std::vector<std::vector<cv::Point> > contours;
+        // normalize and downscale each channel once, the images are shared by all thresholds
+        std::vector<cv::Mat> imgsL(imgs.size());
+        std::vector<DkThresholdJob> jobs;
 
-        int threshStep = dsc::round(255.0 / numThresh);
-        //std::cout << "thresh step: " << threshStep << std::endl;
+        for (size_t idx = 0; idx < imgs.size(); idx++) {
 
-        cv::Mat gray;
-        std::vector<DkPolyRect> rectsL;
+            cv::normalize(imgs[idx], imgsL[idx], 255, 0, cv::NORM_MINMAX);
 
-        std::vector<int> indexes;
-        if (threshold == -1) {
+            // downscale
+            if (scale != 1.0f)
+                cv::resize(imgsL[idx], imgsL[idx], cv::Size(), scale, scale, CV_INTER_LINEAR);
+
+            for (int thr : getThresholds(channels[idx], threshold))
+                jobs.push_back({(int) idx, channels[idx], thr});
+        }
 
-            // use less thresholds for a/b channels
-            if (channel > 0)
-                threshStep *= 2;
+        // each job (channel & threshold) has its own result vector - so the results are
+        // merged in the order of the serial search and do not depend on the scheduling
+        std::vector<std::vector<DkPolyRect> > jobRects(jobs.size());
 
-            for (int idx = 0; idx < 255; idx += threshStep)
-                indexes.push_back(idx);
+        if (mParallel) {
+            cv::parallel_for_(cv::Range(0, (int) jobs.size()), DkParallelJobs(
+                    [&](const cv::Range &range) {
+                        findRectangles(imgsL, jobs, range, jobRects);
+                    }));
         } else
+            findRectangles(imgsL, jobs, cv::Range(0, (int) jobs.size()), jobRects);
+
+        for (size_t idx = 0; idx < imgs.size(); idx++) {
+
+            std::vector<DkPolyRect> rectsL;
+
+            for (size_t jIdx = 0; jIdx < jobs.size(); jIdx++) {
+                if (jobs[jIdx].image == (int) idx)
+                    rectsL.insert(rectsL.end(), jobRects[jIdx].begin(), jobRects[jIdx].end());
+            }
+
+            for (size_t rIdx = 0; rIdx < rectsL.size(); rIdx++)
+                rectsL[rIdx].scale(1.0f / scale);
+
+            // filter rectangles which are found because of the image border
+            for (const DkPolyRect &p : rectsL) {
+
+                DkBox b = p.getBBox();
+
+                if (b.size().height < imgs[idx].rows * maxSideFactor &&
+                    b.size().width < imgs[idx].cols * maxSideFactor) {
+                    rects.push_back(p);
+                }
+            }
+        }
+
+        //cv::normalize(dbgImg, dbgImg, 255, 0, cv::NORM_MINMAX);
+
+    }
+
+    std::vector<int> DkPageSegmentation::getThresholds(int channel, int threshold) const {
+
+        std::vector<int> indexes;
+
+        if (threshold != -1) {
             indexes.push_back(threshold);
+            return indexes;
+        }
+
+        int threshStep = dsc::round(255.0 / numThresh);
+        //std::cout << "thresh step: " << threshStep << std::endl;
+
+        // use less thresholds for a/b channels
+        if (channel > 0)
+            threshStep *= 2;
+
+        for (int idx = 0; idx < 255; idx += threshStep)
+            indexes.push_back(idx);
+
+        return indexes;
+    }
+
+    void DkPageSegmentation::findRectangles(const std::vector<cv::Mat> &imgsL,
+                                            const std::vector<DkThresholdJob> &jobs,
+                                            const cv::Range &range,
+                                            std::vector<std::vector<DkPolyRect> > &jobRects) const {
+
+        // the buffers are reused by all jobs of this worker
+        std::vector<std::vector<cv::Point> > contours;
+        std::vector<std::vector<cv::Point> > hull;
+        std::vector<cv::Point> approx;
+        cv::Mat gray;
+
+        // the area limits are defined w.r.t. the original image
+        double areaScale = scale * scale * mSrcScale * mSrcScale;
 
         // try several threshold levels
-        for (int thr : indexes) {
+        for (int jIdx = range.start; jIdx < range.end; jIdx++) {
+
+            const cv::Mat &imgL = imgsL[jobs[jIdx].image];
+            int channel = jobs[jIdx].channel;
+            int thr = jobs[jIdx].threshold;
+            std::vector<DkPolyRect> &rectsL = jobRects[jIdx];
 
             if (thr == 0) {
 
@@ -196,7 +292,7 @@ namespace dsc {
 
                 //cv::imwrite("C:/VSProjects/DocScan/img/tests/edge.png", gray);
             } else
-                gray = imgL >= thr;
+                cv::compare(imgL, thr, gray, cv::CMP_GE);
 
             cv::erode(gray, gray, cv::Mat(), cv::Point(-1, -1));
 
@@ -204,29 +300,22 @@ namespace dsc {
             findContours(gray, contours, CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE);
 
             if (looseDetection) {
-                std::vector<std::vector<cv::Point> > hull;
+                hull.clear();
                 for (int i = 0; i < (int) contours.size(); i++) {
 
                     double cArea = contourArea(cv::Mat(contours[i]));
 
-                    if (fabs(cArea) > mMinArea * scale * scale &&
-                        (!mMaxArea || fabs(cArea) < mMaxArea * (scale * scale))) {
+                    if (fabs(cArea) > mMinArea * areaScale &&
+                        (!mMaxArea || fabs(cArea) < mMaxArea * areaScale)) {
                         std::vector<cv::Point> cHull;
                         cv::convexHull(cv::Mat(contours[i]), cHull, false);
                         hull.push_back(cHull);
                     }
                 }
 
-                contours = hull;
+                contours.swap(hull);
             }
 
-            std::vector<cv::Point> approx;
-
-            // DEBUG ------------------------
-            //cv::Mat pImg = imgL.clone();
-            //cv::cvtColor(pImg, pImg, CV_GRAY2BGR);
-            // DEBUG ------------------------
-
             // test each contour
             for (size_t i = 0; i < contours.size(); i++) {
                 // approxicv::Mate contour with accuracy proportional
@@ -236,11 +325,6 @@ namespace dsc {
 
                 double cArea = contourArea(cv::Mat(approx));
 
-                // DEBUG ------------------------
-                //if (fabs(cArea) < mMaxArea)
-                //fillConvexPoly(pImg, &approx[0], (int)approx.size(), cv::Scalar(255,0,0));
-                // DEBUG ------------------------
-
                 // square contours should have 4 vertices after approxicv::Mation
                 // relatively large area (to filter out noisy contours)
                 // and be convex.
@@ -248,8 +332,8 @@ namespace dsc {
                 // area may be positive or negative - in accordance with the
                 // contour orientation
                 if (approx.size() == 4 &&
-                    fabs(cArea) > mMinArea * scale * scale &&
-                    (!mMaxArea || fabs(cArea) < mMaxArea * scale * scale) &&
+                    fabs(cArea) > mMinArea * areaScale &&
+                    (!mMaxArea || fabs(cArea) < mMaxArea * areaScale) &&
                     isContourConvex(cv::Mat(approx))) {
 
                     DkPolyRect cr(approx);
@@ -267,29 +351,84 @@ namespace dsc {
                     }
                 }
             }
-            // DEBUG ------------------------
-            //cv::cvtColor(pImg, pImg, CV_RGB2BGR);
-            //cv::imwrite("C:/VSProjects/DocScan/img/tests/poly" + Utils::num2str(thr) + ".png", pImg);
-            // DEBUG ------------------------
         }
+    }
 
-        for (size_t idx = 0; idx < rectsL.size(); idx++)
-            rectsL[idx].scale(1.0f / scale);
+    bool DkPageSegmentation::computeCoarseToFine() {
 
+        // detect at a low resolution with less thresholds in the luminance channel
+        DkPageSegmentation coarseSeg(mImg);
+        coarseSeg.setSourceScale(mSrcScale);
+        coarseSeg.setParallel(mParallel);
+        coarseSeg.maxImgWidth = mCoarseImgWidth;
+        coarseSeg.numThresh = mCoarseNumThresh;
+        coarseSeg.compute(false);
+        coarseSeg.filterDuplicates();
 
-        // filter rectangles which are found because of the image border
-        for (const DkPolyRect &p : rectsL) {
+        // the document rect is the largest rect (see getDocumentRect)
+        std::vector<DkPolyRect> coarseRects = coarseSeg.getRects();
+        int coarseIdx = coarseSeg.getMaxRectIdx();
 
-            DkBox b = p.getBBox();
+        if (coarseIdx < 0 || coarseRects[coarseIdx].empty() ||
+            !isDominant((size_t) coarseIdx, coarseRects))
+            return false;
 
-            if (b.size().height < img.rows * maxSideFactor &&
-                b.size().width < img.cols * maxSideFactor) {
-                rects.push_back(p);
-            }
+        DkPolyRect coarseRect = coarseRects[coarseIdx];
+
+        // refine the corners in thin bands around the coarse edges - at the processing resolution
+        cv::Mat img = mImg;
+        if (scale != 1.0f)
+            cv::resize(mImg, img, cv::Size(), scale, scale, CV_INTER_AREA);
+
+        coarseRect.scale(scale);
+
+        DkPageTracker refinement(img, coarseRect);
+        if (!refinement.compute() || refinement.getConfidence() < mMinRefineConfidence)
+            return false;
+
+        DkPolyRect rect = refinement.getRect();
+        rect.scale(1.0f / scale);
+        mRects.push_back(rect);
+
+        return true;
+    }
+
+    bool DkPageSegmentation::isDominant(size_t idx,
+                                        const std::vector<DkPolyRect> &rects) const {
+
+        // large rectangles with right angles are preferred
+        const DkPolyRect &rect = rects[idx];
+        double score = rect.getAreaConst() * (1.0 - rect.getMaxCosine());
+
+        for (size_t i = 0; i < rects.size(); i++) {
+
+            // skip the rect itself
+            if (i == idx)
+                continue;
+
+            const DkPolyRect &r = rects[i];
+            double cs = r.getAreaConst() * (1.0 - r.getMaxCosine());
+
+            if (cs * mMinDominance > score)
+                return false;
         }
 
-        //cv::normalize(dbgImg, dbgImg, 255, 0, cv::NORM_MINMAX);
+        return true;
+    }
 
+    void DkPageSegmentation::setParallel(bool parallel) {
+
+        mParallel = parallel;
+    }
+
+    void DkPageSegmentation::setMode(Mode mode) {
+
+        mMode = mode;
+    }
+
+    void DkPageSegmentation::setLabImg(const cv::Mat &imgLab) {
+
+        mImgLab = imgLab;
     }
 
 //QImage DkPageSegmentation::cropToRect(const QImage & img, const nmc::DkRotatingRect & rect, const QColor & bgCol) const {
@@ -464,13 +603,22 @@ namespace dsc {
         }
     }
 
+    void DkPageSegmentation::setSourceScale(float srcScale) {
+
+        if (srcScale > 0.0f)
+            mSrcScale = srcScale;
+    }
+
     std::vector<DkPolyRect>
-    DkPageSegmentation::apply(const cv::Mat &src, bool useLab, const DkPolyRect &oldRect) {
+    DkPageSegmentation::apply(const cv::Mat &src, bool useLab, const DkPolyRect &oldRect,
+                              float srcScale, Mode mode) {
 
         std::vector<DkPolyRect> pageRects;
 
         // run the page segmentation
         DkPageSegmentation segM(src, oldRect);
+        segM.setSourceScale(srcScale);
+        segM.setMode(mode);
         segM.compute(useLab);
         segM.filterDuplicates();
 
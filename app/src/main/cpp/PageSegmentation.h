@@ -47,6 +47,11 @@ namespace dsc {
     class DllCoreExport DkPageSegmentation {
 
     public:
+        enum Mode {
+            EXHAUSTIVE = 0,     // all channels and thresholds at the processing resolution
+            COARSE_TO_FINE      // coarse detection that is refined around the coarse edges
+        };
+
         DkPageSegmentation(const cv::Mat &colImg = cv::Mat(),
                            const DkPolyRect &oldRect = DkPolyRect());
 
@@ -72,11 +77,22 @@ namespace dsc {
 
         DkPolyRect getDocumentRect() const;
 
+        void setSourceScale(float srcScale);
+
+        void setParallel(bool parallel);
+
+        void setMode(Mode mode);
+
+        // Lab image of colImg, if it is already computed by the caller (see DkFrameAnalysis)
+        void setLabImg(const cv::Mat &imgLab);
+
         static std::vector<DkPolyRect>
-        apply(const cv::Mat &src, bool useLab = true, const DkPolyRect &oldRect = DkPolyRect());
+        apply(const cv::Mat &src, bool useLab = true, const DkPolyRect &oldRect = DkPolyRect(),
+              float srcScale = 1.0f, Mode mode = EXHAUSTIVE);
 
     protected:
         cv::Mat mImg;
+        cv::Mat mImgLab;    // optional, computed from mImg if empty
         cv::Mat dbgImg;
 
         int numThresh = 10;    // -> threshold every 25
@@ -85,8 +101,17 @@ namespace dsc {
         float maxSide = 0;   // do not find the image's border
         float maxSideFactor = 0.98f;
         float scale = 0.0f;    // is computed from maxImgWidth
+        float mSrcScale = 1.0f;    // scale of the input image w.r.t. the original image (if it is already downscaled)
         int maxImgWidth = 600;
         bool looseDetection = true;
+        bool mParallel = true;  // search the channels and thresholds in parallel
+        Mode mMode = EXHAUSTIVE;
+
+        // coarse-to-fine parameters
+        int mCoarseImgWidth = 300;      // max side of the coarse image
+        int mCoarseNumThresh = 5;       // just the luminance channel is searched in the coarse image
+        double mMinDominance = 2.0;     // the page must score x times better than any other rect
+        double mMinRefineConfidence = 0.6;  // fraction of the edges found in the refinement
 
         std::vector<DkPolyRect> mRects;
         DkPolyRect mOldRect;
@@ -98,6 +123,28 @@ namespace dsc {
         virtual void
         findRectangles(const cv::Mat &img, std::vector<DkPolyRect> &squares, int channel = -1,
                        int threshold = -1) const;
+
+        // a single threshold of a channel, see findRectangles
+        struct DkThresholdJob {
+            int image;
+            int channel;
+            int threshold;
+        };
+
+        void findRectangles(const std::vector<cv::Mat> &imgs, const std::vector<int> &channels,
+                            std::vector<DkPolyRect> &squares, int threshold = -1) const;
+
+        void findRectangles(const std::vector<cv::Mat> &imgsL,
+                            const std::vector<DkThresholdJob> &jobs, const cv::Range &range,
+                            std::vector<std::vector<DkPolyRect> > &jobRects) const;
+
+        std::vector<int> getThresholds(int channel, int threshold) const;
+
+        virtual bool computeCoarseToFine();
+
+        int getMaxRectIdx() const;
+
+        bool isDominant(size_t idx, const std::vector<DkPolyRect> &rects) const;
         //QImage cropToRect(const QImage& mImg, const nmc::DkRotatingRect& rect, const QColor& bgCol = QColor(0,0,0)) const;
         //void drawRects(QPainter* p, const std::vector<DkPolyRect>& mRects, const QColor& col = QColor(100, 100, 100)) const;
     };
@@ -0,0 +1,198 @@
+/*********************************************************************************
+ *  DocScan is a Android app for document scanning.
+ *
+ *  Author:         Fabian Hollaus, Florian Kleber, Markus Diem
+ *  Organization:   TU Wien, Computer Vision Lab
+ *
+ *  This file is part of DocScan.
+ *
+ *  DocScan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DocScan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DocScan.  If not, see <http://www.gnu.org/licenses/>.
+ *********************************************************************************/
+
+#include "PageTracking.h"
+#include "DkMath.h"
+
+#pragma warning(push, 0)    // no warnings from includes - begin
+
+#include <opencv2/imgproc/imgproc.hpp>
+
+#pragma warning(pop)        // no warnings from includes - end
+
+namespace dsc {
+
+// DkPageTracker --------------------------------------------------------------------
+    DkPageTracker::DkPageTracker(const cv::Mat &colImg, const DkPolyRect &oldRect) {
+
+        mImg = colImg;
+        mOldRect = oldRect;
+    }
+
+    bool DkPageTracker::compute() {
+
+        mConfidence = 0.0;
+        mRect = DkPolyRect();
+
+        std::vector<cv::Point> oldPts = mOldRect.toCvPoints();
+        if (oldPts.size() != 4 || mImg.empty())
+            return false;
+
+        // search in the channel in which the page has been found
+        int channel = mOldRect.channel();
+        if (channel < 0 || channel >= mImg.channels())
+            channel = 0;
+
+        cv::Mat imgLab = mImgLab, img;
+        if (imgLab.empty() || imgLab.size() != mImg.size())
+            cv::cvtColor(mImg, imgLab, CV_RGB2Lab);
+        cv::extractChannel(imgLab, img, channel);
+
+        std::vector<cv::Vec4f> lines(4);
+        double support = 1.0;
+
+        for (int idx = 0; idx < 4; idx++) {
+
+            double cs = 0.0;
+            if (!fitSide(img, oldPts[idx], oldPts[(idx + 1) % 4], lines[idx], cs))
+                return false;
+
+            support = std::min(support, cs);
+        }
+
+        // the corners are the intersections of neighboring sides
+        std::vector<cv::Point> pts;
+        for (int idx = 0; idx < 4; idx++) {
+
+            cv::Point2f c;
+            if (!intersect(lines[(idx + 3) % 4], lines[idx], c))
+                return false;
+
+            // the corner moved too far
+            cv::Point2f d = c - cv::Point2f(oldPts[idx]);
+            if (d.dot(d) > 4.0f * mSearchRadius * mSearchRadius)
+                return false;
+
+            pts.push_back(cv::Point(dsc::round(c.x), dsc::round(c.y)));
+        }
+
+        if (!cv::isContourConvex(pts))
+            return false;
+
+        DkPolyRect rect(pts);
+        if (rect.getMaxCosine() >= mMaxCosine)
+            return false;
+
+        double oa = mOldRect.getAreaConst();
+        double na = rect.getArea();
+        if (oa <= 0 || std::min(oa, na) / std::max(oa, na) < mMinAreaRatio)
+            return false;
+
+        rect.setChannel(mOldRect.channel());
+        rect.setThreshold(mOldRect.threshold());
+
+        mRect = rect;
+        mConfidence = support;
+
+        return true;
+    }
+
+    void DkPageTracker::setLabImg(const cv::Mat &imgLab) {
+
+        mImgLab = imgLab;
+    }
+
+    bool DkPageTracker::fitSide(const cv::Mat &img, const cv::Point2f &p1, const cv::Point2f &p2,
+                                cv::Vec4f &line, double &support) const {
+
+        cv::Point2f d = p2 - p1;
+        float len = (float) cv::norm(d);
+
+        if (len < 1.0f)
+            return false;
+
+        cv::Point2f n(-d.y / len, d.x / len);
+        std::vector<cv::Point2f> edgePts;
+
+        for (int sIdx = 0; sIdx < mNumSamples; sIdx++) {
+
+            // the corners are skipped, since the edges are not defined there
+            float t = 0.1f + 0.8f * (sIdx + 0.5f) / mNumSamples;
+            cv::Point2f base = p1 + d * t;
+
+            int maxEdge = 0;
+            int maxOffset = 0;
+
+            for (int o = -mSearchRadius; o <= mSearchRadius; o++) {
+
+                cv::Point a = base + n * (float) (o - 1);
+                cv::Point b = base + n * (float) (o + 1);
+
+                if (a.x < 0 || a.y < 0 || a.x >= img.cols || a.y >= img.rows ||
+                    b.x < 0 || b.y < 0 || b.x >= img.cols || b.y >= img.rows)
+                    continue;
+
+                int edge = std::abs((int) img.at<uchar>(b) - (int) img.at<uchar>(a));
+                if (edge > maxEdge) {
+                    maxEdge = edge;
+                    maxOffset = o;
+                }
+            }
+
+            if (maxEdge >= mMinEdge)
+                edgePts.push_back(base + n * (float) maxOffset);
+        }
+
+        support = (double) edgePts.size() / mNumSamples;
+
+        // at least half of the side must be visible
+        if (support < 0.5)
+            return false;
+
+        cv::fitLine(edgePts, line, CV_DIST_HUBER, 0, 0.01, 0.01);
+
+        return true;
+    }
+
+    bool DkPageTracker::intersect(const cv::Vec4f &l1, const cv::Vec4f &l2, cv::Point2f &p) {
+
+        // lines are given as (vx, vy, x0, y0)
+        cv::Point2f v1(l1[0], l1[1]), p1(l1[2], l1[3]);
+        cv::Point2f v2(l2[0], l2[1]), p2(l2[2], l2[3]);
+
+        float cross = v1.x * v2.y - v1.y * v2.x;
+
+        // (nearly) parallel sides
+        if (std::fabs(cross) < 1e-3f)
+            return false;
+
+        cv::Point2f dp = p2 - p1;
+        float t = (dp.x * v2.y - dp.y * v2.x) / cross;
+        p = p1 + v1 * t;
+
+        return true;
+    }
+
+    std::vector<DkPolyRect>
+    DkPageTracker::apply(const cv::Mat &src, const DkPolyRect &oldRect, double minConfidence) {
+
+        std::vector<DkPolyRect> pageRects;
+
+        DkPageTracker tracker(src, oldRect);
+
+        if (tracker.compute() && tracker.getConfidence() >= minConfidence)
+            pageRects.push_back(tracker.getRect());
+
+        return pageRects;
+    }
+
+};
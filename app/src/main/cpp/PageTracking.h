@@ -0,0 +1,89 @@
+/*********************************************************************************
+ *  DocScan is a Android app for document scanning.
+ *
+ *  Author:         Fabian Hollaus, Florian Kleber, Markus Diem
+ *  Organization:   TU Wien, Computer Vision Lab
+ *
+ *  This file is part of DocScan.
+ *
+ *  DocScan is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DocScan is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DocScan.  If not, see <http://www.gnu.org/licenses/>.
+ *********************************************************************************/
+
+#pragma once
+
+#include "PageSegmentationUtils.h"
+
+#pragma warning(push, 0)    // no warnings from includes - begin
+
+#include <opencv2/core/core.hpp>
+
+#pragma warning(pop)        // no warnings from includes - end
+
+#ifndef DllCoreExport
+#ifdef DK_DLL_EXPORT
+#define DllCoreExport __declspec(dllexport)
+#elif DK_DLL_IMPORT
+#define DllCoreExport
+#else
+#define DllCoreExport
+#endif
+#endif
+
+namespace dsc {
+
+    /**
+     * Follows a page that has been found by DkPageSegmentation in the previous frame. The edges
+     * of the page are searched in a narrow band around the sides of the old rectangle, a line is
+     * fitted to each side and the new corners are the intersections of these lines. This is much
+     * cheaper than a full segmentation, but just works for small movements. If the confidence is
+     * too low, no rectangle is returned and the full segmentation has to be done.
+     */
+    class DllCoreExport DkPageTracker {
+
+    public:
+        DkPageTracker(const cv::Mat &colImg = cv::Mat(),
+                      const DkPolyRect &oldRect = DkPolyRect());
+
+        virtual bool compute();
+
+        DkPolyRect getRect() const { return mRect; };
+
+        double getConfidence() const { return mConfidence; };
+
+        // Lab image of colImg, if it is already computed by the caller (see DkFrameAnalysis)
+        void setLabImg(const cv::Mat &imgLab);
+
+        static std::vector<DkPolyRect>
+        apply(const cv::Mat &src, const DkPolyRect &oldRect, double minConfidence = 0.6);
+
+    protected:
+        cv::Mat mImg;
+        cv::Mat mImgLab;    // optional, computed from mImg if empty
+        DkPolyRect mOldRect;
+        DkPolyRect mRect;
+        double mConfidence = 0.0;
+
+        int mNumSamples = 24;       // number of edge samples per side
+        int mSearchRadius = 12;     // search distance (in pixels) perpendicular to a side
+        int mMinEdge = 12;          // minimal gray value difference of an edge sample
+        double mMaxCosine = 0.3;    // the same as in DkPageSegmentation
+        double mMinAreaRatio = 0.8; // between the old and the new rectangle
+
+        virtual bool fitSide(const cv::Mat &img, const cv::Point2f &p1, const cv::Point2f &p2,
+                             cv::Vec4f &line, double &support) const;
+
+        static bool intersect(const cv::Vec4f &l1, const cv::Vec4f &l2, cv::Point2f &p);
+    };
+
+};
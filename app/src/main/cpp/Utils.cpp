@@ -30,4 +30,14 @@ namespace dsc {
 
     }
 
-}
\ No newline at end of file
+    DkParallelJobs::DkParallelJobs(const std::function<void(const cv::Range &)> &body) {
+
+        mBody = body;
+    }
+
+    void DkParallelJobs::operator()(const cv::Range &range) const {
+
+        mBody(range);
+    }
+
+}
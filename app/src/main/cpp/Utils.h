@@ -6,6 +6,9 @@
 
 #include <string>
 #include <sstream>
+#include <functional>
+
+#include <opencv2/core/core.hpp>
 
 #ifndef DllCoreExport
 #ifdef DK_DLL_EXPORT
@@ -28,6 +31,20 @@ namespace dsc {
         static std::string num2str(num n);
     };
 
+    /**
+     * Runs a function on a range of jobs, this is the body of cv::parallel_for_.
+     */
+    class DllCoreExport DkParallelJobs : public cv::ParallelLoopBody {
+
+    public:
+        DkParallelJobs(const std::function<void(const cv::Range &)> &body);
+
+        virtual void operator()(const cv::Range &range) const;
+
+    protected:
+        std::function<void(const cv::Range &)> mBody;
+    };
+
     template<typename num>
     inline std::string Utils::num2str(num n) {
 
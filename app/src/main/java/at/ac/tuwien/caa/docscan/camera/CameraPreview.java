@@ -30,6 +30,7 @@ import static android.hardware.Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
 import static com.google.zxing.BarcodeFormat.QR_CODE;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
@@ -59,8 +60,8 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 
-import at.ac.tuwien.caa.docscan.camera.cv.DkPolyRect;
-import at.ac.tuwien.caa.docscan.camera.cv.Patch;
+import at.ac.tuwien.caa.docscan.camera.cv.PatchBuffer;
+import at.ac.tuwien.caa.docscan.camera.cv.PolyRectBuffer;
 import at.ac.tuwien.caa.docscan.camera.cv.thread.preview.IPManager;
 import at.ac.tuwien.caa.docscan.ui.camera.CameraActivity;
 import timber.log.Timber;
@@ -91,6 +92,8 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
     // Used for the size of the auto focus area:
     private static final int FOCUS_HALF_AREA = 1000;
+    // Number of preview buffers that are cycled between the camera and the frame processing:
+    private static final int PREVIEW_BUFFER_COUNT = 3;
 
 
     private boolean isCameraInitialized;
@@ -99,6 +102,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
     private MultiFormatReader mMultiFormatReader;
     private PointF mLastTouchPoint;
+    private byte[][] mPreviewBuffers;
 
     /**
      * Creates the CameraPreview and the callbacks required to send events to the activity.
@@ -191,7 +195,9 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
 
     /**
-     * Called after the preview received a new frame (as byte array).
+     * Called after the preview received a new frame (as byte array). The byte array is one of the
+     * buffers added in initPreviewBuffers and is handed back to the camera once the frame is
+     * consumed, so no new array is allocated per frame.
      *
      * @param pixels byte array containgin the frame.
      * @param camera camera
@@ -202,15 +208,20 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         if (pixels == null)
             return;
 
-        if (mIsQRMode) {
-            Timber.d("detecting qr code");
-            detectBarcode(pixels);
-        } else {
+        try {
+            if (mIsQRMode) {
+                Timber.d("detecting qr code");
+                detectBarcode(pixels);
+            } else {
 //            Log.d(CLASS_NAME, "doing cv stuff");
-            cvManagerAction(pixels);
+                cvManagerAction(pixels);
+            }
+        } finally {
+//            The frame is copied in IPManager.receiveFrame, so the buffer can be reused right away:
+            if (camera != null)
+                camera.addCallbackBuffer(pixels);
         }
 
-
     }
 
     private void cvManagerAction(byte[] pixels) {
@@ -342,9 +353,10 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     // Callbacks:
     public interface CVCallback {
 
-        void onFocusMeasured(Patch[] patches);
+        // The buffers are reused for the next frame, so they are just valid during the call:
+        void onFocusMeasured(PatchBuffer patches);
 
-        void onPageSegmented(DkPolyRect[] polyRects);
+        void onPageSegmented(PolyRectBuffer polyRects);
 
         void onMovement(boolean moved);
 
@@ -451,7 +463,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         if (mCamera != null) {
             try {
                 mCamera.stopPreview();
-                mCamera.setPreviewCallback(null);
+                mCamera.setPreviewCallbackWithBuffer(null);
                 mCamera.release();        // release the camera for other applications
                 mCamera = null;
             } catch (RuntimeException e) {
@@ -464,6 +476,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
         isCameraInitialized = false;
         releaseCamera();
+        IPManager.getInstance().releaseFrameBuffers();
 
 
     }
@@ -710,7 +723,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 //        Now start the preview:
         try {
             mCamera.setPreviewDisplay(mHolder);
-            mCamera.setPreviewCallback(this);
+            initPreviewBuffers(params);
             mCamera.startPreview();
         } catch (Exception e) {
             Timber.e(e);
@@ -757,6 +770,33 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         return pictureSize;
     }
 
+    /**
+     * Adds a fixed ring of preview buffers to the camera and registers this class as buffered
+     * preview callback. The buffers are just reallocated if the preview size has changed.
+     *
+     * @param params camera parameters containing the preview size and format
+     */
+    private void initPreviewBuffers(Camera.Parameters params) {
+
+//        Removing the callback clears the buffer queue, otherwise buffers would be queued twice
+//        if the preview is initialized again:
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera.setPreviewCallbackWithBuffer(this);
+
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(params.getPreviewFormat());
+        int bufferSize = mFrameWidth * mFrameHeight * bitsPerPixel / 8;
+
+        if (mPreviewBuffers == null || mPreviewBuffers[0].length != bufferSize) {
+            mPreviewBuffers = new byte[PREVIEW_BUFFER_COUNT][];
+            for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++)
+                mPreviewBuffers[i] = new byte[bufferSize];
+        }
+
+        for (byte[] buffer : mPreviewBuffers)
+            mCamera.addCallbackBuffer(buffer);
+
+    }
+
     private void initPreviewSize(Camera.Parameters params, Camera.Size pictureSize) {
         List<Camera.Size> cameraSizes = params.getSupportedPreviewSizes();
         Camera.Size previewSize = getPreviewSize(cameraSizes, pictureSize);
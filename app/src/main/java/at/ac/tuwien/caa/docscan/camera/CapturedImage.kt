@@ -0,0 +1,12 @@
+package at.ac.tuwien.caa.docscan.camera
+
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint
+
+/**
+ * A picture taken by the camera, which is waiting to be saved as a page.
+ */
+class CapturedImage(
+    val data: ByteArray,
+    val exifMetaData: ImageExifMetaData?,
+    val pageHint: PageHint?
+)
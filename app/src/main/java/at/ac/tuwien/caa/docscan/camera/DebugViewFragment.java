@@ -24,6 +24,8 @@
 package at.ac.tuwien.caa.docscan.camera;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -35,13 +37,26 @@ import at.ac.tuwien.caa.docscan.R;
 import timber.log.Timber;
 
 /**
- * Fragment used to show the execution time of time intensive tasks.
+ * Fragment used to show the execution time of time intensive tasks. Below the times the summary of
+ * the PipelineMetrics is shown, which is refreshed periodically.
  */
 public class DebugViewFragment extends Fragment {
 
+    private static final long METRICS_UPDATE_INTERVAL = 1000;
 
     private TextView mFocusMeasureTextView, mPageSegmentationTextView, mCameraFrameTextView,
-            mShotTextView, mFlipShotTextView, mMovementCheckTextView, mNewDocTextView;
+            mShotTextView, mFlipShotTextView, mMovementCheckTextView, mNewDocTextView,
+            mMetricsTextView;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mUpdateMetricsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mMetricsTextView != null)
+                mMetricsTextView.setText(PipelineMetrics.getInstance().getSummary());
+            mHandler.postDelayed(this, METRICS_UPDATE_INTERVAL);
+        }
+    };
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -56,11 +71,28 @@ public class DebugViewFragment extends Fragment {
 //        mFlipShotTextView = (TextView) debugView.findViewById(R.id.flip_shot_time_view);
 //        mMovementCheckTextView = (TextView) debugView.findViewById(R.id.movement_check_time_view);
 //        mNewDocTextView = (TextView) debugView.findViewById(R.id.new_doc_time_view);
+        mMetricsTextView = (TextView) debugView.findViewById(R.id.pipeline_metrics_view);
 
         return debugView;
 
     }
 
+    @Override
+    public void onResume() {
+
+        super.onResume();
+        mHandler.post(mUpdateMetricsRunnable);
+
+    }
+
+    @Override
+    public void onPause() {
+
+        super.onPause();
+        mHandler.removeCallbacks(mUpdateMetricsRunnable);
+
+    }
+
 
     /**
      * Updates a TextView showing the execution time of a task.
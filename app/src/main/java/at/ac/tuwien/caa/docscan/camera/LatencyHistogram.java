@@ -0,0 +1,94 @@
+package at.ac.tuwien.caa.docscan.camera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds. Values below LINEAR_LIMIT have their own bucket, larger
+ * values are stored with SUB_BUCKETS buckets per power of two (i.e. a relative error of about 12%).
+ * Recording is lock free and can be done from any thread.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_LIMIT = 16;
+    private static final int LINEAR_BITS = 4;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values above 2^MAX_BITS ms (about 17 minutes) are stored in the last bucket:
+    private static final int MAX_BITS = 20;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_BITS - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long time) {
+
+        mCounts.incrementAndGet(getBucket(time));
+
+    }
+
+    public long getCount() {
+
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += mCounts.get(i);
+
+        return count;
+
+    }
+
+    /**
+     * @param percentile value in (0, 100]
+     * @return the upper bound of the bucket containing the percentile or -1 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+
+        long count = getCount();
+        if (count == 0)
+            return -1;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += mCounts.get(i);
+            if (sum >= rank)
+                return getUpperBound(i);
+        }
+
+        return getUpperBound(BUCKET_COUNT - 1);
+
+    }
+
+    public void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mCounts.set(i, 0);
+
+    }
+
+    private static int getBucket(long time) {
+
+        if (time < LINEAR_LIMIT)
+            return (int) Math.max(time, 0);
+
+        int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(time);
+        if (msb > MAX_BITS)
+            return BUCKET_COUNT - 1;
+
+        int subBucket = (int) ((time >> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+
+        return LINEAR_LIMIT + (msb - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+
+    }
+
+    private static long getUpperBound(int bucket) {
+
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+
+        int msb = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + subBucket + 1L) << (msb - SUB_BUCKET_BITS)) - 1;
+
+    }
+
+}
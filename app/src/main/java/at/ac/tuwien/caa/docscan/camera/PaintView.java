@@ -595,20 +595,17 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback {
             if (mCVResult != null) {
 
                 ArrayList<PointF> points = null;
-                if (mCVResult.getDKPolyRects() != null && mCVResult.getDKPolyRects().length > 0)
-                    points = mCVResult.getDKPolyRects()[0].getScreenPoints();
+                if (mCVResult.getRectCount() > 0)
+                    points = mCVResult.getDKPolyRect(0).getScreenPoints();
 
                 drawTextOrientation(canvas, points);
                 // Page segmentation:
-                if (mCVResult.getDKPolyRects() != null) {
-                    drawPageSegmentation(canvas);
-
-//                    This prevents that the focus patches are drawn, although there is no polyRect found:
-                    if (mCVResult.getDKPolyRects().length > 0) {
-                        // Focus measure:
-                        if (mCVResult.getPatches() != null)
-                            drawFocusMeasure(canvas);
-                    }
+                drawPageSegmentation(canvas);
+
+//                This prevents that the focus patches are drawn, although there is no polyRect found:
+                if (mCVResult.getRectCount() > 0) {
+                    // Focus measure:
+                    drawFocusMeasure(canvas);
                 }
             }
 
@@ -671,8 +668,9 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback {
         private void drawPageSegmentation(Canvas canvas) {
 
 
-            for (DkPolyRect dkPolyRect : mCVResult.getDKPolyRects()) {
+            for (int idx = 0; idx < mCVResult.getRectCount(); idx++) {
 
+                DkPolyRect dkPolyRect = mCVResult.getDKPolyRect(idx);
                 mSegmentationPath.reset();
                 ArrayList<PointF> screenPoints = dkPolyRect.getScreenPoints();
                 boolean isStartSet = false;
@@ -911,7 +909,9 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback {
 
             mFocusPath.reset();
 
-            for (Patch patch : mCVResult.getPatches()) {
+            for (int idx = 0; idx < mCVResult.getPatchCount(); idx++) {
+
+                Patch patch = mCVResult.getPatch(idx);
 
                 String fValue = String.format(Locale.ENGLISH, TEXT_FORMAT, patch.getFM());
 
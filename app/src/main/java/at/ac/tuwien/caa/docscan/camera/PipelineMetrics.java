@@ -0,0 +1,228 @@
+package at.ac.tuwien.caa.docscan.camera;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.CAPTURE_SAVE;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FOCUS_MEASURE;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FRAME_ANALYSIS;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FRAME_INGEST;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.MOVEMENT_CHECK;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.NEW_DOC;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.PAGE_SEGMENTATION;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.VERIFY_FRAME;
+
+/**
+ * Collects the metrics of the camera pipeline: latency histograms of the stages, the number of
+ * received, skipped and dropped preview frames, the number of captures that are not saved yet and
+ * the pages per minute in series mode. Unlike the TaskTimer, which just keeps the last duration, the
+ * metrics are meant to compare devices. They are shown in the DebugViewFragment and added to the
+ * log export (see FileHandler.exportLogAsZip). The class is thread safe.
+ */
+public class PipelineMetrics {
+
+    // The stages with a latency histogram, in the order of the pipeline:
+    private static final TaskTimer.TaskType[] STAGES = {FRAME_INGEST, MOVEMENT_CHECK, NEW_DOC,
+            FRAME_ANALYSIS, PAGE_SEGMENTATION, FOCUS_MEASURE, VERIFY_FRAME, CAPTURE_SAVE};
+    // Number of series mode pages used to compute the pages per minute:
+    private static final int PAGE_RATE_WINDOW = 16;
+
+    private static final PipelineMetrics sInstance = new PipelineMetrics();
+
+    private final EnumMap<TaskTimer.TaskType, LatencyHistogram> mHistograms =
+            new EnumMap<>(TaskTimer.TaskType.class);
+
+    private final AtomicLong mReceivedFrames = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+
+    // Guarded by this:
+    private final ArrayDeque<Long> mPendingCaptures = new ArrayDeque<>();
+    private int mMaxPendingCaptures;
+    private final long[] mSeriesPageTimes = new long[PAGE_RATE_WINDOW];
+    private int mSeriesPageCount;
+
+    public static PipelineMetrics getInstance() {
+
+        return sInstance;
+
+    }
+
+    private PipelineMetrics() {
+
+        for (TaskTimer.TaskType stage : STAGES)
+            mHistograms.put(stage, new LatencyHistogram());
+
+    }
+
+    /**
+     * Records the duration of a stage, types without histogram are ignored.
+     *
+     * @param time time in milliseconds
+     */
+    public void recordTime(TaskTimer.TaskType type, long time) {
+
+        LatencyHistogram histogram = mHistograms.get(type);
+        if (histogram != null)
+            histogram.record(time);
+
+    }
+
+    /**
+     * Called for every preview frame delivered by the camera.
+     */
+    public void onFrameReceived() {
+
+        mReceivedFrames.incrementAndGet();
+
+    }
+
+    /**
+     * Called if a preview frame is not processed (because a frame is still processed, the frame
+     * rate is throttled or the processing is paused).
+     */
+    public void onFrameSkipped() {
+
+        mSkippedFrames.incrementAndGet();
+
+    }
+
+    /**
+     * Called if a preview frame has been processed partly, but its result is thrown away.
+     */
+    public void onFrameDropped() {
+
+        mDroppedFrames.incrementAndGet();
+
+    }
+
+    /**
+     * Called once a picture is requested from the camera.
+     */
+    public synchronized void onCaptureStarted() {
+
+        mPendingCaptures.addLast(SystemClock.elapsedRealtime());
+        mMaxPendingCaptures = Math.max(mMaxPendingCaptures, mPendingCaptures.size());
+
+    }
+
+    /**
+     * Called once the oldest pending picture is saved (or saving failed).
+     */
+    public synchronized void onCaptureFinished(boolean isSaved, boolean isSeriesMode) {
+
+        Long startTime = mPendingCaptures.pollFirst();
+        if (startTime == null || !isSaved)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+        recordTime(CAPTURE_SAVE, now - startTime);
+
+        if (isSeriesMode) {
+            mSeriesPageTimes[mSeriesPageCount % PAGE_RATE_WINDOW] = now;
+            mSeriesPageCount++;
+        }
+
+    }
+
+    public synchronized int getPendingCaptures() {
+
+        return mPendingCaptures.size();
+
+    }
+
+    /**
+     * @return the pages per minute of the last PAGE_RATE_WINDOW pages taken in series mode or 0
+     */
+    public synchronized double getPagesPerMinute() {
+
+        int count = Math.min(mSeriesPageCount, PAGE_RATE_WINDOW);
+        if (count < 2)
+            return 0;
+
+        long last = mSeriesPageTimes[(mSeriesPageCount - 1) % PAGE_RATE_WINDOW];
+        long first = mSeriesPageTimes[(mSeriesPageCount - count) % PAGE_RATE_WINDOW];
+        if (last <= first)
+            return 0;
+
+        return (count - 1) * 60000.0 / (last - first);
+
+    }
+
+    /**
+     * @return a human readable summary of all metrics, one line per value
+     */
+    public synchronized String getSummary() {
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "%-18s %6s %6s %6s %6s%n",
+                "stage [ms]", "n", "p50", "p95", "p99"));
+
+        for (TaskTimer.TaskType stage : STAGES) {
+            LatencyHistogram histogram = mHistograms.get(stage);
+            summary.append(String.format(Locale.US, "%-18s %6d %6s %6s %6s%n",
+                    getStageName(stage), histogram.getCount(),
+                    formatTime(histogram.getPercentile(50)),
+                    formatTime(histogram.getPercentile(95)),
+                    formatTime(histogram.getPercentile(99))));
+        }
+
+        summary.append(String.format(Locale.US, "frames received: %d skipped: %d dropped: %d%n",
+                mReceivedFrames.get(), mSkippedFrames.get(), mDroppedFrames.get()));
+        summary.append(String.format(Locale.US, "pending captures: %d (max: %d)%n",
+                mPendingCaptures.size(), mMaxPendingCaptures));
+        summary.append(String.format(Locale.US, "series pages/min: %.1f", getPagesPerMinute()));
+
+        return summary.toString();
+
+    }
+
+    public synchronized void reset() {
+
+        for (LatencyHistogram histogram : mHistograms.values())
+            histogram.reset();
+
+        mReceivedFrames.set(0);
+        mSkippedFrames.set(0);
+        mDroppedFrames.set(0);
+        mMaxPendingCaptures = mPendingCaptures.size();
+        mSeriesPageCount = 0;
+
+    }
+
+    private static String formatTime(long time) {
+
+        return time == -1 ? "-" : String.valueOf(time);
+
+    }
+
+    private static String getStageName(TaskTimer.TaskType stage) {
+
+        switch (stage) {
+            case FRAME_INGEST:
+                return "frame ingest";
+            case MOVEMENT_CHECK:
+                return "change detection";
+            case NEW_DOC:
+                return "duplicate check";
+            case FRAME_ANALYSIS:
+                return "frame analysis";
+            case PAGE_SEGMENTATION:
+                return "page segmentation";
+            case FOCUS_MEASURE:
+                return "focus measure";
+            case VERIFY_FRAME:
+                return "verification";
+            case CAPTURE_SAVE:
+                return "capture to saved";
+            default:
+                return stage.name();
+        }
+
+    }
+
+}
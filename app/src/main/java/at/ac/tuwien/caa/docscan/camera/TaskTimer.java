@@ -23,44 +23,32 @@
 
 package at.ac.tuwien.caa.docscan.camera;
 
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.CAMERA_FRAME;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FLIP_SHOT_TIME;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FOCUS_MEASURE;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.MOVEMENT_CHECK;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.NEW_DOC;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.PAGE_SEGMENTATION;
-import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.SHOT_TIME;
 
-import java.util.ArrayList;
-
-import timber.log.Timber;
+import java.util.EnumMap;
 
 /**
  * Class used to measure the execution time of time intensive tasks. Each task has an ID and a an
- * assigned execution time.
+ * assigned execution time. Besides the overall average a smoothed time is kept, that follows
+ * changes of the execution time (used by the FrameGovernor). The methods are synchronized, since
+ * the times can be reported from worker threads.
  */
 public class TaskTimer {
 
     public enum TaskType {
         FOCUS_MEASURE, PAGE_SEGMENTATION, DRAW_VIEW, CAMERA_FRAME, SHOT_TIME, FLIP_SHOT_TIME,
-        MOVEMENT_CHECK, NEW_DOC
+        MOVEMENT_CHECK, NEW_DOC, FRAME_INGEST, VERIFY_FRAME, CAPTURE_SAVE, FRAME_ANALYSIS
     }
 
-    private ArrayList<Task> mTasks;
+    private final EnumMap<TaskType, Task> mTasks;
 
     /**
-     * Creates a list of Tasks.
+     * Creates a Task for each TaskType.
      */
     public TaskTimer() {
 
-        mTasks = new ArrayList<>();
-        mTasks.add(new Task(FOCUS_MEASURE));
-        mTasks.add(new Task(PAGE_SEGMENTATION));
-        mTasks.add(new Task(CAMERA_FRAME));
-        mTasks.add(new Task(SHOT_TIME));
-        mTasks.add(new Task(FLIP_SHOT_TIME));
-        mTasks.add(new Task(MOVEMENT_CHECK));
-        mTasks.add(new Task(NEW_DOC));
+        mTasks = new EnumMap<>(TaskType.class);
+        for (TaskType type : TaskType.values())
+            mTasks.put(type, new Task(type));
 
     }
 
@@ -70,7 +58,7 @@ public class TaskTimer {
      *
      * @param type
      */
-    public void startTaskTimer(TaskType type) {
+    public synchronized void startTaskTimer(TaskType type) {
 
         Task task = getTask(type);
         if (task != null)
@@ -84,7 +72,7 @@ public class TaskTimer {
      * @param type
      * @return time in milliseconds
      */
-    public long getTaskTime(TaskType type) {
+    public synchronized long getTaskTime(TaskType type) {
 
         Task task = getTask(type);
         if (task != null)
@@ -95,6 +83,35 @@ public class TaskTimer {
 
     }
 
+    /**
+     * Adds an execution time that has been measured outside of the timer.
+     *
+     * @param type
+     * @param time time in milliseconds
+     */
+    public synchronized void addTaskTime(TaskType type, long time) {
+
+        Task task = getTask(type);
+        if (task != null)
+            task.updateTimeSum(time);
+
+    }
+
+    /**
+     * Returns the smoothed execution time, recent executions have a larger weight than old ones.
+     *
+     * @param type
+     * @return time in milliseconds or -1 if the task has not been executed yet
+     */
+    public synchronized long getSmoothedTaskTime(TaskType type) {
+
+        Task task = getTask(type);
+        if (task != null && task.mTaskCnt > 0)
+            return Math.round(task.mSmoothedTime);
+
+        return -1;
+
+    }
 
     /**
      * Finds a task by ID in the task list.
@@ -104,12 +121,7 @@ public class TaskTimer {
      */
     private Task getTask(TaskType type) {
 
-        for (Task task : mTasks) {
-            if (task.getType() == type)
-                return task;
-        }
-
-        return null;
+        return mTasks.get(type);
 
     }
 
@@ -126,9 +138,13 @@ public class TaskTimer {
      */
     private class Task {
 
+        // Weight of the last execution time in the smoothed time:
+        private static final double SMOOTHING_FACTOR = 0.2;
+
         private long mStartTime;
         private long mTimeSum;
         private int mTaskCnt;
+        private double mSmoothedTime;
         private TaskType mType;
 
 
@@ -165,20 +181,12 @@ public class TaskTimer {
             mTaskCnt++;
             mTimeSum += timePassed;
 
+            if (mTaskCnt == 1)
+                mSmoothedTime = timePassed;
+            else
+                mSmoothedTime += SMOOTHING_FACTOR * (timePassed - mSmoothedTime);
 
-            double averageTime = mTimeSum / (double) mTaskCnt;
-
-            String type = "undefined";
-            switch (mType) {
-                case PAGE_SEGMENTATION:
-                    type = "page segmentation";
-                    break;
-                case FOCUS_MEASURE:
-                    type = "focus measurement";
-                    break;
-            }
-
-            Timber.d( "task: " + type + " time: " + averageTime);
+//            The samples are not logged here, this is called per frame, see PipelineMetrics.
         }
 
     }
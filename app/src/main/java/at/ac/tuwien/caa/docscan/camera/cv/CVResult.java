@@ -27,6 +27,7 @@ import android.content.Context;
 import android.graphics.PointF;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import at.ac.tuwien.caa.docscan.R;
 import timber.log.Timber;
@@ -35,7 +36,8 @@ import timber.log.Timber;
  * Class responsible for holding the results of the page segmentation and focus measurement tasks.
  * The coordinates of the resulting objects are mapped by this class from frame to screen coordinates.
  * Note that the drawing thread in the PaintView is waiting for updates of this class, so take care
- * to call notify if the class receives an update.
+ * to call notify if the class receives an update. The DkPolyRect and Patch objects are reused for
+ * each frame, so they must just be accessed while synchronized on this object.
  */
 public class CVResult {
 
@@ -58,12 +60,24 @@ public class CVResult {
     private static final int ORIENTATION_FLIPPED_PORTRAIT = 270;
 
     private static final int MAX_STATE_CORRECTION_CNT = 1;
+    // The page is passed as a stable hint to the capture if it has not moved more than
+    // HINT_MAX_MOVEMENT (normalized by the frame size) in HINT_MIN_STEADY_FRAMES frames:
+    private static final double HINT_MAX_MOVEMENT = .01;
+    private static final int HINT_MIN_STEADY_FRAMES = 3;
 
     private static final String TAG = "CVResult";
 
-    private DkPolyRect[] mDKPolyRects;
-    private DkPolyRect[] mLastDKPolyRects;
+    // Just the first mRectCnt objects are valid, the rects of the last frame are kept for the
+    // stability check, so the two arrays are swapped for each frame:
+    private DkPolyRect[] mDKPolyRects = new DkPolyRect[0];
+    private DkPolyRect[] mLastDKPolyRects = new DkPolyRect[0];
+    private int mRectCnt = 0;
+    private int mLastRectCnt = 0;
+    // Null until the focus has been measured, just the first mPatchCnt objects are valid:
     private Patch[] mPatches;
+    private int mPatchCnt = 0;
+    private final PointF mFramePoint = new PointF();
+    private final PointF mScreenPoint = new PointF();
     private int mViewWidth, mViewHeight;
     private int mFrameHeight, mFrameWidth;
     private int mCameraOrientation;
@@ -79,6 +93,7 @@ public class CVResult {
     private boolean mIsStable = true;
     private boolean mIsSeriesMode = false;
     private boolean mIsFocusMeasured = true;
+    private int mSteadyFrames = 0;
 
     public CVResult(Context context) {
 
@@ -89,23 +104,32 @@ public class CVResult {
 
 
     /**
-     * Sets the DkPolyRect array, calculated by PageSegmentation.cpp
+     * Takes over the page segmentation results, calculated by PageSegmentation.cpp. The results
+     * are copied, so the buffer can be reused afterwards.
      *
-     * @param dkPolyRects array of page segmentation results
+     * @param dkPolyRects page segmentation results
      */
-    public void setDKPolyRects(DkPolyRect[] dkPolyRects) {
+    public void setDKPolyRects(PolyRectBuffer dkPolyRects) {
 
         synchronized (this) {
 
-            mDKPolyRects = dkPolyRects;
+            DkPolyRect[] rects = mLastDKPolyRects;
+            mLastDKPolyRects = mDKPolyRects;
+            mLastRectCnt = mRectCnt;
+
+            mDKPolyRects = reuseRects(rects, dkPolyRects.size());
+            for (int idx = 0; idx < dkPolyRects.size(); idx++)
+                dkPolyRects.copyTo(idx, mDKPolyRects[idx]);
+            mRectCnt = dkPolyRects.size();
+
             updateRects();
             stateUpdated();
 
-            mIsStable = isRectStable(dkPolyRects);
+            mIsStable = isRectStable();
+            updateSteadyFrames();
 
             Timber.d( "stable: " + mIsStable);
             mIsRedrawNecessary = true;
-            mLastDKPolyRects = dkPolyRects;
             // notify is necessary, because the PaintView is waiting for updates on the CVResult
             // object. If notify is not called no update would be drawn.
             this.notify();
@@ -118,19 +142,16 @@ public class CVResult {
         return mIsStable;
     }
 
-    boolean isRectStable(DkPolyRect[] dkPolyRects) {
+    boolean isRectStable() {
 
         boolean isStable = true;
 
-        if (dkPolyRects != null && mLastDKPolyRects != null) {
-
-            if (dkPolyRects.length == 1 && mLastDKPolyRects.length == 1) {
-                PointF distVec = mLastDKPolyRects[0].getLargestDistVector(dkPolyRects[0]);
-                if (distVec != null) {
-                    PointF normedPoint = normPoint(distVec);
-                    if (normedPoint.length() >= .1) {
-                        isStable = false;
-                    }
+        if (mRectCnt == 1 && mLastRectCnt == 1) {
+            PointF distVec = mLastDKPolyRects[0].getLargestDistVector(mDKPolyRects[0]);
+            if (distVec != null) {
+                PointF normedPoint = normPoint(distVec);
+                if (normedPoint.length() >= .1) {
+                    isStable = false;
                 }
             }
         }
@@ -139,29 +160,94 @@ public class CVResult {
     }
 
 
+    private void updateSteadyFrames() {
+
+        if (mRectCnt != 1 || mLastRectCnt != 1) {
+            mSteadyFrames = 0;
+            return;
+        }
+
+        PointF distVec = mLastDKPolyRects[0].getLargestDistVector(mDKPolyRects[0]);
+//        The vector is null if the corners are equal:
+        if (distVec == null || normPoint(distVec).length() < HINT_MAX_MOVEMENT)
+            mSteadyFrames++;
+        else
+            mSteadyFrames = 0;
+
+    }
+
     public void clearResults() {
 
         synchronized (this) {
-            mDKPolyRects = new DkPolyRect[0];
-            mPatches = new Patch[0];
+            mRectCnt = 0;
+            if (mPatches == null)
+                mPatches = new Patch[0];
+            mPatchCnt = 0;
+            mSteadyFrames = 0;
+        }
+
+    }
+
+    /**
+     * Returns the page of the last frame, which is used as a hint for the page detection on the
+     * picture that is taken now.
+     *
+     * @return the page hint or null if not exactly one page is found
+     */
+    public PageHint getPageHint() {
+
+        synchronized (this) {
+
+            if (mRectCnt != 1 || mFrameWidth <= 0 || mFrameHeight <= 0)
+                return null;
+
+            ArrayList<PointF> points = new ArrayList<>();
+            for (PointF point : mDKPolyRects[0].getPoints())
+                points.add(normPoint(point));
+
+            return new PageHint(points, (float) mFrameWidth / mFrameHeight,
+                    mDKPolyRects[0].channel(), mSteadyFrames >= HINT_MIN_STEADY_FRAMES);
+
         }
 
     }
 
-    public DkPolyRect[] getDKPolyRects() {
+    /**
+     * @return number of pages found in the last frame
+     */
+    public int getRectCount() {
+
+        return mRectCnt;
+
+    }
+
+    public DkPolyRect getDKPolyRect(int idx) {
 
-        return mDKPolyRects;
+        return mDKPolyRects[idx];
 
     }
 
-    public void setPatches(Patch[] patches) {
+    /**
+     * Takes over the focus measurement results. The results are copied, so the buffer can be
+     * reused afterwards.
+     *
+     * @param patches focus measurement results
+     */
+    public void setPatches(PatchBuffer patches) {
 
         synchronized (this) {
 
-            if (!mIsStable)
+            if (mPatches == null)
                 mPatches = new Patch[0];
-            else
-                mPatches = patches;
+
+            if (!mIsStable)
+                mPatchCnt = 0;
+            else {
+                mPatches = reusePatches(mPatches, patches.size());
+                for (int idx = 0; idx < patches.size(); idx++)
+                    patches.copyTo(idx, mPatches[idx]);
+                mPatchCnt = patches.size();
+            }
 
             updatePatches();
 //            stateUpdated();
@@ -182,11 +268,49 @@ public class CVResult {
     }
 
     /**
-     * @return focus measurement results
+     * @return number of focus measurement results
      */
-    public Patch[] getPatches() {
+    public int getPatchCount() {
 
-        return mPatches;
+        return mPatchCnt;
+
+    }
+
+    public Patch getPatch(int idx) {
+
+        return mPatches[idx];
+
+    }
+
+    /**
+     * Returns an array that holds at least size objects, the objects of rects are reused.
+     */
+    private static DkPolyRect[] reuseRects(DkPolyRect[] rects, int size) {
+
+        if (rects.length >= size)
+            return rects;
+
+        DkPolyRect[] result = Arrays.copyOf(rects, size);
+        for (int idx = rects.length; idx < size; idx++)
+            result[idx] = new DkPolyRect();
+
+        return result;
+
+    }
+
+    /**
+     * Returns an array that holds at least size objects, the objects of patches are reused.
+     */
+    private static Patch[] reusePatches(Patch[] patches, int size) {
+
+        if (patches.length >= size)
+            return patches;
+
+        Patch[] result = Arrays.copyOf(patches, size);
+        for (int idx = patches.length; idx < size; idx++)
+            result[idx] = new Patch();
+
+        return result;
 
     }
 
@@ -259,33 +383,28 @@ public class CVResult {
             return;
         }
 
-//        Patch patch;
-        PointF screenPoint, framePoint;
-
         int sharpCnt = 0;
         int unsharpCnt = 0;
 
-        for (Patch patch : mPatches) {
+        for (int idx = 0; idx < mPatchCnt; idx++) {
 
-            framePoint = new PointF(patch.getPX(), patch.getPY());
-            screenPoint = getScreenCoordinates(framePoint, mFrameWidth, mFrameHeight, mViewWidth, mViewHeight, mCameraOrientation);
-            patch.setDrawViewPX(screenPoint.x);
-            patch.setDrawViewPY(screenPoint.y);
+            Patch patch = mPatches[idx];
+            mFramePoint.set(patch.getPX(), patch.getPY());
+            getScreenCoordinates(mFramePoint, mFrameWidth, mFrameHeight, mViewWidth, mViewHeight, mCameraOrientation, mScreenPoint);
+            patch.setDrawViewPX(mScreenPoint.x);
+            patch.setDrawViewPY(mScreenPoint.y);
 
             boolean isInsidePolyRect = false;
 
-            if (mDKPolyRects != null) {
-
-                for (DkPolyRect polyRect : mDKPolyRects) {
+            for (int rectIdx = 0; rectIdx < mRectCnt; rectIdx++) {
 
-                    if (patch.getIsForeGround() && polyRect.isInside(patch.getPoint())) {
-                        isInsidePolyRect = true;
+                if (patch.getIsForeGround() && mDKPolyRects[rectIdx].isInside(mFramePoint)) {
+                    isInsidePolyRect = true;
 
-                        if (patch.getIsSharp())
-                            sharpCnt++;
-                        else
-                            unsharpCnt++;
-                    }
+                    if (patch.getIsSharp())
+                        sharpCnt++;
+                    else
+                        unsharpCnt++;
                 }
             }
 
@@ -308,38 +427,22 @@ public class CVResult {
      */
     private void updateRects() {
 
-        PointF screenPoint, framePoint;
-
-        for (DkPolyRect rect : mDKPolyRects) {
-
-            rect.getPoints();
-
-        }
-
-
-        for (DkPolyRect polyRect : mDKPolyRects) {
-
-            if (polyRect == null)
-                continue;
+        for (int idx = 0; idx < mRectCnt; idx++) {
 
+            DkPolyRect polyRect = mDKPolyRects[idx];
             ArrayList<PointF> points = polyRect.getPoints();
-//            if (points == null)
-//                continue;s
-
-            ArrayList<PointF> screenPoints = new ArrayList<PointF>();
-
-            for (int j = 0; j < points.size(); j++) {
-
-                framePoint = new PointF(points.get(j).x, points.get(j).y);
-                screenPoint = getScreenCoordinates(framePoint, mFrameWidth, mFrameHeight, mViewWidth, mViewHeight, mCameraOrientation);
-//                screenPoint = getScreenCoordinates(framePoint, 500, 500, mViewWidth, mViewHeight, mCameraOrientation);
-                screenPoints.add(screenPoint);
-
 
+//            The screen points of the reused object are overwritten:
+            ArrayList<PointF> screenPoints = polyRect.getScreenPoints();
+            if (screenPoints == null || screenPoints.size() != points.size()) {
+                screenPoints = new ArrayList<PointF>();
+                for (int j = 0; j < points.size(); j++)
+                    screenPoints.add(new PointF());
+                polyRect.setScreenPoints(screenPoints);
             }
 
-            polyRect.setScreenPoints(screenPoints);
-
+            for (int j = 0; j < points.size(); j++)
+                getScreenCoordinates(points.get(j), mFrameWidth, mFrameHeight, mViewWidth, mViewHeight, mCameraOrientation, screenPoints.get(j));
 
         }
     }
@@ -446,10 +549,7 @@ public class CVResult {
 
     public int getCVState() {
 
-        if (mDKPolyRects == null)
-            return DOCUMENT_STATE_EMPTY;
-
-        if (mDKPolyRects.length == 0)
+        if (mRectCnt == 0)
             return DOCUMENT_STATE_EMPTY;
 
 
@@ -471,7 +571,7 @@ public class CVResult {
 //            if (mPatches == null)
 //                return DOCUMENT_STATE_NO_FOCUS_MEASURED;
 
-            if (mPatches.length == 0)
+            if (mPatchCnt == 0)
                 return DOCUMENT_STATE_NO_FOCUS_MEASURED;
 
             if (mRatioSharpUnsharp == -1)
@@ -542,9 +642,9 @@ public class CVResult {
      * @param drawWidth
      * @param drawHeight
      * @param orientation
-     * @return
+     * @param screenPos   receives the screen coordinates
      */
-    private PointF getScreenCoordinates(PointF framePos, int frameWidth, int frameHeight, int drawWidth, int drawHeight, int orientation) {
+    private void getScreenCoordinates(PointF framePos, int frameWidth, int frameHeight, int drawWidth, int drawHeight, int orientation, PointF screenPos) {
 
 
         float drawViewPX = -1;
@@ -581,9 +681,7 @@ public class CVResult {
         if (drawViewPY > drawHeight)
             drawViewPY = drawHeight;
 
-        PointF point = new PointF(drawViewPX, drawViewPY);
-
-        return point;
+        screenPos.set(drawViewPX, drawViewPY);
 
     }
 
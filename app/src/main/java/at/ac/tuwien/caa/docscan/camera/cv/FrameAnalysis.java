@@ -0,0 +1,158 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Results of NativeWrapper.analyzeFrame: the page segmentation, the focus measurement and the
+ * illumination of a single frame. All buffers are owned by this object and are written by the
+ * native code in a single call, so the object can be reused for each frame. Besides the rects and
+ * patches the native code writes an info record of INFO_SIZE floats: rect count, patch count,
+ * illumination, is tracked, page time, focus time, illumination time (see
+ * cvt::cFrameAnalysisToBuffers in DocScanInterface.cpp).
+ */
+public class FrameAnalysis {
+
+    static final int INFO_SIZE = 7;
+    private static final int FLOAT_BYTES = 4;
+
+    private final PolyRectBuffer mRects = new PolyRectBuffer();
+    private final PatchBuffer mPatches = new PatchBuffer();
+    private final ByteBuffer mInfoBuffer;
+    private final FloatBuffer mInfo;
+    private int mAnalyses = 0;
+
+    public FrameAnalysis() {
+
+        mInfoBuffer = ByteBuffer.allocateDirect(INFO_SIZE * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        mInfo = mInfoBuffer.asFloatBuffer();
+        clear();
+
+    }
+
+    /**
+     * @return the analyses (NativeWrapper.ANALYSIS_* flags) done in the last call
+     */
+    public int getAnalyses() {
+
+        return mAnalyses;
+
+    }
+
+    public boolean hasAnalysis(int analysis) {
+
+        return (mAnalyses & analysis) != 0;
+
+    }
+
+    /**
+     * @return the pages found, in the coordinates of the original image
+     */
+    public PolyRectBuffer getRects() {
+
+        return mRects;
+
+    }
+
+    /**
+     * @return the focus measures, in the coordinates of the original image
+     */
+    public PatchBuffer getPatches() {
+
+        return mPatches;
+
+    }
+
+    /**
+     * @return the illumination value of the page (or the whole image if no page is found), -1 if
+     * it was not computed
+     */
+    public double getIllumination() {
+
+        return mInfo.get(2);
+
+    }
+
+    /**
+     * @return true if the page has been tracked from the last frame instead of being segmented
+     */
+    public boolean isTracked() {
+
+        return mInfo.get(3) != 0;
+
+    }
+
+    /**
+     * @return execution time of the page segmentation (or tracking) in ms
+     */
+    public long getPageTime() {
+
+        return Math.round(mInfo.get(4));
+
+    }
+
+    /**
+     * @return execution time of the focus measurement in ms
+     */
+    public long getFocusTime() {
+
+        return Math.round(mInfo.get(5));
+
+    }
+
+    /**
+     * @return execution time of the illumination estimation in ms
+     */
+    public long getIlluminationTime() {
+
+        return Math.round(mInfo.get(6));
+
+    }
+
+    ByteBuffer getInfoBuffer() {
+
+        return mInfoBuffer;
+
+    }
+
+    /**
+     * Takes over the counts written by the native code. If the rects or the patches did not fit
+     * into their buffers, the buffers are enlarged and the native call has to be repeated.
+     *
+     * @param analyses the analyses that were requested
+     * @param result   return value of the native call, -1 if an error occurred
+     * @return false if a buffer was too small and the native call has to be repeated
+     */
+    boolean setResult(int analyses, int result) {
+
+        if (result < 0) {
+            clear();
+            return true;
+        }
+
+        mAnalyses = analyses;
+//        Both buffers are checked, so that they are enlarged at once:
+        boolean rectsFit = mRects.setCount((int) mInfo.get(0));
+        boolean patchesFit = mPatches.setCount((int) mInfo.get(1));
+        if (rectsFit && patchesFit)
+            return true;
+
+        clear();
+        return false;
+
+    }
+
+    public void clear() {
+
+        mAnalyses = 0;
+        mRects.clear();
+        mPatches.clear();
+        for (int idx = 0; idx < INFO_SIZE; idx++)
+            mInfo.put(idx, 0);
+        mInfo.put(2, -1);
+
+    }
+
+}
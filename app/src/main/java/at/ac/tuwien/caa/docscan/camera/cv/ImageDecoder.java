@@ -0,0 +1,279 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.exifinterface.media.ExifInterface;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Decodes images for the analysis (page detection, segmentation, ...) with a reduced size. The
+ * JPEG decoders scale the image in the DCT domain (Imgcodecs.IMREAD_REDUCED_* and
+ * BitmapFactory.Options.inSampleSize), so the full resolution image is never decoded. The images
+ * are returned in the orientation given by the exif data, just like Imgcodecs.imread returns them,
+ * hence coordinates that are normalized by the size of the decoded image are valid for the full
+ * resolution image too.
+ * <p>
+ * Only the images that are written out (e.g. the cropped page) need a full resolution decode.
+ */
+@WorkerThread
+public class ImageDecoder {
+
+    // Reductions that are supported by Imgcodecs.imread:
+    private static final int[] MAT_REDUCTIONS = {8, 4, 2};
+    private static final int[] MAT_REDUCTION_FLAGS = {Imgcodecs.IMREAD_REDUCED_COLOR_8,
+            Imgcodecs.IMREAD_REDUCED_COLOR_4, Imgcodecs.IMREAD_REDUCED_COLOR_2};
+
+    /**
+     * Decodes a BGR image whose longer side is reduced by 2, 4 or 8, but is not smaller than
+     * maxSide (if the image is large enough). The exif orientation is applied by imread.
+     *
+     * @param path    path of the image
+     * @param maxSide the size of the longer side that is needed by the caller
+     * @return BGR image or null if the image cannot be decoded
+     */
+    @Nullable
+    public static Mat decodeMat(String path, int maxSide) {
+
+        BitmapFactory.Options bounds = decodeBounds(path);
+        int flags = getMatReductionFlags(Math.max(bounds.outWidth, bounds.outHeight), maxSide);
+
+        Mat mat = Imgcodecs.imread(path, flags);
+        if (mat.empty()) {
+            mat.release();
+            return null;
+        }
+
+        return mat;
+
+    }
+
+    /**
+     * Decodes a BGR image from memory like decodeMat(String, int).
+     *
+     * @param jpeg    encoded image
+     * @param maxSide the size of the longer side that is needed by the caller
+     * @return BGR image or null if the image cannot be decoded
+     */
+    @Nullable
+    public static Mat decodeMat(byte[] jpeg, int maxSide) {
+
+        BitmapFactory.Options bounds = decodeBounds(jpeg);
+        int flags = getMatReductionFlags(Math.max(bounds.outWidth, bounds.outHeight), maxSide);
+
+        MatOfByte buffer = new MatOfByte(jpeg);
+//        The exif orientation is applied here and not by imdecode, because older OpenCV versions
+//        just apply it in imread:
+        Mat mat = Imgcodecs.imdecode(buffer, flags | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        buffer.release();
+        if (mat.empty()) {
+            mat.release();
+            return null;
+        }
+
+        applyOrientation(mat, getOrientation(jpeg));
+
+        return mat;
+
+    }
+
+    /**
+     * Decodes an ARGB_8888 bitmap whose shorter side is reduced by a power of two, but is not
+     * smaller than minSide (if the image is large enough). The bitmap is transformed according to
+     * the exif orientation.
+     *
+     * @param path    path of the image
+     * @param minSide the size of the shorter side that is needed by the caller
+     * @return bitmap or null if the image cannot be decoded
+     */
+    @Nullable
+    public static Bitmap decodeBitmap(String path, int minSide) {
+
+        BitmapFactory.Options bounds = decodeBounds(path);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = getSampleSize(bounds.outWidth, bounds.outHeight, minSide);
+
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null)
+            return null;
+
+        Matrix transform = getOrientationTransform(getOrientation(path));
+        if (transform.isIdentity())
+            return bitmap;
+
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), transform, true);
+        if (oriented != bitmap)
+            bitmap.recycle();
+
+        return oriented;
+
+    }
+
+    /**
+     * @return the largest power of two that reduces the shorter side of the image not below
+     * minSide, 1 if the image is smaller or its size is unknown
+     */
+    public static int getSampleSize(int width, int height, int minSide) {
+
+        int sampleSize = 1;
+        int side = Math.min(width, height);
+        if (minSide <= 0)
+            return sampleSize;
+
+        while (side / (sampleSize * 2) >= minSide)
+            sampleSize *= 2;
+
+        return sampleSize;
+
+    }
+
+    /**
+     * The rotation does not change the longer side, so the reduction can be chosen before the exif
+     * data is read.
+     *
+     * @return the imread flags for the largest reduction that keeps side not below maxSide
+     */
+    private static int getMatReductionFlags(int side, int maxSide) {
+
+        for (int idx = 0; idx < MAT_REDUCTIONS.length; idx++) {
+            if (side / MAT_REDUCTIONS[idx] >= maxSide)
+                return MAT_REDUCTION_FLAGS[idx];
+        }
+
+        return Imgcodecs.IMREAD_COLOR;
+
+    }
+
+    /**
+     * @return the size of the image as it is stored (before the exif rotation), the sizes are -1 if
+     * the image cannot be decoded
+     */
+    public static BitmapFactory.Options decodeBounds(String path) {
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+
+        return bounds;
+
+    }
+
+    public static BitmapFactory.Options decodeBounds(byte[] jpeg) {
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+
+        return bounds;
+
+    }
+
+    /**
+     * @return the exif orientation, ORIENTATION_NORMAL if it cannot be read
+     */
+    public static int getOrientation(String path) {
+
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Timber.d(e, "getOrientation: cannot read exif of " + path);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+
+    }
+
+    public static int getOrientation(byte[] jpeg) {
+
+        try {
+            return new ExifInterface(new ByteArrayInputStream(jpeg)).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Timber.d(e, "getOrientation: cannot read exif");
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+
+    }
+
+    /**
+     * Transforms the image in place, like imread does.
+     */
+    private static void applyOrientation(Mat mat, int orientation) {
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                Core.rotate(mat, mat, Core.ROTATE_90_CLOCKWISE);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                Core.rotate(mat, mat, Core.ROTATE_180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                Core.rotate(mat, mat, Core.ROTATE_90_COUNTERCLOCKWISE);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                Core.flip(mat, mat, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                Core.flip(mat, mat, 0);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                Core.transpose(mat, mat);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                Core.rotate(mat, mat, Core.ROTATE_180);
+                Core.transpose(mat, mat);
+                break;
+        }
+
+    }
+
+    private static Matrix getOrientationTransform(int orientation) {
+
+        Matrix matrix = new Matrix();
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postScale(-1, 1);
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postScale(-1, 1);
+                matrix.postRotate(90);
+                break;
+        }
+
+        return matrix;
+
+    }
+
+}
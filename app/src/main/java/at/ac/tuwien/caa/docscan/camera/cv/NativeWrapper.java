@@ -29,17 +29,41 @@ import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class responsible for calling native methods (for page segmentation and focus measurement).
  */
 @Keep
 public class NativeWrapper {
 
+    /**
+     * Searches all channels and thresholds of the image (the default).
+     */
+    public static final int SEGMENTATION_MODE_EXHAUSTIVE = 0;
+    /**
+     * Searches a downscaled image with less thresholds and refines the page corners at the full
+     * resolution. Falls back to the exhaustive search if the page is not clearly found.
+     */
+    public static final int SEGMENTATION_MODE_COARSE_TO_FINE = 1;
+
+    /**
+     * Flags for analyzeFrame, they can be combined.
+     */
+    public static final int ANALYSIS_PAGE = 1;
+    public static final int ANALYSIS_FOCUS = 2;
+    public static final int ANALYSIS_ILLUMINATION = 4;
+
     private static final String CLASS_NAME = "NativeWrapper";
-    private static final int MAX_IMG_SIZE = 600;
+    // Longer side of the images that are analyzed by resize, decode them at least this large:
+    public static final int MAX_IMG_SIZE = 600;
+    // After this number of tracked frames a full page segmentation is done:
+    private static final int TRACKING_REFRESH_INTERVAL = 10;
 
     private static boolean mUseLab = true;
+    private static int mSegmentationMode = SEGMENTATION_MODE_EXHAUSTIVE;
     private static DkPolyRect mOldRect = new DkPolyRect();
+    private static int mTrackedFrames = 0;
 
     /**
      * Returns an array of Patch objects, containing focus measurement results.
@@ -49,12 +73,58 @@ public class NativeWrapper {
      */
     public static Patch[] getFocusMeasures(Mat src) {
 
-        Patch[] patches = nativeGetFocusMeasures(src.getNativeObjAddr());
+        return getFocusMeasures(src, null);
+
+    }
+
+    /**
+     * Returns the focus measurement results of the patches that intersect the bounding box of the
+     * page. The other patches are not computed.
+     *
+     * @param src  OpenCV Mat
+     * @param page page in the coordinates of src or null for the whole image
+     * @return array of Patch objects
+     */
+    public static Patch[] getFocusMeasures(Mat src, DkPolyRect page) {
+
+        Patch[] patches = nativeGetFocusMeasures(src.getNativeObjAddr(), page);
 
         return patches;
 
     }
 
+    /**
+     * Writes the focus measurement results into a buffer owned by the caller. Unlike
+     * getFocusMeasures(Mat) no Patch objects are created, so the buffer can be reused for each
+     * frame.
+     *
+     * @param src     OpenCV Mat
+     * @param patches buffer that receives the results
+     */
+    public static void getFocusMeasures(Mat src, PatchBuffer patches) {
+
+        getFocusMeasures(src, null, patches);
+
+    }
+
+    /**
+     * The same as getFocusMeasures(Mat, DkPolyRect), but the results are written into a buffer
+     * owned by the caller.
+     *
+     * @param src     OpenCV Mat
+     * @param page    page in the coordinates of src or null for the whole image
+     * @param patches buffer that receives the results
+     */
+    public static void getFocusMeasures(Mat src, DkPolyRect page, PatchBuffer patches) {
+
+        int count;
+//        Repeated with the enlarged buffer if not all patches fit:
+        do {
+            count = nativeGetFocusMeasuresBuffer(src.getNativeObjAddr(), page, patches.getBuffer());
+        } while (!patches.setCount(count));
+
+    }
+
     /**
      * Returns an array of DkPolyRect objects, containing page segmentation results.
      *
@@ -63,17 +133,251 @@ public class NativeWrapper {
      */
     public static DkPolyRect[] getPageSegmentation(Mat src) {
 
-        DkPolyRect[] rects = nativeGetPageSegmentation(src.getNativeObjAddr(), mUseLab, mOldRect);
+        return getPageSegmentation(src, 1.0f);
+
+    }
 
+    /**
+     * Returns an array of DkPolyRect objects, containing page segmentation results for an image
+     * that has already been downscaled. The minimal page area is adapted to the scale and the
+     * returned DkPolyRect objects are mapped back to the coordinates of the original image.
+     *
+     * @param src   downscaled OpenCV Mat
+     * @param scale scale factor between src and the original image
+     * @return array of DkPolyRect objects (in original image coordinates)
+     */
+    public static DkPolyRect[] getPageSegmentation(Mat src, float scale) {
+
+        DkPolyRect[] rects = nativeGetPageSegmentation(src.getNativeObjAddr(), mUseLab, mOldRect,
+                scale, mSegmentationMode);
+
+//        The hint is kept in the coordinates of the native input:
         if (rects.length > 0)
-            mOldRect = rects[0];
+            mOldRect = copyRect(rects[0]);
         else
             mOldRect = new DkPolyRect();
 
+        if (scale != 1.0f) {
+            for (DkPolyRect rect : rects)
+                rect.scale(1.0f / scale);
+        }
 
         return rects;
     }
 
+    /**
+     * The same as getPageSegmentation(Mat, float), but the results are written into a buffer owned
+     * by the caller.
+     *
+     * @param src   downscaled OpenCV Mat
+     * @param scale scale factor between src and the original image
+     * @param rects buffer that receives the results (in original image coordinates)
+     */
+    public static void getPageSegmentation(Mat src, float scale, PolyRectBuffer rects) {
+
+        int count;
+//        Repeated with the enlarged buffer if not all rects fit:
+        do {
+            count = nativeGetPageSegmentationBuffer(src.getNativeObjAddr(), mUseLab, mOldRect,
+                    scale, mSegmentationMode, rects.getBuffer());
+        } while (!rects.setCount(count));
+
+//        The hint is kept in the coordinates of the native input:
+        mOldRect = rects.size() > 0 ? rects.getRect(0) : new DkPolyRect();
+
+        if (scale != 1.0f)
+            rects.scale(1.0f / scale);
+
+    }
+
+    /**
+     * Returns the page in a frame of a sequence (i.e. the camera preview). If a page has been found
+     * in the last frame, it is tracked with a cheap local search around its old position. The full
+     * page segmentation is just done if the tracking fails or after TRACKING_REFRESH_INTERVAL
+     * tracked frames.
+     *
+     * @param src   downscaled OpenCV Mat
+     * @param scale scale factor between src and the original image
+     * @return array of DkPolyRect objects (in original image coordinates)
+     */
+    public static DkPolyRect[] trackPageSegmentation(Mat src, float scale) {
+
+        if (mOldRect.channel() != -1 && mTrackedFrames < TRACKING_REFRESH_INTERVAL) {
+
+            DkPolyRect[] rects = nativeTrackPageSegmentation(src.getNativeObjAddr(), mOldRect);
+
+            if (rects.length > 0) {
+                mTrackedFrames++;
+                mOldRect = copyRect(rects[0]);
+                if (scale != 1.0f)
+                    rects[0].scale(1.0f / scale);
+
+                return rects;
+            }
+
+        }
+
+//        Tracking failed or refresh:
+        mTrackedFrames = 0;
+
+        return getPageSegmentation(src, scale);
+
+    }
+
+    /**
+     * The same as trackPageSegmentation(Mat, float), but the results are written into a buffer
+     * owned by the caller.
+     *
+     * @param src   downscaled OpenCV Mat
+     * @param scale scale factor between src and the original image
+     * @param rects buffer that receives the results (in original image coordinates)
+     */
+    public static void trackPageSegmentation(Mat src, float scale, PolyRectBuffer rects) {
+
+        if (mOldRect.channel() != -1 && mTrackedFrames < TRACKING_REFRESH_INTERVAL) {
+
+            int count;
+            do {
+                count = nativeTrackPageSegmentationBuffer(src.getNativeObjAddr(), mOldRect,
+                        rects.getBuffer());
+            } while (!rects.setCount(count));
+
+            if (rects.size() > 0) {
+                mTrackedFrames++;
+                mOldRect = rects.getRect(0);
+                if (scale != 1.0f)
+                    rects.scale(1.0f / scale);
+
+                return;
+            }
+
+        }
+
+//        Tracking failed or refresh:
+        mTrackedFrames = 0;
+
+        getPageSegmentation(src, scale, rects);
+
+    }
+
+    /**
+     * Forgets the page found in the last frame, so that the next call of trackPageSegmentation
+     * does a full page segmentation.
+     */
+    public static void resetPageTracking() {
+
+        mOldRect = new DkPolyRect();
+        mTrackedFrames = 0;
+
+    }
+
+    /**
+     * Analyzes a frame of a sequence (i.e. the camera preview) in a single native call. The
+     * analyses share the color conversions and the focus is measured within the page found in the
+     * same frame. The page is tracked as in trackPageSegmentation(Mat, float).
+     *
+     * @param src       downscaled RGB OpenCV Mat
+     * @param gray      gray Mat in the resolution of the original image (e.g. the luma of the
+     *                  frame) used for the focus and illumination, null to derive it from src
+     * @param scale     scale factor between src and the original image
+     * @param analyses  combination of the ANALYSIS_* flags
+     * @param focusPage region for the focus measurement (in original image coordinates) if no page
+     *                  is found or ANALYSIS_PAGE is not set, can be null
+     * @param result    receives the results (in original image coordinates)
+     */
+    public static void analyzeFrame(Mat src, Mat gray, float scale, int analyses,
+                                    DkPolyRect focusPage, FrameAnalysis result) {
+
+        boolean track = mOldRect.channel() != -1 && mTrackedFrames < TRACKING_REFRESH_INTERVAL;
+
+//        The focus region is expected in the coordinates of the gray image:
+        if (focusPage != null && gray == null && scale != 1.0f) {
+            focusPage = copyRect(focusPage);
+            focusPage.scale(scale);
+        }
+
+        analyze(src, gray, scale, analyses, mOldRect, track, focusPage, result);
+
+        if ((analyses & ANALYSIS_PAGE) == 0)
+            return;
+
+//        The hint is kept in the coordinates of the native input, so it is taken before the scaling:
+        PolyRectBuffer rects = result.getRects();
+        mOldRect = rects.size() > 0 ? rects.getRect(0) : new DkPolyRect();
+        if (result.isTracked())
+            mTrackedFrames++;
+        else
+            mTrackedFrames = 0;
+
+        scaleResult(result, gray, scale);
+
+    }
+
+    /**
+     * Analyzes a single image (e.g. a captured picture) in a single native call. Unlike
+     * analyzeFrame no page is tracked and the state of the preview is not changed.
+     *
+     * @param src      RGB OpenCV Mat
+     * @param scale    scale factor between src and the original image
+     * @param analyses combination of the ANALYSIS_* flags
+     * @param result   receives the results (in original image coordinates)
+     */
+    public static void analyzeImage(Mat src, float scale, int analyses, FrameAnalysis result) {
+
+        analyze(src, null, scale, analyses, null, false, null, result);
+        scaleResult(result, null, scale);
+
+    }
+
+    /**
+     * Analyzes a single image like analyzeImage(Mat, float, int, FrameAnalysis), but the page is
+     * first searched around seedRect (as a page is tracked in the preview). Only if it is not
+     * found there, the whole image is searched.
+     *
+     * @param seedRect page that is expected in the image (in the coordinates of src)
+     */
+    public static void analyzeImage(Mat src, float scale, int analyses, DkPolyRect seedRect,
+                                    FrameAnalysis result) {
+
+        analyze(src, null, scale, analyses, seedRect, seedRect.channel() != -1, null, result);
+        scaleResult(result, null, scale);
+
+    }
+
+    private static void analyze(Mat src, Mat gray, float scale, int analyses, DkPolyRect oldRect,
+                                boolean track, DkPolyRect focusPage, FrameAnalysis result) {
+
+        long grayAddr = gray != null ? gray.getNativeObjAddr() : 0;
+        int r;
+//        Repeated with the enlarged buffers if not all rects or patches fit, so that the result is
+//        never partial. The buffers just grow, so this happens at most once for a frame size:
+        do {
+            r = nativeAnalyzeFrame(src.getNativeObjAddr(), grayAddr, analyses, mUseLab, oldRect,
+                    track, scale, mSegmentationMode, focusPage, result.getRects().getBuffer(),
+                    result.getPatches().getBuffer(), result.getInfoBuffer());
+        } while (!result.setResult(analyses, r));
+
+    }
+
+    private static void scaleResult(FrameAnalysis result, Mat gray, float scale) {
+
+        if (scale == 1.0f)
+            return;
+
+        result.getRects().scale(1.0f / scale);
+//        Otherwise the patches are already in the resolution of the original image:
+        if (gray == null)
+            result.getPatches().scale(1.0f / scale);
+
+    }
+
+    private static DkPolyRect copyRect(DkPolyRect r) {
+
+        return new DkPolyRect(r.getX1(), r.getY1(), r.getX2(), r.getY2(), r.getX3(), r.getY3(),
+                r.getX4(), r.getY4(), r.channel(), r.threshold());
+
+    }
+
     public static float resize(Mat mat) {
 
         //        resize the image:
@@ -99,21 +403,103 @@ public class NativeWrapper {
     /**
      * Native method for focus measurement.
      *
-     * @param src input image
+     * @param src  input image
+     * @param page just the patches within the bounding box of the page are computed, can be null
      * @return array of Patch objects
      */
     @SuppressWarnings("JniMissingFunction")
-    private static native Patch[] nativeGetFocusMeasures(long src);
+    private static native Patch[] nativeGetFocusMeasures(long src, DkPolyRect page);
 
 
     /**
      * Native method for page segmentation.
      *
-     * @param src input image
+     * @param src      input image
+     * @param useLab   true if all Lab channels should be searched
+     * @param polyRect result of the last call, used as hint
+     * @param srcScale scale factor between the input image and the original image
+     * @param mode     SEGMENTATION_MODE_EXHAUSTIVE or SEGMENTATION_MODE_COARSE_TO_FINE
      * @return array of DKPolyRect objects
      */
     @SuppressWarnings("JniMissingFunction")
-    private static native DkPolyRect[] nativeGetPageSegmentation(long src, boolean useLab, DkPolyRect polyRect);
+    private static native DkPolyRect[] nativeGetPageSegmentation(long src, boolean useLab,
+                                                                 DkPolyRect polyRect, float srcScale,
+                                                                 int mode);
+
+    /**
+     * Native method for page tracking.
+     *
+     * @param src      input image
+     * @param polyRect page found in the last frame
+     * @return array with the tracked DkPolyRect or an empty array if the page is lost
+     */
+    @SuppressWarnings("JniMissingFunction")
+    private static native DkPolyRect[] nativeTrackPageSegmentation(long src, DkPolyRect polyRect);
+
+    /**
+     * Native method for focus measurement, the results are written into a direct buffer.
+     *
+     * @param src    input image
+     * @param page   just the patches within the bounding box of the page are computed, can be null
+     * @param buffer direct buffer in native byte order (see PatchBuffer)
+     * @return number of patches found (also the ones that did not fit) or -1 on error
+     */
+    @SuppressWarnings("JniMissingFunction")
+    private static native int nativeGetFocusMeasuresBuffer(long src, DkPolyRect page,
+                                                           ByteBuffer buffer);
+
+    /**
+     * Native method for page segmentation, the results are written into a direct buffer.
+     *
+     * @param src      input image
+     * @param useLab   true if all Lab channels should be searched
+     * @param polyRect result of the last call, used as hint
+     * @param srcScale scale factor between the input image and the original image
+     * @param mode     SEGMENTATION_MODE_EXHAUSTIVE or SEGMENTATION_MODE_COARSE_TO_FINE
+     * @param buffer   direct buffer in native byte order (see PolyRectBuffer)
+     * @return number of rects found (also the ones that did not fit) or -1 on error
+     */
+    @SuppressWarnings("JniMissingFunction")
+    private static native int nativeGetPageSegmentationBuffer(long src, boolean useLab,
+                                                              DkPolyRect polyRect, float srcScale,
+                                                              int mode, ByteBuffer buffer);
+
+    /**
+     * Native method for page tracking, the result is written into a direct buffer.
+     *
+     * @param src      input image
+     * @param polyRect page found in the last frame
+     * @param buffer   direct buffer in native byte order (see PolyRectBuffer)
+     * @return 1 if the page is tracked, 0 if it is lost
+     */
+    @SuppressWarnings("JniMissingFunction")
+    private static native int nativeTrackPageSegmentationBuffer(long src, DkPolyRect polyRect,
+                                                                ByteBuffer buffer);
+
+    /**
+     * Native method for the page segmentation (or tracking), focus measurement and illumination
+     * in one call, the results are written into direct buffers.
+     *
+     * @param src         input image
+     * @param gray        gray input image for the focus and illumination, 0 to derive it from src
+     * @param analyses    combination of the ANALYSIS_* flags
+     * @param useLab      true if all Lab channels should be searched
+     * @param polyRect    page of the last frame, used as hint, can be null
+     * @param track       true if the page should be tracked from polyRect
+     * @param srcScale    scale factor between the input image and the original image
+     * @param mode        SEGMENTATION_MODE_EXHAUSTIVE or SEGMENTATION_MODE_COARSE_TO_FINE
+     * @param focusRect   focus region in gray coordinates if no page is found, can be null
+     * @param rectBuffer  direct buffer in native byte order (see PolyRectBuffer)
+     * @param patchBuffer direct buffer in native byte order (see PatchBuffer)
+     * @param infoBuffer  direct buffer in native byte order (see FrameAnalysis)
+     * @return 0 or -1 on error
+     */
+    @SuppressWarnings("JniMissingFunction")
+    private static native int nativeAnalyzeFrame(long src, long gray, int analyses,
+                                                 boolean useLab, DkPolyRect polyRect,
+                                                 boolean track, float srcScale, int mode,
+                                                 DkPolyRect focusRect, ByteBuffer rectBuffer,
+                                                 ByteBuffer patchBuffer, ByteBuffer infoBuffer);
 
     /**
      * Native method for illumination computation.
@@ -133,5 +519,13 @@ public class NativeWrapper {
         return mUseLab;
     }
 
+    public static void setSegmentationMode(int mode) {
+        mSegmentationMode = mode;
+    }
+
+    public static int getSegmentationMode() {
+        return mSegmentationMode;
+    }
+
 
 }
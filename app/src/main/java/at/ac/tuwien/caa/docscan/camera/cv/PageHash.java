@@ -0,0 +1,132 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Perceptual (difference) hash of a gray image, used to recognize pages that have already been
+ * photographed. The image is downscaled to (HASH_SIZE + 1) x HASH_SIZE pixels and each bit tells
+ * if a pixel is brighter than its left neighbor. The hash is robust against noise and exposure
+ * changes, but not against rotation, so it has to be computed in the orientation of the camera
+ * sensor (the preview frames and the raw JPEG data without the exif rotation).
+ */
+public class PageHash {
+
+    private static final int HASH_SIZE = 16;
+    // Number of longs of a hash (HASH_SIZE * HASH_SIZE bits):
+    public static final int LENGTH = HASH_SIZE * HASH_SIZE / Long.SIZE;
+    // The JPEG is decoded with a reduced size, its shorter side is at least this large:
+    private static final int DECODE_SIZE = 256;
+
+    private static final Size HASH_MAT_SIZE = new Size(HASH_SIZE + 1, HASH_SIZE);
+
+    /**
+     * @param gray gray image (e.g. the gray image of the preview frame)
+     * @return hash with LENGTH longs
+     */
+    public static long[] compute(Mat gray) {
+
+        Mat small = new Mat();
+        Imgproc.resize(gray, small, HASH_MAT_SIZE, 0, 0, Imgproc.INTER_AREA);
+
+        byte[] pixels = new byte[(HASH_SIZE + 1) * HASH_SIZE];
+        small.get(0, 0, pixels);
+        small.release();
+
+        long[] hash = new long[LENGTH];
+        int bit = 0;
+        for (int y = 0; y < HASH_SIZE; y++) {
+            int row = y * (HASH_SIZE + 1);
+            for (int x = 0; x < HASH_SIZE; x++) {
+                if ((pixels[row + x + 1] & 0xFF) > (pixels[row + x] & 0xFF))
+                    hash[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+                bit++;
+            }
+        }
+
+        return hash;
+
+    }
+
+    /**
+     * Computes the hash of a JPEG image, the exif orientation is ignored.
+     *
+     * @param jpeg encoded image
+     * @return hash or null if the image cannot be decoded
+     */
+    public static long[] compute(byte[] jpeg) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+
+        return compute(BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length,
+                getDecodeOptions(options)));
+
+    }
+
+    /**
+     * Computes the hash of an image file, the exif orientation is ignored.
+     *
+     * @param path path of the image
+     * @return hash or null if the image cannot be decoded
+     */
+    public static long[] compute(String path) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        return compute(BitmapFactory.decodeFile(path, getDecodeOptions(options)));
+
+    }
+
+    private static BitmapFactory.Options getDecodeOptions(BitmapFactory.Options bounds) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageDecoder.getSampleSize(bounds.outWidth, bounds.outHeight,
+                DECODE_SIZE);
+
+        return options;
+
+    }
+
+    private static long[] compute(Bitmap bitmap) {
+
+        if (bitmap == null)
+            return null;
+
+        Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        bitmap.recycle();
+
+        Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+
+        long[] hash = compute(gray);
+        gray.release();
+
+        return hash;
+
+    }
+
+    /**
+     * @return number of different bits
+     */
+    public static int distance(long[] hash1, long[] hash2) {
+
+        int distance = 0;
+        for (int i = 0; i < LENGTH; i++)
+            distance += Long.bitCount(hash1[i] ^ hash2[i]);
+
+        return distance;
+
+    }
+
+}
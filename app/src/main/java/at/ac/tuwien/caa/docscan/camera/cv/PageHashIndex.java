@@ -0,0 +1,127 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Holds the PageHash of each page of the active document, so that the preview can recognize a page
+ * that has already been photographed. The hashes are split into BAND_COUNT bands and each band is
+ * looked up in a hash table: two hashes that differ in at most MAX_DISTANCE bits share at least one
+ * band (since MAX_DISTANCE < BAND_COUNT), so a query just compares the hashes of the pages found in
+ * the tables and does not depend on the number of pages. The class is thread safe.
+ */
+public class PageHashIndex {
+
+    // Maximal number of different bits of two hashes of the same page:
+    static final int MAX_DISTANCE = 24;
+    private static final int BAND_BITS = 8;
+    private static final int BANDS_PER_LONG = Long.SIZE / BAND_BITS;
+    private static final int BAND_COUNT = PageHash.LENGTH * BANDS_PER_LONG;
+    private static final long BAND_MASK = (1L << BAND_BITS) - 1;
+
+    private final Map<UUID, long[]> mHashes = new HashMap<>();
+    // The key contains the band index and the band value:
+    private final Map<Integer, Set<UUID>> mBands = new HashMap<>();
+
+    /**
+     * Adds the hash of a page, an existing hash of the page is replaced.
+     */
+    public synchronized void put(UUID pageId, long[] hash) {
+
+        remove(pageId);
+
+        mHashes.put(pageId, hash);
+        for (int band = 0; band < BAND_COUNT; band++) {
+            Set<UUID> ids = mBands.get(getBandKey(hash, band));
+            if (ids == null) {
+                ids = new HashSet<>();
+                mBands.put(getBandKey(hash, band), ids);
+            }
+            ids.add(pageId);
+        }
+
+    }
+
+    public synchronized void remove(UUID pageId) {
+
+        long[] hash = mHashes.remove(pageId);
+        if (hash == null)
+            return;
+
+        for (int band = 0; band < BAND_COUNT; band++) {
+            int key = getBandKey(hash, band);
+            Set<UUID> ids = mBands.get(key);
+            if (ids != null) {
+                ids.remove(pageId);
+                if (ids.isEmpty())
+                    mBands.remove(key);
+            }
+        }
+
+    }
+
+    /**
+     * Removes all pages that are not contained in pageIds (e.g. pages that have been deleted).
+     */
+    public synchronized void retain(Collection<UUID> pageIds) {
+
+        for (UUID pageId : new ArrayList<>(mHashes.keySet())) {
+            if (!pageIds.contains(pageId))
+                remove(pageId);
+        }
+
+    }
+
+    public synchronized boolean contains(UUID pageId) {
+
+        return mHashes.containsKey(pageId);
+
+    }
+
+    public synchronized void clear() {
+
+        mHashes.clear();
+        mBands.clear();
+
+    }
+
+    /**
+     * @return the id of the page that is most similar to the hash or null if no page is similar
+     */
+    public synchronized UUID findMatch(long[] hash) {
+
+        UUID match = null;
+        int minDistance = MAX_DISTANCE + 1;
+
+        for (int band = 0; band < BAND_COUNT; band++) {
+            Set<UUID> ids = mBands.get(getBandKey(hash, band));
+            if (ids == null)
+                continue;
+
+            for (UUID pageId : ids) {
+                int distance = PageHash.distance(hash, mHashes.get(pageId));
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    match = pageId;
+                }
+            }
+        }
+
+        return match;
+
+    }
+
+    private static int getBandKey(long[] hash, int band) {
+
+        long value = (hash[band / BANDS_PER_LONG] >>> ((band % BANDS_PER_LONG) * BAND_BITS)) & BAND_MASK;
+
+        return (band << BAND_BITS) | (int) value;
+
+    }
+
+}
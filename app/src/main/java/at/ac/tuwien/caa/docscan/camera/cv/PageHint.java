@@ -0,0 +1,64 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import android.graphics.PointF;
+
+import java.util.ArrayList;
+
+/**
+ * The page found in the camera preview at the time a picture is taken. It is used as a hint for
+ * the page detection on the picture (see PageDetector.findRectAndFocus), which then just refines
+ * the page instead of searching the whole image.
+ * <p>
+ * The points are normalized by the size of the preview frame and are given in the orientation of
+ * the camera sensor, which is the orientation of the JPEG data before the exif rotation is applied.
+ */
+public class PageHint {
+
+    private final ArrayList<PointF> mPoints;
+    private final float mFrameRatio;
+    private final int mChannel;
+    private final boolean mIsStable;
+
+    /**
+     * @param points     normalized corners of the page in the preview frame
+     * @param frameRatio width / height of the preview frame
+     * @param channel    color channel in which the page has been found (see DkPolyRect.channel)
+     * @param isStable   true if the page has not moved in the last preview frames
+     */
+    public PageHint(ArrayList<PointF> points, float frameRatio, int channel, boolean isStable) {
+
+        mPoints = points;
+        mFrameRatio = frameRatio;
+        mChannel = channel;
+        mIsStable = isStable;
+
+    }
+
+    public ArrayList<PointF> getPoints() {
+
+        return mPoints;
+
+    }
+
+    public float getFrameRatio() {
+
+        return mFrameRatio;
+
+    }
+
+    public int getChannel() {
+
+        return mChannel;
+
+    }
+
+    /**
+     * @return true if the page can be taken without a further search
+     */
+    public boolean isStable() {
+
+        return mIsStable;
+
+    }
+
+}
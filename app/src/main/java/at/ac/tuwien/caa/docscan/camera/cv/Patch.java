@@ -94,6 +94,22 @@ public class Patch implements Parcelable {
 
     }
 
+    /**
+     * Overwrites the values of the patch, used to reuse the object for the next frame.
+     */
+    void set(float pX, float pY, int width, int height, double fM, boolean isSharp,
+             boolean isForeGround) {
+
+        mPX = pX;
+        mPY = pY;
+        mWidth = width;
+        mHeight = height;
+        mFm = fM;
+        mIsSharp = isSharp;
+        mIsForeGround = isForeGround;
+
+    }
+
     protected Patch(Parcel in) {
         mPX = in.readFloat();
         mPY = in.readFloat();
@@ -0,0 +1,180 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * View on focus measurement results that are written by the native code into a direct buffer.
+ * The buffer is owned by the caller and can be reused for each frame, so no Patch objects are
+ * created. A patch consists of RECORD_SIZE floats: center x, center y, width, height, focus value,
+ * is sharp, is foreground (see cvt::cPatchesToBuffer in DocScanInterface.cpp).
+ */
+public class PatchBuffer {
+
+    static final int RECORD_SIZE = 7;
+    private static final int FLOAT_BYTES = 4;
+    // Enough for the patch grid of a preview frame:
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private ByteBuffer mBuffer;
+    private FloatBuffer mFloats;
+    private int mSize = 0;
+
+    public PatchBuffer() {
+
+        this(DEFAULT_CAPACITY);
+
+    }
+
+    /**
+     * @param capacity number of patches that fit into the buffer, the buffer grows if necessary
+     */
+    public PatchBuffer(int capacity) {
+
+        allocate(capacity);
+
+    }
+
+    /**
+     * @return number of patches in the buffer
+     */
+    public int size() {
+
+        return mSize;
+
+    }
+
+    public float getCenterX(int idx) {
+
+        return mFloats.get(idx * RECORD_SIZE);
+
+    }
+
+    public float getCenterY(int idx) {
+
+        return mFloats.get(idx * RECORD_SIZE + 1);
+
+    }
+
+    public int getWidth(int idx) {
+
+        return (int) mFloats.get(idx * RECORD_SIZE + 2);
+
+    }
+
+    public int getHeight(int idx) {
+
+        return (int) mFloats.get(idx * RECORD_SIZE + 3);
+
+    }
+
+    public double getFM(int idx) {
+
+        return mFloats.get(idx * RECORD_SIZE + 4);
+
+    }
+
+    public boolean isSharp(int idx) {
+
+        return mFloats.get(idx * RECORD_SIZE + 5) != 0;
+
+    }
+
+    public boolean isForeground(int idx) {
+
+        return mFloats.get(idx * RECORD_SIZE + 6) != 0;
+
+    }
+
+    /**
+     * Creates a Patch object, just for callers that need the object based API.
+     */
+    public Patch getPatch(int idx) {
+
+        return new Patch(getCenterX(idx), getCenterY(idx), getWidth(idx), getHeight(idx),
+                getFM(idx), isSharp(idx), isForeground(idx));
+
+    }
+
+    /**
+     * Copies a patch into an existing Patch, so that callers that keep the results can reuse
+     * their objects for each frame.
+     */
+    public void copyTo(int idx, Patch patch) {
+
+        patch.set(getCenterX(idx), getCenterY(idx), getWidth(idx), getHeight(idx), getFM(idx),
+                isSharp(idx), isForeground(idx));
+
+    }
+
+    /**
+     * Creates Patch objects for all patches in the buffer.
+     */
+    public Patch[] toArray() {
+
+        Patch[] patches = new Patch[mSize];
+        for (int idx = 0; idx < mSize; idx++)
+            patches[idx] = getPatch(idx);
+
+        return patches;
+
+    }
+
+    /**
+     * Scales the centers and the sizes of all patches (i.e. maps them to another image size).
+     */
+    public void scale(float scale) {
+
+        for (int idx = 0; idx < mSize; idx++) {
+            for (int i = 0; i < 4; i++) {
+                int pos = idx * RECORD_SIZE + i;
+                mFloats.put(pos, mFloats.get(pos) * scale);
+            }
+        }
+
+    }
+
+    public void clear() {
+
+        mSize = 0;
+
+    }
+
+    ByteBuffer getBuffer() {
+
+        return mBuffer;
+
+    }
+
+    /**
+     * Sets the number of patches written by the native code. If there are more patches than the
+     * buffer can hold, the native code did not write all of them: the buffer is enlarged, it is
+     * left empty and the native call has to be repeated.
+     *
+     * @param count number of patches found, -1 if an error occurred
+     * @return false if the buffer was too small and the native call has to be repeated
+     */
+    boolean setCount(int count) {
+
+        int capacity = mBuffer.capacity() / (RECORD_SIZE * FLOAT_BYTES);
+        if (count > capacity) {
+            allocate(count);
+            mSize = 0;
+            return false;
+        }
+
+        mSize = Math.max(0, count);
+        return true;
+
+    }
+
+    private void allocate(int capacity) {
+
+        mBuffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        mFloats = mBuffer.asFloatBuffer();
+
+    }
+
+}
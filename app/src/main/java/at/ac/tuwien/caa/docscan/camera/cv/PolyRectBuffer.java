@@ -0,0 +1,164 @@
+package at.ac.tuwien.caa.docscan.camera.cv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * View on page segmentation results that are written by the native code into a direct buffer.
+ * The buffer is owned by the caller and can be reused for each frame, so no objects are created
+ * per result. A rect consists of RECORD_SIZE floats: x1, y1, x2, y2, x3, y3, x4, y4, channel,
+ * threshold (see cvt::cPolyRectsToBuffer in DocScanInterface.cpp).
+ */
+public class PolyRectBuffer {
+
+    static final int RECORD_SIZE = 10;
+    private static final int FLOAT_BYTES = 4;
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private ByteBuffer mBuffer;
+    private FloatBuffer mFloats;
+    private int mSize = 0;
+
+    public PolyRectBuffer() {
+
+        this(DEFAULT_CAPACITY);
+
+    }
+
+    /**
+     * @param capacity number of rects that fit into the buffer, the buffer grows if necessary
+     */
+    public PolyRectBuffer(int capacity) {
+
+        allocate(capacity);
+
+    }
+
+    /**
+     * @return number of rects in the buffer
+     */
+    public int size() {
+
+        return mSize;
+
+    }
+
+    public float getX(int idx, int corner) {
+
+        return mFloats.get(idx * RECORD_SIZE + 2 * corner);
+
+    }
+
+    public float getY(int idx, int corner) {
+
+        return mFloats.get(idx * RECORD_SIZE + 2 * corner + 1);
+
+    }
+
+    public int getChannel(int idx) {
+
+        return (int) mFloats.get(idx * RECORD_SIZE + 8);
+
+    }
+
+    public int getThreshold(int idx) {
+
+        return (int) mFloats.get(idx * RECORD_SIZE + 9);
+
+    }
+
+    /**
+     * Scales the coordinates of all rects (i.e. maps them to another image size).
+     */
+    public void scale(float scale) {
+
+        for (int idx = 0; idx < mSize; idx++) {
+            for (int i = 0; i < 8; i++) {
+                int pos = idx * RECORD_SIZE + i;
+                mFloats.put(pos, mFloats.get(pos) * scale);
+            }
+        }
+
+    }
+
+    /**
+     * Creates a DkPolyRect object, just for callers that need the object based API.
+     */
+    public DkPolyRect getRect(int idx) {
+
+        return new DkPolyRect(getX(idx, 0), getY(idx, 0), getX(idx, 1), getY(idx, 1),
+                getX(idx, 2), getY(idx, 2), getX(idx, 3), getY(idx, 3), getChannel(idx),
+                getThreshold(idx));
+
+    }
+
+    /**
+     * Copies a rect into an existing DkPolyRect, so that callers that keep the results can reuse
+     * their objects for each frame.
+     */
+    public void copyTo(int idx, DkPolyRect rect) {
+
+        for (int corner = 0; corner < 4; corner++)
+            rect.mPoints.get(corner).set(getX(idx, corner), getY(idx, corner));
+        rect.mChl = getChannel(idx);
+        rect.mThr = getThreshold(idx);
+
+    }
+
+    /**
+     * Creates DkPolyRect objects for all rects in the buffer.
+     */
+    public DkPolyRect[] toArray() {
+
+        DkPolyRect[] rects = new DkPolyRect[mSize];
+        for (int idx = 0; idx < mSize; idx++)
+            rects[idx] = getRect(idx);
+
+        return rects;
+
+    }
+
+    public void clear() {
+
+        mSize = 0;
+
+    }
+
+    ByteBuffer getBuffer() {
+
+        return mBuffer;
+
+    }
+
+    /**
+     * Sets the number of rects written by the native code. If there are more rects than the
+     * buffer can hold, the native code did not write all of them: the buffer is enlarged, it is
+     * left empty and the native call has to be repeated.
+     *
+     * @param count number of rects found, -1 if an error occurred
+     * @return false if the buffer was too small and the native call has to be repeated
+     */
+    boolean setCount(int count) {
+
+        int capacity = mBuffer.capacity() / (RECORD_SIZE * FLOAT_BYTES);
+        if (count > capacity) {
+            allocate(count);
+            mSize = 0;
+            return false;
+        }
+
+        mSize = Math.max(0, count);
+        return true;
+
+    }
+
+    private void allocate(int capacity) {
+
+        mBuffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        mFloats = mBuffer.asFloatBuffer();
+
+    }
+
+}
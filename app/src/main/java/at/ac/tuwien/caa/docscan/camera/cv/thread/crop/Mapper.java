@@ -1,5 +1,6 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.crop;
 
+import android.graphics.Matrix;
 import android.graphics.PointF;
 
 import androidx.annotation.NonNull;
@@ -25,15 +26,27 @@ public class Mapper {
     private static final int LEFT = 3;
 
     /**
-     * Applies the cropping to the provided file.
+     * Applies the cropping to the provided file. The image is warped in strips if possible (see
+     * StripWarper), otherwise the whole image is decoded.
      * Post-Condition: Existing exif data is lost after a successfully operation.
      */
     public static File applyCropping(File file, ArrayList<PointF> points) {
+        return applyCropping(file, points, file);
+    }
+
+    /**
+     * Applies the cropping to the provided file and writes the result to target, the provided file
+     * is not changed.
+     * Post-Condition: Existing exif data is lost in target after a successfully operation.
+     */
+    public static File applyCropping(File file, ArrayList<PointF> points, File target) {
         Mat transformedMat = null;
         try {
-            transformedMat = cropAndTransform(file, points);
+            transformedMat = cropAndTransformInStrips(file, copyPoints(points));
+            if (transformedMat == null)
+                transformedMat = cropAndTransform(file, points);
             if (transformedMat != null) {
-                File newFile = replaceImage(file, transformedMat);
+                File newFile = replaceImage(target, transformedMat);
                 transformedMat.release();
                 return newFile;
             }
@@ -47,6 +60,44 @@ public class Mapper {
         return null;
     }
 
+    /**
+     * Determines the perspective transform of applyCropping for an image with the size width x
+     * height, without decoding the image. The transform can be applied to a (downscaled) bitmap,
+     * e.g. to show a virtually cropped page in a preview.
+     *
+     * @param outputSize receives the size of the cropped image
+     * @return the transform or null if the points cannot be mapped
+     */
+    public static Matrix getCroppingMatrix(ArrayList<PointF> points, int width, int height,
+                                           android.graphics.Point outputSize) {
+
+        ArrayList<PointF> srcPoints = copyPoints(points);
+        scalePoints(srcPoints, width, height);
+        srcPoints = PageDetector.getParallelPoints(srcPoints, width, height);
+        sortPoints(srcPoints);
+        Size size = getRectSize(srcPoints);
+        ArrayList<PointF> destPoints = getDestinationPoints((float) size.width,
+                (float) size.height);
+
+        float[] src = new float[8];
+        float[] dst = new float[8];
+        for (int i = 0; i < 4; i++) {
+            src[2 * i] = srcPoints.get(i).x;
+            src[2 * i + 1] = srcPoints.get(i).y;
+            dst[2 * i] = destPoints.get(i).x;
+            dst[2 * i + 1] = destPoints.get(i).y;
+        }
+
+        Matrix matrix = new Matrix();
+        if (!matrix.setPolyToPoly(src, 0, dst, 0, 4))
+            return null;
+
+        outputSize.set((int) Math.round(size.width), (int) Math.round(size.height));
+
+        return matrix;
+
+    }
+
     private static File replaceImage(File file, Mat mat) {
         try {
             boolean fileSaved = Imgcodecs.imwrite(file.getAbsolutePath(), mat);
@@ -61,6 +112,49 @@ public class Mapper {
         return null;
     }
 
+    /**
+     * The same as cropAndTransform, but just the source rows needed for a strip of the output are
+     * decoded at once.
+     *
+     * @return the transformed image or null if the image cannot be decoded in strips
+     */
+    private static Mat cropAndTransformInStrips(File file, ArrayList<PointF> srcPoints) {
+
+        if (!file.exists())
+            return null;
+
+        StripWarper warper = StripWarper.create(file);
+        if (warper == null)
+            return null;
+
+        Mat perspectiveTransform = null;
+
+        try {
+            scalePoints(srcPoints, warper.getWidth(), warper.getHeight());
+            srcPoints = PageDetector.getParallelPoints(srcPoints, file.getAbsolutePath());
+            sortPoints(srcPoints);
+            Size size = getRectSize(srcPoints);
+            int width = (int) Math.round(size.width);
+            int height = (int) Math.round(size.height);
+
+            ArrayList<PointF> destPoints = getDestinationPoints((float) size.width,
+                    (float) size.height);
+            perspectiveTransform = getPerspectiveTransform(srcPoints, destPoints);
+
+            return warper.warp(perspectiveTransform, width, height);
+
+        } catch (Exception e) {
+//            Try it again with the whole image:
+            Timber.e(e, "cropAndTransformInStrips has failed!");
+            return null;
+        } finally {
+            warper.release();
+            if (perspectiveTransform != null)
+                perspectiveTransform.release();
+        }
+
+    }
+
     private static Mat cropAndTransform(File file, ArrayList<PointF> srcPoints) {
 
         if (!file.exists())
@@ -97,17 +191,13 @@ public class Mapper {
 
     private static Mat warpMat(Mat mat, ArrayList<PointF> cropPoints, ArrayList<PointF> destPoints, int width, int height) {
 
-        MatOfPoint2f srcPointsMat = null;
-        MatOfPoint2f dstPointsMat = null;
         Mat perspectiveTransform = null;
 
         try {
 
             Mat result = new Mat(height, width, mat.type());
 
-            srcPointsMat = convertToOpenCVPoints(cropPoints);
-            dstPointsMat = convertToOpenCVPoints(destPoints);
-            perspectiveTransform = Imgproc.getPerspectiveTransform(srcPointsMat, dstPointsMat);
+            perspectiveTransform = getPerspectiveTransform(cropPoints, destPoints);
 
             // TODO: handle case where no transform is found
             Imgproc.warpPerspective(mat,
@@ -120,16 +210,41 @@ public class Mapper {
             return result;
         } finally {
 //            result.release();
+            if (perspectiveTransform != null)
+                perspectiveTransform.release();
+        }
+
+    }
+
+    private static Mat getPerspectiveTransform(ArrayList<PointF> cropPoints,
+                                               ArrayList<PointF> destPoints) {
+
+        MatOfPoint2f srcPointsMat = null;
+        MatOfPoint2f dstPointsMat = null;
+
+        try {
+            srcPointsMat = convertToOpenCVPoints(cropPoints);
+            dstPointsMat = convertToOpenCVPoints(destPoints);
+            return Imgproc.getPerspectiveTransform(srcPointsMat, dstPointsMat);
+        } finally {
             if (srcPointsMat != null)
                 srcPointsMat.release();
             if (dstPointsMat != null)
                 dstPointsMat.release();
-            if (perspectiveTransform != null)
-                perspectiveTransform.release();
         }
 
     }
 
+    private static ArrayList<PointF> copyPoints(ArrayList<PointF> points) {
+
+        ArrayList<PointF> copy = new ArrayList<>();
+        for (PointF point : points)
+            copy.add(new PointF(point.x, point.y));
+
+        return copy;
+
+    }
+
     private static MatOfPoint2f convertToOpenCVPoints(ArrayList<PointF> points) {
 
         ArrayList<Point> openCVPoints = new ArrayList<>();
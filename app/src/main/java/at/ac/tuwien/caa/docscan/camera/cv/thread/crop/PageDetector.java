@@ -4,12 +4,11 @@ import android.graphics.BitmapFactory;
 import android.graphics.PointF;
 import android.os.Looper;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.exifinterface.media.ExifInterface;
 
 import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -17,8 +16,12 @@ import java.util.List;
 
 import at.ac.tuwien.caa.docscan.camera.cv.DkPolyRect;
 import at.ac.tuwien.caa.docscan.camera.cv.DkVector;
+import at.ac.tuwien.caa.docscan.camera.cv.FrameAnalysis;
+import at.ac.tuwien.caa.docscan.camera.cv.ImageDecoder;
 import at.ac.tuwien.caa.docscan.camera.cv.NativeWrapper;
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint;
 import at.ac.tuwien.caa.docscan.camera.cv.Patch;
+import at.ac.tuwien.caa.docscan.camera.cv.PolyRectBuffer;
 import timber.log.Timber;
 
 public class PageDetector {
@@ -44,33 +47,34 @@ public class PageDetector {
             Timber.d("findRect: you should not perform this on the main thread!");
         }
 
-        Mat inputMat = Imgcodecs.imread(fileName);
-
-        if (inputMat.empty())
+        Mat mg = decodeForDetection(fileName);
+        if (mg == null)
             return null;
 
-        Mat mg = new Mat();
-        Imgproc.cvtColor(inputMat, mg, Imgproc.COLOR_RGBA2RGB);
-
-//        Resize the image:
-        NativeWrapper.resize(mg);
-
-        DkPolyRect[] polyRects = NativeWrapper.getPageSegmentation(mg);
+        PolyRectBuffer polyRects = detectPages(mg);
 
         ArrayList<PointF> result = null;
-        if (polyRects.length > 0 && polyRects[0] != null) {
-            result = normPoints(polyRects[0], mg.width(), mg.height());
+        if (polyRects.size() > 0) {
+            result = normPoints(polyRects.getRect(0), mg.width(), mg.height());
         }
 
-        inputMat.release();
         mg.release();
 
         return result;
 
     }
 
+    /**
+     * Performs the page detection on a picture.
+     *
+     * @param fileName path of the picture
+     * @param hint     the page of the camera preview at the time the picture was taken, can be
+     *                 null. A stable page is taken without decoding the picture, otherwise the page
+     *                 is refined around it.
+     * @return the normed page or null if no page is found
+     */
     @WorkerThread
-    public static PageFocusResult findRectAndFocus(String fileName) {
+    public static PageFocusResult findRectAndFocus(String fileName, @Nullable PageHint hint) {
 
         Timber.d("findRectAndFocus");
 
@@ -78,24 +82,67 @@ public class PageDetector {
             Timber.d("findRect: you should not perform this on the main thread!");
         }
 
-        Mat inputMat = Imgcodecs.imread(fileName);
+        ArrayList<PointF> hintPoints = hint != null ? getHintPoints(hint,
+                ImageDecoder.decodeBounds(fileName), ImageDecoder.getOrientation(fileName)) : null;
+        if (hintPoints != null && hint.isStable())
+            return getStableResult(hintPoints);
 
-//TOD: uncomment:
-        if (inputMat.empty())
-            return null;
+        return findRectAndFocus(ImageDecoder.decodeMat(fileName, NativeWrapper.MAX_IMG_SIZE),
+                hintPoints, hint);
 
-        Mat mg = new Mat();
-        Imgproc.cvtColor(inputMat, mg, Imgproc.COLOR_RGBA2RGB);
+    }
+
+    /**
+     * Performs the page detection on a picture that is still in memory (e.g. right after it has
+     * been taken), so it does not have to be read again from the storage.
+     *
+     * @param jpeg encoded picture, including the exif orientation
+     * @param hint see findRectAndFocus(String, PageHint)
+     * @return the normed page or null if no page is found
+     */
+    @WorkerThread
+    public static PageFocusResult findRectAndFocus(byte[] jpeg, @Nullable PageHint hint) {
+
+        Timber.d("findRectAndFocus: in memory");
+
+        ArrayList<PointF> hintPoints = hint != null ? getHintPoints(hint,
+                ImageDecoder.decodeBounds(jpeg), ImageDecoder.getOrientation(jpeg)) : null;
+        if (hintPoints != null && hint.isStable())
+            return getStableResult(hintPoints);
+
+        return findRectAndFocus(ImageDecoder.decodeMat(jpeg, NativeWrapper.MAX_IMG_SIZE),
+                hintPoints, hint);
+
+    }
+
+    private static PageFocusResult getStableResult(ArrayList<PointF> hintPoints) {
+
+        Timber.d("findRectAndFocus: taking the stable page of the preview");
+        return new PageFocusResult(hintPoints, true);
+
+    }
+
+    /**
+     * @param mg         decoded picture, is released by this method
+     * @param hintPoints normed page of the preview (in the orientation of mg), can be null
+     */
+    private static PageFocusResult findRectAndFocus(Mat mg, ArrayList<PointF> hintPoints,
+                                                    PageHint hint) {
+
+        if (mg == null)
+            return null;
 
 //        Resize the image:
         NativeWrapper.resize(mg);
 
-        DkPolyRect[] polyRects = NativeWrapper.getPageSegmentation(mg);
+        PolyRectBuffer polyRects = hintPoints != null ?
+                refinePages(mg, hintPoints, hint.getChannel()) : detectPages(mg);
 
         PageFocusResult result = null;
 
-        if (polyRects != null && polyRects.length > 0 && polyRects[0] != null) {
-            ArrayList<PointF> points = normPoints(polyRects[0], mg.width(), mg.height());
+        if (polyRects.size() > 0) {
+//            Just the first page is used, so no objects are created for the others:
+            ArrayList<PointF> points = normPoints(polyRects.getRect(0), mg.width(), mg.height());
 
 //            Patch[] patches = NativeWrapper.getFocusMeasures(mg);
 //            In case an error happened the result is null and we assume that the image is sharp:
@@ -107,18 +154,135 @@ public class PageDetector {
             result = new PageFocusResult(points, isSharp);
         }
 
-//
-////        Log.d(CLASS_TAG, "issharp: " + isSharp);
-//
-//        if (polyRects.length > 0 && polyRects[0] != null) {
-////            result = normPoints(polyRects[0], mg.width(), mg.height());
-//        }
-
-        inputMat.release();
         mg.release();
 
         return result;
 
+    }
+
+    /**
+     * Decodes the image with a reduced size (see ImageDecoder) and resizes it to the size that is
+     * used for the page detection.
+     *
+     * @return downscaled image or null if the image cannot be decoded
+     */
+    private static Mat decodeForDetection(String fileName) {
+
+        Mat mg = ImageDecoder.decodeMat(fileName, NativeWrapper.MAX_IMG_SIZE);
+        if (mg == null)
+            return null;
+
+//        Resize the image:
+        NativeWrapper.resize(mg);
+
+        return mg;
+
+    }
+
+    /**
+     * Searches the page with the fused native analysis. Unlike NativeWrapper.getPageSegmentation
+     * the page hint of the camera preview is neither used nor changed.
+     *
+     * @param mg downscaled RGB image
+     * @return the pages found in the coordinates of mg
+     */
+    private static PolyRectBuffer detectPages(Mat mg) {
+
+        FrameAnalysis analysis = new FrameAnalysis();
+        NativeWrapper.analyzeImage(mg, 1.0f, NativeWrapper.ANALYSIS_PAGE, analysis);
+
+        return analysis.getRects();
+
+    }
+
+    /**
+     * Searches the page around the page of the preview. If it is not found there, the whole image
+     * is searched.
+     *
+     * @param mg         downscaled RGB image
+     * @param hintPoints normed page of the preview (in the orientation of mg)
+     * @return the pages found in the coordinates of mg
+     */
+    private static PolyRectBuffer refinePages(Mat mg, ArrayList<PointF> hintPoints, int channel) {
+
+        int w = mg.width();
+        int h = mg.height();
+        PointF p1 = hintPoints.get(0), p2 = hintPoints.get(1), p3 = hintPoints.get(2),
+                p4 = hintPoints.get(3);
+
+//        The page is searched in the channel of the preview page (or the first one if it is
+//        unknown). The threshold is not taken over, so the fallback is a full segmentation:
+        DkPolyRect seedRect = new DkPolyRect(p1.x * w, p1.y * h, p2.x * w, p2.y * h, p3.x * w,
+                p3.y * h, p4.x * w, p4.y * h, Math.max(channel, 0), -1);
+
+        FrameAnalysis analysis = new FrameAnalysis();
+        NativeWrapper.analyzeImage(mg, 1.0f, NativeWrapper.ANALYSIS_PAGE, seedRect, analysis);
+        Timber.d("refinePages: page tracked: " + analysis.isTracked());
+
+        return analysis.getRects();
+
+    }
+
+    /**
+     * Maps the page of the preview to the picture. The preview frame is assumed to show the center
+     * of the picture if their aspect ratios differ, as the camera crops the sensor for the preview.
+     *
+     * @param options     the bounds of the picture (as stored, before the exif rotation)
+     * @param orientation exif orientation of the picture
+     * @return the normed points in the orientation of the picture after the exif rotation, or null
+     * if the picture cannot be read or is mirrored
+     */
+    @Nullable
+    private static ArrayList<PointF> getHintPoints(PageHint hint, BitmapFactory.Options options,
+                                                   int orientation) {
+
+        if (hint.getPoints() == null || hint.getPoints().size() != 4)
+            return null;
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int angle;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_UNDEFINED:
+            case ExifInterface.ORIENTATION_NORMAL:
+                angle = 0;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                angle = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                angle = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                angle = 270;
+                break;
+            default:
+                return null;
+        }
+
+        float pictureRatio = (float) options.outWidth / options.outHeight;
+        float frameRatio = hint.getFrameRatio();
+
+        ArrayList<PointF> points = new ArrayList<>();
+        for (PointF hintPoint : hint.getPoints()) {
+
+            PointF point = new PointF(hintPoint.x, hintPoint.y);
+//            The preview is wider than the picture, so it shows a horizontal band of the picture:
+            if (frameRatio > pictureRatio)
+                point.y = .5f + (point.y - .5f) * pictureRatio / frameRatio;
+            else
+                point.x = .5f + (point.x - .5f) * frameRatio / pictureRatio;
+
+            point.x = Math.min(Math.max(point.x, 0), 1);
+            point.y = Math.min(Math.max(point.y, 0), 1);
+
+            rotateNormedPoint(point, angle);
+            points.add(point);
+
+        }
+
+        return points;
 
     }
 
@@ -309,12 +473,28 @@ public class PageDetector {
 
     public static ArrayList<PointF> getParallelPoints(ArrayList<PointF> points, String fileName) {
 
+        return getParallelPoints(points, getDiagonalLength(fileName));
+
+    }
+
+    /**
+     * The same as getParallelPoints(ArrayList, String), but for an image whose size is already
+     * known, e.g. a decoded bitmap.
+     */
+    public static ArrayList<PointF> getParallelPoints(ArrayList<PointF> points, int width,
+                                                     int height) {
+
+        return getParallelPoints(points, (float) Math.sqrt(width * width + height * height));
+
+    }
+
+    private static ArrayList<PointF> getParallelPoints(ArrayList<PointF> points, float diagLength) {
+
 //        Took me some time to figure out that you cannot use simply the vertex centroid. Instead
 //        one should have used the area centroid. However you can simply calculate the parallel
 //        lines of the quadrilateral and intersect them (much easier):
 //        https://stackoverflow.com/a/50873087/9827698
 
-        float diagLength = getDiagonalLength(fileName);
         float offset = diagLength * 0.01f; // add an offset of 1% to the coordinates
 
         ArrayList<PointF> outerPoints = new ArrayList<>();
@@ -0,0 +1,280 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Applies a perspective transform to an image in horizontal strips of the output image. For each
+ * strip just the source region that is mapped into the strip is decoded (with a
+ * BitmapRegionDecoder), so the full resolution image is never held in memory. The memory needed is
+ * the output image plus the source region of a single strip - instead of the decoded source image,
+ * the output image and the temporary buffers of warpPerspective.
+ * <p>
+ * The transform is given in the coordinates of the image as it is shown (and as it is read by
+ * Imgcodecs.imread), i.e. after the EXIF orientation is applied. The rotations are mapped to the
+ * coordinates of the stored pixels, mirrored images are not supported.
+ */
+class StripWarper {
+
+    // Number of output rows that are warped at once:
+    private static final int STRIP_HEIGHT = 256;
+    // INTER_CUBIC needs two neighbors on each side, one more for the rounding:
+    private static final int SRC_PADDING = 3;
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mOrientation;
+    private final int mRawWidth;
+    private final int mRawHeight;
+
+    private StripWarper(BitmapRegionDecoder decoder, int orientation) {
+
+        mDecoder = decoder;
+        mOrientation = orientation;
+        mRawWidth = decoder.getWidth();
+        mRawHeight = decoder.getHeight();
+
+    }
+
+    /**
+     * @return a StripWarper for the image or null if the image cannot be decoded in regions
+     */
+    static StripWarper create(File file) {
+
+        try {
+            int orientation = new ExifInterface(file.getAbsolutePath()).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+
+            if (!isSupported(orientation))
+                return null;
+
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(),
+                    false);
+
+            return decoder != null ? new StripWarper(decoder, orientation) : null;
+
+        } catch (IOException e) {
+            Timber.d(e, "create: cannot decode regions of " + file.getName());
+            return null;
+        }
+
+    }
+
+    private static boolean isSupported(int orientation) {
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_UNDEFINED:
+            case ExifInterface.ORIENTATION_NORMAL:
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return true;
+            default:
+                return false;
+        }
+
+    }
+
+    /**
+     * @return the width of the image after the orientation is applied
+     */
+    int getWidth() {
+
+        return isRotated() ? mRawHeight : mRawWidth;
+
+    }
+
+    /**
+     * @return the height of the image after the orientation is applied
+     */
+    int getHeight() {
+
+        return isRotated() ? mRawWidth : mRawHeight;
+
+    }
+
+    /**
+     * Warps the image. The result has the same meaning as warpPerspective with INTER_CUBIC and a
+     * constant (black) border.
+     *
+     * @param transform perspective transform (3x3, CV_64F) from the oriented image to the output
+     * @param width     width of the output image
+     * @param height    height of the output image
+     * @return BGR image, as returned by Imgcodecs.imread
+     * @throws IOException if a region cannot be decoded
+     */
+    Mat warp(Mat transform, int width, int height) throws IOException {
+
+        Mat result = Mat.zeros(height, width, CvType.CV_8UC3);
+
+        Mat inverse = transform.inv();
+        Mat outputToRaw = new Mat();
+        Mat rgba = new Mat();
+        Mat bgr = new Mat();
+        Mat stripTransform = new Mat();
+        Mat temp = new Mat();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        try {
+//            The mapping from the output to the stored pixels, as warpPerspective needs it with
+//            WARP_INVERSE_MAP:
+            Core.gemm(getOrientationTransform(), inverse, 1, new Mat(), 0, outputToRaw);
+
+            for (int y0 = 0; y0 < height; y0 += STRIP_HEIGHT) {
+
+                int y1 = Math.min(y0 + STRIP_HEIGHT, height);
+
+                Rect region = getSourceRegion(outputToRaw, width, y0, y1);
+//                The strip is outside of the image, it remains black:
+                if (region == null)
+                    continue;
+
+                Bitmap bitmap = mDecoder.decodeRegion(new android.graphics.Rect(region.x,
+                        region.y, region.x + region.width, region.y + region.height), options);
+                if (bitmap == null)
+                    throw new IOException("decodeRegion failed for " + region);
+
+                Utils.bitmapToMat(bitmap, rgba);
+                bitmap.recycle();
+                Imgproc.cvtColor(rgba, bgr, Imgproc.COLOR_RGBA2BGR);
+
+//                Strip coordinates -> output coordinates -> stored pixels -> region coordinates:
+                Core.gemm(outputToRaw, getTranslation(0, y0), 1, new Mat(), 0, temp);
+                Core.gemm(getTranslation(-region.x, -region.y), temp, 1, new Mat(), 0,
+                        stripTransform);
+
+//                The strip is a view on the result, so it is written in place:
+                Mat strip = result.rowRange(y0, y1);
+                Imgproc.warpPerspective(bgr, strip, stripTransform, strip.size(),
+                        Imgproc.INTER_CUBIC | Imgproc.WARP_INVERSE_MAP);
+                strip.release();
+
+            }
+
+            return result;
+
+        } catch (IOException | RuntimeException e) {
+            result.release();
+            throw e;
+        } finally {
+            inverse.release();
+            outputToRaw.release();
+            rgba.release();
+            bgr.release();
+            stripTransform.release();
+            temp.release();
+        }
+
+    }
+
+    void release() {
+
+        mDecoder.recycle();
+
+    }
+
+    private boolean isRotated() {
+
+        return mOrientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+                mOrientation == ExifInterface.ORIENTATION_ROTATE_270;
+
+    }
+
+    /**
+     * @return the bounding box of the stored pixels that are mapped into the output rows y0 to y1,
+     * or null if the rows are outside of the image
+     */
+    private Rect getSourceRegion(Mat outputToRaw, int width, int y0, int y1) {
+
+        double[] m = new double[9];
+        outputToRaw.get(0, 0, m);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+//        A perspective transform maps the strip to a quadrilateral, which is bounded by the
+//        mapped corners:
+        double[][] corners = {{0, y0}, {width - 1, y0}, {0, y1 - 1}, {width - 1, y1 - 1}};
+
+        for (double[] c : corners) {
+
+            double w = m[6] * c[0] + m[7] * c[1] + m[8];
+//            The strip crosses the horizon of the transform, this is not a valid crop:
+            if (w <= 0)
+                return new Rect(0, 0, mRawWidth, mRawHeight);
+
+            double x = (m[0] * c[0] + m[1] * c[1] + m[2]) / w;
+            double y = (m[3] * c[0] + m[4] * c[1] + m[5]) / w;
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+
+        }
+
+        int x0 = Math.max(0, (int) Math.floor(minX) - SRC_PADDING);
+        int ys = Math.max(0, (int) Math.floor(minY) - SRC_PADDING);
+        int x1 = Math.min(mRawWidth, (int) Math.ceil(maxX) + SRC_PADDING + 1);
+        int ye = Math.min(mRawHeight, (int) Math.ceil(maxY) + SRC_PADDING + 1);
+
+        if (x1 <= x0 || ye <= ys)
+            return null;
+
+        return new Rect(x0, ys, x1 - x0, ye - ys);
+
+    }
+
+    /**
+     * @return the transform from the oriented image to the stored pixels
+     */
+    private Mat getOrientationTransform() {
+
+        Mat t = Mat.eye(3, 3, CvType.CV_64F);
+
+        switch (mOrientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+//                xr = yo, yr = h - 1 - xo
+                t.put(0, 0, 0, 1, 0, -1, 0, mRawHeight - 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+//                xr = w - 1 - xo, yr = h - 1 - yo
+                t.put(0, 0, -1, 0, mRawWidth - 1, 0, -1, mRawHeight - 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+//                xr = w - 1 - yo, yr = xo
+                t.put(0, 0, 0, -1, mRawWidth - 1, 1, 0, 0);
+                break;
+        }
+
+        return t;
+
+    }
+
+    private static Mat getTranslation(double tx, double ty) {
+
+        Mat t = Mat.eye(3, 3, CvType.CV_64F);
+        t.put(0, 2, tx);
+        t.put(1, 2, ty);
+
+        return t;
+
+    }
+
+}
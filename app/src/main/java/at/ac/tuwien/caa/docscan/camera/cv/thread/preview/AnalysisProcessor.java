@@ -0,0 +1,49 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
+import at.ac.tuwien.caa.docscan.camera.cv.FrameAnalysis;
+import at.ac.tuwien.caa.docscan.camera.cv.NativeWrapper;
+
+/**
+ * Performs the page segmentation and - if enabled - the focus measurement in a single native call.
+ * The page is searched in the color image of the frame and the focus is measured in the full
+ * resolution luma, just within the page found.
+ */
+public class AnalysisProcessor extends ImageProcessor {
+
+    private final int mAnalyses;
+
+    protected AnalysisProcessor(ImageProcessorCallback imageProcessorCallback, FramePyramid frame,
+                                boolean isFocusMeasured) {
+
+        super(imageProcessorCallback, frame);
+        mAnalyses = NativeWrapper.ANALYSIS_PAGE |
+                (isFocusMeasured ? NativeWrapper.ANALYSIS_FOCUS : 0);
+
+    }
+
+    @Override
+    protected void process() {
+
+        FrameAnalysis analysis = mFrame.getAnalysis();
+        NativeWrapper.analyzeFrame(mFrame.getColor(), mFrame.getLuma(), mFrame.getColorScale(),
+                mAnalyses, null, analysis);
+
+//        The time of the single analyses is measured in the native code:
+        mImageProcessorCallback.handleTaskTime(TaskTimer.TaskType.PAGE_SEGMENTATION,
+                analysis.getPageTime());
+        if (analysis.hasAnalysis(NativeWrapper.ANALYSIS_FOCUS))
+            mImageProcessorCallback.handleTaskTime(TaskTimer.TaskType.FOCUS_MEASURE,
+                    analysis.getFocusTime());
+
+        mImageProcessorCallback.handleState(IPManager.MESSAGE_FRAME_ANALYZED, mFrame);
+
+    }
+
+    @Override
+    protected TaskTimer.TaskType getTaskType() {
+
+        return TaskTimer.TaskType.FRAME_ANALYSIS;
+
+    }
+}
@@ -1,27 +1,35 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.video.BackgroundSubtractorMOG2;
-import org.opencv.video.Video;
 
 import timber.log.Timber;
 
+/**
+ * Detects movements and new pages. All methods expect the small gray image of the FramePyramid.
+ * The comparison of the frames is done by a ChangeModel, which can be selected with setModel.
+ */
 public class ChangeDetector {
 
+    public enum Model {
+        // Frame differencing on a downscaled image, this is the default:
+        DIFFERENCE,
+        // Background subtraction with MOG2:
+        MOG2
+    }
 
     private static final String CLASS_NAME = "ChangeDetector";
 
-    private static final int FRAME_SIZE = 300;
-    private static final double CHANGE_THRESH = 0.1;       // A threshold describing a movement between successive frames.
+    static final double CHANGE_THRESH = 0.1;       // A threshold describing a movement between successive frames.
+    static final double SAME_FRAME_THRESH = .025;
+    static final double NEW_FAKE_FRAME_THRESH = .05;
+    static final double NEW_FRAME_THRESH = .01;
+    static final double MOVEMENT_LEARN_RATE = 0.8;
+
     private static ChangeDetector sInstance;
 
-    private Mat mFrame;
-    private BackgroundSubtractorMOG2 mNewFrameDetector, mMovementDetector, mVerifyDetector;
+    private Model mModel = Model.DIFFERENCE;
+    private ChangeModel mNewFrameModel, mMovementModel, mVerifyModel;
+    private boolean mIsInitialized = false;
 
     static {
 
@@ -36,84 +44,87 @@ public class ChangeDetector {
 
     }
 
-//    private ChangeDetector() {
-//
-//
-//
-//    }
+    private ChangeDetector() {
 
-    public void initVerifyDetector(Mat frame) {
+        createModels();
 
-        Mat mat = resizeMat(frame);
+    }
 
-        if (mVerifyDetector != null) {
-            mVerifyDetector.clear();
-        }
+    /**
+     * Selects the ChangeModel. The detectors are initialized again with the next frame.
+     */
+    public synchronized void setModel(Model model) {
 
-        mVerifyDetector = Video.createBackgroundSubtractorMOG2();
-        Mat fgMask = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
+        if (model == mModel)
+            return;
 
-        mVerifyDetector.apply(mat, fgMask, 1);
+        mModel = model;
+        releaseModels();
+        createModels();
 
     }
 
-    public boolean isSameFrame(Mat frame) {
+    public synchronized Model getModel() {
+
+        return mModel;
 
-        double changeRatio = getChangeRatio(frame, mVerifyDetector, 0);
+    }
 
-        return changeRatio < .025;
+    static ChangeModel createModel(Model model) {
+
+        if (model == Model.MOG2)
+            return new Mog2ChangeModel();
+
+        return new DifferenceChangeModel();
 
     }
 
-    public void initDetectors(Mat frame) {
+    public synchronized void initVerifyDetector(Mat frame) {
 
-        if (mFrame != null) {
-            mFrame.release();
-            mFrame = null;
-        }
+        mVerifyModel.init(frame);
 
-        mFrame = resizeMat(frame);
+    }
 
-        if (mNewFrameDetector != null)
-            mNewFrameDetector.clear();
+    public synchronized boolean isSameFrame(Mat frame) {
 
-        if (mMovementDetector != null)
-            mMovementDetector.clear();
+        double changeRatio = mVerifyModel.getChangeRatio(frame, 0);
 
-        mNewFrameDetector = Video.createBackgroundSubtractorMOG2();
-        mMovementDetector = Video.createBackgroundSubtractorMOG2();
+        return changeRatio < SAME_FRAME_THRESH;
 
-        Mat fgMask = new Mat(mFrame.rows(), mFrame.cols(), CvType.CV_8UC1);
+    }
 
-        mNewFrameDetector.apply(mFrame, fgMask, 1);
-        mMovementDetector.apply(mFrame, fgMask, 1);
+    public synchronized void initDetectors(Mat frame) {
+
+        mNewFrameModel.init(frame);
+        mMovementModel.init(frame);
+        mIsInitialized = true;
 
     }
 
-    public boolean isNewFakeFrame(Mat frame) {
+    public synchronized boolean isNewFakeFrame(Mat frame) {
 
-        double changeRatio = getChangeRatio(frame, mNewFrameDetector, 0);
+        double changeRatio = mNewFrameModel.getChangeRatio(frame, 0);
         Timber.d("isNewFrame: changeRatio: " + changeRatio);
 
-        return changeRatio > .05;
+        return changeRatio > NEW_FAKE_FRAME_THRESH;
     }
 
-    public boolean isNewFrame(Mat frame) {
+    public synchronized boolean isNewFrame(Mat frame) {
 
-        double changeRatio = getChangeRatio(frame, mNewFrameDetector, 0);
+        double changeRatio = mNewFrameModel.getChangeRatio(frame, 0);
         Timber.d("isNewFrame: changeRatio: " + changeRatio);
 
-        return changeRatio > .01;
+        return changeRatio > NEW_FRAME_THRESH;
     }
 
-    public boolean isMoving(Mat mat) {
+    public synchronized boolean isMoving(Mat mat) {
 
-        if (mFrame == null) {
+        if (!mIsInitialized) {
             initDetectors(mat);
             return false;
         }
 
-        double changeRatio = getChangeRatio(mat, mMovementDetector, 0.8);
+        double changeRatio = mMovementModel.getChangeRatio(mat, MOVEMENT_LEARN_RATE);
         Timber.d("isMoving: changeRatio: " + changeRatio);
         boolean isMoving = changeRatio > CHANGE_THRESH;
 
@@ -121,96 +132,32 @@ public class ChangeDetector {
 
     }
 
-//    private double getChangeRatioV(Mat mat, BackgroundSubtractorMOG2 subtractor, double learnRate) {
-//
-//        Mat resizedMat = resizeMat(mat);
-//        Mat fgMask = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-//
-//        subtractor.apply(resizedMat, fgMask, learnRate);
-//
-//        Mat thMat = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-//        Imgproc.threshold(fgMask, thMat, 1, 1, Imgproc.THRESH_BINARY); // 127 is a shadow, but the majority of the pixels is classified as shadow - we do not know why.
-//
-//        Scalar fgPixels = Core.sumElems(thMat);
-//
-//        double changeRatio = fgPixels.val[0] / (fgMask.rows() * fgMask.cols());
-//
-//        if (changeRatio > 0.01) {
-//            File file = new File(Helper.getMediaStorageDir("DocScan"), "fgmask.jpg");
-//            Imgcodecs.imwrite(file.getAbsolutePath(), thMat);
-//        }
-//
-//        return changeRatio;
-//
-//    }
-
-//    private double getChangeRatioS(Mat mat, BackgroundSubtractorMOG2 subtractor, double learnRate) {
-//
-//        Mat resizedMat = resizeMat(mat);
-//
-////        Core.absdiff(resizedMat, new Scalar(255), resizedMat);
-////        Imgproc.dilate(resizedMat, resizedMat, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(4,4)));
-////        Core.absdiff(resizedMat, new Scalar(255), resizedMat);
-////        Core.subtract(resizedMat, new Scalar(255), resizedMat);
-//
-//        Mat fgMask = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-//
-//        subtractor.apply(resizedMat, fgMask, learnRate);
-//        Mat fgMaskTh = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-//        Imgproc.threshold(fgMask, fgMaskTh, 1, 1, Imgproc.THRESH_BINARY);
-//
-//        Scalar fgPixels = Core.sumElems(fgMaskTh);
-//
-//        double changeRatio = fgPixels.val[0] / (fgMask.rows() * fgMask.cols());
-//
-////        if (changeRatio > 0.01) {
-//
-//        String timeStamp = DateExtensionKt.getTimeStamp(new Date());
-//        Timber.d("taking picture: " + timeStamp);
-//
-//        String fileName = "mask" + timeStamp + ".jpg";
-//        File file = new File(Helper.getMediaStorageDir("DocScan"), fileName);
-//        Imgcodecs.imwrite(file.getAbsolutePath(), fgMask);
-////        }
-//
-//        return changeRatio;
-//
-//    }
-
-    private double getChangeRatio(Mat mat, BackgroundSubtractorMOG2 subtractor, double learnRate) {
-
-        Mat resizedMat = resizeMat(mat);
-        Mat fgMask = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-
-        subtractor.apply(resizedMat, fgMask, learnRate);
-        Imgproc.threshold(fgMask, fgMask, 1, 1, Imgproc.THRESH_BINARY);
-
-        Scalar fgPixels = Core.sumElems(fgMask);
-
-        double changeRatio = fgPixels.val[0] / (fgMask.rows() * fgMask.cols());
-
-        return changeRatio;
-
-    }
-
-    private Mat resizeMat(Mat mat) {
-
-        if (mat.cols() == 0 || mat.rows() == 0)
-            return null;
-
-//        The frame height might be larger than the frame width:
-        double resizeFac = mat.cols() > mat.rows() ? (double) FRAME_SIZE /
-                (double) mat.rows() : (double) FRAME_SIZE / (double) mat.cols();
-
-        int width = (int) Math.round(mat.cols() * resizeFac);
-        int height = (int) Math.round(mat.rows() * resizeFac);
-
-        Mat result = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1);
-        Imgproc.cvtColor(mat, result, Imgproc.COLOR_RGB2GRAY);
-        Imgproc.resize(result, result, new Size(width, height));
-
-        return result;
+    /**
+     * Releases the native memory of the models. The detectors are initialized again with the next
+     * frame.
+     */
+    public synchronized void release() {
+
+        releaseModels();
+        createModels();
+
+    }
+
+    private void createModels() {
+
+        mNewFrameModel = createModel(mModel);
+        mMovementModel = createModel(mModel);
+        mVerifyModel = createModel(mModel);
+        mIsInitialized = false;
+
     }
 
+    private void releaseModels() {
+
+        mNewFrameModel.release();
+        mMovementModel.release();
+        mVerifyModel.release();
+
+    }
 
 }
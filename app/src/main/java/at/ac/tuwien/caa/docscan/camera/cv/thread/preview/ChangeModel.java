@@ -0,0 +1,32 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import org.opencv.core.Mat;
+
+/**
+ * Measures how much a frame differs from a reference frame. Used by the ChangeDetector, which
+ * holds one model per task (movement, new page, verification). Implementations keep their buffers
+ * between the calls, so no Mats are allocated per frame.
+ */
+interface ChangeModel {
+
+    /**
+     * Sets the frame as reference.
+     */
+    void init(Mat frame);
+
+    /**
+     * Compares the frame with the reference. If the model is not initialized or the frame size has
+     * changed, the frame is used as reference and 0 is returned.
+     *
+     * @param frame     gray image
+     * @param learnRate weight of the frame for the update of the reference, 0 keeps the reference
+     * @return fraction of the changed pixels
+     */
+    double getChangeRatio(Mat frame, double learnRate);
+
+    /**
+     * Releases the native memory. The model can be initialized again afterwards.
+     */
+    void release();
+
+}
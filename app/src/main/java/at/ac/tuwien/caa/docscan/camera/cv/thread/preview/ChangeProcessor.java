@@ -1,22 +1,29 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
-import org.opencv.core.Mat;
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
 
 public class ChangeProcessor extends ImageProcessor {
 
-    protected ChangeProcessor(ImageProcessorCallback imageProcessorCallback, Mat mat) {
+    protected ChangeProcessor(ImageProcessorCallback imageProcessorCallback, FramePyramid frame) {
 
-        super(imageProcessorCallback, mat);
+        super(imageProcessorCallback, frame);
 
     }
 
     @Override
     protected void process() {
 
-        if (ChangeDetector.getInstance().isMoving(mMat))
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_CHANGE_DETECTED, mMat);
+        if (ChangeDetector.getInstance().isMoving(mFrame.getGray()))
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_CHANGE_DETECTED, mFrame);
         else
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_NO_CHANGE_DETECTED, mMat);
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_NO_CHANGE_DETECTED, mFrame);
+
+    }
+
+    @Override
+    protected TaskTimer.TaskType getTaskType() {
+
+        return TaskTimer.TaskType.MOVEMENT_CHECK;
 
     }
 }
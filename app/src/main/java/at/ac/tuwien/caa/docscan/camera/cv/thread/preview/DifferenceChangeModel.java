@@ -0,0 +1,72 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The default ChangeModel: the frame is downscaled and compared pixel-wise with the reference.
+ * This is much cheaper than a background subtraction and the area interpolation suppresses the
+ * sensor noise.
+ */
+class DifferenceChangeModel implements ChangeModel {
+
+    // The gray image of the FramePyramid is downscaled by this factor:
+    private static final double SCALE = 0.25;
+    // Minimal gray value difference of a changed pixel (about the same as the MOG2 default):
+    private static final double DIFF_THRESH = 16;
+
+    private final Mat mReference = new Mat();
+    private final Mat mSmall = new Mat();
+    private final Mat mDiff = new Mat();
+    private final Size mSize = new Size();
+
+    private int mFrameWidth = -1;
+    private int mFrameHeight = -1;
+
+    @Override
+    public void init(Mat frame) {
+
+        mFrameWidth = frame.cols();
+        mFrameHeight = frame.rows();
+        mSize.width = Math.max(1, Math.round(mFrameWidth * SCALE));
+        mSize.height = Math.max(1, Math.round(mFrameHeight * SCALE));
+
+        Imgproc.resize(frame, mReference, mSize, 0, 0, Imgproc.INTER_AREA);
+
+    }
+
+    @Override
+    public double getChangeRatio(Mat frame, double learnRate) {
+
+        if (frame.cols() != mFrameWidth || frame.rows() != mFrameHeight) {
+            init(frame);
+            return 0;
+        }
+
+        Imgproc.resize(frame, mSmall, mSize, 0, 0, Imgproc.INTER_AREA);
+        Core.absdiff(mSmall, mReference, mDiff);
+        Imgproc.threshold(mDiff, mDiff, DIFF_THRESH, 255, Imgproc.THRESH_BINARY);
+
+        double changeRatio = Core.countNonZero(mDiff) / (double) mDiff.total();
+
+        if (learnRate > 0)
+            Core.addWeighted(mReference, 1 - learnRate, mSmall, learnRate, 0, mReference);
+
+        return changeRatio;
+
+    }
+
+    @Override
+    public void release() {
+
+        mReference.release();
+        mSmall.release();
+        mDiff.release();
+        mFrameWidth = -1;
+        mFrameHeight = -1;
+
+    }
+
+}
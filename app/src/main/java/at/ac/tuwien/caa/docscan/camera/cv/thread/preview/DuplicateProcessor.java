@@ -1,21 +1,29 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
-import org.opencv.core.Mat;
+import java.util.UUID;
 
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
+import at.ac.tuwien.caa.docscan.camera.cv.PageHash;
+import at.ac.tuwien.caa.docscan.camera.cv.PageHashIndex;
 import timber.log.Timber;
 
 
 /**
  * A class used to determine if the current frame is different to the one that was recently
- * photographed.
+ * photographed and to the other pages of the document (see PageHashIndex).
  */
 public class DuplicateProcessor extends ImageProcessor {
 
     private static final String CLASS_NAME = "DuplicateProcessor";
 
-    protected DuplicateProcessor(ImageProcessorCallback imageProcessorCallback, Mat mat) {
+    private final PageHashIndex mPageHashIndex;
 
-        super(imageProcessorCallback, mat);
+    protected DuplicateProcessor(ImageProcessorCallback imageProcessorCallback, FramePyramid frame,
+                                 PageHashIndex pageHashIndex) {
+
+        super(imageProcessorCallback, frame);
+
+        mPageHashIndex = pageHashIndex;
 
     }
 
@@ -24,10 +32,33 @@ public class DuplicateProcessor extends ImageProcessor {
 
         Timber.d("process");
 
-        if (ChangeDetector.getInstance().isNewFrame(mMat))
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_NO_DUPLICATE_FOUND, mMat);
+        if (ChangeDetector.getInstance().isNewFrame(mFrame.getGray()) && !isIndexedPage())
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_NO_DUPLICATE_FOUND, mFrame);
         else
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_DUPLICATE_FOUND, mMat);
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_DUPLICATE_FOUND, mFrame);
+
+    }
+
+    /**
+     * @return true if the frame shows a page of the document that has been photographed before
+     */
+    private boolean isIndexedPage() {
+
+        if (mPageHashIndex == null)
+            return false;
+
+        UUID pageId = mPageHashIndex.findMatch(PageHash.compute(mFrame.getGray()));
+        if (pageId != null)
+            Timber.d("isIndexedPage: frame matches page: " + pageId);
+
+        return pageId != null;
+
+    }
+
+    @Override
+    protected TaskTimer.TaskType getTaskType() {
+
+        return TaskTimer.TaskType.NEW_DOC;
 
     }
 }
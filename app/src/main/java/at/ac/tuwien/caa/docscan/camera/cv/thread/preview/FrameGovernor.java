@@ -0,0 +1,97 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
+
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.FRAME_ANALYSIS;
+import static at.ac.tuwien.caa.docscan.camera.TaskTimer.TaskType.MOVEMENT_CHECK;
+
+/**
+ * Adjusts the frame rate of the preview analysis to the speed of the device. The execution times
+ * of the processors are recorded in a TaskTimer and the time between two analyzed frames is chosen
+ * so that the processing takes at most the CPU budget (the fraction of the time in which the
+ * workers are busy). Fast devices analyze more frames and capture earlier, slow devices are not
+ * saturated. As long as no times are measured the former fixed values are used.
+ */
+class FrameGovernor {
+
+    static final long DEFAULT_FRAME_TIME_DIFF = 300;
+    static final long DEFAULT_MIN_STEADY_TIME = 500;
+    static final float DEFAULT_CPU_BUDGET = 0.5f;
+
+    private static final long MIN_FRAME_TIME_DIFF = 50;
+    private static final long MAX_FRAME_TIME_DIFF = 1000;
+    // The camera must be held still for a minimum time, independent of the device speed:
+    private static final long MIN_STEADY_TIME = 250;
+    private static final long MAX_STEADY_TIME = 1000;
+    // Number of movement checks that should fit into the steady time:
+    private static final int STEADY_CYCLES = 2;
+
+    private final TaskTimer mTaskTimer = new TaskTimer();
+    private volatile float mCpuBudget = DEFAULT_CPU_BUDGET;
+
+    /**
+     * Records the execution time of a processor, called from the worker threads.
+     */
+    void addStageTime(TaskTimer.TaskType type, long time) {
+
+        mTaskTimer.addTaskTime(type, time);
+
+    }
+
+    /**
+     * @param cpuBudget fraction of the time in which the preview analysis may run, in (0, 1]
+     */
+    void setCpuBudget(float cpuBudget) {
+
+        if (cpuBudget > 0 && cpuBudget <= 1)
+            mCpuBudget = cpuBudget;
+
+    }
+
+    /**
+     * @return the minimum time between two movement checks in series mode
+     */
+    long getSeriesFrameTimeDiff() {
+
+        return getFrameTimeDiff(mTaskTimer.getSmoothedTaskTime(MOVEMENT_CHECK));
+
+    }
+
+    /**
+     * @return the minimum time between two analyzed frames in single mode
+     */
+    long getSingleFrameTimeDiff() {
+
+//        The page segmentation and focus measurement are done in a single native call:
+        return getFrameTimeDiff(mTaskTimer.getSmoothedTaskTime(FRAME_ANALYSIS));
+
+    }
+
+    /**
+     * @return the time in which there must be no movement before a frame is checked for duplicates
+     */
+    long getMinSteadyTime() {
+
+        if (mTaskTimer.getSmoothedTaskTime(MOVEMENT_CHECK) == -1)
+            return DEFAULT_MIN_STEADY_TIME;
+
+        return clamp(STEADY_CYCLES * getSeriesFrameTimeDiff(), MIN_STEADY_TIME, MAX_STEADY_TIME);
+
+    }
+
+    private long getFrameTimeDiff(long stageTime) {
+
+        if (stageTime == -1)
+            return DEFAULT_FRAME_TIME_DIFF;
+
+        return clamp(Math.round(stageTime / mCpuBudget), MIN_FRAME_TIME_DIFF, MAX_FRAME_TIME_DIFF);
+
+    }
+
+    private static long clamp(long value, long min, long max) {
+
+        return Math.max(min, Math.min(max, value));
+
+    }
+
+}
@@ -0,0 +1,62 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of FramePyramids that are reused for the preview frames. A pyramid is borrowed by
+ * IPManager for each processed frame, passed along the processors and given back once the last
+ * processor is done. This way the steady-state frame processing does not allocate native memory.
+ */
+class FramePool {
+
+    private final ArrayDeque<FramePyramid> mFrames;
+    private final int mCapacity;
+
+    FramePool(int capacity) {
+
+        mCapacity = capacity;
+        mFrames = new ArrayDeque<>(capacity);
+
+    }
+
+    /**
+     * Returns a pooled FramePyramid with the given frame dimension or allocates a new one if no
+     * fitting pyramid is available.
+     */
+    synchronized FramePyramid obtain(int frameWidth, int frameHeight) {
+
+        while (!mFrames.isEmpty()) {
+            FramePyramid frame = mFrames.pop();
+            if (frame.hasSize(frameWidth, frameHeight))
+                return frame;
+//            The frame dimension has changed, so the pyramid cannot be reused anymore:
+            frame.release();
+        }
+
+        return new FramePyramid(frameWidth, frameHeight);
+
+    }
+
+    /**
+     * Gives a FramePyramid back to the pool. The pyramid is released if the pool is already full.
+     */
+    synchronized void recycle(FramePyramid frame) {
+
+        if (frame == null)
+            return;
+
+        if (mFrames.size() < mCapacity)
+            mFrames.push(frame);
+        else
+            frame.release();
+
+    }
+
+    synchronized void clear() {
+
+        while (!mFrames.isEmpty())
+            mFrames.pop().release();
+
+    }
+
+}
@@ -0,0 +1,194 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import at.ac.tuwien.caa.docscan.camera.cv.FrameAnalysis;
+
+/**
+ * Holds the representations of a single preview frame that are shared by all ImageProcessors:
+ * <ul>
+ * <li>the full resolution luma, which is a view on the Y plane of the NV21 frame (used for the
+ * focus measurement),</li>
+ * <li>a small gray image (used by the ChangeDetector),</li>
+ * <li>a downscaled RGB image (used for the page segmentation).</li>
+ * </ul>
+ * The pyramid is built once per frame and the color conversion is just done at the reduced
+ * resolution. The objects are reused for successive frames, see FramePool. The results of the page
+ * segmentation and focus measurement are stored along with the frame, so they can be handed to the
+ * UI without an additional container. The buffers of the native analysis are reused as well.
+ */
+class FramePyramid {
+
+    // The shorter side of the gray image used for change detection:
+    static final int GRAY_SIZE = 300;
+    // The longer side of the color image used for page segmentation:
+    static final int COLOR_SIZE = 600;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final float mColorScale;
+
+    private final Mat mYuv;
+    private final Mat mLuma;
+    private final Mat mChromaPlane;
+    private final Mat mChroma;
+    private final Mat mGray;
+    private final Mat mSmallYuv;
+    private final Mat mSmallLuma;
+    private final Mat mSmallChromaPlane;
+    private final Mat mSmallChroma;
+    private final Mat mColor;
+
+    private final Size mGraySize;
+
+    // Written by the AnalysisProcessor, read after the IPManager is signaled:
+    private final FrameAnalysis mAnalysis = new FrameAnalysis();
+
+    FramePyramid(int width, int height) {
+
+        mWidth = width;
+        mHeight = height;
+
+        mYuv = new Mat(height * 3 / 2, width, CvType.CV_8UC1);
+        mLuma = mYuv.submat(0, height, 0, width);
+//        The interleaved VU plane, seen as a two channel image with one pixel per 2x2 block:
+//        The submat is kept, because reshape returns a new header that has to be released too:
+        mChromaPlane = mYuv.submat(height, height * 3 / 2, 0, width);
+        mChroma = mChromaPlane.reshape(2);
+
+//        The frame height might be larger than the frame width:
+        double grayFac = (double) GRAY_SIZE / Math.min(width, height);
+        mGraySize = new Size(Math.round(width * grayFac), Math.round(height * grayFac));
+        mGray = new Mat((int) mGraySize.height, (int) mGraySize.width, CvType.CV_8UC1);
+
+        float scale = (float) COLOR_SIZE / Math.max(width, height);
+//        Do not upscale (the same as in NativeWrapper.resize):
+        if (scale > 0.8f || scale <= 0.0f)
+            scale = 1.0f;
+
+        if (scale != 1.0f) {
+//            NV21 needs even dimensions:
+            int colorWidth = Math.round(width * scale) & ~1;
+            int colorHeight = Math.round(height * scale) & ~1;
+            mColorScale = (float) colorWidth / width;
+            mSmallYuv = new Mat(colorHeight * 3 / 2, colorWidth, CvType.CV_8UC1);
+            mSmallLuma = mSmallYuv.submat(0, colorHeight, 0, colorWidth);
+            mSmallChromaPlane = mSmallYuv.submat(colorHeight, colorHeight * 3 / 2, 0, colorWidth);
+            mSmallChroma = mSmallChromaPlane.reshape(2);
+            mColor = new Mat(colorHeight, colorWidth, CvType.CV_8UC3);
+        } else {
+            mColorScale = 1.0f;
+            mSmallYuv = mYuv;
+            mSmallLuma = null;
+            mSmallChromaPlane = null;
+            mSmallChroma = null;
+            mColor = new Mat(height, width, CvType.CV_8UC3);
+        }
+
+    }
+
+    /**
+     * Copies the NV21 frame into the pyramid and builds the downscaled images.
+     *
+     * @param pixels NV21 frame as received from the camera
+     */
+    void update(byte[] pixels) {
+
+        clearResults();
+
+        mYuv.put(0, 0, pixels);
+
+        Imgproc.resize(mLuma, mGray, mGraySize);
+
+        if (mSmallLuma != null) {
+            Imgproc.resize(mLuma, mSmallLuma, mSmallLuma.size());
+            Imgproc.resize(mChroma, mSmallChroma, mSmallChroma.size());
+        }
+
+        Imgproc.cvtColor(mSmallYuv, mColor, Imgproc.COLOR_YUV2RGB_NV21);
+
+    }
+
+    /**
+     * Builds the pyramid from an artificial RGB frame. This is just used for testing.
+     *
+     * @param rgb RGB Mat with the frame dimensions
+     */
+    void update(Mat rgb) {
+
+        clearResults();
+
+        Imgproc.cvtColor(rgb, mLuma, Imgproc.COLOR_RGB2GRAY);
+        Imgproc.resize(mLuma, mGray, mGraySize);
+        Imgproc.resize(rgb, mColor, mColor.size());
+
+    }
+
+    boolean hasSize(int width, int height) {
+
+        return mWidth == width && mHeight == height;
+
+    }
+
+    /**
+     * @return full resolution gray image (a view on the Y plane of the frame)
+     */
+    Mat getLuma() {
+        return mLuma;
+    }
+
+    /**
+     * @return gray image whose shorter side is GRAY_SIZE
+     */
+    Mat getGray() {
+        return mGray;
+    }
+
+    /**
+     * @return RGB image whose longer side is (at most) COLOR_SIZE
+     */
+    Mat getColor() {
+        return mColor;
+    }
+
+    /**
+     * @return the scale factor between the color image and the frame
+     */
+    float getColorScale() {
+        return mColorScale;
+    }
+
+    /**
+     * @return the buffers for the native analysis of this frame
+     */
+    FrameAnalysis getAnalysis() {
+        return mAnalysis;
+    }
+
+    private void clearResults() {
+
+        mAnalysis.clear();
+
+    }
+
+    void release() {
+
+        mLuma.release();
+        mChroma.release();
+        mChromaPlane.release();
+        mGray.release();
+        mColor.release();
+        if (mSmallLuma != null) {
+            mSmallLuma.release();
+            mSmallChroma.release();
+            mSmallChromaPlane.release();
+            mSmallYuv.release();
+        }
+        mYuv.release();
+
+    }
+
+}
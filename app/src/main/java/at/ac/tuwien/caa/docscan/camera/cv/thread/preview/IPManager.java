@@ -1,11 +1,11 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
 import android.graphics.Bitmap;
-import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.opencv.android.Utils;
@@ -17,24 +17,24 @@ import org.opencv.imgproc.Imgproc;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import at.ac.tuwien.caa.docscan.camera.CameraPreview;
+import at.ac.tuwien.caa.docscan.camera.PipelineMetrics;
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
 import at.ac.tuwien.caa.docscan.camera.cv.CVResult;
-import at.ac.tuwien.caa.docscan.camera.cv.DkPolyRect;
-import at.ac.tuwien.caa.docscan.camera.cv.Patch;
+import at.ac.tuwien.caa.docscan.camera.cv.FrameAnalysis;
+import at.ac.tuwien.caa.docscan.camera.cv.NativeWrapper;
+import at.ac.tuwien.caa.docscan.camera.cv.PageHashIndex;
 import timber.log.Timber;
 
-import static at.ac.tuwien.caa.docscan.camera.cv.DkPolyRect.KEY_POLY_RECT;
-import static at.ac.tuwien.caa.docscan.camera.cv.Patch.KEY_FOCUS;
-
 public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     protected static final int MESSAGE_CHANGE_DETECTED = 0;
     protected static final int MESSAGE_NO_CHANGE_DETECTED = 1;
     protected static final int MESSAGE_DUPLICATE_FOUND = 2;
     protected static final int MESSAGE_NO_DUPLICATE_FOUND = 3;
-    protected static final int MESSAGE_PAGE_DETECTED = 4;
-    protected static final int MESSAGE_FOCUS_MEASURED = 5;
+    protected static final int MESSAGE_FRAME_ANALYZED = 4;
     protected static final int MESSAGE_FRAME_NOT_VERIFIED = 6;
     protected static final int MESSAGE_FRAME_VERIFIED = 7;
 
@@ -42,29 +42,47 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
     private static final int CHANGE_TASK_CHECK_VERIFY_FRAME = 2;
     private static final int CHANGE_TASK_START_PAGE_DETECTION = 3;
 
-    private static final long MIN_STEADY_TIME = 500;        // The time in which there must be no movement.
-    private static final long FRAME_TIME_DIFF = 300;
+    // States of the frame gate, the transitions are done atomically:
+    // READY: the next frame received is processed,
+    private static final int FRAME_STATE_READY = 0;
+    // BUSY: a frame is processed, it is set to READY or WAITING once the frame is done,
+    private static final int FRAME_STATE_BUSY = 1;
+    // WAITING: no frame is processed until setProcessFrame(true) is called (e.g. after auto focus).
+    private static final int FRAME_STATE_WAITING = 2;
+
+    // The time between analyzed frames and the time in which there must be no movement are
+    // adjusted by the FrameGovernor.
     private static final long NO_TIME_SET = -1;
     private static final int MIN_NO_MOVE_CYCLES = 1;
+    // Just one frame is processed at a time, the second pyramid is used while the first is handed back:
+    private static final int FRAME_POOL_SIZE = 2;
+    // Just one processor runs at a time, the native analysis is parallelized itself:
+    private static final int WORKER_COUNT = 1;
 
     private static final String CLASS_NAME = "IPManager";
 
     private final Executor mExecutor;
+    private final FramePool mFramePool;
+    private final FrameGovernor mFrameGovernor;
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
 
     // An object that manages Messages in a Thread
     private Handler mHandler;
-    private CameraPreview.CVCallback mCVCallback;
-    private boolean mIsRunning = false;
-    private int mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-    private CVResult mCVResult;
+    private final Handler mUiHandler;
+    private volatile CameraPreview.CVCallback mCVCallback;
+    // These are shared between the camera thread, the IPManager thread and the UI thread:
+    private final AtomicInteger mFrameState = new AtomicInteger(FRAME_STATE_READY);
+    private final AtomicInteger mCheckState = new AtomicInteger(CHANGE_TASK_CHECK_MOVEMENT);
+    private volatile CVResult mCVResult;
+    private volatile PageHashIndex mPageHashIndex;
+    private volatile long mLastFrameReceivedTime = NO_TIME_SET;
+    private volatile boolean mIsSeriesMode = false;
+    private volatile boolean mIsPaused = false;
+    private volatile boolean mIsCaptureBlocked = false;
+    private volatile boolean mIsFocusMeasured;
+    // These are just accessed on the IPManager thread:
     private long mLastSteadyTime = NO_TIME_SET;
-    private long mLastFrameReceivedTime = NO_TIME_SET;
-
-    private boolean mIsSeriesMode = false;
     private boolean mIsAutoFocusDone = false;
-    private boolean mProcessFrame = true;
-    private boolean mIsPaused = false;
-    private boolean mIsFocusMeasured;
     //    private boolean mIsAggressiveAutoFocus = false;
     private boolean mIsAlreadyChanged = true;
 
@@ -93,6 +111,17 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     private int mNoMoveCycles;
 
+    // Hands the analyzed frame from the IPManager thread to the UI thread:
+    private final ResultSlot<FramePyramid> mAnalyzedFrame = new ResultSlot<>();
+
+    // The UI notifications are preallocated, so that posting them does not allocate:
+    private final Runnable mMovementRunnable = () -> mCVCallback.onMovement(true);
+    private final Runnable mNoMovementRunnable = () -> mCVCallback.onMovement(false);
+    private final Runnable mWaitingForDocRunnable = () -> mCVCallback.onWaitingForDoc(true, false);
+    private final Runnable mStartAutoFocusRunnable = () -> mCVCallback.onWaitingForDoc(false, true);
+    private final Runnable mCaptureVerifiedRunnable = () -> mCVCallback.onCaptureVerified();
+    private final Runnable mFrameAnalyzedRunnable = this::onFrameAnalyzed;
+
     public static IPManager getInstance() {
 
         return sInstance;
@@ -105,6 +134,16 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     }
 
+    /**
+     * Sets the index of the pages of the active document. Frames showing one of these pages are
+     * treated as duplicates in series mode.
+     */
+    public void setPageHashIndex(PageHashIndex pageHashIndex) {
+
+        mPageHashIndex = pageHashIndex;
+
+    }
+
     public void setCVCallback(CameraPreview.CVCallback callback) {
 
         mCVCallback = callback;
@@ -114,9 +153,16 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     private IPManager() {
 
-        mExecutor = Executors.newSingleThreadExecutor();
+        mExecutor = Executors.newFixedThreadPool(WORKER_COUNT);
+        mFramePool = new FramePool(FRAME_POOL_SIZE);
+        mFrameGovernor = new FrameGovernor();
+        mUiHandler = new Handler(Looper.getMainLooper());
 
-        mHandler = new Handler(Looper.getMainLooper()) {
+//        The stage transitions are decided on an own thread, only the results are posted to the UI:
+        HandlerThread handlerThread = new HandlerThread(CLASS_NAME);
+        handlerThread.start();
+
+        mHandler = new Handler(handlerThread.getLooper()) {
 
             /*
              * handleMessage() defines the operations to perform when the
@@ -126,273 +172,302 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
             public void handleMessage(Message inputMessage) {
 
                 int message = inputMessage.what;
-                Mat mat = (Mat) inputMessage.obj;
-
+                FramePyramid frame = (FramePyramid) inputMessage.obj;
 
-                if (mIsSeriesMode) {
+                switch (message) {
 
-                    switch (message) {
+                    case MESSAGE_FRAME_ANALYZED:
 
-                        case MESSAGE_CHANGE_DETECTED:
+                        onAnalysisResult(frame);
 
-                            mNoMoveCycles = 0;
-                            mIsAlreadyChanged = true;
-                            Timber.d("handleMessage: onMovement: true");
+                        break;
 
-                            mIsAutoFocusDone = false;
-
-                            mCVCallback.onMovement(true);
-                            releaseMat(mat);
-                            mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                            mLastSteadyTime = NO_TIME_SET;
+                    default:
 
+                        if (mIsSeriesMode)
+                            handleSeriesMessage(message, frame);
+                        else {
+//                            The mode has been changed while the frame was processed:
+                            releaseFrame(frame);
                             processNextFrame();
+                        }
 
-                            break;
-
-                        case MESSAGE_NO_CHANGE_DETECTED:
+                        break;
 
-                            Timber.d("handleMessage: onMovement: false");
+                }
 
-                            if (!mIsAlreadyChanged) {
+            }
+        };
+    }
 
-                                if (!ChangeDetector.getInstance().isNewFakeFrame(mat)) {
+    /**
+     * Handles the results of the movement, duplicate and verification checks. This is called on
+     * the IPManager thread, the UI is just notified.
+     */
+    private void handleSeriesMessage(int message, FramePyramid frame) {
 
-                                    Timber.d("handleMessage: FAKE onWaitingForDoc: true");
+        switch (message) {
 
-                                    mCVCallback.onWaitingForDoc(true, false);
+            case MESSAGE_CHANGE_DETECTED:
 
-                                    mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                                    releaseMat(mat);
-                                    processNextFrame();
+                mNoMoveCycles = 0;
+                mIsAlreadyChanged = true;
+                Timber.d("handleMessage: onMovement: true");
 
-                                    break;
+                mIsAutoFocusDone = false;
 
-                                } else
-                                    Timber.d("handleMessage: is new fake " +
-                                            "frame");
+                mUiHandler.post(mMovementRunnable);
+                releaseFrame(frame);
+                mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+                mLastSteadyTime = NO_TIME_SET;
 
+                processNextFrame();
 
-                            }
+                break;
 
-                            mNoMoveCycles++;
+            case MESSAGE_NO_CHANGE_DETECTED:
 
-                            Timber.d("is new fake: TEST");
+                Timber.d("handleMessage: onMovement: false");
 
-                            mCVCallback.onMovement(false);
-//                            Initialize the time if it is not initialized:
-                            if (mLastSteadyTime == NO_TIME_SET) {
-                                mLastSteadyTime = System.currentTimeMillis();
-                            }
+                if (!mIsAlreadyChanged) {
 
-//                              There has been no movement for a sufficient amount of time:
-                            if (System.currentTimeMillis() - mLastSteadyTime > MIN_STEADY_TIME
-                                    && mNoMoveCycles > MIN_NO_MOVE_CYCLES) {
-//                            if (System.currentTimeMillis() - mLastSteadyTime > MIN_STEADY_TIME) {
+                    if (!ChangeDetector.getInstance().isNewFakeFrame(frame.getGray())) {
 
-                                if (System.currentTimeMillis() - mLastSteadyTime > MIN_STEADY_TIME)
-                                    Timber.d("no movement: min time passed");
-                                else
-                                    Timber.d("no movement: min cycle num passed");
+                        Timber.d("handleMessage: FAKE onWaitingForDoc: true");
 
-                                mLastSteadyTime = NO_TIME_SET;
-                                createProcessor(mat, ImageProcessor.ProcessorType.DUPLICATE);
-                            }
-//                              There has been no movement but we better do some more checks to be sure:
-                            else {
-                                releaseMat(mat);
-                                processNextFrame();
-                            }
+                        mUiHandler.post(mWaitingForDocRunnable);
 
-                            break;
+                        mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+                        releaseFrame(frame);
+                        processNextFrame();
 
-                        case MESSAGE_DUPLICATE_FOUND:
+                        break;
 
-                            Timber.d("handleMessage: onWaitingForDoc: true");
+                    } else
+                        Timber.d("handleMessage: is new fake " +
+                                "frame");
 
-                            mCVCallback.onWaitingForDoc(true, false);
 
-                            mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                            releaseMat(mat);
-                            processNextFrame();
+                }
 
-                            break;
+                mNoMoveCycles++;
 
-                        case MESSAGE_NO_DUPLICATE_FOUND:
+                Timber.d("is new fake: TEST");
 
-                            Timber.d("handleMessage: onWaitingForDoc: false");
+                mUiHandler.post(mNoMovementRunnable);
+//                Initialize the time if it is not initialized:
+                if (mLastSteadyTime == NO_TIME_SET) {
+                    mLastSteadyTime = System.currentTimeMillis();
+                }
 
-//                            In case we are in aggressive auto focus mode, wait for focus and after
-//                            focus is found start the page detection:
-                            if (mIsSeriesMode && !mIsAutoFocusDone) {
-                                mIsAutoFocusDone = true;
-                                mCVCallback.onWaitingForDoc(false, true);
-                                mCheckState = CHANGE_TASK_START_PAGE_DETECTION;
-                                releaseMat(mat);
-                            } else
-//                                Start the page detection:
-                                createProcessor(mat, ImageProcessor.ProcessorType.PAGE);
+//                There has been no movement for a sufficient amount of time:
+                long minSteadyTime = mFrameGovernor.getMinSteadyTime();
+                if (System.currentTimeMillis() - mLastSteadyTime > minSteadyTime
+                        && mNoMoveCycles > MIN_NO_MOVE_CYCLES) {
 
-                            break;
+                    if (System.currentTimeMillis() - mLastSteadyTime > minSteadyTime)
+                        Timber.d("no movement: min time passed");
+                    else
+                        Timber.d("no movement: min cycle num passed");
 
-                        case MESSAGE_PAGE_DETECTED:
+                    mLastSteadyTime = NO_TIME_SET;
+                    createProcessor(frame, ImageProcessor.ProcessorType.DUPLICATE);
+                }
+//                There has been no movement but we better do some more checks to be sure:
+                else {
+                    releaseFrame(frame);
+                    processNextFrame();
+                }
 
-                            Timber.d("handleMessage: onPageSegmented");
+                break;
 
-                            Bundle pageBundle = inputMessage.getData();
-                            DkPolyRect[] polyRects = (DkPolyRect[]) pageBundle.getParcelableArray(KEY_POLY_RECT);
-                            if (mCVCallback != null)
-                                mCVCallback.onPageSegmented(polyRects);
+            case MESSAGE_DUPLICATE_FOUND:
 
-                            //                    Start the focus measurement:
-                            if (mIsFocusMeasured)
-                                createProcessor(mat, ImageProcessor.ProcessorType.FOCUS);
-                            else {
+                Timber.d("handleMessage: onWaitingForDoc: true");
 
-                                //                        Start the verification task:
-                                if (mCVResult.getCVState() == CVResult.DOCUMENT_STATE_OK) {
-                                    Timber.d("handleMessage: starting verification");
-                                    ChangeDetector.getInstance().initVerifyDetector(mat);
-                                    mCheckState = CHANGE_TASK_CHECK_VERIFY_FRAME;
-                                }
-                                //                        Start the change task:
-                                else {
-                                    Timber.d("handleMessage: starting check movement");
-                                    mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                                }
+                mUiHandler.post(mWaitingForDocRunnable);
 
-                                releaseMat(mat);
-                                processNextFrame();
+                mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+                releaseFrame(frame);
+                processNextFrame();
 
-                            }
+                break;
 
+            case MESSAGE_NO_DUPLICATE_FOUND:
 
-                            break;
+                Timber.d("handleMessage: onWaitingForDoc: false");
 
-                        case MESSAGE_FOCUS_MEASURED:
+//                In case we are in aggressive auto focus mode, wait for focus and after
+//                focus is found start the page detection:
+                if (!mIsAutoFocusDone) {
+                    mIsAutoFocusDone = true;
+                    mUiHandler.post(mStartAutoFocusRunnable);
+                    mCheckState.set(CHANGE_TASK_START_PAGE_DETECTION);
+                    releaseFrame(frame);
+//                    The next frame is processed after the focus is found (see setProcessFrame):
+                    waitForNextFrame();
+                } else
+//                    Start the page detection:
+                    startAnalysis(frame);
 
-                            Timber.d("handleMessage: onFocusMeasured");
+                break;
 
-                            Bundle focusBundle = inputMessage.getData();
-                            Patch[] patches = (Patch[]) focusBundle.getParcelableArray(KEY_FOCUS);
-                            mCVCallback.onFocusMeasured(patches);
+            case MESSAGE_FRAME_NOT_VERIFIED:
 
-//                        Start the verification task:
-                            if (mCVResult.getCVState() == CVResult.DOCUMENT_STATE_OK) {
-                                Timber.d("handleMessage: starting verification");
-                                ChangeDetector.getInstance().initVerifyDetector(mat);
-                                mCheckState = CHANGE_TASK_CHECK_VERIFY_FRAME;
-                            }
-                            //                        Start the change task:
-                            else {
-                                Timber.d("handleMessage: starting check movement");
-                                mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                            }
+//                The last frame received is different than the one on which the image
+//                processing was done.
+                Timber.d("handleMessage: unverified frame");
 
-                            releaseMat(mat);
-                            processNextFrame();
+                mUiHandler.post(mMovementRunnable);
+                releaseFrame(frame);
+//                Check for movements again:
+                mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+                processNextFrame();
 
-                            break;
+                break;
 
+            case MESSAGE_FRAME_VERIFIED:
 
-                        case MESSAGE_FRAME_NOT_VERIFIED:
+//                The last frame received is the same as the one on which the image
+//                processing was done.
+                Timber.d("handleMessage: verified frame");
 
-                            //                        The last frame received is different than the one on which the image
-                            //                        processing was done.
-                            Timber.d("handleMessage: unverified frame");
+                ChangeDetector.getInstance().initDetectors(frame.getGray());
 
-                            mCVCallback.onMovement(true);
-                            releaseMat(mat);
-                            //                        Check for movements again:
-                            mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                            processNextFrame();
+                mUiHandler.post(mCaptureVerifiedRunnable);
 
-                            break;
+                mIsAlreadyChanged = false;
+                mLastFrameReceivedTime = NO_TIME_SET;
+                mLastSteadyTime = NO_TIME_SET;
+                releaseFrame(frame);
+                mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+                processNextFrame();
 
-                        case MESSAGE_FRAME_VERIFIED:
+                break;
 
-                            //                        The last frame received is the same as the one on which the image
-                            //                        processing was done.
-                            Timber.d("handleMessage: verified frame");
+        }
 
-                            ChangeDetector.getInstance().initDetectors(mat);
+    }
 
-                            mCVCallback.onCaptureVerified();
+    /**
+     * Starts the page segmentation and - if enabled - the focus measurement. Both are done in a
+     * single native call, which shares the color conversions of the frame.
+     */
+    private void startAnalysis(FramePyramid frame) {
 
-                            mIsAlreadyChanged = false;
-                            mLastFrameReceivedTime = NO_TIME_SET;
-                            mLastSteadyTime = NO_TIME_SET;
-                            releaseMat(mat);
-                            mCheckState = CHANGE_TASK_CHECK_MOVEMENT;
-                            processNextFrame();
+        createProcessor(frame, ImageProcessor.ProcessorType.ANALYSIS);
 
-                            break;
+    }
 
-                    }
-                } else {
+    /**
+     * Called on the IPManager thread after the frame is analyzed, the results are posted to the UI.
+     */
+    private void onAnalysisResult(FramePyramid frame) {
 
-                    switch (message) {
+        if (mAnalyzedFrame.publish(frame))
+            mUiHandler.post(mFrameAnalyzedRunnable);
+        else
+            dropFrame(frame);
 
-                        case MESSAGE_PAGE_DETECTED:
+    }
 
-                            Timber.d("handleMessage: onPageSegmented");
+    /**
+     * Called on the UI thread with the results of the page segmentation and focus measurement.
+     * The CVResult is updated by the callbacks, afterwards it is decided if the frame should be
+     * verified (series mode) or if the next frame is processed.
+     */
+    private void onFrameAnalyzed() {
 
-                            Bundle pageBundle = inputMessage.getData();
-                            DkPolyRect[] polyRects = (DkPolyRect[]) pageBundle.getParcelableArray(KEY_POLY_RECT);
-                            if (mCVCallback != null)
-                                mCVCallback.onPageSegmented(polyRects);
+        FramePyramid frame = mAnalyzedFrame.take();
+        if (frame == null)
+            return;
 
-                            //                    Start the focus measurement:
+        FrameAnalysis analysis = frame.getAnalysis();
 
-                            if (mIsFocusMeasured)
-                                createProcessor(mat, ImageProcessor.ProcessorType.FOCUS);
-                            else {
-                                releaseMat(mat);
-                                processNextFrame();
-                            }
+//        The results are copied by the callbacks, the frame is recycled afterwards:
+        CameraPreview.CVCallback callback = mCVCallback;
+        if (callback != null) {
+            callback.onPageSegmented(analysis.getRects());
+            if (analysis.hasAnalysis(NativeWrapper.ANALYSIS_FOCUS))
+                callback.onFocusMeasured(analysis.getPatches());
+        }
 
-                            break;
+        if (mIsSeriesMode) {
 
-                        case MESSAGE_FOCUS_MEASURED:
+//            Start the verification task:
+            if (mCVResult.getCVState() == CVResult.DOCUMENT_STATE_OK) {
+                Timber.d("handleMessage: starting verification");
+                ChangeDetector.getInstance().initVerifyDetector(frame.getGray());
+                mCheckState.set(CHANGE_TASK_CHECK_VERIFY_FRAME);
+            }
+//            Start the change task:
+            else {
+                Timber.d("handleMessage: starting check movement");
+                mCheckState.set(CHANGE_TASK_CHECK_MOVEMENT);
+            }
 
-                            Timber.d("handleMessage: onFocusMeasured");
+        }
 
-                            Bundle focusBundle = inputMessage.getData();
-                            Patch[] patches = (Patch[]) focusBundle.getParcelableArray(KEY_FOCUS);
-                            mCVCallback.onFocusMeasured(patches);
+        releaseFrame(frame);
+        processNextFrame();
 
-                            releaseMat(mat);
-                            processNextFrame();
+    }
 
-                            break;
+    private void releaseFrame(FramePyramid frame) {
+        mFramePool.recycle(frame);
+    }
 
-                    }
+    /**
+     * Gives the frame back without processing it further and opens the gate for the next frame.
+     */
+    private void dropFrame(FramePyramid frame) {
+        mMetrics.onFrameDropped();
+        releaseFrame(frame);
+        processNextFrame();
+    }
 
+    /**
+     * Releases the native memory held by the frame buffers. Should be called once the camera is
+     * released, the buffers are allocated again with the next frame.
+     */
+    public void releaseFrameBuffers() {
 
-                }
+        mFramePool.clear();
+//        The page cannot be tracked across camera sessions:
+        NativeWrapper.resetPageTracking();
 
-                mIsRunning = false;
+    }
 
+    /**
+     * Called once the current frame is done. The pause state is checked in receiveFrame, so the
+     * gate can be opened even if the processing is paused.
+     */
+    private void processNextFrame() {
 
-            }
-        };
-    }
+        mFrameState.compareAndSet(FRAME_STATE_BUSY, FRAME_STATE_READY);
 
-    private void releaseMat(Mat mat) {
-        mat.release();
-        Timber.d("releaseMat: released mat");
     }
 
-    private void processNextFrame() {
+    /**
+     * Called once the current frame is done, but the next frame should not be processed before
+     * setProcessFrame(true) is called.
+     */
+    private void waitForNextFrame() {
 
-        if (!mIsPaused)
-            mProcessFrame = true;
+        mFrameState.compareAndSet(FRAME_STATE_BUSY, FRAME_STATE_WAITING);
 
     }
 
+    /**
+     * Enables or disables the processing of the next frame. This has no effect while a frame is
+     * processed, so that never two frames are in flight.
+     */
     public void setProcessFrame(boolean processFrame) {
 
-        mProcessFrame = processFrame;
+        if (processFrame)
+            mFrameState.compareAndSet(FRAME_STATE_WAITING, FRAME_STATE_READY);
+        else
+            mFrameState.compareAndSet(FRAME_STATE_READY, FRAME_STATE_WAITING);
 
     }
 
@@ -408,66 +483,100 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     }
 
+    /**
+     * Blocks the automatic capturing in the series mode, as long as the captured images are not
+     * saved (see CaptureQueue). The frames are skipped, so no picture is taken in the meantime.
+     */
+    public void setIsCaptureBlocked(boolean isCaptureBlocked) {
+
+        mIsCaptureBlocked = isCaptureBlocked;
+
+    }
+
     public void setIsSeriesMode(boolean isSeriesMode) {
 
         mIsSeriesMode = isSeriesMode;
         mIsPaused = false;
-        mProcessFrame = true;
+        setProcessFrame(true);
 
     }
 
     public void receiveFrame(byte[] pixels, int frameWidth, int frameHeight) {
 
-        Timber.d("receiveFrame: mProcessFrame: " + mProcessFrame + " mIsPaused: " + mIsPaused);
+        mMetrics.onFrameReceived();
 
 //        Check if a thread is running or if we should wait in order to lower CPU usage:
-        if (mProcessFrame && !mIsPaused) {
+        if (mFrameState.get() == FRAME_STATE_READY && !mIsPaused) {
 
 
 //            We are in series mode, capture images automatically, and look for changes:
             if (mIsSeriesMode) {
 
+//                The previous pictures are not saved yet, do not take another one:
+                if (mIsCaptureBlocked) {
+                    mMetrics.onFrameSkipped();
+                    return;
+                }
+
+                int checkState = mCheckState.get();
+
                 //            Avoid checking the change status too often:
-                if (mCheckState == CHANGE_TASK_CHECK_MOVEMENT) {
+                if (checkState == CHANGE_TASK_CHECK_MOVEMENT) {
                     if (mLastFrameReceivedTime != NO_TIME_SET &&
-                            (System.currentTimeMillis() - mLastFrameReceivedTime < FRAME_TIME_DIFF))
+                            (System.currentTimeMillis() - mLastFrameReceivedTime <
+                                    mFrameGovernor.getSeriesFrameTimeDiff())) {
+                        mMetrics.onFrameSkipped();
                         return;
+                    }
                 }
 
-                mProcessFrame = false;
-                Mat mat = byte2Mat(pixels, frameWidth, frameHeight);
+//                Claim the frame, this fails if the gate has been closed in the meantime:
+                if (!mFrameState.compareAndSet(FRAME_STATE_READY, FRAME_STATE_BUSY)) {
+                    mMetrics.onFrameSkipped();
+                    return;
+                }
 
-                Timber.d("receiveFrame: allocated mat");
+                FramePyramid frame = buildFrame(pixels, frameWidth, frameHeight);
 
                 //            Remember the last time we received a frame:
                 mLastFrameReceivedTime = System.currentTimeMillis();
-                if (mCheckState == CHANGE_TASK_CHECK_MOVEMENT)
-                    createProcessor(mat, ImageProcessor.ProcessorType.CHANGE);
-                else if (mCheckState == CHANGE_TASK_CHECK_VERIFY_FRAME)
-                    createProcessor(mat, ImageProcessor.ProcessorType.VERIFY);
-                else if (mCheckState == CHANGE_TASK_START_PAGE_DETECTION)
-                    createProcessor(mat, ImageProcessor.ProcessorType.PAGE);
+                if (checkState == CHANGE_TASK_CHECK_MOVEMENT)
+                    createProcessor(frame, ImageProcessor.ProcessorType.CHANGE);
+                else if (checkState == CHANGE_TASK_CHECK_VERIFY_FRAME)
+                    createProcessor(frame, ImageProcessor.ProcessorType.VERIFY);
+                else if (checkState == CHANGE_TASK_START_PAGE_DETECTION)
+                    startAnalysis(frame);
+                else
+                    dropFrame(frame);
             }
 
 //            We are in single mode, just perform page detection and focus measurement:
             else {
 
                 if (mLastFrameReceivedTime != NO_TIME_SET &&
-                        (System.currentTimeMillis() - mLastFrameReceivedTime < FRAME_TIME_DIFF))
+                        (System.currentTimeMillis() - mLastFrameReceivedTime <
+                                mFrameGovernor.getSingleFrameTimeDiff())) {
+                    mMetrics.onFrameSkipped();
+                    return;
+                }
+
+                if (!mFrameState.compareAndSet(FRAME_STATE_READY, FRAME_STATE_BUSY)) {
+                    mMetrics.onFrameSkipped();
                     return;
+                }
 
-                mProcessFrame = false;
-                Mat mat = byte2Mat(pixels, frameWidth, frameHeight);
+                FramePyramid frame = buildFrame(pixels, frameWidth, frameHeight);
 
                 //            Remember the last time we received a frame:
                 mLastFrameReceivedTime = System.currentTimeMillis();
 
-                createProcessor(mat, ImageProcessor.ProcessorType.PAGE);
+                startAnalysis(frame);
 
             }
 
         }
-
+        else
+            mMetrics.onFrameSkipped();
 
     }
 
@@ -596,27 +705,35 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
     }
 
-    private static Mat byte2Mat(byte[] pixels, int frameWidth, int frameHeight) {
+    /**
+     * Builds the FramePyramid that is shared by all processors of this frame. The pyramid is taken
+     * from the pool and has to be given back with releaseFrame.
+     */
+    private FramePyramid buildFrame(byte[] pixels, int frameWidth, int frameHeight) {
 
-        if (sInstance.mIsTesting)
-            return sInstance.getTestMat(frameWidth, frameHeight);
+        long startTime = SystemClock.elapsedRealtime();
 
+        FramePyramid frame = mFramePool.obtain(frameWidth, frameHeight);
 
-        Mat yuv = new Mat((int) (frameHeight * 1.5), frameWidth, CvType.CV_8UC1);
-        yuv.put(0, 0, pixels);
+        if (mIsTesting) {
+            Mat testMat = getTestMat(frameWidth, frameHeight);
+            frame.update(testMat);
+            testMat.release();
+        } else
+            frame.update(pixels);
 
-        Mat result = new Mat(frameHeight, frameWidth, CvType.CV_8UC3);
-        Imgproc.cvtColor(yuv, result, Imgproc.COLOR_YUV2RGB_NV21);
+        mMetrics.recordTime(TaskTimer.TaskType.FRAME_INGEST,
+                SystemClock.elapsedRealtime() - startTime);
 
-        return result;
+        return frame;
 
     }
 
 
-    private void createProcessor(Mat mat, ImageProcessor.ProcessorType type) {
+    private void createProcessor(FramePyramid frame, ImageProcessor.ProcessorType type) {
 
         if (mIsPaused) {
-            releaseMat(mat);
+            dropFrame(frame);
             return;
         }
 
@@ -624,19 +741,16 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
         switch (type) {
             case CHANGE:
-                mExecutor.execute(new ChangeProcessor(this, mat));
+                mExecutor.execute(new ChangeProcessor(this, frame));
                 break;
             case DUPLICATE:
-                mExecutor.execute(new DuplicateProcessor(this, mat));
+                mExecutor.execute(new DuplicateProcessor(this, frame, mPageHashIndex));
                 break;
             case VERIFY:
-                mExecutor.execute(new VerificationProcessor(this, mat));
+                mExecutor.execute(new VerificationProcessor(this, frame));
                 break;
-            case PAGE:
-                mExecutor.execute(new PageProcessor(this, mat));
-                break;
-            case FOCUS:
-                mExecutor.execute(new FocusProcessor(this, mat));
+            case ANALYSIS:
+                mExecutor.execute(new AnalysisProcessor(this, frame, mIsFocusMeasured));
                 break;
         }
 
@@ -644,32 +758,32 @@ public class IPManager implements ImageProcessor.ImageProcessorCallback {
 
 
     @Override
-    public void handleObject(int type, Object[] object, Mat mat) {
-
-        Message completeMessage = mHandler.obtainMessage(type, mat);
-        Bundle bundle = new Bundle();
+    public void handleState(int type, FramePyramid frame) {
 
+//        Results are stored along with the frame by the processors, the message itself is taken
+//        from the pool. The message queue ensures that the IPManager thread sees the result:
+        Message completeMessage = mHandler.obtainMessage(type, frame);
+        completeMessage.sendToTarget();
 
-        switch (type) {
-            case MESSAGE_PAGE_DETECTED:
-                bundle.putParcelableArray(KEY_POLY_RECT, (Parcelable[]) object);
-                break;
-            case MESSAGE_FOCUS_MEASURED:
-                bundle.putParcelableArray(KEY_FOCUS, (Parcelable[]) object);
-                break;
-        }
+    }
 
-        completeMessage.setData(bundle);
-        completeMessage.sendToTarget();
+    @Override
+    public void handleTaskTime(TaskTimer.TaskType type, long time) {
 
+        mFrameGovernor.addStageTime(type, time);
+        mMetrics.recordTime(type, time);
 
     }
 
-    @Override
-    public void handleState(int type, Mat mat) {
+    /**
+     * Sets the fraction of the time in which the preview analysis may keep the CPU busy. A larger
+     * budget leads to a faster auto capture but to a higher power consumption.
+     *
+     * @param cpuBudget value in (0, 1], values outside are ignored
+     */
+    public void setCpuBudget(float cpuBudget) {
 
-        Message completeMessage = mHandler.obtainMessage(type, mat);
-        completeMessage.sendToTarget();
+        mFrameGovernor.setCpuBudget(cpuBudget);
 
     }
 
@@ -1,26 +1,31 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
 import android.os.Process;
+import android.os.SystemClock;
 
-import org.opencv.core.Mat;
-
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
 import timber.log.Timber;
 
 public abstract class ImageProcessor implements Runnable {
 
     protected enum ProcessorType {
-        CHANGE, DUPLICATE, VERIFY, PAGE, FOCUS
+        CHANGE, DUPLICATE, VERIFY, ANALYSIS
     }
 
-    protected Mat mMat;
+    protected FramePyramid mFrame;
     protected ImageProcessorCallback mImageProcessorCallback;
 
     protected abstract void process();
 
-    protected ImageProcessor(ImageProcessorCallback imageProcessorCallback, Mat mat) {
+    /**
+     * @return the TaskType under which the execution time of the processor is recorded
+     */
+    protected abstract TaskTimer.TaskType getTaskType();
+
+    protected ImageProcessor(ImageProcessorCallback imageProcessorCallback, FramePyramid frame) {
 
         mImageProcessorCallback = imageProcessorCallback;
-        mMat = mat;
+        mFrame = frame;
 
     }
 
@@ -40,7 +45,10 @@ public abstract class ImageProcessor implements Runnable {
             }
 
 //            Do the image processing:
+            long startTime = SystemClock.elapsedRealtime();
             process();
+            mImageProcessorCallback.handleTaskTime(getTaskType(),
+                    SystemClock.elapsedRealtime() - startTime);
 
         } catch (InterruptedException e) {
             Timber.e(e);
@@ -52,9 +60,9 @@ public abstract class ImageProcessor implements Runnable {
 
     protected interface ImageProcessorCallback {
 
-        void handleState(int type, Mat mat);
+        void handleState(int type, FramePyramid frame);
 
-        void handleObject(int type, Object[] object, Mat mat);
+        void handleTaskTime(TaskTimer.TaskType type, long time);
 
     }
 
@@ -0,0 +1,59 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.video.BackgroundSubtractorMOG2;
+import org.opencv.video.Video;
+
+/**
+ * ChangeModel based on a MOG2 background subtraction. This has been the only model before the
+ * DifferenceChangeModel was introduced and is more robust against noise, but also more expensive.
+ */
+class Mog2ChangeModel implements ChangeModel {
+
+    private final Mat mFgMask = new Mat();
+    private BackgroundSubtractorMOG2 mSubtractor;
+
+    private int mFrameWidth = -1;
+    private int mFrameHeight = -1;
+
+    @Override
+    public void init(Mat frame) {
+
+        if (mSubtractor == null)
+            mSubtractor = Video.createBackgroundSubtractorMOG2();
+
+        mFrameWidth = frame.cols();
+        mFrameHeight = frame.rows();
+
+//        A learning rate of 1 reinitializes the background model, so the subtractor can be reused:
+        mSubtractor.apply(frame, mFgMask, 1);
+
+    }
+
+    @Override
+    public double getChangeRatio(Mat frame, double learnRate) {
+
+        if (mSubtractor == null || frame.cols() != mFrameWidth || frame.rows() != mFrameHeight) {
+            init(frame);
+            return 0;
+        }
+
+        mSubtractor.apply(frame, mFgMask, learnRate);
+
+//        Shadows (127) are counted as foreground as well:
+        return Core.countNonZero(mFgMask) / (double) mFgMask.total();
+
+    }
+
+    @Override
+    public void release() {
+
+        mFgMask.release();
+        mSubtractor = null;
+        mFrameWidth = -1;
+        mFrameHeight = -1;
+
+    }
+
+}
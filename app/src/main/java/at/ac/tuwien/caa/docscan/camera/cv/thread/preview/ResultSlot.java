@@ -0,0 +1,34 @@
+package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A preallocated single-producer/single-consumer slot that hands a value from one thread to
+ * another without locking and without allocating a container (like a Bundle) for each value.
+ * Since just one frame is in flight, the slot never holds more than one value.
+ */
+class ResultSlot<T> {
+
+    private final AtomicReference<T> mValue = new AtomicReference<>();
+
+    /**
+     * Called by the producer before the consumer is signaled.
+     *
+     * @return false if the last value has not been taken yet (the slot is left unchanged)
+     */
+    boolean publish(T value) {
+
+        return mValue.compareAndSet(null, value);
+
+    }
+
+    /**
+     * Called by the consumer, returns the published value (or null) and empties the slot.
+     */
+    T take() {
+
+        return mValue.getAndSet(null);
+
+    }
+
+}
@@ -1,6 +1,6 @@
 package at.ac.tuwien.caa.docscan.camera.cv.thread.preview;
 
-import org.opencv.core.Mat;
+import at.ac.tuwien.caa.docscan.camera.TaskTimer;
 
 /**
  * A class that is used to determine if the current frame is the same as the one on which the other
@@ -8,20 +8,27 @@ import org.opencv.core.Mat;
  */
 public class VerificationProcessor extends ImageProcessor {
 
-    protected VerificationProcessor(ImageProcessorCallback imageProcessorCallback, Mat mat) {
+    protected VerificationProcessor(ImageProcessorCallback imageProcessorCallback, FramePyramid frame) {
 
-        super(imageProcessorCallback, mat);
+        super(imageProcessorCallback, frame);
 
     }
 
     @Override
     protected void process() {
 
-        if (ChangeDetector.getInstance().isSameFrame(mMat))
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_FRAME_VERIFIED, mMat);
+        if (ChangeDetector.getInstance().isSameFrame(mFrame.getGray()))
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_FRAME_VERIFIED, mFrame);
         else
-            mImageProcessorCallback.handleState(IPManager.MESSAGE_FRAME_NOT_VERIFIED, mMat);
+            mImageProcessorCallback.handleState(IPManager.MESSAGE_FRAME_NOT_VERIFIED, mFrame);
 
 
     }
+
+    @Override
+    protected TaskTimer.TaskType getTaskType() {
+
+        return TaskTimer.TaskType.VERIFY_FRAME;
+
+    }
 }
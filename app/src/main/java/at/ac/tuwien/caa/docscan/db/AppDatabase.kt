@@ -1,23 +1,28 @@
 package at.ac.tuwien.caa.docscan.db
 
 import android.content.Context
+import androidx.annotation.VisibleForTesting
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import at.ac.tuwien.caa.docscan.db.converter.DatabaseTypeConverter
 import at.ac.tuwien.caa.docscan.db.dao.DocumentDao
 import at.ac.tuwien.caa.docscan.db.dao.ExportFileDao
 import at.ac.tuwien.caa.docscan.db.dao.PageDao
+import at.ac.tuwien.caa.docscan.db.dao.PostProcessingJobDao
 import at.ac.tuwien.caa.docscan.db.dao.UserDao
 import at.ac.tuwien.caa.docscan.db.model.Document
 import at.ac.tuwien.caa.docscan.db.model.ExportFile
 import at.ac.tuwien.caa.docscan.db.model.Page
+import at.ac.tuwien.caa.docscan.db.model.PostProcessingJob
 import at.ac.tuwien.caa.docscan.db.model.User
 
 @Database(
-    entities = [Document::class, Page::class, User::class, ExportFile::class],
-    version = 1
+    entities = [Document::class, Page::class, User::class, ExportFile::class, PostProcessingJob::class],
+    version = 3
 )
 @TypeConverters(DatabaseTypeConverter::class)
 abstract class AppDatabase : RoomDatabase() {
@@ -26,16 +31,41 @@ abstract class AppDatabase : RoomDatabase() {
     abstract fun pageDao(): PageDao
     abstract fun userDao(): UserDao
     abstract fun exportFileDao(): ExportFileDao
+    abstract fun postProcessingJobDao(): PostProcessingJobDao
 
     companion object {
         private const val DB_NAME = "docscan.db"
 
+        /**
+         * Adds the post_processing_jobs table, the statement matches the exported schema of
+         * version 2 (see AppDatabaseMigrationTest).
+         */
+        @VisibleForTesting
+        internal val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `post_processing_jobs` (`id` TEXT NOT NULL, `doc_id` TEXT NOT NULL, `page_id` TEXT NOT NULL, `type` TEXT NOT NULL, `file_hash` TEXT NOT NULL, `created_at` INTEGER NOT NULL, PRIMARY KEY(`id`))"
+                )
+            }
+        }
+
+        /**
+         * Adds the is_cropped_virtually column to the pages table, the statement matches the
+         * exported schema of version 3.
+         */
+        @VisibleForTesting
+        internal val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("ALTER TABLE `pages` ADD COLUMN `is_cropped_virtually` INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
         fun buildDatabase(context: Context): AppDatabase {
             return Room.databaseBuilder(
                 context,
                 AppDatabase::class.java,
                 DB_NAME
-            ).build()
+            ).addMigrations(MIGRATION_1_2, MIGRATION_2_3).build()
         }
     }
 }
@@ -4,6 +4,7 @@ import androidx.room.TypeConverter
 import at.ac.tuwien.caa.docscan.db.model.exif.Rotation
 import at.ac.tuwien.caa.docscan.db.model.state.ExportState
 import at.ac.tuwien.caa.docscan.db.model.state.LockState
+import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingJobType
 import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingState
 import at.ac.tuwien.caa.docscan.db.model.state.UploadState
 import java.util.*
@@ -69,4 +70,14 @@ class DatabaseTypeConverter {
     fun fromExportStateToString(pageFileType: ExportState): String {
         return pageFileType.id
     }
+
+    @TypeConverter
+    fun fromStringToPostProcessingJobType(id: String?): PostProcessingJobType {
+        return PostProcessingJobType.getJobTypeById(id)
+    }
+
+    @TypeConverter
+    fun fromPostProcessingJobTypeToString(jobType: PostProcessingJobType): String {
+        return jobType.id
+    }
 }
@@ -15,6 +15,9 @@ interface PageDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insertPage(page: Page)
 
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertPages(pages: List<Page>)
+
     @Delete
     fun deletePage(page: Page)
 
@@ -39,6 +42,9 @@ interface PageDao {
     @Query("UPDATE ${Page.TABLE_NAME_PAGES} SET ${Page.KEY_POST_PROCESSING_STATE}= :state WHERE ${Page.KEY_ID} = :pageId ")
     fun updatePageProcessingState(pageId: UUID, state: PostProcessingState)
 
+    @Query("UPDATE ${Page.TABLE_NAME_PAGES} SET ${Page.KEY_POST_PROCESSING_STATE}= :state, ${Page.KEY_IS_CROPPED_VIRTUALLY} = :isCroppedVirtually WHERE ${Page.KEY_ID} = :pageId ")
+    fun updatePageVirtualCrop(pageId: UUID, state: PostProcessingState, isCroppedVirtually: Boolean)
+
     @Query("UPDATE ${Page.TABLE_NAME_PAGES} SET ${Page.KEY_POST_PROCESSING_STATE}= :state WHERE ${Page.KEY_DOC_ID} = :docId ")
     fun updatePageProcessingStateForDocument(docId: UUID, state: PostProcessingState)
 
@@ -0,0 +1,24 @@
+package at.ac.tuwien.caa.docscan.db.dao
+
+import androidx.annotation.Keep
+import androidx.room.*
+import at.ac.tuwien.caa.docscan.db.model.PostProcessingJob
+import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingJobType
+import java.util.*
+
+@Keep
+@Dao
+interface PostProcessingJobDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertJob(job: PostProcessingJob)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertJobs(jobs: List<PostProcessingJob>)
+
+    @Query("DELETE FROM ${PostProcessingJob.TABLE_NAME_POST_PROCESSING_JOBS} WHERE ${PostProcessingJob.KEY_PAGE_ID} = :pageId AND ${PostProcessingJob.KEY_TYPE} = :type AND ${PostProcessingJob.KEY_FILE_HASH} = :fileHash")
+    suspend fun deleteJobs(pageId: UUID, type: PostProcessingJobType, fileHash: String)
+
+    @Query("SELECT * FROM ${PostProcessingJob.TABLE_NAME_POST_PROCESSING_JOBS} ORDER BY ${PostProcessingJob.KEY_CREATED_AT}")
+    suspend fun getJobs(): List<PostProcessingJob>
+}
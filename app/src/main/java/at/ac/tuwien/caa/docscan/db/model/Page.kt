@@ -90,6 +90,14 @@ data class Page(
     @ColumnInfo(name = KEY_LEGACY_ABSOLUTE_FILE_PATH)
     var legacyFilePath: String? = null,
 
+    /**
+     * True if the page has been cropped virtually, i.e. the page file is the uncropped image and
+     * [singlePageBoundary] and [rotation] are applied whenever the page is shown, exported or
+     * uploaded. Only valid if the page is post processed, see [hasVirtualCrop].
+     */
+    @ColumnInfo(name = KEY_IS_CROPPED_VIRTUALLY, defaultValue = "0")
+    var isCroppedVirtually: Boolean = false,
+
     ) : Parcelable {
     companion object {
         const val TABLE_NAME_PAGES = "pages"
@@ -105,6 +113,7 @@ data class Page(
         const val KEY_EXPORT_STATE = "export_state"
         const val KEY_SINGLE_PAGE_BOUNDARY_PREFIX = "spb"
         const val KEY_LEGACY_ABSOLUTE_FILE_PATH = "legacy_absolute_file_path"
+        const val KEY_IS_CROPPED_VIRTUALLY = "is_cropped_virtually"
     }
 }
 
@@ -132,6 +141,13 @@ fun Page.isPostProcessed(): Boolean {
     return postProcessingState == PostProcessingState.DONE
 }
 
+/**
+ * @return true if the crop of the page has to be applied on the fly to its file.
+ */
+fun Page.hasVirtualCrop(): Boolean {
+    return isPostProcessed() && isCroppedVirtually && singlePageBoundary != null
+}
+
 fun Page.isExporting(): Boolean {
     return exportState == ExportState.EXPORTING
 }
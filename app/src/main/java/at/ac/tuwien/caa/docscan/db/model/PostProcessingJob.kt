@@ -0,0 +1,58 @@
+package at.ac.tuwien.caa.docscan.db.model
+
+import androidx.annotation.Keep
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+import at.ac.tuwien.caa.docscan.db.model.PostProcessingJob.Companion.TABLE_NAME_POST_PROCESSING_JOBS
+import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingJobType
+import java.util.*
+
+/**
+ * Represents a pending post processing operation on a single [Page]. The job is inserted before
+ * the operation is started and deleted after its result has been saved, so the jobs which still
+ * exist after the app has been killed are resumed (see DocumentRepository.sanitizeDocuments).
+ */
+@Keep
+@Entity(tableName = TABLE_NAME_POST_PROCESSING_JOBS)
+data class PostProcessingJob(
+    /**
+     * Uniquely identifies the job.
+     */
+    @PrimaryKey
+    @ColumnInfo(name = KEY_ID)
+    val id: UUID,
+    /**
+     * The id of [Document] to which the page belongs to.
+     */
+    @ColumnInfo(name = KEY_DOC_ID)
+    val docId: UUID,
+    /**
+     * The id of the [Page] which is processed.
+     */
+    @ColumnInfo(name = KEY_PAGE_ID)
+    val pageId: UUID,
+    @ColumnInfo(name = KEY_TYPE)
+    val type: PostProcessingJobType,
+    /**
+     * The hash of the page file before the operation, if the file has a different hash when the
+     * job is resumed, the file has already been replaced by the operation.
+     */
+    @ColumnInfo(name = KEY_FILE_HASH)
+    val fileHash: String,
+    /**
+     * The time of the creation, the jobs are resumed in this order.
+     */
+    @ColumnInfo(name = KEY_CREATED_AT)
+    val createdAt: Long = System.currentTimeMillis()
+) {
+    companion object {
+        const val TABLE_NAME_POST_PROCESSING_JOBS = "post_processing_jobs"
+        const val KEY_ID = "id"
+        const val KEY_DOC_ID = "doc_id"
+        const val KEY_PAGE_ID = "page_id"
+        const val KEY_TYPE = "type"
+        const val KEY_FILE_HASH = "file_hash"
+        const val KEY_CREATED_AT = "created_at"
+    }
+}
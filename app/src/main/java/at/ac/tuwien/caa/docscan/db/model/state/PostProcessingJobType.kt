@@ -0,0 +1,29 @@
+package at.ac.tuwien.caa.docscan.db.model.state
+
+/**
+ * Represents the type of a [PostProcessingJob].
+ */
+enum class PostProcessingJobType(val id: String) {
+    /**
+     * Detects the page boundary of a page.
+     */
+    PAGE_DETECTION("PAGE_DETECTION"),
+
+    /**
+     * Crops a page by its page boundary, this is performed for all pages of a document at once.
+     */
+    CROP("CROP");
+
+    companion object {
+
+        /**
+         * @return [PostProcessingJobType] by id, fallbacks to [PostProcessingJobType.PAGE_DETECTION]
+         */
+        fun getJobTypeById(id: String?): PostProcessingJobType {
+            id ?: return PAGE_DETECTION
+            return values().firstOrNull { type ->
+                type.id == id
+            } ?: PAGE_DETECTION
+        }
+    }
+}
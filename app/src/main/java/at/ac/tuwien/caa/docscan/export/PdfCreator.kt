@@ -2,13 +2,16 @@ package at.ac.tuwien.caa.docscan.export
 
 import android.content.Context
 import android.net.Uri
+import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
-import at.ac.tuwien.caa.docscan.db.model.exif.Rotation
 import at.ac.tuwien.caa.docscan.extensions.await
+import at.ac.tuwien.caa.docscan.logic.Failure
+import at.ac.tuwien.caa.docscan.logic.FileHandler
 import at.ac.tuwien.caa.docscan.logic.Resource
 import at.ac.tuwien.caa.docscan.logic.Success
 import at.ac.tuwien.caa.docscan.logic.asFailure
-import at.ac.tuwien.caa.docscan.logic.calculateImageResolution
+import at.ac.tuwien.caa.docscan.logic.calculatePageResolution
+import at.ac.tuwien.caa.docscan.logic.withRenderedPageFile
 import at.ac.tuwien.caa.docscan.ui.crop.ImageMeta
 import com.google.mlkit.vision.common.InputImage
 import com.google.mlkit.vision.text.Text
@@ -40,13 +43,14 @@ object PdfCreator {
         context: Context,
         outputUri: Uri,
         files: List<FileWrapper>,
+        fileHandler: FileHandler,
         ocrResults: List<Text>? = null
     ): Resource<Unit> {
         context.contentResolver.openOutputStream(outputUri, "rw").use { outputStream ->
             return withContext(Dispatchers.IO) {
                 try {
                     val first = files[0]
-                    var resolution = calculateImageResolution(first.file, first.rotation)
+                    var resolution = calculatePageResolution(first.page, first.file)
                     val landscapeFirst = isLandscape(resolution)
                     val firstPageSize = getPageSize(resolution, landscapeFirst)
                     val document = Document(firstPageSize, 0F, 0F, 0F, 0F)
@@ -62,10 +66,26 @@ object PdfCreator {
                         }
 
                         var file = files[i]
-                        val rotationInDegrees = file.rotation.angle
+                        // a virtual crop is rendered into a temporary file, which is just needed
+                        // until the image has been read
+                        val imageResource = withRenderedPageFile(
+                            file.page,
+                            file.file,
+                            fileHandler
+                        ) { renderedFile, rotation ->
+                            Success(Pair(Image.getInstance(renderedFile.absolutePath), rotation))
+                        }
+                        val (image, rotation) = when (imageResource) {
+                            is Failure -> {
+                                return@withContext Failure(imageResource.exception)
+                            }
+                            is Success -> {
+                                imageResource.data
+                            }
+                        }
+                        val rotationInDegrees = rotation.angle
 
                         //add the original image to the pdf and set the DPI of it to 600
-                        val image = Image.getInstance(file.file.absolutePath)
                         image.setRotationDegrees(-rotationInDegrees.toFloat())
                         if (rotationInDegrees == 0 || rotationInDegrees == 180) image.scaleAbsolute(
                             document.pageSize.width,
@@ -85,7 +105,7 @@ object PdfCreator {
 
                             //sort the result based on the y-Axis so that the markup order is correct
                             val sortedBlocks = sortBlocks(ocrResults[i])
-                            resolution = calculateImageResolution(file.file, file.rotation)
+                            resolution = calculatePageResolution(file.page, file.file)
 
                             //int j = 0;
                             for (column in sortedBlocks) {
@@ -131,7 +151,7 @@ object PdfCreator {
                         if (i < files.size - 1) {
                             file = files[i + 1]
                             val pageSize = getPageSize(
-                                calculateImageResolution(file.file, file.rotation),
+                                calculatePageResolution(file.page, file.file),
                                 landscapeFirst
                             )
                             document.pageSize = pageSize
@@ -262,6 +282,6 @@ object PdfCreator {
         return sortedLines
     }
 
-    data class FileWrapper(val file: File, val rotation: Rotation)
+    data class FileWrapper(val page: Page, val file: File)
 
 }
\ No newline at end of file
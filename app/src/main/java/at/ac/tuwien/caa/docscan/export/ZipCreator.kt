@@ -5,10 +5,12 @@ import android.net.Uri
 import at.ac.tuwien.caa.docscan.db.model.DocumentWithPages
 import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
 import at.ac.tuwien.caa.docscan.db.model.getFileName
+import at.ac.tuwien.caa.docscan.logic.Failure
 import at.ac.tuwien.caa.docscan.logic.FileHandler
 import at.ac.tuwien.caa.docscan.logic.Resource
 import at.ac.tuwien.caa.docscan.logic.Success
 import at.ac.tuwien.caa.docscan.logic.asFailure
+import at.ac.tuwien.caa.docscan.logic.withRenderedPageFile
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.isActive
@@ -43,8 +45,19 @@ object ZipCreator {
                                         )
                                     )
                                     out.putNextEntry(entry)
-                                    file.inputStream().use { input ->
-                                        input.copyTo(out)
+                                    // a virtual crop is rendered just for the time of the copy
+                                    val copyResource = withRenderedPageFile(
+                                        page,
+                                        file,
+                                        fileHandler
+                                    ) { renderedFile, _ ->
+                                        renderedFile.inputStream().use { input ->
+                                            input.copyTo(out)
+                                        }
+                                        Success(Unit)
+                                    }
+                                    if (copyResource is Failure) {
+                                        throw copyResource.exception
                                     }
                                     out.closeEntry()
                                 }
@@ -0,0 +1,62 @@
+package at.ac.tuwien.caa.docscan.glidemodule
+
+import android.graphics.*
+import at.ac.tuwien.caa.docscan.camera.cv.thread.crop.Mapper
+import at.ac.tuwien.caa.docscan.db.model.Page
+import at.ac.tuwien.caa.docscan.db.model.getSingleBoundaryPoints
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool
+import com.bumptech.glide.load.resource.bitmap.BitmapTransformation
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+/**
+ * Shows a virtually cropped page, the perspective transform of the crop is applied to the
+ * (downscaled) bitmap, just like it is applied to the page file during an export or upload.
+ */
+class VirtualCropTransform(private val page: Page) : BitmapTransformation() {
+
+    companion object {
+        private const val ID = "at.ac.tuwien.caa.docscan.glidemodule.VirtualCropTransform"
+        private val ID_BYTES = ID.toByteArray(StandardCharsets.UTF_8)
+    }
+
+    override fun transform(
+        bitmapPool: BitmapPool,
+        original: Bitmap,
+        width: Int,
+        height: Int
+    ): Bitmap {
+        val outputSize = Point()
+        val matrix = Mapper.getCroppingMatrix(
+            ArrayList(page.getSingleBoundaryPoints()),
+            original.width,
+            original.height,
+            outputSize
+        )
+        if (matrix == null || outputSize.x <= 0 || outputSize.y <= 0) {
+            return original
+        }
+
+        val result = bitmapPool[outputSize.x, outputSize.y, Bitmap.Config.ARGB_8888]
+        val canvas = Canvas(result)
+        canvas.drawBitmap(original, matrix, Paint(Paint.FILTER_BITMAP_FLAG))
+        return result
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (other is VirtualCropTransform) {
+            return other.page.singlePageBoundary == this.page.singlePageBoundary
+        }
+        return false
+    }
+
+    override fun hashCode(): Int {
+        return page.singlePageBoundary.hashCode()
+    }
+
+    override fun updateDiskCacheKey(messageDigest: MessageDigest) {
+        messageDigest.update(ID_BYTES)
+        messageDigest.update(page.id.toString().toByteArray(StandardCharsets.UTF_8))
+        messageDigest.update(this.hashCode().toString().toByteArray(StandardCharsets.UTF_8))
+    }
+}
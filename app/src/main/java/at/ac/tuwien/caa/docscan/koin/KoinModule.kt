@@ -11,6 +11,7 @@ import at.ac.tuwien.caa.docscan.api.transkribus.TranskribusAPIService
 import at.ac.tuwien.caa.docscan.api.transkribus.TranskribusHeaderInterceptor
 import at.ac.tuwien.caa.docscan.db.AppDatabase
 import at.ac.tuwien.caa.docscan.logic.FileHandler
+import at.ac.tuwien.caa.docscan.logic.ImageWorkAdmission
 import at.ac.tuwien.caa.docscan.logic.NetworkUtil
 import at.ac.tuwien.caa.docscan.logic.PreferencesHandler
 import at.ac.tuwien.caa.docscan.logic.notification.NotificationHandler
@@ -51,8 +52,10 @@ val appModule = module {
     single { AppDatabase.buildDatabase(get()) }
     single { PreferencesHandler(get(), get()) }
     single { FileHandler(get(), get()) }
+    single { ImageWorkAdmission(get()) }
     single { MigrationRepository(get(), get(), get(), get()) }
-    single { ImageProcessorRepository(get(), get(), get(), get()) }
+    single { ImageWorkScheduler() }
+    single { ImageProcessorRepository(get(), get(), get(), get(), get(), get(), get(), get()) }
     single { WorkManager.getInstance(get()) }
     single { NotificationHandler(get()) }
     single { (get() as Context).getSystemService(Context.STORAGE_SERVICE) as StorageManager }
@@ -65,12 +68,13 @@ val daoModule = module {
     single { (get() as AppDatabase).pageDao() }
     single { (get() as AppDatabase).userDao() }
     single { (get() as AppDatabase).exportFileDao() }
+    single { (get() as AppDatabase).postProcessingJobDao() }
 }
 
 val viewModelModule = module {
-    viewModel { (extras: Bundle) -> SegmentationViewModel(extras, get(), get()) }
+    viewModel { (extras: Bundle) -> SegmentationViewModel(extras, get(), get(), get()) }
     viewModel { StartViewModel(get(), get(), get()) }
-    viewModel { CameraViewModel(get(), get(), get()) }
+    viewModel { CameraViewModel(get(), get(), get(), get()) }
     viewModel { DocumentsViewModel(get(), get(), get()) }
     viewModel { DocumentViewerViewModel(get(), get()) }
     viewModel { CreateDocumentViewModel(get()) }
@@ -90,10 +94,10 @@ val viewModelModule = module {
 }
 
 val repositoryModule = module {
-    single { DocumentRepository(get(), get(), get(), get(), get(), get(), get(), get(), get()) }
+    single { DocumentRepository(get(), get(), get(), get(), get(), get(), get(), get(), get(), get()) }
     single { UserRepository(get(), get(), get(), get(), get()) }
-    single { UploadRepository(get(), get(), get(), get(), get()) }
-    single { ExportRepository(get(), get(), get(), get(), get(), get()) }
+    single { UploadRepository(get(), get(), get(), get(), get(), get()) }
+    single { ExportRepository(get(), get(), get(), get(), get(), get(), get()) }
     single { ExportFileRepository(get()) }
 }
 
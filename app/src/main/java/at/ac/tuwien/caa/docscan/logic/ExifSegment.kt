@@ -0,0 +1,393 @@
+package at.ac.tuwien.caa.docscan.logic
+
+import androidx.exifinterface.media.ExifInterface
+import at.ac.tuwien.caa.docscan.camera.ImageExifMetaData
+import timber.log.Timber
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Writes the exif data of a captured image into the JPEG data in memory, so that the image is
+ * written to the storage just once (instead of writing it and rewriting it with [applyExifData]).
+ *
+ * A new APP1 segment replaces the APP1 segment of the camera. The entries of the camera (IFD0, the
+ * exif IFD and the GPS IFD) are taken over and just the attributes of the [ImageExifMetaData] are
+ * overridden, like [applyExifData] does. Only the thumbnail of the camera and the entries whose
+ * content refers to offsets in the original TIFF structure (e.g. the maker note) are dropped.
+ *
+ * @return the JPEG data with the exif segment or null if the data is not a JPEG or the exif data
+ * cannot be written, use [applyExifData] then.
+ */
+fun ByteArray.withExifData(exifMetaData: ImageExifMetaData): ByteArray? {
+    return try {
+        val segments = findApplicationSegments(this) ?: return null
+        val cameraTiff = segments.exifSegment?.let { (start, end) ->
+            // the TIFF structure follows the marker, the length and the exif header
+            ExifTiffReader(this, start + 4 + EXIF_HEADER.size, end).takeIf { it.read() }
+                ?: return null
+        }
+        val tiff = ExifTiffWriter(exifMetaData, cameraTiff).write()
+        if (tiff.size + EXIF_HEADER.size + 2 > MAX_SEGMENT_LENGTH) {
+            return null
+        }
+
+        val output = ByteArrayOutputStream(size + tiff.size + 10)
+        output.write(0xFF)
+        output.write(MARKER_SOI)
+        output.write(0xFF)
+        output.write(MARKER_APP1)
+        val length = tiff.size + EXIF_HEADER.size + 2
+        output.write(length shr 8)
+        output.write(length and 0xFF)
+        output.write(EXIF_HEADER)
+        output.write(tiff)
+        // the other segments are copied, just the exif segment of the camera is left out
+        var offset = 2
+        segments.exifSegment?.let { (start, end) ->
+            output.write(this, offset, start - offset)
+            offset = end
+        }
+        output.write(this, offset, size - offset)
+        output.toByteArray()
+    } catch (e: Exception) {
+        Timber.e(e, "Writing the exif segment has failed!")
+        null
+    }
+}
+
+private const val MARKER_SOI = 0xD8
+private const val MARKER_APP1 = 0xE1
+private const val MARKER_SOS = 0xDA
+private const val MAX_SEGMENT_LENGTH = 0xFFFF
+private val EXIF_HEADER = byteArrayOf(0x45, 0x78, 0x69, 0x66, 0, 0) // "Exif\0\0"
+
+private class ApplicationSegments(val exifSegment: Pair<Int, Int>?)
+
+/**
+ * Parses the segments in front of the image data.
+ *
+ * @return the position (start, end) of the exif segment if there is one, null if the data is not
+ * a JPEG.
+ */
+private fun findApplicationSegments(jpeg: ByteArray): ApplicationSegments? {
+    if (jpeg.size < 4 || jpeg[0] != 0xFF.toByte() || jpeg[1] != MARKER_SOI.toByte()) {
+        return null
+    }
+    var offset = 2
+    while (offset + 4 <= jpeg.size) {
+        if (jpeg[offset] != 0xFF.toByte()) {
+            return null
+        }
+        val marker = jpeg[offset + 1].toInt() and 0xFF
+        if (marker == MARKER_SOS) {
+            break
+        }
+        val length = ((jpeg[offset + 2].toInt() and 0xFF) shl 8) or (jpeg[offset + 3].toInt() and 0xFF)
+        val end = offset + 2 + length
+        if (length < 2 || end > jpeg.size) {
+            return null
+        }
+        if (marker == MARKER_APP1 && isExifSegment(jpeg, offset + 4, end)) {
+            return ApplicationSegments(Pair(offset, end))
+        }
+        offset = end
+    }
+    return ApplicationSegments(null)
+}
+
+private fun isExifSegment(jpeg: ByteArray, start: Int, end: Int): Boolean {
+    if (end - start < EXIF_HEADER.size) {
+        return false
+    }
+    return EXIF_HEADER.indices.all { i -> jpeg[start + i] == EXIF_HEADER[i] }
+}
+
+private class Entry(val tag: Int, val type: Int, val count: Int, val value: ByteArray)
+
+/**
+ * Reads the entries of IFD0, the exif IFD and the GPS IFD of the TIFF structure of the camera. The
+ * values are kept in the byte order of the camera, the thumbnail (IFD1) is not read. Entries whose
+ * content contains offsets (see [OFFSET_TAGS]) are left out, these would be corrupt after the
+ * entries have been relocated.
+ */
+private class ExifTiffReader(private val data: ByteArray, private val start: Int, private val end: Int) {
+
+    lateinit var order: ByteOrder
+    val ifd0 = mutableListOf<Entry>()
+    val exifIfd = mutableListOf<Entry>()
+    val gpsIfd = mutableListOf<Entry>()
+
+    /**
+     * @return false if the TIFF structure is malformed
+     */
+    fun read(): Boolean {
+        if (end - start < TIFF_HEADER_SIZE) {
+            return false
+        }
+        order = when {
+            data[start] == 0x49.toByte() && data[start + 1] == 0x49.toByte() -> ByteOrder.LITTLE_ENDIAN
+            data[start] == 0x4D.toByte() && data[start + 1] == 0x4D.toByte() -> ByteOrder.BIG_ENDIAN
+            else -> return false
+        }
+        val buffer = ByteBuffer.wrap(data, start, end - start).slice().order(order)
+        if (buffer.getShort(2).toInt() != 42) {
+            return false
+        }
+        val pointers = readIfd(buffer, buffer.getInt(4), ifd0) ?: return false
+        pointers[TAG_EXIF_IFD_POINTER]?.let { offset ->
+            readIfd(buffer, offset, exifIfd) ?: return false
+        }
+        pointers[TAG_GPS_IFD_POINTER]?.let { offset ->
+            readIfd(buffer, offset, gpsIfd) ?: return false
+        }
+        return true
+    }
+
+    /**
+     * Reads the entries of an IFD. The pointers to other IFDs are not taken over, because their
+     * offsets change.
+     *
+     * @return the offsets of the IFD pointers found or null if the IFD is malformed
+     */
+    private fun readIfd(buffer: ByteBuffer, offset: Int, entries: MutableList<Entry>): Map<Int, Int>? {
+        if (offset < TIFF_HEADER_SIZE || offset + 2 > buffer.limit()) {
+            return null
+        }
+        val count = buffer.getShort(offset).toInt() and 0xFFFF
+        if (offset + 2 + count * 12 > buffer.limit()) {
+            return null
+        }
+        val pointers = mutableMapOf<Int, Int>()
+        for (i in 0 until count) {
+            val position = offset + 2 + i * 12
+            val tag = buffer.getShort(position).toInt() and 0xFFFF
+            val type = buffer.getShort(position + 2).toInt() and 0xFFFF
+            val valueCount = buffer.getInt(position + 4)
+            if (tag in POINTER_TAGS) {
+                pointers[tag] = buffer.getInt(position + 8)
+                continue
+            }
+            if (tag in OFFSET_TAGS) {
+                continue
+            }
+            // entries of unknown types cannot be relocated
+            val typeSize = TYPE_SIZES.getOrNull(type) ?: continue
+            val size = valueCount.toLong() * typeSize
+            if (typeSize == 0 || valueCount < 0 || size > buffer.limit()) {
+                continue
+            }
+            val valueOffset = if (size > 4) buffer.getInt(position + 8) else position + 8
+            if (valueOffset < 0 || valueOffset + size > buffer.limit()) {
+                continue
+            }
+            val value = ByteArray(size.toInt())
+            buffer.position(valueOffset)
+            buffer.get(value)
+            entries.add(Entry(tag, type, valueCount, value))
+        }
+        return pointers
+    }
+}
+
+/**
+ * Builds the TIFF structure of the exif segment: IFD0, the exif IFD and the GPS IFD. The entries
+ * of the camera are taken over and the attributes of the app are set. The values are written in
+ * the byte order of the camera (or big endian if there is no camera exif data), so that the
+ * entries of the camera can be copied as they are.
+ */
+private class ExifTiffWriter(exifMetaData: ImageExifMetaData, cameraTiff: ExifTiffReader?) {
+
+    private val order = cameraTiff?.order ?: ByteOrder.BIG_ENDIAN
+    private val ifd0 = cameraTiff?.ifd0?.toMutableList() ?: mutableListOf()
+    private val exifIfd = cameraTiff?.exifIfd?.toMutableList() ?: mutableListOf()
+    private val gpsIfd = cameraTiff?.gpsIfd?.toMutableList() ?: mutableListOf()
+
+    init {
+        ifd0.setEntry(short(TAG_ORIENTATION, exifMetaData.exifOrientation))
+        exifMetaData.resolution?.let {
+            ifd0.setEntry(rational(TAG_X_RESOLUTION, it.x))
+            ifd0.setEntry(rational(TAG_Y_RESOLUTION, it.y))
+        }
+        ifd0.setEntry(ascii(TAG_SOFTWARE, exifMetaData.exifSoftware))
+        exifMetaData.exifArtist?.let { ifd0.setEntry(ascii(TAG_ARTIST, it)) }
+        exifMetaData.exifCopyRight?.let { ifd0.setEntry(ascii(TAG_COPYRIGHT, it)) }
+
+        if (exifIfd.isNotEmpty() && exifIfd.none { entry -> entry.tag == TAG_EXIF_VERSION }) {
+            exifIfd.add(Entry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, "0230".toByteArray()))
+        }
+
+        exifMetaData.location?.let {
+            gpsIfd.setEntry(Entry(TAG_GPS_VERSION_ID, TYPE_BYTE, 4, byteArrayOf(2, 2, 0, 0)))
+            gpsIfd.setEntry(ascii(TAG_GPS_LATITUDE_REF, it.gpsLatRef))
+            gpsIfd.setEntry(rational(TAG_GPS_LATITUDE, it.gpsLat))
+            gpsIfd.setEntry(ascii(TAG_GPS_LONGITUDE_REF, it.gpsLonRef))
+            gpsIfd.setEntry(rational(TAG_GPS_LONGITUDE, it.gpsLon))
+        }
+    }
+
+    /**
+     * Replaces the entry of the camera with the same tag or adds the entry.
+     */
+    private fun MutableList<Entry>.setEntry(entry: Entry) {
+        val index = indexOfFirst { it.tag == entry.tag }
+        if (index != -1) {
+            this[index] = entry
+        } else {
+            add(entry)
+        }
+    }
+
+    fun write(): ByteArray {
+        // the pointers to the sub IFDs are part of IFD0, so their size is known in advance
+        if (exifIfd.isNotEmpty()) {
+            ifd0.add(long(TAG_EXIF_IFD_POINTER, 0))
+        }
+        if (gpsIfd.isNotEmpty()) {
+            ifd0.add(long(TAG_GPS_IFD_POINTER, 0))
+        }
+        ifd0.sortBy { entry -> entry.tag }
+        exifIfd.sortBy { entry -> entry.tag }
+        gpsIfd.sortBy { entry -> entry.tag }
+
+        val ifd0Offset = TIFF_HEADER_SIZE
+        val exifOffset = ifd0Offset + ifdSize(ifd0)
+        val gpsOffset = exifOffset + ifdSize(exifIfd)
+        val size = gpsOffset + ifdSize(gpsIfd)
+
+        setPointer(TAG_EXIF_IFD_POINTER, exifOffset)
+        setPointer(TAG_GPS_IFD_POINTER, gpsOffset)
+
+        val buffer = ByteBuffer.allocate(size).order(order)
+        // "II" or "MM", 42 and the offset of IFD0
+        val orderMark = if (order == ByteOrder.LITTLE_ENDIAN) 0x49.toByte() else 0x4D.toByte()
+        buffer.put(orderMark).put(orderMark).putShort(42.toShort()).putInt(ifd0Offset)
+        writeIfd(buffer, ifd0, ifd0Offset)
+        writeIfd(buffer, exifIfd, exifOffset)
+        writeIfd(buffer, gpsIfd, gpsOffset)
+        return buffer.array()
+    }
+    private fun setPointer(tag: Int, offset: Int) {
+        val index = ifd0.indexOfFirst { entry -> entry.tag == tag }
+        if (index != -1) {
+            ifd0[index] = long(tag, offset)
+        }
+    }
+
+    private fun ifdSize(entries: List<Entry>): Int {
+        if (entries.isEmpty()) {
+            return 0
+        }
+        return 2 + entries.size * 12 + 4 + entries.sumOf { entry -> dataSize(entry) }
+    }
+
+    /**
+     * Values larger than 4 bytes are stored behind the IFD, aligned to a word boundary.
+     */
+    private fun dataSize(entry: Entry): Int {
+        return if (entry.value.size > 4) entry.value.size + entry.value.size % 2 else 0
+    }
+
+    private fun writeIfd(buffer: ByteBuffer, entries: List<Entry>, offset: Int) {
+        if (entries.isEmpty()) {
+            return
+        }
+        buffer.position(offset)
+        buffer.putShort(entries.size.toShort())
+        var dataOffset = offset + 2 + entries.size * 12 + 4
+        entries.forEach { entry ->
+            buffer.putShort(entry.tag.toShort())
+            buffer.putShort(entry.type.toShort())
+            buffer.putInt(entry.count)
+            if (entry.value.size > 4) {
+                buffer.putInt(dataOffset)
+                val position = buffer.position()
+                buffer.position(dataOffset)
+                buffer.put(entry.value)
+                buffer.position(position)
+                dataOffset += dataSize(entry)
+            } else {
+                // smaller values are left aligned in the value field
+                buffer.put(entry.value)
+                repeat(4 - entry.value.size) { buffer.put(0.toByte()) }
+            }
+        }
+        // there is no next IFD
+        buffer.putInt(0)
+    }
+
+    private fun ascii(tag: Int, value: String): Entry {
+        val bytes = (value + '\u0000').toByteArray(Charsets.US_ASCII)
+        return Entry(tag, TYPE_ASCII, bytes.size, bytes)
+    }
+
+    private fun short(tag: Int, value: Int): Entry {
+        return Entry(tag, TYPE_SHORT, 1, ByteBuffer.allocate(2).order(order).putShort(value.toShort()).array())
+    }
+
+    private fun long(tag: Int, value: Int): Entry {
+        return Entry(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).order(order).putInt(value).array())
+    }
+
+    /**
+     * @param value rationals in the format of [ExifInterface.setAttribute], e.g. "79/1,56/1,55903/1000"
+     */
+    private fun rational(tag: Int, value: String): Entry {
+        val rationals = value.split(",").filter { it.isNotBlank() }
+        val buffer = ByteBuffer.allocate(rationals.size * 8).order(order)
+        rationals.forEach { rational ->
+            val parts = rational.trim().split("/")
+            buffer.putInt(parts[0].toLong().toInt())
+            buffer.putInt(if (parts.size > 1) parts[1].toLong().toInt() else 1)
+        }
+        return Entry(tag, TYPE_RATIONAL, rationals.size, buffer.array())
+    }
+}
+
+private const val TIFF_HEADER_SIZE = 8
+
+private const val TYPE_BYTE = 1
+private const val TYPE_ASCII = 2
+private const val TYPE_SHORT = 3
+private const val TYPE_LONG = 4
+private const val TYPE_RATIONAL = 5
+private const val TYPE_UNDEFINED = 7
+
+private const val TAG_ORIENTATION = 0x0112
+private const val TAG_X_RESOLUTION = 0x011A
+private const val TAG_Y_RESOLUTION = 0x011B
+private const val TAG_SOFTWARE = 0x0131
+private const val TAG_ARTIST = 0x013B
+private const val TAG_COPYRIGHT = 0x8298
+private const val TAG_EXIF_IFD_POINTER = 0x8769
+private const val TAG_GPS_IFD_POINTER = 0x8825
+private const val TAG_INTEROPERABILITY_IFD_POINTER = 0xA005
+private const val TAG_STRIP_OFFSETS = 0x0111
+private const val TAG_TILE_OFFSETS = 0x0144
+private const val TAG_SUB_IFDS = 0x014A
+private const val TAG_JPEG_INTERCHANGE_FORMAT = 0x0201
+private const val TAG_MAKER_NOTE = 0x927C
+private const val TAG_PRINT_IM = 0xC4A5
+private const val TAG_DNG_PRIVATE_DATA = 0xC634
+private const val TAG_EXIF_VERSION = 0x9000
+private const val TAG_GPS_VERSION_ID = 0x0000
+private const val TAG_GPS_LATITUDE_REF = 0x0001
+private const val TAG_GPS_LATITUDE = 0x0002
+private const val TAG_GPS_LONGITUDE_REF = 0x0003
+private const val TAG_GPS_LONGITUDE = 0x0004
+
+// the number of bytes of the types, indexed by the type (0 is not a valid type)
+private val TYPE_SIZES = intArrayOf(0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8)
+private val POINTER_TAGS = setOf(TAG_EXIF_IFD_POINTER, TAG_GPS_IFD_POINTER, TAG_INTEROPERABILITY_IFD_POINTER)
+
+// the tags whose values are or contain offsets relative to the original TIFF header, the private
+// data of the manufacturers (maker note, print image matching, DNG) has internal offsets.
+private val OFFSET_TAGS = setOf(
+    TAG_STRIP_OFFSETS,
+    TAG_TILE_OFFSETS,
+    TAG_SUB_IFDS,
+    TAG_JPEG_INTERCHANGE_FORMAT,
+    TAG_MAKER_NOTE,
+    TAG_PRINT_IM,
+    TAG_DNG_PRIVATE_DATA
+)
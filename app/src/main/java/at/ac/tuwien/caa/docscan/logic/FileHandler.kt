@@ -11,6 +11,7 @@ import androidx.annotation.WorkerThread
 import androidx.core.content.FileProvider
 import androidx.work.WorkInfo
 import at.ac.tuwien.caa.docscan.BuildConfig
+import at.ac.tuwien.caa.docscan.camera.PipelineMetrics
 import at.ac.tuwien.caa.docscan.db.model.DocumentWithPages
 import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
@@ -22,6 +23,9 @@ import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import timber.log.Timber
 import java.io.*
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.DigestOutputStream
 import java.security.MessageDigest
 import java.util.*
 import java.util.zip.ZipEntry
@@ -46,6 +50,8 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         const val FOLDER_EXPORTS = "exports"
         const val FOLDER_LOGS = "logs"
         const val FOLDER_TEMP = "temp"
+        const val FOLDER_JOURNAL = "journal"
+        const val FOLDER_SHARE = "share"
 
         // the reason for using two dedicated files is that if one exceeds a certain limit,
         // then the second one will be taken and if both are exceeding, then the newest one (B)
@@ -72,6 +78,13 @@ class FileHandler(private val context: Context, private val storageManager: Stor
     private fun getExportCacheFolder() =
         File(context.cacheDir.absolutePath + File.separator + FOLDER_EXPORTS)
 
+    /**
+     * Post-Condition: No guarantees if the share folder exists.
+     * @return the internal cache folder of the rendered images which are shared.
+     */
+    private fun getShareCacheFolder() =
+        File(context.cacheDir.absolutePath + File.separator + FOLDER_SHARE)
+
     /**
      * Post-Condition: No guarantees if the documents folder exists.
      * @return the file reference to the root's documents folder
@@ -95,6 +108,19 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         return File(docFolder.absolutePath + File.separator + id)
     }
 
+    /**
+     * Post-Condition: No guarantees if the journal folder exists.
+     * @return the file reference to the folder of the pending file transactions.
+     */
+    private fun getJournalFolder() =
+        File(context.filesDir.absolutePath + File.separator + FOLDER_JOURNAL)
+
+    /**
+     * The journal entries of the file transactions of this process, these are not recovered.
+     */
+    private val activeJournalEntries: MutableSet<String> =
+        Collections.synchronizedSet(mutableSetOf())
+
     /**
      * Represents a mutex for appending log output to guarantee thread-safety.
      */
@@ -184,6 +210,7 @@ class FileHandler(private val context: Context, private val storageManager: Stor
      * - a text files which consists of the captured logging from custom timber tree.
      * - a file which contains several infos about the used device (see [appendDeviceInfo])
      * - a file which contains infos about pending worker manager jobs.
+     * - a file which contains the latencies and throughput of the camera (see [PipelineMetrics]).
      */
     @WorkerThread
     suspend fun exportLogAsZip(): Resource<Uri> {
@@ -219,6 +246,13 @@ class FileHandler(private val context: Context, private val storageManager: Stor
                                 writer.appendWorkerManagerInfo(getCurrentWorkerJobStates(context))
                                 writer.flush()
                                 out.closeEntry()
+
+                                val cameraMetrics =
+                                    ZipEntry("camera_metrics" + "." + PageFileType.TXT.extension)
+                                out.putNextEntry(cameraMetrics)
+                                writer.println(PipelineMetrics.getInstance().summary)
+                                writer.flush()
+                                out.closeEntry()
                             }
                         }
                     }
@@ -405,6 +439,26 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         return file
     }
 
+    /**
+     * Creates a file for a rendered image which is shared. The file is not deleted after it has
+     * been shared, since it is read by another app, see [clearShareCache].
+     */
+    fun createCacheFileForShare(fileId: UUID, fileType: PageFileType = PageFileType.JPEG): File {
+        val shareFolder = getShareCacheFolder().createFolderIfNecessary()
+        val file =
+            File(shareFolder.absolutePath + File.separator + fileId.toString() + "." + fileType.extension)
+        // delete the previous cached file
+        file.safelyDelete()
+        return file
+    }
+
+    /**
+     * Deletes the rendered images of previous shares.
+     */
+    fun clearShareCache() {
+        getShareCacheFolder().safelyRecursiveDelete()
+    }
+
     fun createDocumentFile(documentId: UUID, fileId: UUID, fileType: PageFileType): File {
         return getDocumentFileById(
             documentId.toString(),
@@ -443,6 +497,101 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         }
     }
 
+    /**
+     * Replaces the content of [target] transactionally, without copying [target] for a rollback:
+     * [write] writes the new content to a temp file next to [target], which is synced and then
+     * renamed to [target]. The rename is atomic, so [target] keeps either its old or its new
+     * content, even if the app is killed. The folder of [target] is synced after the rename, so the
+     * new content also survives a power loss (only as of Android 8, on older versions the rename
+     * is left to the file system). A temp file which has been left behind by an interrupted
+     * transaction is deleted by [recoverFileTransactions].
+     *
+     * Pre-Condition: [target] is not replaced concurrently.
+     *
+     * @param write writes the new content to the passed temp file, if it fails, [target] is
+     * not changed.
+     * @return the resource of [write] or [IOErrorCode.FILE_COPY_ERROR] if the temp file could not
+     * be created or renamed.
+     */
+    fun <T> replaceFileResource(target: File, write: (tempFile: File) -> Resource<T>): Resource<T> {
+        val id = UUID.randomUUID().toString()
+        val tempFile = File(
+            target.parentFile,
+            target.nameWithoutExtension + "-" + id + ".tmp." + target.extension
+        )
+        val journalEntry = File(getJournalFolder().createFolderIfNecessary(), id)
+        activeJournalEntries.add(id)
+        try {
+            // the journal entry is written first, so that the temp file is always known.
+            journalEntry.outputStream().use {
+                it.write(tempFile.absolutePath.toByteArray())
+                it.fd.sync()
+            }
+            val resource = try {
+                write(tempFile)
+            } catch (e: Exception) {
+                IOErrorCode.FILE_COPY_ERROR.asFailure(e)
+            }
+            if (resource is Success) {
+                tempFile.sync()
+                if (!tempFile.renameTo(target)) {
+                    throw IOException("Renaming ${tempFile.name} to ${target.name} has failed!")
+                }
+                target.parentFile?.syncFolder()
+            }
+            return resource
+        } catch (e: Exception) {
+            return IOErrorCode.FILE_COPY_ERROR.asFailure(e)
+        } finally {
+            // if the rename has succeeded, the temp file does not exist anymore.
+            tempFile.safelyDelete()
+            journalEntry.safelyDelete()
+            activeJournalEntries.remove(id)
+        }
+    }
+
+    /**
+     * Replaces [to] by [from], [from] is renamed if both files are on the same file system,
+     * otherwise it is copied (see [replaceFileResource]).
+     *
+     * Post-Condition: [from] does not exist anymore if the operation was successful.
+     */
+    fun moveFileResource(from: File, to: File): Resource<Unit> {
+        from.sync()
+        if (from.renameTo(to)) {
+            return Success(Unit)
+        }
+        return replaceFileResource(to) { tempFile ->
+            copyFile(from, tempFile)
+            Success(Unit)
+        }.applyOnSuccess {
+            from.safelyDelete()
+        }
+    }
+
+    /**
+     * Deletes the temp files of the file transactions that have been interrupted (see
+     * [replaceFileResource]), the target files have not been changed by these.
+     */
+    fun recoverFileTransactions() {
+        val journalEntries = getJournalFolder().listFiles() ?: return
+        journalEntries.forEach { journalEntry ->
+            if (activeJournalEntries.contains(journalEntry.name)) {
+                return@forEach
+            }
+            try {
+                val tempFile = File(journalEntry.readText())
+                if (tempFile.safeExists()) {
+                    Timber.i("Deleting temp file ${tempFile.name} of an interrupted transaction")
+                    tempFile.safelyDelete()
+                }
+            } catch (e: Exception) {
+                Timber.e(e, "Recovering the file transaction ${journalEntry.name} has failed!")
+            }
+            journalEntry.safelyDelete()
+        }
+    }
+
     @Throws(Exception::class)
     fun copyByteArray(from: ByteArray, to: File) {
         try {
@@ -454,6 +603,21 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         }
     }
 
+    /**
+     * Writes [from] to [to] and computes the MD5 hash of the written bytes in the same pass, so
+     * the file does not need to be read again for [getFileHash].
+     *
+     * @return the hash in the format of [getFileHash].
+     */
+    @Throws(Exception::class)
+    fun copyByteArrayWithHash(from: ByteArray, to: File): String {
+        val digest = MessageDigest.getInstance(HASH_ALGORITHM)
+        DigestOutputStream(to.outputStream(), digest).use {
+            it.write(from)
+        }
+        return digest.digest().toHexString().lowercase()
+    }
+
     @Throws(Exception::class)
     fun copyUriToFile(from: Uri, to: File) {
         try {
@@ -542,7 +706,7 @@ class FileHandler(private val context: Context, private val storageManager: Stor
         return getUriResource(file, outputFileName)
     }
 
-    private fun getUriResource(file: File, fileName: String): Resource<Uri> {
+    fun getUriResource(file: File, fileName: String): Resource<Uri> {
         return try {
             Success(getUri(file, fileName))
         } catch (e: Exception) {
@@ -575,7 +739,9 @@ fun File.getFileHash(): String {
     }
 }
 
-private fun File.calcHash(algorithm: String = "MD5", bufferSize: Int = 1024): ByteArray {
+private const val HASH_ALGORITHM = "MD5"
+
+private fun File.calcHash(algorithm: String = HASH_ALGORITHM, bufferSize: Int = 1024): ByteArray {
     this.inputStream().use { input ->
         val buffer = ByteArray(bufferSize)
         val digest = MessageDigest.getInstance(algorithm)
@@ -641,6 +807,34 @@ fun File.safelyDelete(forceLog: Boolean = false) {
     }
 }
 
+/**
+ * Flushes the content of [this] file to the storage device.
+ */
+@Throws(IOException::class)
+private fun File.sync() {
+    RandomAccessFile(this, "rw").use {
+        it.fd.sync()
+    }
+}
+
+/**
+ * Flushes the entries of [this] folder (e.g. a rename) to the storage device. A folder cannot be
+ * opened by the java.io streams, so this is only possible as of Android 8.
+ */
+private fun File.syncFolder() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+        return
+    }
+    try {
+        FileChannel.open(toPath(), StandardOpenOption.READ).use {
+            it.force(true)
+        }
+    } catch (e: IOException) {
+        // the content has already been replaced, it is just not guaranteed to be durable.
+        Timber.w(e, "Syncing the folder $name has failed!")
+    }
+}
+
 private fun File.createFolderIfNecessary(): File {
     if (!this.exists()) {
         this.mkdirs()
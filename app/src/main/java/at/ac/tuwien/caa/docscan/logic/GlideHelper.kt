@@ -7,8 +7,11 @@ import at.ac.tuwien.caa.docscan.DocScanApp
 import at.ac.tuwien.caa.docscan.R
 import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.db.model.exif.Rotation
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
 import at.ac.tuwien.caa.docscan.glidemodule.CropRectTransform
 import at.ac.tuwien.caa.docscan.glidemodule.GlideApp
+import at.ac.tuwien.caa.docscan.glidemodule.GlideRequest
+import at.ac.tuwien.caa.docscan.glidemodule.VirtualCropTransform
 import com.bumptech.glide.load.DataSource
 import com.bumptech.glide.load.engine.GlideException
 import com.bumptech.glide.load.resource.bitmap.BitmapTransformation
@@ -46,6 +49,7 @@ object GlideHelper {
             imageView,
             null,
             null,
+            null,
             file,
             PageFileType.JPEG,
             rotation,
@@ -94,6 +98,7 @@ object GlideHelper {
                     app,
                     imageView,
                     CropRectTransform(page, imageView.context),
+                    if (page.hasVirtualCrop()) VirtualCropTransform(page) else null,
                     fileHash,
                     file,
                     PageFileType.JPEG,
@@ -116,6 +121,9 @@ object GlideHelper {
      * Loads an image into a imageview with Glide.
      * @param fileHash if available, then this will be used as a key for caching, otherwise it fall
      * backs to [MediaStoreSignature].
+     * @param cropTransformation the virtual crop of the page, which is applied before the
+     * transformations of the [style]. It is not applied for [GlideStyles.IMAGES_UNCROPPED], which
+     * shows the crop by [transformation].
      *
      * Please note, that any kind of manipulation of the [file] during an image load may lead to very
      * bad issues, where the app may crash and the file gets corrupted, always ensure that when this
@@ -125,6 +133,7 @@ object GlideHelper {
         context: Context,
         imageView: ImageView,
         transformation: BitmapTransformation?,
+        cropTransformation: BitmapTransformation?,
         fileHash: String?,
         file: File,
         @Suppress("SameParameterValue") fileType: PageFileType,
@@ -178,30 +187,45 @@ object GlideHelper {
 
         val glideTransformRequest = when (style) {
             GlideStyles.DEFAULT -> {
-                glideRequest
+                glideRequest.transformAll(cropTransformation)
             }
             GlideStyles.CAMERA_THUMBNAIL -> {
-                glideRequest.transform(CircleCrop()).transition(withCrossFade(factory))
+                glideRequest.transformAll(cropTransformation, CircleCrop())
+                    .transition(withCrossFade(factory))
             }
             GlideStyles.DOCUMENT_PREVIEW -> {
-                glideRequest.transform(
+                glideRequest.transformAll(
+                    cropTransformation,
                     CenterCrop(),
                     RoundedCorners(context.resources.getDimensionPixelSize(R.dimen.document_preview_corner_radius))
                 ).transition(withCrossFade(factory))
             }
             GlideStyles.IMAGE_CROPPED -> {
-                glideRequest.transition(withCrossFade(factory))
+                glideRequest.transformAll(cropTransformation).transition(withCrossFade(factory))
             }
             GlideStyles.IMAGES_UNCROPPED -> {
-                transformation?.let {
-                    glideRequest.transform(it).transition(withCrossFade(factory))
-                } ?: glideRequest.transition(withCrossFade(factory))
+                glideRequest.transformAll(transformation)
+                    .transition(withCrossFade(factory))
             }
         }
 
         glideTransformRequest.into(imageView)
     }
 
+    /**
+     * Applies the [transformations] one after another, a single transformation would otherwise
+     * replace the previous ones.
+     */
+    private fun GlideRequest<Drawable>.transformAll(
+        vararg transformations: BitmapTransformation?
+    ): GlideRequest<Drawable> {
+        val appliedTransformations = transformations.filterNotNull()
+        if (appliedTransformations.isEmpty()) {
+            return this
+        }
+        return transform(*appliedTransformations.toTypedArray())
+    }
+
     enum class GlideStyles {
         DEFAULT,
         CAMERA_THUMBNAIL,
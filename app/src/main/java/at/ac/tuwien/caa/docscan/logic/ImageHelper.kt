@@ -1,11 +1,18 @@
 package at.ac.tuwien.caa.docscan.logic
 
 import android.graphics.BitmapFactory
+import android.graphics.Point
 import androidx.annotation.WorkerThread
+import at.ac.tuwien.caa.docscan.camera.cv.thread.crop.Mapper
+import at.ac.tuwien.caa.docscan.db.model.Page
+import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
 import at.ac.tuwien.caa.docscan.db.model.exif.Rotation
+import at.ac.tuwien.caa.docscan.db.model.getSingleBoundaryPoints
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
 import at.ac.tuwien.caa.docscan.ui.crop.ImageMeta
 import timber.log.Timber
 import java.io.File
+import java.util.*
 
 @WorkerThread
 fun calculateImageResolution(file: File, rotation: Rotation): ImageMeta {
@@ -26,3 +33,68 @@ fun calculateImageResolution(file: File, rotation: Rotation): ImageMeta {
     }
     return ImageMeta(0, 0, .0)
 }
+
+/**
+ * @return the resolution of the page as it is shown, exported and uploaded, i.e. the resolution of
+ * the cropped image if the page has a virtual crop.
+ */
+@WorkerThread
+fun calculatePageResolution(page: Page, file: File): ImageMeta {
+    val resolution = calculateImageResolution(file, page.rotation)
+    if (!page.hasVirtualCrop() || resolution.width <= 0 || resolution.height <= 0) {
+        return resolution
+    }
+    val outputSize = Point()
+    Mapper.getCroppingMatrix(
+        ArrayList(page.getSingleBoundaryPoints()),
+        resolution.width,
+        resolution.height,
+        outputSize
+    ) ?: return resolution
+    if (outputSize.x <= 0 || outputSize.y <= 0) {
+        return resolution
+    }
+    return ImageMeta(outputSize.x, outputSize.y, outputSize.x / outputSize.y.toDouble())
+}
+
+/**
+ * Provides the image of [page] as it is exported or uploaded to [block]:
+ * - if the page has a virtual crop, the crop is rendered into a cache file, which is deleted after
+ * [block], the orientation of the cache file is normal, since it is applied by the crop.
+ * - otherwise [block] gets the page [file] with the rotation of the page.
+ *
+ * @param imageWorkAdmission if available, the rendering is admitted by it, otherwise the caller
+ * has to account for the rendering, see [ImageWorkAdmission.estimateBytes].
+ */
+suspend fun <T> withRenderedPageFile(
+    page: Page,
+    file: File,
+    fileHandler: FileHandler,
+    imageWorkAdmission: ImageWorkAdmission? = null,
+    block: suspend (file: File, rotation: Rotation) -> Resource<T>
+): Resource<T> {
+    if (!page.hasVirtualCrop()) {
+        return block(file, page.rotation)
+    }
+    val renderedFile = fileHandler.createCacheFileForExport(UUID.randomUUID(), PageFileType.JPEG)
+    try {
+        val render: suspend () -> File? = {
+            Mapper.applyCropping(file, ArrayList(page.getSingleBoundaryPoints()), renderedFile)
+        }
+        val croppedFile = if (imageWorkAdmission != null) {
+            imageWorkAdmission.withPermit(file, ImageWork.CROP) {
+                render()
+            }
+        } else {
+            render()
+        }
+        croppedFile ?: return IOErrorCode.CROPPING_FAILED.asFailure()
+        // the exif data is copied to the cropped image, just like in a destructive crop
+        getExifInterface(file)?.let {
+            saveExifAfterCrop(it, croppedFile)
+        }
+        return block(croppedFile, Rotation.ORIENTATION_NORMAL)
+    } finally {
+        renderedFile.safelyDelete()
+    }
+}
@@ -0,0 +1,198 @@
+package at.ac.tuwien.caa.docscan.logic
+
+import android.app.ActivityManager
+import android.content.Context
+import at.ac.tuwien.caa.docscan.camera.cv.ImageDecoder
+import at.ac.tuwien.caa.docscan.db.model.Page
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import timber.log.Timber
+import java.io.File
+import java.util.*
+
+/**
+ * Admits memory intensive image operations (cropping, OCR, segmentation, export) only while their
+ * estimated peak memory fits into a budget, which is derived from the memory of the device, and
+ * while fewer operations than cores are running. Operations that do not fit are suspended in the
+ * order of their requests, so a large image is not starved by smaller ones.
+ *
+ * A single operation that exceeds the whole budget is admitted if nothing else is running.
+ */
+class ImageWorkAdmission(
+    private val budgetBytes: Long,
+    private val maxRunningJobs: Int
+) {
+
+    private val mutex = Mutex()
+    private val waiters = LinkedList<Waiter>()
+    private var usedBytes = 0L
+    private var runningJobs = 0
+
+    constructor(context: Context) : this(
+        getBudgetBytes(context),
+        Runtime.getRuntime().availableProcessors().coerceAtLeast(1)
+    )
+
+    init {
+        Timber.d("image work budget: $budgetBytes bytes, max. jobs: $maxRunningJobs")
+    }
+
+    /**
+     * Runs [block] as soon as [work] on [file] fits into the budget.
+     */
+    suspend fun <T> withPermit(file: File, work: ImageWork, block: suspend () -> T): T {
+        return withPermit(estimateBytes(file, work), block)
+    }
+
+    /**
+     * Runs [block] as soon as [bytes] fit into the budget.
+     */
+    suspend fun <T> withPermit(bytes: Long, block: suspend () -> T): T {
+        val cost = bytes.coerceIn(0, budgetBytes)
+        acquire(cost)
+        try {
+            return block()
+        } finally {
+            withContext(NonCancellable) {
+                mutex.withLock {
+                    releaseLocked(cost)
+                }
+            }
+        }
+    }
+
+    private suspend fun acquire(cost: Long) {
+        val waiter = mutex.withLock {
+            if (waiters.isEmpty() && fits(cost)) {
+                admitLocked(cost)
+                return
+            }
+            Waiter(cost).also { waiters.add(it) }
+        }
+        try {
+            waiter.admitted.await()
+        } catch (e: CancellationException) {
+            withContext(NonCancellable) {
+                mutex.withLock {
+                    // the waiter might have been admitted in the meantime
+                    if (!waiters.remove(waiter)) {
+                        releaseLocked(cost)
+                    }
+                }
+            }
+            throw e
+        }
+    }
+
+    private fun fits(cost: Long): Boolean {
+        if (runningJobs == 0) {
+            return true
+        }
+        return runningJobs < maxRunningJobs && usedBytes + cost <= budgetBytes
+    }
+
+    private fun admitLocked(cost: Long) {
+        usedBytes += cost
+        runningJobs++
+    }
+
+    private fun releaseLocked(cost: Long) {
+        usedBytes -= cost
+        runningJobs--
+        // the waiters are admitted in order, the first one that does not fit blocks the others.
+        while (waiters.isNotEmpty() && fits(waiters.first.cost)) {
+            val waiter = waiters.removeFirst()
+            admitLocked(waiter.cost)
+            waiter.admitted.complete(Unit)
+        }
+    }
+
+    private class Waiter(val cost: Long) {
+        val admitted = CompletableDeferred<Unit>()
+    }
+
+    companion object {
+        private const val MIN_BUDGET_BYTES = 64L * 1024 * 1024
+        private const val MAX_BUDGET_BYTES = 512L * 1024 * 1024
+
+        private fun getBudgetBytes(context: Context): Long {
+            val activityManager =
+                context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+            val memoryInfo = ActivityManager.MemoryInfo()
+            activityManager.getMemoryInfo(memoryInfo)
+            // most of the memory is allocated natively (OpenCV, ML Kit), so the budget is a share
+            // of the device memory and not of the java heap.
+            return if (activityManager.isLowRamDevice) {
+                MIN_BUDGET_BYTES
+            } else {
+                (memoryInfo.totalMem / 8).coerceIn(MIN_BUDGET_BYTES, MAX_BUDGET_BYTES)
+            }
+        }
+
+        /**
+         * Estimates the peak memory of [work] on [file] by the size of the image, without decoding
+         * it.
+         */
+        fun estimateBytes(file: File, work: ImageWork): Long {
+            if (work == ImageWork.EXPORT) {
+                return (file.length() * work.bytesPerPixel).toLong()
+            }
+            val bounds = ImageDecoder.decodeBounds(file.absolutePath)
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                // the image cannot be read, the operation will fail fast.
+                return 0
+            }
+            val sampleSize = if (work == ImageWork.SEGMENTATION) {
+                ImageDecoder.getSampleSize(bounds.outWidth, bounds.outHeight, SEGMENTATION_SIDE)
+            } else {
+                1
+            }
+            val pixels = (bounds.outWidth / sampleSize).toLong() * (bounds.outHeight / sampleSize)
+            return (pixels * work.bytesPerPixel).toLong()
+        }
+
+        /**
+         * Estimates the peak memory of [work] on the [file] of [page], the virtual crop of the page
+         * is rendered before the work, see [withRenderedPageFile].
+         */
+        fun estimateBytes(page: Page, file: File, work: ImageWork): Long {
+            val bytes = estimateBytes(file, work)
+            if (!page.hasVirtualCrop()) {
+                return bytes
+            }
+            return maxOf(bytes, estimateBytes(file, ImageWork.CROP))
+        }
+
+        private const val SEGMENTATION_SIDE = 513
+    }
+}
+
+/**
+ * The image operations with their peak memory per pixel of the image.
+ */
+enum class ImageWork(val bytesPerPixel: Float) {
+    /**
+     * The BGR source image, the BGR output and the buffers of the perspective transform.
+     */
+    CROP(7F),
+
+    /**
+     * The ARGB bitmap and the grayscale and scaled copies of the text recognition.
+     */
+    OCR(6F),
+
+    /**
+     * The reduced ARGB bitmap, its oriented copy and the model tensors.
+     */
+    SEGMENTATION(12F),
+
+    /**
+     * The export holds the encoded image, the cost is given per byte of the file.
+     */
+    EXPORT(2F)
+}
@@ -110,6 +110,14 @@ class PreferencesHandler(val context: Context, private val userDao: UserDao) {
         context.resources.getBoolean(R.bool.key_fast_segmentation_default)
     }
 
+    private val KEY_VIRTUAL_CROPPING by lazy {
+        context.getString(R.string.key_virtual_cropping)
+    }
+
+    private val DEFAULT_VIRTUAL_CROPPING by lazy {
+        context.resources.getBoolean(R.bool.key_virtual_cropping_default)
+    }
+
     private val KEY_SHOW_GRID by lazy {
         context.getString(R.string.key_show_grid)
     }
@@ -297,6 +305,23 @@ class PreferencesHandler(val context: Context, private val userDao: UserDao) {
                 .apply()
         }
 
+    /**
+     * True if the pages are cropped virtually, i.e. the crop is applied on the fly and the page
+     * files are not replaced.
+     */
+    var isVirtualCroppingEnabled: Boolean
+        get() {
+            return defaultSharedPreferences.getBoolean(
+                KEY_VIRTUAL_CROPPING,
+                DEFAULT_VIRTUAL_CROPPING
+            )
+        }
+        set(value) {
+            defaultSharedPreferences.edit()
+                .putBoolean(KEY_VIRTUAL_CROPPING, value)
+                .apply()
+        }
+
     var isFocusMeasure: Boolean
         get() {
             return defaultSharedPreferences.getBoolean(
@@ -6,7 +6,9 @@ import androidx.annotation.WorkerThread
 import androidx.room.withTransaction
 import androidx.work.WorkManager
 import at.ac.tuwien.caa.docscan.R
+import at.ac.tuwien.caa.docscan.camera.CapturedImage
 import at.ac.tuwien.caa.docscan.camera.ImageExifMetaData
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint
 import at.ac.tuwien.caa.docscan.db.AppDatabase
 import at.ac.tuwien.caa.docscan.db.dao.DocumentDao
 import at.ac.tuwien.caa.docscan.db.dao.PageDao
@@ -27,7 +29,6 @@ import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.withContext
 import timber.log.Timber
-import java.io.File
 import java.util.*
 
 class DocumentRepository(
@@ -39,7 +40,8 @@ class DocumentRepository(
     private val db: AppDatabase,
     private val imageProcessorRepository: ImageProcessorRepository,
     private val workManager: WorkManager,
-    private val userRepository: UserRepository
+    private val userRepository: UserRepository,
+    private val imageWorkAdmission: ImageWorkAdmission
 ) {
 
     fun getPageByIdAsFlow(pageId: UUID) = documentDao.getPageAsFlow(pageId)
@@ -68,7 +70,14 @@ class DocumentRepository(
     @WorkerThread
     suspend fun sanitizeDocuments(): Resource<Unit> {
         Timber.i("sanitize documents!")
+        // delete the temp files of file operations that have been interrupted
+        fileHandler.recoverFileTransactions()
+        // the documents of resumed post processing jobs are unlocked by the jobs
+        val resumedDocIds = imageProcessorRepository.resumePostProcessingJobs()
         documentDao.getAllLockedDocumentWithPages().forEach {
+            if (resumedDocIds.contains(it.document.id)) {
+                return@forEach
+            }
             if (it.document.lockState == LockState.PARTIAL_LOCK) {
                 it.pages.forEach { page ->
                     if (page.isProcessing()) {
@@ -108,6 +117,8 @@ class DocumentRepository(
             val result = performPageOperation(it.docId, it.id, operation = { _, page ->
                 documentDao.deletePage(page)
                 fileHandler.getFileByPage(it)?.safelyDelete()
+                // the pending image work would fail on the deleted page
+                imageProcessorRepository.cancelPageWork(page.id)
                 return@performPageOperation Success(Unit)
             })
             when (result) {
@@ -126,6 +137,14 @@ class DocumentRepository(
         return Success(Unit)
     }
 
+    /**
+     * Moves the pending image work (e.g. the page detection) of the pages in front of other work,
+     * because the pages are visible.
+     */
+    fun prioritizePages(pageIds: Collection<UUID>) {
+        imageProcessorRepository.prioritizePages(pageIds)
+    }
+
     @WorkerThread
     suspend fun deletePage(page: Page?): Resource<Unit> {
         page ?: return DBErrorCode.ENTRY_NOT_AVAILABLE.asFailure()
@@ -167,8 +186,9 @@ class DocumentRepository(
                 return Failure(checkLockResult.exception)
             }
             is Success -> {
+                fileHandler.clearShareCache()
                 val urisResults = doc.pages.map {
-                    val uriResource = fileHandler.getUriByPageResource(
+                    val uriResource = getShareUriResource(
                         it,
                         doc.document.getFileName(it.index + 1, it.fileType)
                     )
@@ -186,6 +206,49 @@ class DocumentRepository(
         }
     }
 
+    /**
+     * @return the uri of the image of [page] for sharing it as [fileName].
+     */
+    @WorkerThread
+    suspend fun sharePage(page: Page, fileName: String): Resource<Uri> {
+        Timber.i("share page")
+        fileHandler.clearShareCache()
+        return getShareUriResource(page, fileName)
+    }
+
+    /**
+     * Provides the uri of the image of [page] as it is exported, i.e. the virtual crop of the page
+     * is rendered into the share cache (see [withRenderedPageFile]), otherwise the page file is
+     * shared.
+     */
+    private suspend fun getShareUriResource(page: Page, fileName: String): Resource<Uri> {
+        if (!page.hasVirtualCrop()) {
+            return fileHandler.getUriByPageResource(page, fileName)
+        }
+        val file = when (val fileResource = fileHandler.getFileByPageResource(page)) {
+            is Failure -> {
+                return Failure(fileResource.exception)
+            }
+            is Success -> {
+                fileResource.data
+            }
+        }
+        val sharedFile = fileHandler.createCacheFileForShare(page.id)
+        val renderResource =
+            withRenderedPageFile(page, file, fileHandler, imageWorkAdmission) { renderedFile, _ ->
+                // the rendered file is deleted afterwards, so it is moved into the share cache
+                fileHandler.moveFileResource(renderedFile, sharedFile)
+            }
+        return when (renderResource) {
+            is Failure -> {
+                Failure(renderResource.exception)
+            }
+            is Success -> {
+                fileHandler.getUriResource(sharedFile, fileName)
+            }
+        }
+    }
+
     @WorkerThread
     suspend fun cancelDocumentUpload(documentId: UUID): Resource<Unit> {
         Timber.i("cancel upload for document: $documentId")
@@ -440,12 +503,17 @@ class DocumentRepository(
         }
     }
 
+    /**
+     * @param pageHint the page of the camera preview at the time the image was taken, the page
+     * detection just refines it (or takes it as it is, if it is stable).
+     */
     @WorkerThread
     suspend fun saveNewImageForDocument(
         documentId: UUID,
         data: ByteArray,
         fileId: UUID? = null,
-        exifMetaData: ImageExifMetaData?
+        exifMetaData: ImageExifMetaData?,
+        pageHint: PageHint? = null
     ): Resource<Page> {
         val document = documentDao.getDocument(documentId) ?: kotlin.run {
             return DBErrorCode.ENTRY_NOT_AVAILABLE.asFailure()
@@ -456,60 +524,169 @@ class DocumentRepository(
         }
         // TODO: Make a check here, if there is enough storage to save the file.
         // if fileId is provided, then it means that a file is being replaced.
+        val image = when (val resource = writeImageFile(documentId, fileId, data, exifMetaData)) {
+            is Failure -> return Failure(resource.exception)
+            is Success -> resource.data
+        }
+
+        // TODO: When adding/removing pages, add a generic check to adapt the page number correctly.
+        // for a replacement, just take the number of the old page.
+        // for a new page, take the max number and add + 1 to it.
+        val pageNumber =
+            pageDao.getPageById(image.fileId)?.index ?: getNextPageNumber(documentId)
+
+        val newPage = image.asPage(document.id, pageNumber)
+
+        // 4. Update file in database (create or update)
+        db.withTransaction {
+            // update document
+            documentDao.insertDocument(document)
+            // insert the new page
+            pageDao.insertPage(newPage)
+        }
+
+        // 5. Add a partial lock and spawn page detection
+        lockDoc(document.id, newPage.id)
+        // the image is passed to the page detection, so it is not read again from the file
+        imageProcessorRepository.spawnPageDetection(newPage, pageHint, image.fileData)
+
+        return Success(data = newPage)
+    }
+
+    /**
+     * Saves captured images as new pages of a document. Unlike [saveNewImageForDocument] for each
+     * image, the pages are inserted in a single transaction with consecutive page numbers in the
+     * order of [images].
+     *
+     * @return the resources of the pages in the order of [images].
+     */
+    @WorkerThread
+    suspend fun saveNewImagesForDocument(
+        documentId: UUID,
+        images: List<CapturedImage>
+    ): List<Resource<Page>> {
+        val document = documentDao.getDocument(documentId) ?: kotlin.run {
+            return images.map { DBErrorCode.ENTRY_NOT_AVAILABLE.asFailure() }
+        }
+        Timber.d("Starting to save ${images.size} new images for document: ${document.title}")
+        if (document.lockState == LockState.FULL_LOCK) {
+            return images.map { DBErrorCode.DOCUMENT_LOCKED.asFailure() }
+        }
+
+        // 1. write the files, a failed image does not prevent the others from being saved.
+        val writtenImages = images.map { image ->
+            writeImageFile(documentId, null, image.data, image.exifMetaData)
+        }
+
+        // 2. insert the pages with consecutive numbers
+        val results = mutableListOf<Resource<Page>>()
+        db.withTransaction {
+            var pageNumber = getNextPageNumber(documentId)
+            val newPages = mutableListOf<Page>()
+            writtenImages.forEach { resource ->
+                when (resource) {
+                    is Failure -> results.add(Failure(resource.exception))
+                    is Success -> {
+                        val page = resource.data.asPage(document.id, pageNumber++)
+                        newPages.add(page)
+                        results.add(Success(page))
+                    }
+                }
+            }
+            documentDao.insertDocument(document)
+            pageDao.insertPages(newPages)
+        }
+
+        // 3. Add a partial lock and spawn the page detections
+        writtenImages.forEachIndexed { index, resource ->
+            val page = (results[index] as? Success)?.data ?: return@forEachIndexed
+            val image = (resource as? Success)?.data ?: return@forEachIndexed
+            lockDoc(document.id, page.id)
+            imageProcessorRepository.spawnPageDetection(
+                page,
+                images[index].pageHint,
+                image.fileData
+            )
+        }
+        return results
+    }
+
+    private suspend fun getNextPageNumber(documentId: UUID): Int {
+        return (pageDao.getPagesByDoc(documentId)
+            .maxByOrNull { page -> page.index })?.index?.let {
+            // increment if there is an existing page
+            it + 1
+        } ?: 0
+    }
+
+    /**
+     * Writes an image to the file of a page.
+     *
+     * @param fileId the id of an existing page whose file is replaced, null for a new page.
+     */
+    private fun writeImageFile(
+        documentId: UUID,
+        fileId: UUID?,
+        data: ByteArray,
+        exifMetaData: ImageExifMetaData?
+    ): Resource<WrittenImage> {
         val newFileId = fileId ?: UUID.randomUUID()
         val file = fileHandler.createDocumentFile(documentId, newFileId, PageFileType.JPEG)
 
-        var tempFile: File? = null
-        // 1. make a safe copy of the current file if it exists to rollback changes in case of something fails.
-        if (file.exists()) {
-            tempFile = fileHandler.createCacheFile(newFileId, PageFileType.JPEG)
-            try {
-                fileHandler.copyFile(file, tempFile)
-            } catch (e: Exception) {
-                tempFile.safelyDelete()
+        // 1. add the external exif data in memory if available, otherwise assume that exif is
+        // already set. If this fails, the exif data is applied to the file after it is written.
+        val exifData = exifMetaData?.let { data.withExifData(it) }
+        val applyExifToFile = exifMetaData != null && exifData == null
+        val fileData = exifData ?: data
+
+        // 2. process byte array into file, the hash is computed while it is written. An existing
+        // file is replaced atomically, so it does not need to be copied for a rollback.
+        val hashResource = fileHandler.replaceFileResource(file) { tempFile ->
+            val hash = fileHandler.copyByteArrayWithHash(fileData, tempFile)
+            if (applyExifToFile) {
+                applyExifData(tempFile, exifMetaData)
+                Success(tempFile.getFileHash())
+            } else {
+                Success(hash)
+            }
+        }
+        val fileHash = when (hashResource) {
+            is Failure -> {
                 if (fileId == null) {
                     file.safelyDelete()
                 }
-                return IOErrorCode.FILE_COPY_ERROR.asFailure(e)
-            }
-        }
-
-        // 2. process byte array into file
-        try {
-            fileHandler.copyByteArray(data, file)
-            // in case we used the temp file, delete it safely
-            tempFile?.safelyDelete()
-        } catch (e: Exception) {
-            // rollback
-            tempFile?.let {
-                fileHandler.safelyCopyFile(it, file)
+                return Failure(hashResource.exception)
             }
-            return IOErrorCode.FILE_COPY_ERROR.asFailure(e)
+            is Success -> hashResource.data
         }
 
-        // TODO: Apply exif only here, not in the viewModels
-        // 3. apply external exif data if available, otherwise assume that exif is already set.
         val rotation = if (exifMetaData != null) {
-            applyExifData(file, exifMetaData)
             Rotation.getRotationByExif(exifMetaData.exifOrientation)
         } else {
             getRotation(file)
         }
 
-        // TODO: When adding/removing pages, add a generic check to adapt the page number correctly.
-        // for a replacement, just take the number of the old page.
-        // for a new page, take the max number and add + 1 to it.
-        val pageNumber =
-            pageDao.getPageById(newFileId)?.index ?: (pageDao.getPagesByDoc(documentId)
-                .maxByOrNull { page -> page.index })?.index?.let {
-                    // increment if there is an existing page
-                    it + 1
-                } ?: 0
-
-        val newPage = Page(
-            newFileId,
-            document.id,
-            file.getFileHash(),
+        // the bytes in memory do not contain the exif data that has been applied to the file, so
+        // the file needs to be read for the page detection.
+        return Success(
+            WrittenImage(newFileId, if (applyExifToFile) null else fileData, fileHash, rotation)
+        )
+    }
+
+    /**
+     * An image that has been written to the file of a page, [fileData] holds the written bytes if
+     * they are still available in memory.
+     */
+    private class WrittenImage(
+        val fileId: UUID,
+        val fileData: ByteArray?,
+        val fileHash: String,
+        val rotation: Rotation
+    ) {
+        fun asPage(documentId: UUID, pageNumber: Int) = Page(
+            fileId,
+            documentId,
+            fileHash,
             pageNumber,
             rotation,
             PageFileType.JPEG,
@@ -517,19 +694,5 @@ class DocumentRepository(
             ExportState.NONE,
             SinglePageBoundary.getDefault()
         )
-
-        // 4. Update file in database (create or update)
-        db.withTransaction {
-            // update document
-            documentDao.insertDocument(document)
-            // insert the new page
-            pageDao.insertPage(newPage)
-        }
-
-        // 5. Add a partial lock and spawn page detection
-        lockDoc(document.id, newPage.id)
-        imageProcessorRepository.spawnPageDetection(newPage)
-
-        return Success(data = newPage)
     }
 }
@@ -5,6 +5,7 @@ import android.net.Uri
 import at.ac.tuwien.caa.docscan.db.dao.DocumentDao
 import at.ac.tuwien.caa.docscan.db.dao.PageDao
 import at.ac.tuwien.caa.docscan.db.model.DocumentWithPages
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
 import at.ac.tuwien.caa.docscan.db.model.error.DBErrorCode
 import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
 import at.ac.tuwien.caa.docscan.db.model.state.ExportState
@@ -27,7 +28,8 @@ class ExportRepository(
     private val pageDao: PageDao,
     private val fileHandler: FileHandler,
     private val preferencesHandler: PreferencesHandler,
-    private val exportFileRepository: ExportFileRepository
+    private val exportFileRepository: ExportFileRepository,
+    private val imageWorkAdmission: ImageWorkAdmission
 ) {
 
     suspend fun exportDoc(documentId: UUID, exportFormat: ExportFormat): Resource<String> {
@@ -87,18 +89,26 @@ class ExportRepository(
             val filesForExport = documentWithPages.pages.map { page ->
                 val pageFile = fileHandler.getFileByPage(page)
                     ?: return@withContext IOErrorCode.FILE_MISSING.asFailure()
-                PdfCreator.FileWrapper(pageFile, page.rotation)
+                PdfCreator.FileWrapper(page, pageFile)
             }
 
             val exportResource: Resource<Unit>
             try {
                 when (exportFormat) {
                     ExportFormat.ZIP -> {
-                        exportResource =
+                        // the virtual crops are rendered one after another, so the largest one
+                        // needs to fit.
+                        val zipBytes = filesForExport.filter { fileWrapper ->
+                            fileWrapper.page.hasVirtualCrop()
+                        }.maxOfOrNull { fileWrapper ->
+                            ImageWorkAdmission.estimateBytes(fileWrapper.file, ImageWork.CROP)
+                        } ?: 0
+                        exportResource = imageWorkAdmission.withPermit(zipBytes) {
                             ZipCreator.saveAsZip(
                                 context, output.first, documentWithPages,
                                 fileHandler
                             )
+                        }
                     }
                     ExportFormat.PDF, ExportFormat.PDF_WITH_OCR -> {
                         val textBlocks: List<Text>? =
@@ -114,8 +124,23 @@ class ExportRepository(
                             } else {
                                 null
                             }
-                        exportResource =
-                            PdfCreator.savePDF(context, output.first, filesForExport, textBlocks)
+                        // the pages are added one after another, so the largest page needs to fit.
+                        val exportBytes = filesForExport.maxOfOrNull { fileWrapper ->
+                            ImageWorkAdmission.estimateBytes(
+                                fileWrapper.page,
+                                fileWrapper.file,
+                                ImageWork.EXPORT
+                            )
+                        } ?: 0
+                        exportResource = imageWorkAdmission.withPermit(exportBytes) {
+                            PdfCreator.savePDF(
+                                context,
+                                output.first,
+                                filesForExport,
+                                fileHandler,
+                                textBlocks
+                            )
+                        }
                     }
                 }
             } catch (e: CancellationException) {
@@ -150,7 +175,14 @@ class ExportRepository(
                 val deferredResult = async {
                     val file = fileHandler.getFileByPage(page)
                         ?: return@async DBErrorCode.DOCUMENT_PAGE_FILE_FOR_EXPORT_MISSING.asFailure()
-                    val result = PdfCreator.analyzeFileWithOCR(context, Uri.fromFile(file))
+                    // the analysis is started as soon as the decoded image fits into the memory.
+                    val ocrBytes = ImageWorkAdmission.estimateBytes(page, file, ImageWork.OCR)
+                    val result = imageWorkAdmission.withPermit(ocrBytes) {
+                        // the text is recognized in the virtually cropped image, which is exported
+                        withRenderedPageFile(page, file, fileHandler) { renderedFile, _ ->
+                            PdfCreator.analyzeFileWithOCR(context, Uri.fromFile(renderedFile))
+                        }
+                    }
                     pageDao.updateExportState(page.id, ExportState.DONE)
                     result
                 }
@@ -1,11 +1,13 @@
 package at.ac.tuwien.caa.docscan.repository
 
 import androidx.room.withTransaction
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint
 import at.ac.tuwien.caa.docscan.camera.cv.thread.crop.Mapper
 import at.ac.tuwien.caa.docscan.camera.cv.thread.crop.PageDetector
 import at.ac.tuwien.caa.docscan.db.AppDatabase
 import at.ac.tuwien.caa.docscan.db.dao.DocumentDao
 import at.ac.tuwien.caa.docscan.db.dao.PageDao
+import at.ac.tuwien.caa.docscan.db.dao.PostProcessingJobDao
 import at.ac.tuwien.caa.docscan.db.model.*
 import at.ac.tuwien.caa.docscan.db.model.boundary.SinglePageBoundary.Companion.getDefault
 import at.ac.tuwien.caa.docscan.db.model.boundary.asClockwiseList
@@ -14,18 +16,26 @@ import at.ac.tuwien.caa.docscan.db.model.boundary.rotateBy90
 import at.ac.tuwien.caa.docscan.db.model.error.DBErrorCode
 import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
 import at.ac.tuwien.caa.docscan.db.model.exif.Rotation
+import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingJobType
 import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingState
 import at.ac.tuwien.caa.docscan.logic.*
 import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import timber.log.Timber
 import java.io.File
 import java.util.*
+import java.util.concurrent.atomic.AtomicReference
 
 class ImageProcessorRepository(
     private val pageDao: PageDao,
     private val documentDao: DocumentDao,
     private val fileHandler: FileHandler,
-    private val appDatabase: AppDatabase
+    private val appDatabase: AppDatabase,
+    private val postProcessingJobDao: PostProcessingJobDao,
+    private val imageWorkAdmission: ImageWorkAdmission,
+    private val imageWorkScheduler: ImageWorkScheduler,
+    private val preferencesHandler: PreferencesHandler
 ) {
 
     /**
@@ -34,6 +44,19 @@ class ImageProcessorRepository(
      */
     private val scope = CoroutineScope(Dispatchers.IO)
 
+    /**
+     * Page detections are performed one after another, a series of pictures would otherwise hold
+     * the decoded images of all pictures at once.
+     */
+    private val pageDetectionMutex = Mutex()
+
+    /**
+     * The content of a page file which is held in memory for a scheduled page detection. Only a
+     * single one is held, the detections that are submitted while it is pending read their files,
+     * so a series of pictures does not pile up its images in memory.
+     */
+    private val pendingDetectionData = AtomicReference<ByteArray?>(null)
+
     fun rotateFile(file: File, rotation: Rotation) {
         applyRotation(file, rotation)
     }
@@ -48,117 +71,303 @@ class ImageProcessorRepository(
      *
      * Spawns a page detection on a [Page] to estimate cropping points.s
      *
+     * @param pageHint the page of the camera preview, if available the detection just refines it.
+     * @param data the content of the page file if it is still in memory, otherwise it is read from
+     * the file. The file is also read if the content of another page is already held for a
+     * pending detection.
+     *
      * Post-Condition: The page will be unlocked.
      */
-    fun spawnPageDetection(page: Page) {
-        scope.launch {
-            pageDao.updatePageProcessingState(page.id, PostProcessingState.PROCESSING)
-            pageImageOperation(
-                pageId = page.id,
-                preOperation = { defaultPrePageOperation(page.id) },
-                imageOperation = { _, file ->
-                    try {
-                        val result = PageDetector.findRectAndFocus(file.absolutePath)
-                        if (result.points.size > 3) {
-                            Success(result.points.toSinglePageBoundary())
+    suspend fun spawnPageDetection(
+        page: Page,
+        pageHint: PageHint? = null,
+        data: ByteArray? = null,
+        lane: ImageWorkLane = ImageWorkLane.CAPTURE
+    ) {
+        val job = PostProcessingJob(
+            UUID.randomUUID(),
+            page.docId,
+            page.id,
+            PostProcessingJobType.PAGE_DETECTION,
+            page.fileHash
+        )
+        postProcessingJobDao.insertJob(job)
+        submitPageDetection(job, pageHint, data, lane)
+    }
+
+    private fun submitPageDetection(
+        job: PostProcessingJob,
+        pageHint: PageHint?,
+        data: ByteArray?,
+        lane: ImageWorkLane
+    ) {
+        val heldData = data?.takeIf { pendingDetectionData.compareAndSet(null, it) }
+        val completion = imageWorkScheduler.submit(
+            job.pageId,
+            ImageWorkType.PAGE_DETECTION,
+            job.fileHash,
+            lane,
+            work = {
+                detectPage(job.docId, job.pageId, pageHint, heldData)
+                finishJob(job)
+            },
+            onCancelled = {
+                finishJob(job)
+                tryToUnlockDoc(job.docId, job.pageId)
+            }
+        )
+        if (heldData != null) {
+            // the completion is also signaled if the work is dropped or is not scheduled at all
+            completion.invokeOnCompletion { pendingDetectionData.compareAndSet(heldData, null) }
+        }
+    }
+
+    private suspend fun detectPage(
+        docId: UUID,
+        pageId: UUID,
+        pageHint: PageHint?,
+        data: ByteArray?
+    ) {
+        pageDao.updatePageProcessingState(pageId, PostProcessingState.PROCESSING)
+        pageImageOperation(
+            pageId = pageId,
+            preOperation = { defaultPrePageOperation(pageId) },
+            imageOperation = { _, file ->
+                try {
+                    val result = pageDetectionMutex.withLock {
+                        if (data != null) {
+                            PageDetector.findRectAndFocus(data, pageHint)
                         } else {
-                            IOErrorCode.SINGLE_PAGE_DETECTION_FAILED.asFailure()
+                            PageDetector.findRectAndFocus(file.absolutePath, pageHint)
                         }
-                    } catch (e: Exception) {
-                        Timber.w(e,"Page detection has failed!")
-                        IOErrorCode.SINGLE_PAGE_DETECTION_FAILED.asFailure(e)
                     }
-                }, postOperation = { pageId, result ->
-                    defaultPagePostOperation(pageId, applyOnPage = { page ->
-                        when (result) {
-                            is Failure -> {
-                                page.singlePageBoundary = getDefault()
-                            }
-                            is Success -> {
-                                page.singlePageBoundary = result.data
-                            }
-                        }
-                    })
+                    if (result.points.size > 3) {
+                        Success(result.points.toSinglePageBoundary())
+                    } else {
+                        IOErrorCode.SINGLE_PAGE_DETECTION_FAILED.asFailure()
+                    }
+                } catch (e: Exception) {
+                    Timber.w(e,"Page detection has failed!")
+                    IOErrorCode.SINGLE_PAGE_DETECTION_FAILED.asFailure(e)
                 }
-            )
-            tryToUnlockDoc(page.docId, page.id)
+            }, postOperation = { pageId, result ->
+                defaultPagePostOperation(pageId, applyOnPage = { page ->
+                    when (result) {
+                        is Failure -> {
+                            page.singlePageBoundary = getDefault()
+                        }
+                        is Success -> {
+                            page.singlePageBoundary = result.data
+                        }
+                    }
+                })
+            }
+        )
+        tryToUnlockDoc(docId, pageId)
+    }
+
+    /**
+     * Deletes the job and the equal jobs which have been merged into it by the
+     * [ImageWorkScheduler], the result of the job has been saved.
+     */
+    private suspend fun finishJob(job: PostProcessingJob) {
+        postProcessingJobDao.deleteJobs(job.pageId, job.type, job.fileHash)
+    }
+
+    /**
+     * Resumes the post processing jobs which have been interrupted, e.g. because the app has been
+     * killed. The jobs of the running process are not performed twice, as they are merged by the
+     * [ImageWorkScheduler].
+     *
+     * @return the ids of the documents whose jobs are resumed, these are unlocked by the jobs.
+     */
+    suspend fun resumePostProcessingJobs(): Set<UUID> {
+        val jobs = postProcessingJobDao.getJobs()
+        if (jobs.isEmpty()) {
+            return emptySet()
+        }
+        Timber.i("Resuming ${jobs.size} post processing jobs")
+        jobs.filter { job -> job.type == PostProcessingJobType.PAGE_DETECTION }.forEach { job ->
+            lockDoc(job.docId, job.pageId)
+            // the hint and the image data of the capture are not available anymore
+            submitPageDetection(job, null, null, ImageWorkLane.CAPTURE)
         }
+        jobs.filter { job -> job.type == PostProcessingJobType.CROP }
+            .groupBy { job -> job.docId }
+            .forEach { (docId, cropJobs) ->
+                lockDoc(docId)
+                scope.launch {
+                    runCropJobs(docId, cropJobs, isResumed = true)
+                }
+            }
+        return jobs.map { job -> job.docId }.toSet()
+    }
+
+    /**
+     * Moves the pending image work of the pages in front of the other work, e.g. because the pages
+     * are visible.
+     */
+    fun prioritizePages(pageIds: Collection<UUID>) {
+        imageWorkScheduler.prioritize(pageIds, ImageWorkLane.INTERACTIVE)
+    }
+
+    /**
+     * Cancels the pending image work of a page, e.g. because the page has been deleted.
+     */
+    fun cancelPageWork(pageId: UUID) {
+        imageWorkScheduler.cancel(pageId)
     }
 
     /**
      * Pre-Condition: The document is not locked.
      *
      * Crops all pages for the given document, by applying cropping with the normed boundaries.
+     * If virtual cropping is enabled, the page files are kept and the boundaries are applied on the
+     * fly, see [Page.isCroppedVirtually].
      *
      * Post-Condition: The document is unlocked.
      */
     fun cropDocument(document: Document) {
         scope.launch {
+            if (preferencesHandler.isVirtualCroppingEnabled) {
+                cropDocumentVirtually(document.id)
+                return@launch
+            }
             documentDao.getDocumentWithPages(document.id)?.sortByNumber()?.let { doc ->
-                pageDao.updatePageProcessingStateForDocument(
-                    doc.document.id,
-                    PostProcessingState.PROCESSING
-                )
-                withContext(Dispatchers.IO) {
-                    val deferredJobs = mutableListOf<Deferred<Resource<Unit>>>()
-                    doc.pages.forEach { page ->
-                        val deferred = async {
-                            return@async pageImageOperation(
-                                pageId = page.id,
-                                preOperation = { defaultPrePageOperation(page.id) },
-                                imageOperation = { page, file ->
-                                    // skip page cropping the boundary is not available
-                                    if (page.singlePageBoundary == null) {
-                                        return@pageImageOperation Success(Unit)
-                                    }
-                                    val points = (page.singlePageBoundary?.asClockwiseList()
-                                        ?: getDefault().asClockwiseList()).map { pointF -> pointF.asPoint() }
-
-                                    // create cache file, copy original file to cache file and apply the operation
-                                    // on that file first.
-                                    val tempFile = fileHandler.createCacheFile(page.id)
-                                    file.copyTo(tempFile, overwrite = true)
-                                    // only if the operation successful, copy the returned file to the original file
-
-                                    // copy the exif data first, otherwise it would get lost through the operation.
-                                    val exifData = getExifInterface(file)
-                                    val newFile = Mapper.applyCropping(tempFile, ArrayList(points))
-                                    if (newFile == null) {
-                                        tempFile.safelyDelete()
-                                        return@pageImageOperation IOErrorCode.CROPPING_FAILED.asFailure()
-                                    } else {
-                                        newFile.copyTo(file, overwrite = true)
-                                        // apply the exif data back to the cropped image
-                                        exifData?.let {
-                                            saveExifAfterCrop(it, file)
-                                        }
-                                        tempFile.safelyDelete()
-                                        return@pageImageOperation Success(Unit)
-                                    }
-                                },
-                                postOperation = { pageId, _ ->
-                                    // set the post processing to done
-                                    defaultPagePostOperation(
-                                        pageId,
-                                        PostProcessingState.DONE
-                                    ) { page ->
-                                        // clear the single page boundary
-                                        page.singlePageBoundary = null
-                                        // after a crop, the exif orientation is always reset and therefore
-                                        // needs to be also set here.
-                                        page.rotation = Rotation.ORIENTATION_NORMAL
-                                    }
-                                })
-                        }
-                        deferredJobs.add(deferred)
-                    }
-                    deferredJobs.awaitAll()
-                    unLockDocAfterLongRunningOperation(doc.document.id)
+                val jobs = doc.pages.map { page ->
+                    PostProcessingJob(
+                        UUID.randomUUID(),
+                        doc.document.id,
+                        page.id,
+                        PostProcessingJobType.CROP,
+                        page.fileHash
+                    )
+                }
+                // the jobs are saved with the state, so an interrupted crop can be resumed
+                appDatabase.withTransaction {
+                    pageDao.updatePageProcessingStateForDocument(
+                        doc.document.id,
+                        PostProcessingState.PROCESSING
+                    )
+                    postProcessingJobDao.insertJobs(jobs)
                 }
+                runCropJobs(doc.document.id, jobs, isResumed = false)
             }
         }
     }
 
+    /**
+     * Marks the pages of a document as cropped, without touching the page files. The pages which
+     * have been already cropped are not changed.
+     *
+     * Post-Condition: The document is unlocked.
+     */
+    private suspend fun cropDocumentVirtually(docId: UUID) {
+        documentDao.getDocumentWithPages(docId)?.let { doc ->
+            appDatabase.withTransaction {
+                doc.pages.filter { page -> !page.isPostProcessed() }.forEach { page ->
+                    // a page without a boundary is not cropped, like in cropPage
+                    pageDao.updatePageVirtualCrop(
+                        page.id,
+                        PostProcessingState.DONE,
+                        page.singlePageBoundary != null
+                    )
+                }
+            }
+        }
+        unLockDocAfterLongRunningOperation(docId)
+    }
+
+    /**
+     * Crops the pages of the [jobs], each job is deleted as soon as its page has been cropped, so
+     * only the remaining pages are cropped if the operation is resumed.
+     *
+     * Post-Condition: The document is unlocked.
+     */
+    private suspend fun runCropJobs(
+        docId: UUID,
+        jobs: List<PostProcessingJob>,
+        isResumed: Boolean
+    ) {
+        val deferredJobs = jobs.map { job ->
+            // the crops are scheduled behind the work on visible or captured pages
+            imageWorkScheduler.submit(
+                job.pageId,
+                ImageWorkType.CROP,
+                job.fileHash,
+                ImageWorkLane.BACKGROUND,
+                work = {
+                    cropPage(job, isResumed)
+                    finishJob(job)
+                },
+                onCancelled = {
+                    pageDao.updatePageProcessingState(job.pageId, PostProcessingState.DRAFT)
+                    finishJob(job)
+                })
+        }
+        // a cancelled crop does not prevent the unlock of the document
+        deferredJobs.forEach { deferred -> deferred.join() }
+        unLockDocAfterLongRunningOperation(docId)
+    }
+
+    private suspend fun cropPage(job: PostProcessingJob, isResumed: Boolean): Resource<Unit> {
+        return pageImageOperation(
+            pageId = job.pageId,
+            preOperation = { defaultPrePageOperation(job.pageId) },
+            imageOperation = { page, file ->
+                // skip page cropping the boundary is not available
+                if (page.singlePageBoundary == null) {
+                    return@pageImageOperation Success(Unit)
+                }
+                // the file is replaced atomically, if it has changed, the crop has been already
+                // performed before the app has been killed and just the page needs to be updated.
+                if (isResumed && file.getFileHash() != job.fileHash) {
+                    return@pageImageOperation Success(Unit)
+                }
+                val points = (page.singlePageBoundary?.asClockwiseList()
+                    ?: getDefault().asClockwiseList()).map { pointF -> pointF.asPoint() }
+
+                // the pages are cropped in parallel as long as the decoded images
+                // fit into the memory.
+                return@pageImageOperation imageWorkAdmission.withPermit(
+                    file,
+                    ImageWork.CROP
+                ) {
+                    // copy the exif data first, otherwise it would get lost through the operation.
+                    val exifData = getExifInterface(file)
+                    // the cropped image is written to a temp file, which only replaces
+                    // the original file if the operation was successful.
+                    fileHandler.replaceFileResource<Unit>(file) { tempFile ->
+                        val newFile =
+                            Mapper.applyCropping(file, ArrayList(points), tempFile)
+                        if (newFile == null) {
+                            IOErrorCode.CROPPING_FAILED.asFailure()
+                        } else {
+                            // apply the exif data back to the cropped image
+                            exifData?.let {
+                                saveExifAfterCrop(it, newFile)
+                            }
+                            Success(Unit)
+                        }
+                    }
+                }
+            },
+            postOperation = { pageId, _ ->
+                // set the post processing to done
+                defaultPagePostOperation(
+                    pageId,
+                    PostProcessingState.DONE
+                ) { page ->
+                    // clear the single page boundary
+                    page.singlePageBoundary = null
+                    page.isCroppedVirtually = false
+                    // after a crop, the exif orientation is always reset and therefore
+                    // needs to be also set here.
+                    page.rotation = Rotation.ORIENTATION_NORMAL
+                }
+            })
+    }
+
     /**
      * Pre-Condition: The document is not locked.
      */
@@ -173,24 +382,12 @@ class ImageProcessorRepository(
             pageImageOperation(
                 pageId = page.id,
                 preOperation = { defaultPrePageOperation(page.id) },
-                imageOperation = { innerPage, file ->
-                    val cache = fileHandler.createCacheFile(innerPage.id)
-                    fileHandler.safelyCopyFile(file, cache)
-                    when (val resource = applyRotationResource(cache, newRotation)) {
-                        is Failure -> {
-                            return@pageImageOperation Failure(resource.exception)
-                        }
-                        is Success -> {
-                            when (val copyResource =
-                                fileHandler.copyFileResource(cache, file)) {
-                                is Failure -> {
-                                    return@pageImageOperation Failure(copyResource.exception)
-                                }
-                                is Success -> {
-                                    copyResource
-                                }
-                            }
-                        }
+                imageOperation = { _, file ->
+                    // the rotation is applied on a copy, which replaces the file only if the
+                    // operation was successful.
+                    fileHandler.replaceFileResource(file) { tempFile ->
+                        fileHandler.copyFile(file, tempFile)
+                        applyRotationResource(tempFile, newRotation)
                     }
                 }, postOperation = { pageId, resource ->
                     defaultPagePostOperation(pageId, applyOnPage = {
@@ -198,6 +395,10 @@ class ImageProcessorRepository(
                             it.rotation = newRotation
                             it.singlePageBoundary?.rotateBy90()
                         }
+                        // the virtual crop is rotated with the page, so the page stays cropped
+                        if (page.hasVirtualCrop()) {
+                            it.postProcessingState = PostProcessingState.DONE
+                        }
                     })
                 }
             )
@@ -214,7 +415,7 @@ class ImageProcessorRepository(
             pageId = pageId,
             preOperation = { defaultPrePageOperation(pageId) },
             imageOperation = { _, file ->
-                fileHandler.copyFileResource(cachedFile, file)
+                fileHandler.moveFileResource(cachedFile, file)
             }, postOperation = { _, resource ->
                 defaultPagePostOperation(pageId, applyOnPage = {
                     if (resource.isSuccessful()) {
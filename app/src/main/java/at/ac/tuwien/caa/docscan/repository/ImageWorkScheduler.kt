@@ -0,0 +1,239 @@
+package at.ac.tuwien.caa.docscan.repository
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import timber.log.Timber
+import java.util.*
+
+/**
+ * Schedules the background image work on pages (page detection, cropping) in priority lanes, see
+ * [ImageWorkLane]. The work of a lane is only started if no work of a more important lane is
+ * pending, within a lane the work is started in the order of its submission.
+ *
+ * The work is identified by the page, the type of the work and the hash of the page file:
+ * - a work that is submitted again is not scheduled twice, the pending work is returned instead.
+ * - a pending work on an outdated file (e.g. after a retake) is dropped, if the work is submitted
+ * for the new file. The dropped work is cancelled, i.e. its onCancelled is called.
+ * - a work on a new file of a page whose work on the outdated file has already been started waits
+ * until the started work has finished, so a page is never processed by two workers at once.
+ *
+ * Started work is not interrupted, the image operations are not cancellable.
+ *
+ * @param dispatcher the dispatcher on which the work is run.
+ */
+class ImageWorkScheduler(
+    maxParallelWork: Int = Runtime.getRuntime().availableProcessors().coerceAtLeast(1),
+    dispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+
+    // guards the pending and the active work
+    private val lock = Any()
+    private val pendingWork = PriorityQueue<ScheduledWork>(
+        compareBy<ScheduledWork>({ work -> work.lane.ordinal }, { work -> work.sequence })
+    )
+    private val activeWork = mutableMapOf<Pair<UUID, ImageWorkType>, ScheduledWork>()
+    private var sequence = 0L
+
+    // one element for each submitted work, a worker takes the most important pending work
+    private val workSignal = Channel<Unit>(Channel.UNLIMITED)
+
+    init {
+        repeat(maxParallelWork) {
+            scope.launch {
+                for (signal in workSignal) {
+                    val work = synchronized(lock) {
+                        pendingWork.poll()?.also { work -> work.isStarted = true }
+                    } ?: continue
+                    runWork(work)
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits [work] on a page.
+     *
+     * @param fileHash the hash of the page file that is processed by [work].
+     * @param onCancelled called instead of [work] if the work is cancelled by [cancel].
+     * @return a [Deferred] which completes after [work] or is cancelled if [work] is dropped.
+     */
+    fun submit(
+        pageId: UUID,
+        type: ImageWorkType,
+        fileHash: String,
+        lane: ImageWorkLane,
+        work: suspend () -> Unit,
+        onCancelled: suspend () -> Unit = {}
+    ): Deferred<Unit> {
+        val key = Pair(pageId, type)
+        var droppedWork: ScheduledWork? = null
+        val newWork: ScheduledWork
+        val isQueued: Boolean
+        synchronized(lock) {
+            val existing = activeWork[key]
+            if (existing != null && existing.fileHash == fileHash) {
+                prioritizeLocked(existing, lane)
+                return existing.completion
+            }
+            newWork = ScheduledWork(key, fileHash, lane, sequence++, work, onCancelled)
+            activeWork[key] = newWork
+            when {
+                existing == null -> pendingWork.add(newWork)
+                // the new work is queued as soon as the started work has finished
+                existing.isStarted -> chainLocked(existing, newWork)
+                else -> {
+                    droppedWork = existing
+                    val predecessor = existing.predecessor
+                    if (predecessor != null) {
+                        chainLocked(predecessor, newWork)
+                    } else {
+                        pendingWork.remove(existing)
+                        pendingWork.add(newWork)
+                    }
+                }
+            }
+            isQueued = newWork.predecessor == null
+        }
+        droppedWork?.let {
+            Timber.d("Dropping ${it.key.second} of page ${it.key.first}, the file has changed.")
+            cancelWork(it)
+        }
+        if (isQueued) {
+            workSignal.trySend(Unit)
+        }
+        return newWork.completion
+    }
+
+    /**
+     * Moves the pending work of [pageIds] into [lane], if [lane] is more important than its current
+     * lane, e.g. because the pages have become visible.
+     */
+    fun prioritize(pageIds: Collection<UUID>, lane: ImageWorkLane = ImageWorkLane.INTERACTIVE) {
+        synchronized(lock) {
+            activeWork.values.filter { work -> pageIds.contains(work.key.first) }.forEach { work ->
+                prioritizeLocked(work, lane)
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending work of a page, work that has already been started is not interrupted.
+     */
+    fun cancel(pageId: UUID) {
+        val cancelledWork = synchronized(lock) {
+            activeWork.values.filter { work ->
+                work.key.first == pageId && !work.isStarted
+            }.onEach { work ->
+                val predecessor = work.predecessor
+                if (predecessor != null) {
+                    predecessor.successor = null
+                    work.predecessor = null
+                } else {
+                    pendingWork.remove(work)
+                }
+                activeWork.remove(work.key)
+            }
+        }
+        cancelledWork.forEach { work -> cancelWork(work) }
+    }
+
+    /**
+     * Calls onCancelled of a work that has been removed from the schedule.
+     */
+    private fun cancelWork(work: ScheduledWork) {
+        scope.launch {
+            try {
+                work.onCancelled()
+            } finally {
+                work.completion.cancel()
+            }
+        }
+    }
+
+    /**
+     * Lets [work] wait until the started [predecessor] has finished.
+     */
+    private fun chainLocked(predecessor: ScheduledWork, work: ScheduledWork) {
+        predecessor.successor = work
+        work.predecessor = predecessor
+    }
+
+    private fun prioritizeLocked(work: ScheduledWork, lane: ImageWorkLane) {
+        if (work.isStarted || lane.ordinal >= work.lane.ordinal) {
+            return
+        }
+        // the queue has to be re-ordered, the sequence is kept within the new lane. A work that
+        // waits for its predecessor is not queued yet, its lane is used as soon as it is queued.
+        val isQueued = pendingWork.remove(work)
+        work.lane = lane
+        if (isQueued) {
+            pendingWork.add(work)
+        }
+    }
+
+    private suspend fun runWork(work: ScheduledWork) {
+        try {
+            work.work()
+        } catch (e: Exception) {
+            Timber.e(e, "${work.key.second} of page ${work.key.first} has failed!")
+        } finally {
+            val successor = synchronized(lock) {
+                if (activeWork[work.key] === work) {
+                    activeWork.remove(work.key)
+                }
+                work.successor?.also { successor ->
+                    work.successor = null
+                    successor.predecessor = null
+                    pendingWork.add(successor)
+                }
+            }
+            work.completion.complete(Unit)
+            successor?.let { workSignal.trySend(Unit) }
+        }
+    }
+
+    private class ScheduledWork(
+        val key: Pair<UUID, ImageWorkType>,
+        val fileHash: String,
+        var lane: ImageWorkLane,
+        val sequence: Long,
+        val work: suspend () -> Unit,
+        val onCancelled: suspend () -> Unit
+    ) {
+        var isStarted = false
+
+        // the started work on the outdated file, this work is queued after it has finished
+        var predecessor: ScheduledWork? = null
+
+        // the work on the new file that waits for this work
+        var successor: ScheduledWork? = null
+        val completion = CompletableDeferred<Unit>()
+    }
+}
+
+enum class ImageWorkType {
+    PAGE_DETECTION,
+    CROP
+}
+
+/**
+ * The priority lanes of the [ImageWorkScheduler], ordered by their importance.
+ */
+enum class ImageWorkLane {
+    /**
+     * Work on pages the user is looking at (gallery, crop view, visible thumbnails).
+     */
+    INTERACTIVE,
+
+    /**
+     * Work that follows the capture of a page.
+     */
+    CAPTURE,
+
+    /**
+     * Bulk work on entire documents.
+     */
+    BACKGROUND
+}
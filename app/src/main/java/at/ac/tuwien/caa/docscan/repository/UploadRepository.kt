@@ -12,6 +12,7 @@ import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.db.model.Upload
 import at.ac.tuwien.caa.docscan.db.model.error.DBErrorCode
 import at.ac.tuwien.caa.docscan.db.model.getFileName
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
 import at.ac.tuwien.caa.docscan.db.model.state.UploadState
 import at.ac.tuwien.caa.docscan.logic.*
 import at.ac.tuwien.caa.docscan.worker.UploadWorker
@@ -30,7 +31,8 @@ class UploadRepository(
     private val preferencesHandler: PreferencesHandler,
     private val documentDao: DocumentDao,
     private val pageDao: PageDao,
-    private val fileHandler: FileHandler
+    private val fileHandler: FileHandler,
+    private val imageWorkAdmission: ImageWorkAdmission
 ) {
 
     /**
@@ -142,14 +144,22 @@ class UploadRepository(
             if (page.uploadStatus.pageUploaded) {
                 continue
             }
+            // a virtual crop is rendered just for the time of the upload of the page
             val uploadResource: Resource<UploadStatusResponse> =
-                transkribusResource(apiCall =
-                {
-                    api.uploadFile(
-                        uploadStatusResponse.uploadId,
-                        mapToMultiPartBody(page.uploadStatus.fileName, page.file)
-                    )
-                })
+                withRenderedPageFile(
+                    page.page,
+                    page.file,
+                    fileHandler,
+                    imageWorkAdmission
+                ) { file, _ ->
+                    transkribusResource(apiCall =
+                    {
+                        api.uploadFile(
+                            uploadStatusResponse.uploadId,
+                            mapToMultiPartBody(page.uploadStatus.fileName, file)
+                        )
+                    })
+                }
 
             when (uploadResource) {
                 is Failure -> {
@@ -228,7 +238,9 @@ class UploadRepository(
         val uploadPages = mutableListOf<UploadPage>()
         for ((index, page) in documentWithPages.pages.sortedBy { it.index }.withIndex()) {
             val pageNr = index + 1
-            val checkSum = if (page.fileHash.isNotEmpty()) page.fileHash else null
+            // the rendered image of a virtual crop does not match the hash of the page file
+            val checkSum =
+                if (page.fileHash.isNotEmpty() && !page.hasVirtualCrop()) page.fileHash else null
             val fileName = documentWithPages.document.getFileName(pageNr, page.fileType)
 
             // add to the list
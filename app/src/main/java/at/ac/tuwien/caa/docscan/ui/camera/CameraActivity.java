@@ -69,13 +69,16 @@ import at.ac.tuwien.caa.docscan.camera.CameraPreview;
 import at.ac.tuwien.caa.docscan.camera.DebugViewFragment;
 import at.ac.tuwien.caa.docscan.camera.LocationHandler;
 import at.ac.tuwien.caa.docscan.camera.PaintView;
+import at.ac.tuwien.caa.docscan.camera.PipelineMetrics;
 import at.ac.tuwien.caa.docscan.camera.SheetAction;
 import at.ac.tuwien.caa.docscan.camera.TaskTimer;
 import at.ac.tuwien.caa.docscan.camera.TextOrientationActionSheet;
 import at.ac.tuwien.caa.docscan.camera.cv.CVResult;
 import at.ac.tuwien.caa.docscan.camera.cv.DkPolyRect;
 import at.ac.tuwien.caa.docscan.camera.cv.NativeWrapper;
-import at.ac.tuwien.caa.docscan.camera.cv.Patch;
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint;
+import at.ac.tuwien.caa.docscan.camera.cv.PatchBuffer;
+import at.ac.tuwien.caa.docscan.camera.cv.PolyRectBuffer;
 import at.ac.tuwien.caa.docscan.camera.cv.thread.preview.IPManager;
 import at.ac.tuwien.caa.docscan.db.model.Page;
 import at.ac.tuwien.caa.docscan.extensions.ContextExtensionsKt;
@@ -161,6 +164,8 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     private PaintView mPaintView;
     private TextView mCounterView;
     private CVResult mCVResult;
+    // The page of the preview at the time the last picture was taken:
+    private PageHint mPageHint;
     // Debugging variables:
     private DebugViewFragment mDebugViewFragment;
     private boolean mIsDebugViewEnabled;
@@ -168,6 +173,8 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     private DrawerLayout mDrawerLayout;
     private ActionBarDrawerToggle mDrawerToggle;
     private boolean mIsPictureSafe;
+    // True if the pictures taken are not saved yet and exceed the memory budget of the queue:
+    private boolean mIsCaptureQueueFull;
     private TextView mTextView;
     private boolean mIsSeriesMode = false;
     private boolean mIsSeriesModePaused = true;
@@ -177,7 +184,10 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     //    private Drawable mGalleryButtonDrawable;
     private ProgressBar mProgressBar;
     private TaskTimer.TimerCallbacks mTimerCallbacks;
-    private DkPolyRect[] mLastDkPolyRects;
+    //    The buffer of the page segmentation is reused, so the rect of the last frame is copied:
+    private final DkPolyRect mLastDkPolyRect = new DkPolyRect();
+    private final DkPolyRect mCurrentDkPolyRect = new DkPolyRect();
+    private int mLastDkPolyRectCount = 0;
     private int mLastTabPosition;
     private int mTextOrientation = IMG_ORIENTATION_0;
     private boolean mLockExposureSupported;
@@ -272,17 +282,27 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
         });
         viewModel.getValue().getObservableThumbnail().observe(this, page -> loadThumbNail(page));
         viewModel.getValue().getObservableTookImage().observe(this, resourceEvent -> {
-            Resource<Page> resource = resourceEvent.getContentIfNotHandled();
-            if (resource != null) {
-                if (resource instanceof Failure) {
+            List<Resource<Page>> resources = resourceEvent.getContentIfNotHandled();
+            if (resources != null) {
+                Failure<Page> failure = null;
+                for (Resource<Page> resource : resources) {
+                    PipelineMetrics.getInstance().onCaptureFinished(resource instanceof Success,
+                            mIsSeriesMode);
+                    if (resource instanceof Failure && failure == null)
+                        failure = (Failure<Page>) resource;
+                }
+                if (failure != null) {
                     mIsPictureSafe = false;
-                    showSaveErrorDialog(((Failure<Page>) resource).getException());
-                } else if (resource instanceof Success) {
+                    showSaveErrorDialog(failure.getException());
+                } else if (viewModel.getValue().isRetakeMode()) {
                     mIsPictureSafe = true;
-
                 }
             }
         });
+        viewModel.getValue().getObservableCaptureQueueFull().observe(this, isFull -> {
+            mIsCaptureQueueFull = isFull;
+            IPManager.getInstance().setIsCaptureBlocked(isFull);
+        });
         viewModel.getValue().getObservableImageLoadingProgress().observe(this, isLoading -> {
             // the loading state will be managed by the glide loading functions
             // this is done to prevent a blinking of the old image.
@@ -497,6 +517,7 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
 
         mCVResult = new CVResult(this);
         IPManager.getInstance().setCVResult(mCVResult);
+        IPManager.getInstance().setPageHashIndex(viewModel.getValue().getPageHashIndex());
 
         mCVResult.setSeriesMode(mIsSeriesMode);
 
@@ -816,7 +837,7 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     public boolean onKeyDown(int keyCode, KeyEvent event) {
 
         if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
-            if (mIsPictureSafe)
+            if (mIsPictureSafe && !mIsCaptureQueueFull)
                 // get an image from the camera
                 takePicture();
         } else if (keyCode == KeyEvent.KEYCODE_BACK) {
@@ -995,6 +1016,10 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
             }
 
             savePicture(data);
+//            New pages are saved in the background, so the next picture can be taken right now
+//            (unless the capture queue is full). A retake is saved before:
+            if (!viewModel.getValue().isRetakeMode())
+                mIsPictureSafe = true;
         };
     }
 
@@ -1023,7 +1048,7 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
 //                            // dialog setting is not true:
 //                            if (mIsSeriesMode && !mIsSeriesModePaused &&  !mHideSeriesDialog)
 //                                startDocumentActivity();
-                    } else if (mIsPictureSafe) {
+                    } else if (mIsPictureSafe && !mIsCaptureQueueFull) {
 //                            In manual mode remove the focus point:
                         if (mCameraPreview != null)
                             mCameraPreview.startContinousFocus();
@@ -1413,6 +1438,10 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
         };
 
         if (mCameraPreview.getCamera() != null) {
+//            The preview frames are not analyzed anymore after the shutter, so the hint is taken
+//            here:
+            mPageHint = mCVResult != null ? mCVResult.getPageHint() : null;
+            PipelineMetrics.getInstance().onCaptureStarted();
             mCameraPreview.getCamera().takePicture(shutterCallback, null, mPictureCallback);
         }
     }
@@ -1427,7 +1456,9 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
         viewModel.getValue().saveRawImageData(data,
                 getExifOrientation(),
                 getDPI(),
-                LocationHandler.getInstance(this).getLocation());
+                LocationHandler.getInstance(this).getLocation(),
+                mPageHint);
+        mPageHint = null;
     }
 
     private void showSaveErrorDialog(Throwable throwable) {
@@ -1871,10 +1902,10 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     /**
      * Called after focus measurement is finished.
      *
-     * @param patches Patches array
+     * @param patches focus measurement results
      */
     @Override
-    public void onFocusMeasured(Patch[] patches) {
+    public void onFocusMeasured(PatchBuffer patches) {
 
         if (IPManager.getInstance().getIsPaused()) {
             mPaintView.drawMovementIndicator(false);
@@ -1900,10 +1931,10 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
     /**
      * Called after page segmentation is finished.
      *
-     * @param polyRects Array of polyRects
+     * @param polyRects page segmentation results
      */
     @Override
-    public void onPageSegmented(DkPolyRect[] polyRects) {
+    public void onPageSegmented(PolyRectBuffer polyRects) {
 
         if (IPManager.getInstance().getIsPaused()) {
             mPaintView.drawMovementIndicator(false);
@@ -1925,29 +1956,32 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
             mCVResult.setDKPolyRects(polyRects);
         }
 
-//        if (isRectJumping(dkPolyRects))
+//        if (isRectJumping(polyRects))
 //            mCameraPreview.startFocusMeasurement(false);
 //        else
 //            mCameraPreview.startFocusMeasurement(true);
 
-        mLastDkPolyRects = polyRects;
+        mLastDkPolyRectCount = polyRects.size();
+        if (mLastDkPolyRectCount == 1)
+            polyRects.copyTo(0, mLastDkPolyRect);
 
         mTimerCallbacks.onTimerStarted(PAGE_SEGMENTATION);
 
     }
 
 
-    boolean isRectJumping(DkPolyRect[] dkPolyRects) {
+    boolean isRectJumping(PolyRectBuffer polyRects) {
 
         boolean isJumping = false;
 
         Timber.d("jumping?");
 
-        if (dkPolyRects != null && mLastDkPolyRects != null) {
+        if (polyRects != null && mLastDkPolyRectCount > 0) {
             Timber.d("check 1");
-            if (dkPolyRects.length == 1 && mLastDkPolyRects.length == 1) {
+            if (polyRects.size() == 1 && mLastDkPolyRectCount == 1) {
                 Timber.d("check 2");
-                PointF distVec = mLastDkPolyRects[0].getLargestDistVector(dkPolyRects[0]);
+                polyRects.copyTo(0, mCurrentDkPolyRect);
+                PointF distVec = mLastDkPolyRect.getLargestDistVector(mCurrentDkPolyRect);
                 PointF normedPoint = mCVResult.normPoint(distVec);
 
                 if (normedPoint.length() >= .05) {
@@ -2149,6 +2183,11 @@ public class CameraActivity extends BaseNavigationActivity implements TaskTimer.
             return;
         }
 
+        if (mIsCaptureQueueFull) {
+            Timber.d("onCaptureVerified: capture queue is full");
+            return;
+        }
+
 
         mTextView.setText(getResources().getString(R.string.taking_picture_text));
 
@@ -7,10 +7,14 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import at.ac.tuwien.caa.docscan.DocScanApp
 import at.ac.tuwien.caa.docscan.R
+import at.ac.tuwien.caa.docscan.camera.CapturedImage
 import at.ac.tuwien.caa.docscan.camera.ExifLocation
 import at.ac.tuwien.caa.docscan.camera.ExifResolution
 import at.ac.tuwien.caa.docscan.camera.GPS
 import at.ac.tuwien.caa.docscan.camera.ImageExifMetaData
+import at.ac.tuwien.caa.docscan.camera.cv.PageHash
+import at.ac.tuwien.caa.docscan.camera.cv.PageHashIndex
+import at.ac.tuwien.caa.docscan.camera.cv.PageHint
 import at.ac.tuwien.caa.docscan.db.model.Document
 import at.ac.tuwien.caa.docscan.db.model.DocumentWithPages
 import at.ac.tuwien.caa.docscan.db.model.Page
@@ -21,20 +25,32 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.launch
 import timber.log.Timber
 import java.util.*
+import kotlin.coroutines.coroutineContext
 
 class CameraViewModel(
     private val documentRepository: DocumentRepository,
     private val preferencesHandler: PreferencesHandler,
+    private val fileHandler: FileHandler,
     private val app: DocScanApp
 ) : ViewModel() {
 
+    /**
+     * The hashes of the pages of the current document, used by the preview to reject pages that
+     * have already been photographed.
+     */
+    val pageHashIndex = PageHashIndex()
+
     val observableDocumentWithPages: MutableLiveData<DocumentWithPages?> = MutableLiveData()
     val observableThumbnail: MutableLiveData<Page> = MutableLiveData()
     val observableImageLoadingProgress: MutableLiveData<Boolean> = MutableLiveData()
-    val observableTookImage: MutableLiveData<Event<Resource<Page>>> = MutableLiveData()
+    /**
+     * The results of the saved pictures, in the order in which they were taken.
+     */
+    val observableTookImage: MutableLiveData<Event<List<Resource<Page>>>> = MutableLiveData()
     val observableOpenGallery = MutableLiveData<Event<Pair<UUID, UUID?>>>()
 
     private var retakePageId: UUID? = null
@@ -42,6 +58,16 @@ class CameraViewModel(
 
     private var collectorJob: Job? = null
 
+    /**
+     * Saves the pictures in the background, the camera should not take further pictures while
+     * [CaptureQueue.observableIsFull] is true.
+     */
+    private val captureQueue = CaptureQueue(CaptureQueue.getDefaultBudget(), ::saveCapturedImages)
+    val observableCaptureQueueFull: MutableLiveData<Boolean> = captureQueue.observableIsFull
+
+    // a document that has been created by saveCapturedImages, but is not emitted yet.
+    private var createdDocument: Document? = null
+
     /**
      * @return true if the camera is in retake mode.
      */
@@ -56,7 +82,11 @@ class CameraViewModel(
         collectorJob = viewModelScope.launch(Dispatchers.IO) {
             launch {
                 getDocumentFlow(docId).collectLatest { docWithPages ->
+                    if (docWithPages != null) {
+                        createdDocument = null
+                    }
                     observableDocumentWithPages.postValue(docWithPages)
+                    updatePageHashIndex(docWithPages)
                 }
             }
             launch {
@@ -89,81 +119,139 @@ class CameraViewModel(
 
     /**
      * Tries to save raw image data to the currently loaded [observableDocumentWithPages], adds
-     * all necessary meta data to [Page] and appends it finally to the [Document].
+     * all necessary meta data to [Page] and appends it finally to the [Document]. New pages are
+     * saved by the [captureQueue] in the order in which they were taken, a retake is saved at once.
+     *
+     * @param pageHint the page of the camera preview, which seeds the page detection.
      */
-    fun saveRawImageData(data: ByteArray, orientation: Int, cameraDpi: Int, location: Location?) {
+    fun saveRawImageData(
+        data: ByteArray,
+        orientation: Int,
+        cameraDpi: Int,
+        location: Location?,
+        pageHint: PageHint?
+    ) {
+        val exifMetaData = ImageExifMetaData(
+            exifOrientation = orientation,
+            exifSoftware = app.resources.getString(R.string.app_name),
+            exifArtist = preferencesHandler.exifArtist,
+            exifCopyRight = preferencesHandler.exifCopyRight,
+            location = location?.let {
+                ExifLocation(
+                    // Taken from http://stackoverflow.com/questions/5280479/how-to-save-gps-coordinates-in-exif-data-on-android (post by fabien):
+                    GPS.convert(it.latitude),
+                    GPS.latitudeRef(it.latitude),
+                    GPS.convert(it.longitude),
+                    GPS.longitudeRef(it.longitude)
+                )
+            },
+            resolution = kotlin.run {
+                if (cameraDpi != -1) {
+                    return@run null
+                } else {
+                    // TODO: Is this even correct?
+                    val rational = Rational(cameraDpi, 1)
+                    ExifResolution(rational.toString(), rational.toString())
+                }
+            }
+        )
+        val image = CapturedImage(data, exifMetaData, pageHint)
+
+        if (!isRetakeMode()) {
+            observableImageLoadingProgress.postValue(true)
+            if (!captureQueue.add(image)) {
+                savingHasFailed()
+            }
+            return
+        }
+
         viewModelScope.launch(Dispatchers.IO) {
             observableImageLoadingProgress.postValue(true)
-            val isRetakeMode = isRetakeMode()
-            val doc: Document
-            if (isRetakeMode) {
-                // check if the ids are still valid
-                val retakePageId = retakePageId ?: run {
-                    savingHasFailed()
-                    return@launch
-                }
-                val page = documentRepository.getPageById(retakePageId) ?: run {
-                    savingHasFailed()
-                    return@launch
-                }
-                doc = documentRepository.getDocumentWithPages(page.docId)?.document ?: run {
-                    savingHasFailed()
-                    return@launch
-                }
-                if (retakeDocId != doc.id) {
-                    savingHasFailed()
-                    return@launch
-                }
-            } else {
-                doc = (observableDocumentWithPages.value?.document
-                    ?: documentRepository.createNewActiveDocument())
+            // check if the ids are still valid
+            val retakePageId = retakePageId ?: run {
+                savingHasFailed()
+                return@launch
+            }
+            val page = documentRepository.getPageById(retakePageId) ?: run {
+                savingHasFailed()
+                return@launch
+            }
+            val doc = documentRepository.getDocumentWithPages(page.docId)?.document ?: run {
+                savingHasFailed()
+                return@launch
+            }
+            if (retakeDocId != doc.id) {
+                savingHasFailed()
+                return@launch
             }
 
-            val exifMetaData = ImageExifMetaData(
-                exifOrientation = orientation,
-                exifSoftware = app.resources.getString(R.string.app_name),
-                exifArtist = preferencesHandler.exifArtist,
-                exifCopyRight = preferencesHandler.exifCopyRight,
-                location = location?.let {
-                    ExifLocation(
-                        // Taken from http://stackoverflow.com/questions/5280479/how-to-save-gps-coordinates-in-exif-data-on-android (post by fabien):
-                        GPS.convert(it.latitude),
-                        GPS.latitudeRef(it.latitude),
-                        GPS.convert(it.longitude),
-                        GPS.longitudeRef(it.longitude)
-                    )
-                },
-                resolution = kotlin.run {
-                    if (cameraDpi != -1) {
-                        return@run null
-                    } else {
-                        // TODO: Is this even correct?
-                        val rational = Rational(cameraDpi, 1)
-                        ExifResolution(rational.toString(), rational.toString())
-                    }
-                }
-            )
             val result = documentRepository.saveNewImageForDocument(
                 doc.id,
                 data,
-                if (isRetakeMode) retakePageId else null,
-                exifMetaData
+                retakePageId,
+                exifMetaData,
+                pageHint
             )
             when (result) {
                 is Failure -> {
                     Timber.e(result.exception, "New image failed to be persisted")
                 }
                 is Success -> {
-                    if (isRetakeMode) {
-                        initiateGallery()
-                    }
+                    initiateGallery()
                 }
             }
-            observableTookImage.postValue(Event(result))
+            observableTookImage.postValue(Event(listOf(result)))
             observableImageLoadingProgress.postValue(false)
         }
     }
 
+    /**
+     * Saves a batch of the [captureQueue] as new pages of the current document.
+     */
+    private suspend fun saveCapturedImages(images: List<CapturedImage>) {
+        // the document is just created for the first batch, the following batches might be saved
+        // before the new document is emitted.
+        val doc = observableDocumentWithPages.value?.document
+            ?: createdDocument
+            ?: documentRepository.createNewActiveDocument().also { createdDocument = it }
+
+        val results = documentRepository.saveNewImagesForDocument(doc.id, images)
+        results.forEachIndexed { index, result ->
+            when (result) {
+                is Failure -> {
+                    Timber.e(result.exception, "New image failed to be persisted")
+                }
+                is Success -> {
+                    PageHash.compute(images[index].data)?.let { hash ->
+                        pageHashIndex.put(result.data.id, hash)
+                    }
+                }
+            }
+        }
+        observableTookImage.postValue(Event(results))
+        observableImageLoadingProgress.postValue(false)
+    }
+
+    /**
+     * Adds the hashes of new pages to the [pageHashIndex] and removes deleted pages. The hashes of
+     * new pages are usually already added by [saveRawImageData], so the files are just decoded for
+     * pages that have been added otherwise (e.g. in a previous session).
+     */
+    private suspend fun updatePageHashIndex(docWithPages: DocumentWithPages?) {
+        val pages = docWithPages?.pages?.filter { page -> page.id != retakePageId } ?: listOf()
+        pageHashIndex.retain(pages.map { page -> page.id })
+        pages.forEach { page ->
+            // stop if a new document emission has arrived.
+            coroutineContext.ensureActive()
+            if (!pageHashIndex.contains(page.id)) {
+                val file = fileHandler.getFileByPage(page) ?: return@forEach
+                PageHash.compute(file.absolutePath)?.let { hash ->
+                    pageHashIndex.put(page.id, hash)
+                }
+            }
+        }
+    }
+
     /**
      * Initiates the gallery, but ignores the operation if no current document is available.
      */
@@ -176,7 +264,13 @@ class CameraViewModel(
 
     private fun savingHasFailed() {
         observableImageLoadingProgress.postValue(false)
-        observableTookImage.postValue(Event(Failure(Exception("saving has failed!"))))
+        observableTookImage.postValue(Event(listOf(Failure(Exception("saving has failed!")))))
+    }
+
+    override fun onCleared() {
+        super.onCleared()
+        // the pictures that have already been taken are still saved
+        captureQueue.close()
     }
 
     private fun removeRetakeMode() {
@@ -0,0 +1,104 @@
+package at.ac.tuwien.caa.docscan.ui.camera
+
+import androidx.lifecycle.MutableLiveData
+import at.ac.tuwien.caa.docscan.camera.CapturedImage
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import timber.log.Timber
+
+/**
+ * Saves the captured images one after another in the order in which they were taken. The images
+ * wait in memory until they are saved, therefore the queue has a memory budget: if the queued
+ * images exceed [budgetBytes], [observableIsFull] is true and the camera should not take further
+ * pictures until the queue has been drained to the half of the budget.
+ *
+ * The images that are waiting when the previous batch has been saved are passed as a single batch
+ * to [save], so that their pages can be inserted at once.
+ *
+ * The queue is not bound to a lifecycle, after [close] the remaining images are still saved.
+ *
+ * @param dispatcher the dispatcher on which the images are saved.
+ */
+class CaptureQueue(
+    private val budgetBytes: Long,
+    private val save: suspend (List<CapturedImage>) -> Unit,
+    dispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+    private val channel = Channel<CapturedImage>(Channel.UNLIMITED)
+    private var queuedBytes = 0L
+    private var isFull = false
+
+    val observableIsFull = MutableLiveData(false)
+
+    init {
+        scope.launch {
+            for (first in channel) {
+                val batch = mutableListOf(first)
+                while (batch.size < MAX_BATCH_SIZE) {
+                    batch.add(channel.tryReceive().getOrNull() ?: break)
+                }
+                try {
+                    // a started batch is always saved, even if the scope gets cancelled
+                    withContext(NonCancellable) {
+                        save(batch)
+                    }
+                } catch (e: Exception) {
+                    Timber.e(e, "Saving of captured images has failed!")
+                }
+                updateQueuedBytes(-batch.sumOf { image -> image.data.size.toLong() })
+            }
+        }
+    }
+
+    /**
+     * Adds an image to the queue. The image is accepted even if the queue is full, because the
+     * picture has already been taken.
+     *
+     * @return false if the queue has been closed and the image is not saved.
+     */
+    fun add(image: CapturedImage): Boolean {
+        updateQueuedBytes(image.data.size.toLong())
+        if (channel.trySend(image).isFailure) {
+            updateQueuedBytes(-image.data.size.toLong())
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Stops accepting new images, the queued images are still saved.
+     */
+    fun close() {
+        channel.close()
+    }
+
+    @Synchronized
+    private fun updateQueuedBytes(diff: Long) {
+        queuedBytes += diff
+        val full = if (isFull) queuedBytes > budgetBytes / 2 else queuedBytes >= budgetBytes
+        if (full != isFull) {
+            isFull = full
+            Timber.d("capture queue full: $full, queued bytes: $queuedBytes")
+            observableIsFull.postValue(full)
+        }
+    }
+
+    companion object {
+        private const val MAX_BATCH_SIZE = 10
+
+        /**
+         * @return a memory budget for the queued images, depending on the heap size.
+         */
+        fun getDefaultBudget(): Long {
+            return minOf(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024)
+        }
+    }
+}
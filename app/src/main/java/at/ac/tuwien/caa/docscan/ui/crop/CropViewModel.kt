@@ -48,6 +48,8 @@ class CropViewModel(
     }
 
     private fun init() {
+        // the page detection of this page is needed first
+        imageProcessorRepository.prioritizePages(listOf(page.id))
         viewModelScope.launch(Dispatchers.IO) {
             val pageFile = fileHandler.getFileByPage(page)
                 ?: kotlin.run {
@@ -14,7 +14,7 @@ import at.ac.tuwien.caa.docscan.databinding.GalleryItemBinding
 import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingState
 import at.ac.tuwien.caa.docscan.logic.FileHandler
 import at.ac.tuwien.caa.docscan.logic.GlideHelper
-import at.ac.tuwien.caa.docscan.logic.calculateImageResolution
+import at.ac.tuwien.caa.docscan.logic.calculatePageResolution
 import org.koin.java.KoinJavaComponent.inject
 import kotlin.math.roundToInt
 
@@ -49,7 +49,7 @@ class ImagesAdapter(
 
             // TODO: Consider calling this in the viewModel on an IO thread
             val aspectRatio = fileHandler.getFileByPage(page.page)?.let {
-                calculateImageResolution(it, page.page.rotation).aspectRatio
+                calculatePageResolution(page.page, it).aspectRatio
             } ?: .0
 
             val topView = binding.pageContainer
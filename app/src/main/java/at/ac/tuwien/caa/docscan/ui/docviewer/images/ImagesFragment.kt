@@ -4,6 +4,7 @@ import android.os.Bundle
 import android.view.*
 import androidx.navigation.fragment.navArgs
 import androidx.recyclerview.widget.GridLayoutManager
+import androidx.recyclerview.widget.RecyclerView
 import at.ac.tuwien.caa.docscan.R
 import at.ac.tuwien.caa.docscan.databinding.FragmentImagesBinding
 import at.ac.tuwien.caa.docscan.logic.ConsumableEvent
@@ -112,13 +113,34 @@ class ImagesFragment : BaseFragment() {
         )
         binding.imagesList.layoutManager = GridLayoutManager(context, COLUMN_COUNT)
         binding.imagesList.adapter = imagesAdapter
+        binding.imagesList.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+                super.onScrollStateChanged(recyclerView, newState)
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prioritizeVisiblePages()
+                }
+            }
+        })
         viewModel.loadDocumentPagesById(args.documentPage?.docId, args.documentPage?.pageId)
         observe()
     }
 
+    /**
+     * Moves the pending image work of the visible pages in front of the other work.
+     */
+    private fun prioritizeVisiblePages() {
+        val layoutManager = binding.imagesList.layoutManager as? GridLayoutManager ?: return
+        viewModel.onPagesVisible(
+            layoutManager.findFirstVisibleItemPosition(),
+            layoutManager.findLastVisibleItemPosition()
+        )
+    }
+
     private fun observe() {
         viewModel.observablePages.observe(viewLifecycleOwner) {
-            imagesAdapter.submitList(it.pages)
+            imagesAdapter.submitList(it.pages) {
+                prioritizeVisiblePages()
+            }
             if (it.pages.isEmpty()) {
                 binding.imagesList.visibility = View.INVISIBLE
                 binding.imagesEmptyLayout.visibility = View.VISIBLE
@@ -3,6 +3,7 @@ package at.ac.tuwien.caa.docscan.ui.docviewer.images
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import androidx.recyclerview.widget.RecyclerView
 import at.ac.tuwien.caa.docscan.db.model.DocumentWithPages
 import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.logic.Event
@@ -123,6 +124,23 @@ class ImagesViewModel(val repository: DocumentRepository) : ViewModel() {
         }
     }
 
+    /**
+     * Prioritizes the pending image work of the pages from [firstPosition] to [lastPosition].
+     */
+    fun onPagesVisible(firstPosition: Int, lastPosition: Int) {
+        val pages = observablePages.value?.pages ?: return
+        if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
+            return
+        }
+        val visiblePageIds = pages.subList(
+            firstPosition.coerceIn(0, pages.size),
+            (lastPosition + 1).coerceIn(0, pages.size)
+        ).map { pageSelection -> pageSelection.page.id }
+        if (visiblePageIds.isNotEmpty()) {
+            repository.prioritizePages(visiblePageIds)
+        }
+    }
+
     fun setSelectedForAll(isSelected: Boolean) {
         val pages = getPagesCopy() ?: return
         pages.pages.forEach { page ->
@@ -7,6 +7,7 @@ import android.view.ViewGroup
 import androidx.fragment.app.Fragment
 import at.ac.tuwien.caa.docscan.databinding.FragmentImageViewerBinding
 import at.ac.tuwien.caa.docscan.db.model.getScaledCropPoints
+import at.ac.tuwien.caa.docscan.db.model.hasVirtualCrop
 import at.ac.tuwien.caa.docscan.db.model.state.PostProcessingState
 import at.ac.tuwien.caa.docscan.logic.FileHandler
 import at.ac.tuwien.caa.docscan.logic.calculateImageResolution
@@ -64,7 +65,8 @@ class ImageViewerFragment : Fragment() {
                 fileHandler.getFileByPage(page)?.let {
                     setImage(ImageSource.uri(it.absolutePath))
                     val resolution = calculateImageResolution(it, page.rotation)
-                    if (page.postProcessingState != PostProcessingState.DONE) {
+                    // the original image of a virtually cropped page is shown with its crop
+                    if (page.postProcessingState != PostProcessingState.DONE || page.hasVirtualCrop()) {
                         binding.imageViewerImageView.setPoints(
                             page.getScaledCropPoints(resolution.width, resolution.height)
                         )
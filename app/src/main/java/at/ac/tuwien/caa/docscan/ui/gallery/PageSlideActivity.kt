@@ -44,6 +44,7 @@ class PageSlideActivity : BaseNoNavigationActivity(), PageImageView.SingleClickL
                 binding.slideViewpager.currentItem, viewModel.observablePages.value?.first?.size
                     ?: 0
             )
+            viewModel.onPageVisible(position)
         }
     }
 
@@ -110,7 +110,7 @@ class PageSlideViewModel(
                             observableError.postValue(Event(docResource.exception))
                         }
                         is Success -> {
-                            when (val uriResource = fileHandler.getUriByPageResource(
+                            when (val uriResource = repository.sharePage(
                                 result.data,
                                 docResource.data.getFileName(
                                     result.data.index + 1,
@@ -149,5 +149,14 @@ class PageSlideViewModel(
         observableInitDocumentViewer.postValue(Event(page))
     }
 
+    /**
+     * Prioritizes the pending image work of the page which is shown to the user.
+     */
+    fun onPageVisible(index: Int) {
+        getPageByIndex(index)?.let { page ->
+            repository.prioritizePages(listOf(page.id))
+        }
+    }
+
     private fun getPageByIndex(index: Int) = observablePages.value?.first?.getOrNull(index)
 }
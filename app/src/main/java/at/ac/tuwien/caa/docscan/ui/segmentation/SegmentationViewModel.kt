@@ -1,15 +1,17 @@
 package at.ac.tuwien.caa.docscan.ui.segmentation
 
-import android.graphics.BitmapFactory
 import android.graphics.Color
 import android.os.Bundle
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import at.ac.tuwien.caa.docscan.DocScanApp
+import at.ac.tuwien.caa.docscan.camera.cv.ImageDecoder
 import at.ac.tuwien.caa.docscan.db.model.Page
 import at.ac.tuwien.caa.docscan.logic.Event
 import at.ac.tuwien.caa.docscan.logic.FileHandler
+import at.ac.tuwien.caa.docscan.logic.ImageWork
+import at.ac.tuwien.caa.docscan.logic.ImageWorkAdmission
 import at.ac.tuwien.caa.docscan.ui.segmentation.model.ModelExecutionResult
 import at.ac.tuwien.caa.docscan.ui.segmentation.model.TFLiteModel
 import kotlinx.coroutines.Dispatchers
@@ -21,8 +23,12 @@ import timber.log.Timber
 /**
  * @author matejbartalsky
  */
-class SegmentationViewModel(extras: Bundle, val app: DocScanApp, val fileHandler: FileHandler) :
-    ViewModel() {
+class SegmentationViewModel(
+    extras: Bundle,
+    val app: DocScanApp,
+    val fileHandler: FileHandler,
+    private val imageWorkAdmission: ImageWorkAdmission
+) : ViewModel() {
 
     // retrieve the image file path
     private val page: Page =
@@ -89,7 +95,9 @@ class SegmentationViewModel(extras: Bundle, val app: DocScanApp, val fileHandler
     private fun performSegmentation(models: List<TFLiteModel>, useGPU: Boolean) =
         viewModelScope.launch(Dispatchers.IO) {
             observableProgress.postValue(true)
-            val result = work(models, useGPU)
+            val result = imageWorkAdmission.withPermit(file, ImageWork.SEGMENTATION) {
+                work(models, useGPU)
+            }
             if (!isActive) {
                 return@launch
             }
@@ -100,13 +108,15 @@ class SegmentationViewModel(extras: Bundle, val app: DocScanApp, val fileHandler
     private fun work(models: List<TFLiteModel>, useGPU: Boolean): List<ModelExecutionResult> {
         val list = mutableListOf<ModelExecutionResult>()
         try {
-            val inputBitmap = BitmapFactory.decodeFile(file.absolutePath)
+            // the models work on a small image, the full resolution is not needed
+            val inputBitmap = ImageDecoder.decodeBitmap(file.absolutePath, MODEL_INPUT_SIZE)
+                ?: throw IllegalStateException("Cannot decode ${file.name}")
             models.forEach { model ->
                 try {
                     val result = SegmentationExecutor().execute(
                         app,
                         inputBitmap,
-                        513,
+                        MODEL_INPUT_SIZE,
                         labels,
                         model,
                         useGPU
@@ -122,4 +132,9 @@ class SegmentationViewModel(extras: Bundle, val app: DocScanApp, val fileHandler
         }
         return list
     }
+
+    companion object {
+        // input size of the segmentation models
+        private const val MODEL_INPUT_SIZE = 513
+    }
 }
@@ -0,0 +1,73 @@
+package at.ac.tuwien.caa.docscan.camera
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class LatencyHistogramTest {
+
+    private val histogram = LatencyHistogram()
+
+    @Test
+    fun emptyHistogram() {
+        assertEquals(0L, histogram.getCount())
+        assertEquals(-1L, histogram.getPercentile(50.0))
+        assertEquals(-1L, histogram.getPercentile(95.0))
+    }
+
+    @Test
+    fun singleSample() {
+        histogram.record(7)
+
+        assertEquals(1L, histogram.getCount())
+        assertEquals(7L, histogram.getPercentile(50.0))
+        assertEquals(7L, histogram.getPercentile(95.0))
+    }
+
+    @Test
+    fun singleLargeSampleIsRoundedUpToItsBucket() {
+        histogram.record(1000)
+
+        // the buckets above 16 ms have a relative error of at most 12.5%
+        assertEquals(1023L, histogram.getPercentile(50.0))
+        assertEquals(1023L, histogram.getPercentile(95.0))
+    }
+
+    @Test
+    fun exactPercentilesOfSmallValues() {
+        (0L until 10L).forEach { time -> histogram.record(time) }
+
+        assertEquals(10L, histogram.getCount())
+        assertEquals(4L, histogram.getPercentile(50.0))
+        assertEquals(9L, histogram.getPercentile(95.0))
+    }
+
+    @Test
+    fun percentilesOfKnownSamples() {
+        // the samples are recorded in reverse order, the order does not matter
+        (100L downTo 1L).forEach { time -> histogram.record(time) }
+
+        assertEquals(100L, histogram.getCount())
+        // 50 and 95 are in the buckets [48, 51] and [88, 95]
+        assertEquals(51L, histogram.getPercentile(50.0))
+        assertEquals(95L, histogram.getPercentile(95.0))
+        assertEquals(103L, histogram.getPercentile(100.0))
+    }
+
+    @Test
+    fun outliersAreClamped() {
+        histogram.record(-5)
+        histogram.record(Long.MAX_VALUE)
+
+        assertEquals(0L, histogram.getPercentile(50.0))
+        assertTrue(histogram.getPercentile(100.0) > 0)
+    }
+
+    @Test
+    fun reset() {
+        histogram.record(10)
+        histogram.reset()
+
+        assertEquals(0L, histogram.getCount())
+        assertEquals(-1L, histogram.getPercentile(50.0))
+    }
+}
@@ -0,0 +1,40 @@
+package at.ac.tuwien.caa.docscan.camera
+
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+
+class PipelineMetricsTest {
+
+    private val metrics = PipelineMetrics.getInstance()
+
+    @Before
+    fun setUp() {
+        metrics.reset()
+    }
+
+    @After
+    fun tearDown() {
+        metrics.reset()
+    }
+
+    @Test
+    fun summaryReportsThePercentiles() {
+        (1L..100L).forEach { time ->
+            metrics.recordTime(TaskTimer.TaskType.FRAME_ANALYSIS, time)
+        }
+        metrics.recordTime(TaskTimer.TaskType.PAGE_SEGMENTATION, 7)
+
+        val lines = metrics.summary.lines()
+        assertTrue(lines.contains(stageLine("frame analysis", 100, "51", "95", "103")))
+        assertTrue(lines.contains(stageLine("page segmentation", 1, "7", "7", "7")))
+        // stages without samples have no percentiles
+        assertTrue(lines.contains(stageLine("frame ingest", 0, "-", "-", "-")))
+    }
+
+    private fun stageLine(name: String, count: Int, p50: String, p95: String, p99: String): String {
+        return String.format(Locale.US, "%-18s %6d %6s %6s %6s", name, count, p50, p95, p99)
+    }
+}
@@ -0,0 +1,126 @@
+package at.ac.tuwien.caa.docscan.camera.cv
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class PageHashIndexTest {
+
+    private val random = Random(42)
+    private val index = PageHashIndex()
+
+    private fun randomHash() = LongArray(PageHash.LENGTH) { random.nextLong() }
+
+    /**
+     * @return a copy of [hash] with [count] different bits, which are spread over all bands.
+     */
+    private fun flipBits(hash: LongArray, count: Int): LongArray {
+        val bits = PageHash.LENGTH * Long.SIZE_BITS
+        val copy = hash.copyOf()
+        for (i in 0 until count) {
+            val bit = i * bits / count
+            copy[bit / Long.SIZE_BITS] = copy[bit / Long.SIZE_BITS] xor (1L shl (bit % Long.SIZE_BITS))
+        }
+        return copy
+    }
+
+    @Test
+    fun distance() {
+        val hash = randomHash()
+        assertEquals(0, PageHash.distance(hash, hash.copyOf()))
+        assertEquals(5, PageHash.distance(hash, flipBits(hash, 5)))
+    }
+
+    @Test
+    fun matchSamePage() {
+        val pageId = UUID.randomUUID()
+        val hash = randomHash()
+        index.put(pageId, hash)
+        index.put(UUID.randomUUID(), randomHash())
+
+        assertEquals(pageId, index.findMatch(hash.copyOf()))
+    }
+
+    @Test
+    fun matchNearDuplicateWithinTheThreshold() {
+        val pageId = UUID.randomUUID()
+        val hash = randomHash()
+        index.put(pageId, hash)
+
+        assertEquals(pageId, index.findMatch(flipBits(hash, PageHashIndex.MAX_DISTANCE)))
+        assertNull(index.findMatch(flipBits(hash, PageHashIndex.MAX_DISTANCE + 1)))
+    }
+
+    @Test
+    fun matchNearDuplicateWithChangedBands() {
+        val pageId = UUID.randomUUID()
+        val hash = randomHash()
+        index.put(pageId, hash)
+
+        // the different bits are packed into the first bands, the others still find the page
+        val nearDuplicate = hash.copyOf()
+        nearDuplicate[0] = nearDuplicate[0] xor ((1L shl PageHashIndex.MAX_DISTANCE) - 1)
+        assertEquals(pageId, index.findMatch(nearDuplicate))
+    }
+
+    @Test
+    fun matchMostSimilarPage() {
+        val hash = randomHash()
+        val similarPage = UUID.randomUUID()
+        val lessSimilarPage = UUID.randomUUID()
+        index.put(lessSimilarPage, flipBits(hash, 20))
+        index.put(similarPage, flipBits(hash, 3))
+
+        assertEquals(similarPage, index.findMatch(hash))
+    }
+
+    @Test
+    fun noMatchForOtherPages() {
+        repeat(50) { index.put(UUID.randomUUID(), randomHash()) }
+
+        assertNull(index.findMatch(randomHash()))
+    }
+
+    @Test
+    fun putReplacesTheHashOfAPage() {
+        val pageId = UUID.randomUUID()
+        val oldHash = randomHash()
+        val newHash = randomHash()
+        index.put(pageId, oldHash)
+        index.put(pageId, newHash)
+
+        assertNull(index.findMatch(oldHash))
+        assertEquals(pageId, index.findMatch(newHash))
+    }
+
+    @Test
+    fun retainRemovesOtherPages() {
+        val keptPage = UUID.randomUUID()
+        val deletedPage = UUID.randomUUID()
+        val keptHash = randomHash()
+        val deletedHash = randomHash()
+        index.put(keptPage, keptHash)
+        index.put(deletedPage, deletedHash)
+
+        index.retain(listOf(keptPage))
+
+        assertTrue(index.contains(keptPage))
+        assertFalse(index.contains(deletedPage))
+        assertEquals(keptPage, index.findMatch(keptHash))
+        assertNull(index.findMatch(deletedHash))
+    }
+
+    @Test
+    fun removeAndClear() {
+        val pageId = UUID.randomUUID()
+        val hash = randomHash()
+        index.put(pageId, hash)
+        index.remove(pageId)
+        assertNull(index.findMatch(hash))
+
+        index.put(pageId, hash)
+        index.clear()
+        assertFalse(index.contains(pageId))
+        assertNull(index.findMatch(hash))
+    }
+}
@@ -0,0 +1,191 @@
+package at.ac.tuwien.caa.docscan.logic
+
+import android.app.Application
+import android.os.Build
+import androidx.exifinterface.media.ExifInterface
+import at.ac.tuwien.caa.docscan.camera.ExifLocation
+import at.ac.tuwien.caa.docscan.camera.ExifResolution
+import at.ac.tuwien.caa.docscan.camera.ImageExifMetaData
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P], application = Application::class)
+class ExifSegmentTest {
+
+    private val metaData = ImageExifMetaData(
+        exifOrientation = ExifInterface.ORIENTATION_ROTATE_90,
+        exifSoftware = "DocScan",
+        exifArtist = "Artist",
+        exifCopyRight = "Copyright",
+        location = ExifLocation("48/1,11/1,55903/1000", "N", "16/1,22/1,1234/100", "E"),
+        resolution = ExifResolution("72/1", "72/1")
+    )
+
+    @Test
+    fun cameraEntriesArePassedThrough() {
+        val jpeg = jpeg(cameraExifSegment())
+        val result = jpeg.withExifData(metaData)
+        assertNotNull(result)
+        val exif = ExifInterface(ByteArrayInputStream(result))
+
+        assertEquals("Camera Make", exif.getAttribute(ExifInterface.TAG_MAKE))
+        assertEquals("Camera Model", exif.getAttribute(ExifInterface.TAG_MODEL))
+        assertEquals("2022:01:02 03:04:05", exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL))
+        assertEquals(200, exif.getAttributeInt(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, 0))
+        assertEquals(0.01, exif.getAttributeDouble(ExifInterface.TAG_EXPOSURE_TIME, 0.0), 1e-9)
+        assertEquals(1.8, exif.getAttributeDouble(ExifInterface.TAG_F_NUMBER, 0.0), 1e-9)
+        // the tags of the app override the ones of the camera
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90,
+            exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 0))
+        assertEquals("DocScan", exif.getAttribute(ExifInterface.TAG_SOFTWARE))
+        assertAppAttributes(exif)
+
+        assertImageSegmentsEqual(jpeg(null), result!!)
+    }
+
+    @Test
+    fun makerNoteIsDropped() {
+        // the maker note contains an offset relative to the TIFF header of the camera
+        val makerNote = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+            .put("Maker\u0000".toByteArray(Charsets.US_ASCII)).putShort(0).putInt(8).array()
+        val jpeg = jpeg(cameraExifSegment(makerNote))
+        val result = jpeg.withExifData(metaData)
+        assertNotNull(result)
+        val exif = ExifInterface(ByteArrayInputStream(result))
+
+        assertNull(exif.getAttribute(ExifInterface.TAG_MAKER_NOTE))
+        // the other entries of the exif IFD are still passed through
+        assertEquals("2022:01:02 03:04:05", exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL))
+        assertEquals(200, exif.getAttributeInt(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, 0))
+        assertAppAttributes(exif)
+
+        assertImageSegmentsEqual(jpeg(null), result!!)
+    }
+
+    @Test
+    fun imageWithoutExif() {
+        val jpeg = jpeg(null)
+        val result = jpeg.withExifData(metaData)
+        assertNotNull(result)
+        val exif = ExifInterface(ByteArrayInputStream(result))
+
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90,
+            exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 0))
+        assertEquals("DocScan", exif.getAttribute(ExifInterface.TAG_SOFTWARE))
+        assertNull(exif.getAttribute(ExifInterface.TAG_MAKE))
+        assertAppAttributes(exif)
+
+        assertImageSegmentsEqual(jpeg, result!!)
+    }
+
+    @Test
+    fun noJpeg() {
+        assertNull(byteArrayOf(1, 2, 3, 4).withExifData(metaData))
+    }
+
+    private fun assertAppAttributes(exif: ExifInterface) {
+        assertEquals("Artist", exif.getAttribute(ExifInterface.TAG_ARTIST))
+        assertEquals("Copyright", exif.getAttribute(ExifInterface.TAG_COPYRIGHT))
+        assertEquals("72/1", exif.getAttribute(ExifInterface.TAG_X_RESOLUTION))
+        assertEquals("72/1", exif.getAttribute(ExifInterface.TAG_Y_RESOLUTION))
+        assertEquals("48/1,11/1,55903/1000", exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE))
+        assertEquals("N", exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE_REF))
+        assertEquals("16/1,22/1,1234/100", exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE))
+        assertEquals("E", exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF))
+        val latLong = exif.latLong
+        assertNotNull(latLong)
+        assertEquals(48 + 11 / 60.0 + 55.903 / 3600, latLong!![0], 1e-6)
+        assertEquals(16 + 22 / 60.0 + 12.34 / 3600, latLong[1], 1e-6)
+    }
+
+    /**
+     * The segments behind the exif segment (i.e. the image data) must be copied unchanged.
+     */
+    private fun assertImageSegmentsEqual(withoutExif: ByteArray, result: ByteArray) {
+        assertEquals(0xFF, result[2].toInt() and 0xFF)
+        assertEquals(0xE1, result[3].toInt() and 0xFF)
+        val length = ((result[4].toInt() and 0xFF) shl 8) or (result[5].toInt() and 0xFF)
+        val imageSegments = result.copyOfRange(4 + length, result.size)
+        assertArrayEquals(withoutExif.copyOfRange(2, withoutExif.size), imageSegments)
+    }
+
+    /**
+     * A JPEG with an optional exif segment, the image data is not decoded, so the segments just
+     * have to be well formed.
+     */
+    private fun jpeg(exifSegment: ByteArray?): ByteArray {
+        val output = ByteArrayOutputStream()
+        output.write(byteArrayOf(0xFF.toByte(), 0xD8.toByte()))
+        exifSegment?.let { output.write(it) }
+        // a JFIF like segment, a quantization table and the start of scan with some data
+        output.write(segment(0xE0, ByteArray(14) { it.toByte() }))
+        output.write(segment(0xDB, ByteArray(65) { (it * 3).toByte() }))
+        output.write(segment(0xDA, ByteArray(10) { (it + 1).toByte() }))
+        output.write(ByteArray(100) { (it * 7 + 1).toByte() })
+        output.write(byteArrayOf(0xFF.toByte(), 0xD9.toByte()))
+        return output.toByteArray()
+    }
+
+    private fun segment(marker: Int, data: ByteArray): ByteArray {
+        val length = data.size + 2
+        return byteArrayOf(0xFF.toByte(), marker.toByte(), (length shr 8).toByte(), length.toByte()) + data
+    }
+
+    /**
+     * Builds the exif segment of a camera in little endian byte order: IFD0 with make, model and
+     * orientation, the exif IFD with the exposure, the time stamp and the optional maker note.
+     */
+    private fun cameraExifSegment(makerNote: ByteArray? = null): ByteArray {
+        val make = "Camera Make\u0000".toByteArray(Charsets.US_ASCII)
+        val model = "Camera Model\u0000".toByteArray(Charsets.US_ASCII)
+        val dateTime = "2022:01:02 03:04:05\u0000".toByteArray(Charsets.US_ASCII)
+
+        val ifd0Offset = 8
+        val ifd0Entries = 4
+        val ifd0DataOffset = ifd0Offset + 2 + ifd0Entries * 12 + 4
+        val modelOffset = ifd0DataOffset + make.size
+        val exifOffset = modelOffset + model.size
+        val exifEntries = if (makerNote != null) 5 else 4
+        val exifDataOffset = exifOffset + 2 + exifEntries * 12 + 4
+        val fNumberOffset = exifDataOffset + 8
+        val dateTimeOffset = fNumberOffset + 8
+        val makerNoteOffset = dateTimeOffset + dateTime.size
+        val size = makerNoteOffset + (makerNote?.size ?: 0)
+
+        val tiff = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+        tiff.put(0x49).put(0x49).putShort(42).putInt(ifd0Offset)
+        tiff.putShort(ifd0Entries.toShort())
+        entry(tiff, 0x010F, 2, make.size, modelOffset - make.size)
+        entry(tiff, 0x0110, 2, model.size, modelOffset)
+        tiff.putShort(0x0112).putShort(3).putInt(1).putShort(1).putShort(0)
+        entry(tiff, 0x8769, 4, 1, exifOffset)
+        tiff.putInt(0)
+        tiff.put(make).put(model)
+
+        tiff.putShort(exifEntries.toShort())
+        entry(tiff, 0x829A, 5, 1, exifDataOffset)
+        entry(tiff, 0x829D, 5, 1, fNumberOffset)
+        tiff.putShort(0x8827.toShort()).putShort(3).putInt(1).putShort(200).putShort(0)
+        entry(tiff, 0x9003, 2, dateTime.size, dateTimeOffset)
+        makerNote?.let { entry(tiff, 0x927C, 7, it.size, makerNoteOffset) }
+        tiff.putInt(0)
+        tiff.putInt(1).putInt(100)
+        tiff.putInt(18).putInt(10)
+        tiff.put(dateTime)
+        makerNote?.let { tiff.put(it) }
+
+        return segment(0xE1, byteArrayOf(0x45, 0x78, 0x69, 0x66, 0, 0) + tiff.array())
+    }
+
+    private fun entry(buffer: ByteBuffer, tag: Int, type: Int, count: Int, offset: Int) {
+        buffer.putShort(tag.toShort()).putShort(type.toShort()).putInt(count).putInt(offset)
+    }
+}
@@ -0,0 +1,107 @@
+package at.ac.tuwien.caa.docscan.logic
+
+import android.app.Application
+import android.os.Build
+import android.os.storage.StorageManager
+import at.ac.tuwien.caa.docscan.db.model.error.IOErrorCode
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P], application = Application::class)
+class FileHandlerTest {
+
+    private lateinit var fileHandler: FileHandler
+    private lateinit var folder: File
+    private lateinit var journalFolder: File
+    private lateinit var target: File
+
+    @Before
+    fun setUp() {
+        val context = RuntimeEnvironment.application
+        fileHandler = FileHandler(context, context.getSystemService(StorageManager::class.java))
+        folder = File(context.filesDir, "test").apply { mkdirs() }
+        journalFolder = File(context.filesDir, FileHandler.FOLDER_JOURNAL)
+        target = File(folder, "page.jpg").apply { writeText("old") }
+    }
+
+    @Test
+    fun replaceFile() {
+        val resource = fileHandler.replaceFileResource(target) { tempFile ->
+            tempFile.writeText("new")
+            Success(Unit)
+        }
+
+        assertTrue(resource is Success)
+        assertEquals("new", target.readText())
+        assertNoTransactionLeftBehind()
+    }
+
+    @Test
+    fun failingWriteLeavesTheTargetUnchanged() {
+        val resource = fileHandler.replaceFileResource(target) { tempFile ->
+            tempFile.writeText("new")
+            IOErrorCode.FILE_COPY_ERROR.asFailure<Unit>()
+        }
+
+        assertTrue(resource is Failure)
+        assertEquals("old", target.readText())
+        assertNoTransactionLeftBehind()
+    }
+
+    @Test
+    fun throwingWriteLeavesTheTargetUnchanged() {
+        val resource = fileHandler.replaceFileResource<Unit>(target) { tempFile ->
+            tempFile.writeText("new")
+            throw IOException("The storage is full")
+        }
+
+        assertTrue(resource is Failure)
+        assertEquals("old", target.readText())
+        assertNoTransactionLeftBehind()
+    }
+
+    @Test
+    fun recoverDeletesTheTempFileOfAnInterruptedTransaction() {
+        val tempFile = File(folder, "page-interrupted.tmp.jpg").apply { writeText("new") }
+        val journalEntry = File(journalFolder.apply { mkdirs() }, "interrupted")
+        journalEntry.writeText(tempFile.absolutePath)
+
+        fileHandler.recoverFileTransactions()
+
+        assertFalse(tempFile.exists())
+        assertFalse(journalEntry.exists())
+        assertEquals("old", target.readText())
+    }
+
+    @Test
+    fun recoverSkipsTheTransactionsOfThisProcess() {
+        var tempFileExists = false
+        var journalEntries = 0
+        val resource = fileHandler.replaceFileResource(target) { tempFile ->
+            tempFile.writeText("new")
+            fileHandler.recoverFileTransactions()
+            tempFileExists = tempFile.exists()
+            journalEntries = journalFolder.listFiles()?.size ?: 0
+            Success(Unit)
+        }
+
+        assertTrue(tempFileExists)
+        assertEquals(1, journalEntries)
+        assertTrue(resource is Success)
+        assertEquals("new", target.readText())
+        assertNoTransactionLeftBehind()
+    }
+
+    private fun assertNoTransactionLeftBehind() {
+        assertEquals(listOf(target.name), folder.list()?.toList())
+        assertTrue(journalFolder.list().isNullOrEmpty())
+    }
+}
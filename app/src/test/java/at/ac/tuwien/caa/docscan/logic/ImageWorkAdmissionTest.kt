@@ -0,0 +1,96 @@
+package at.ac.tuwien.caa.docscan.logic
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+class ImageWorkAdmissionTest {
+
+    private val admission = ImageWorkAdmission(budgetBytes = 100, maxRunningJobs = 4)
+    private val started = mutableListOf<String>()
+
+    /**
+     * Launches a job that holds its permit until the returned gate is completed.
+     */
+    private fun TestScope.startJob(name: String, bytes: Long): CompletableDeferred<Unit> {
+        val gate = CompletableDeferred<Unit>()
+        launch {
+            admission.withPermit(bytes) {
+                started.add(name)
+                gate.await()
+            }
+        }
+        runCurrent()
+        return gate
+    }
+
+    @Test
+    fun jobsAreAdmittedInTheOrderOfTheirRequests() = runTest {
+        val first = startJob("first", 60)
+        val second = startJob("second", 60)
+        // the third job would fit, but it must not overtake the second one
+        val third = startJob("third", 10)
+        assertEquals(listOf("first"), started)
+
+        first.complete(Unit)
+        runCurrent()
+        assertEquals(listOf("first", "second", "third"), started)
+
+        second.complete(Unit)
+        third.complete(Unit)
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun oversizeJobRunsAlone() = runTest {
+        val small = startJob("small", 10)
+        val oversize = startJob("oversize", 500)
+        val next = startJob("next", 10)
+        assertEquals(listOf("small"), started)
+
+        small.complete(Unit)
+        runCurrent()
+        assertEquals(listOf("small", "oversize"), started)
+
+        oversize.complete(Unit)
+        runCurrent()
+        assertEquals(listOf("small", "oversize", "next"), started)
+
+        next.complete(Unit)
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun cancelledWaiterReleasesItsPermit() = runTest {
+        val other = startJob("other", 10)
+        var waiterStarted = false
+        val waiter = launch {
+            admission.withPermit(60) {
+                waiterStarted = true
+            }
+        }
+
+        admission.withPermit(40) {
+            runCurrent()
+            // the waiter does not fit as long as this job runs
+            assertFalse(waiterStarted)
+        }
+        // the waiter has been admitted by the release above, but it is cancelled before it resumes
+        waiter.cancel()
+        advanceUntilIdle()
+        assertFalse(waiterStarted)
+
+        // just the other job is running, the bytes of the waiter have been released
+        val next = startJob("next", 90)
+        assertEquals(listOf("other", "next"), started)
+
+        other.complete(Unit)
+        next.complete(Unit)
+        advanceUntilIdle()
+    }
+}
@@ -0,0 +1,106 @@
+package at.ac.tuwien.caa.docscan.repository
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class ImageWorkSchedulerTest {
+
+    private val finished = mutableListOf<String>()
+    private val cancelled = mutableListOf<String>()
+
+    private fun TestScope.createScheduler(maxParallelWork: Int = 1): ImageWorkScheduler {
+        return ImageWorkScheduler(maxParallelWork, StandardTestDispatcher(testScheduler))
+    }
+
+    private fun ImageWorkScheduler.submit(
+        name: String,
+        pageId: UUID = UUID.randomUUID(),
+        fileHash: String = "hash",
+        lane: ImageWorkLane = ImageWorkLane.BACKGROUND,
+        gate: CompletableDeferred<Unit>? = null
+    ) = submit(pageId, ImageWorkType.CROP, fileHash, lane, {
+        gate?.await()
+        finished.add(name)
+    }, { cancelled.add(name) })
+
+    @Test
+    fun workIsStartedByLaneAndSubmission() = runTest {
+        val scheduler = createScheduler()
+        scheduler.submit("background 1")
+        scheduler.submit("capture", lane = ImageWorkLane.CAPTURE)
+        scheduler.submit("interactive", lane = ImageWorkLane.INTERACTIVE)
+        scheduler.submit("background 2")
+        advanceUntilIdle()
+
+        assertEquals(listOf("interactive", "capture", "background 1", "background 2"), finished)
+    }
+
+    @Test
+    fun workIsDeduplicatedByTheFileHash() = runTest {
+        val scheduler = createScheduler()
+        val pageId = UUID.randomUUID()
+        val first = scheduler.submit("first", pageId, "hash 1")
+        val again = scheduler.submit("again", pageId, "hash 1")
+        assertSame(first, again)
+
+        // the pending work on the outdated file is dropped
+        val retake = scheduler.submit("retake", pageId, "hash 2")
+        advanceUntilIdle()
+
+        assertEquals(listOf("retake"), finished)
+        assertEquals(listOf("first"), cancelled)
+        assertTrue(first.isCancelled)
+        assertTrue(retake.isCompleted && !retake.isCancelled)
+    }
+
+    @Test
+    fun workOnANewFileWaitsForTheStartedWork() = runTest {
+        val scheduler = createScheduler(maxParallelWork = 2)
+        val pageId = UUID.randomUUID()
+        val gate = CompletableDeferred<Unit>()
+        scheduler.submit("first", pageId, "hash 1", gate = gate)
+        advanceUntilIdle()
+
+        scheduler.submit("retake", pageId, "hash 2")
+        advanceUntilIdle()
+        // the second worker must not process the same page
+        assertTrue(finished.isEmpty())
+
+        gate.complete(Unit)
+        advanceUntilIdle()
+        assertEquals(listOf("first", "retake"), finished)
+        assertTrue(cancelled.isEmpty())
+    }
+
+    @Test
+    fun prioritizedWorkIsStartedFirst() = runTest {
+        val scheduler = createScheduler()
+        val pageId = UUID.randomUUID()
+        scheduler.submit("other")
+        scheduler.submit("visible", pageId)
+        scheduler.prioritize(listOf(pageId))
+        advanceUntilIdle()
+
+        assertEquals(listOf("visible", "other"), finished)
+    }
+
+    @Test
+    fun cancelCallsOnCancelled() = runTest {
+        val scheduler = createScheduler()
+        val pageId = UUID.randomUUID()
+        val work = scheduler.submit("cancelled", pageId)
+        scheduler.submit("other")
+        scheduler.cancel(pageId)
+        advanceUntilIdle()
+
+        assertEquals(listOf("other"), finished)
+        assertEquals(listOf("cancelled"), cancelled)
+        assertTrue(work.isCancelled)
+    }
+}
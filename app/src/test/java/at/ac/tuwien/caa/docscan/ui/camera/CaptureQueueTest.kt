@@ -0,0 +1,92 @@
+package at.ac.tuwien.caa.docscan.ui.camera
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule
+import at.ac.tuwien.caa.docscan.camera.CapturedImage
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+
+class CaptureQueueTest {
+
+    @get:Rule
+    val instantTaskExecutorRule = InstantTaskExecutorRule()
+
+    private val savedBatches = mutableListOf<List<CapturedImage>>()
+
+    // each batch is saved as soon as the test sends an element
+    private val saveGate = Channel<Unit>(Channel.UNLIMITED)
+
+    private fun TestScope.createQueue(budgetBytes: Long): CaptureQueue {
+        return CaptureQueue(budgetBytes, { batch ->
+            saveGate.receive()
+            savedBatches.add(batch)
+        }, StandardTestDispatcher(testScheduler))
+    }
+
+    private fun image(bytes: Int) = CapturedImage(ByteArray(bytes), null, null)
+
+    private fun CaptureQueue.isFull() = observableIsFull.value!!
+
+    @Test
+    fun isFullUntilHalfOfTheBudgetIsDrained() = runTest {
+        val queue = createQueue(100)
+        val first = image(60)
+        queue.add(first)
+        // the first image is taken as a batch of its own
+        advanceUntilIdle()
+        assertFalse(queue.isFull())
+
+        queue.add(image(30))
+        assertFalse(queue.isFull())
+        queue.add(image(30))
+        assertTrue(queue.isFull())
+
+        // 60 bytes are still queued, which is more than the half of the budget
+        saveGate.send(Unit)
+        advanceUntilIdle()
+        assertEquals(listOf(listOf(first)), savedBatches)
+        assertTrue(queue.isFull())
+
+        saveGate.send(Unit)
+        advanceUntilIdle()
+        assertEquals(2, savedBatches.size)
+        assertFalse(queue.isFull())
+        queue.close()
+    }
+
+    @Test
+    fun imagesAreSavedInBatchesInTheirOrder() = runTest {
+        val queue = createQueue(Long.MAX_VALUE)
+        val images = List(12) { image(1) }
+        images.forEach { image -> assertTrue(queue.add(image)) }
+
+        repeat(2) { saveGate.send(Unit) }
+        advanceUntilIdle()
+
+        // the batch size is limited
+        assertEquals(listOf(images.subList(0, 10), images.subList(10, 12)), savedBatches)
+        queue.close()
+    }
+
+    @Test
+    fun queuedImagesAreSavedAfterClose() = runTest {
+        val queue = createQueue(10)
+        val images = List(3) { image(5) }
+        images.forEach { image -> queue.add(image) }
+        assertTrue(queue.isFull())
+
+        queue.close()
+        assertFalse(queue.add(image(5)))
+
+        saveGate.send(Unit)
+        advanceUntilIdle()
+
+        assertEquals(listOf(images), savedBatches)
+        assertFalse(queue.isFull())
+    }
+}